@@ -0,0 +1,91 @@
+package tonyg.example.com.bleledremote.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of commands sent to the LedControlService from another process.
+ *
+ * The service runs in its own process, so these are real Binder transactions.  Latency is
+ * measured from the call until the service records the command as handed to the Remote
+ * Led's GATT queue, read back through the shared status region.  No Remote Led needs to
+ * be in range.
+ */
+public class LedControlServiceLatencyTest extends AndroidTestCase {
+    private static final String TAG = LedControlServiceLatencyTest.class.getSimpleName();
+    private static final String LED_ADDRESS = "A4:C1:38:0F:9E:2B";
+    private static final int WARM_UP_CALLS = 100;
+    private static final int CALLS = 1000;
+    private static final long DISPATCH_TIMEOUT_NS = 1000000000L;
+
+    private final BlockingQueue<IBinder> mBinders = new ArrayBlockingQueue<IBinder>(1);
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mBinders.offer(service);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+
+    public void testCallToDispatchLatency() throws Exception {
+        Intent intent = new Intent(getContext(), LedControlService.class);
+        assertTrue(getContext().bindService(intent, mServiceConnection, Context.BIND_AUTO_CREATE));
+        try {
+            IBinder binder = mBinders.poll(10, TimeUnit.SECONDS);
+            assertNotNull("service did not bind", binder);
+            ILedControlService ledControlService = ILedControlService.Stub.asInterface(binder);
+            LedStatusRegion statusRegion = LedControlService.mapStatusRegion(ledControlService.getStatusRegion());
+            LedStatusRegion.Snapshot snapshot = new LedStatusRegion.Snapshot();
+
+            long[] callLatencies = new long[CALLS];
+            long[] dispatchLatencies = new long[CALLS];
+            for (int i = -WARM_UP_CALLS; i < CALLS; i++) {
+                int requestId = i + WARM_UP_CALLS + 1;
+                long start = SystemClock.elapsedRealtimeNanos();
+                ledControlService.setLed(LED_ADDRESS, requestId % 2 == 0, requestId);
+                long returned = SystemClock.elapsedRealtimeNanos();
+
+                // spin on the shared memory until the service reports the command
+                do {
+                    assertTrue(statusRegion.read(snapshot));
+                    assertTrue("request " + requestId + " not dispatched",
+                            SystemClock.elapsedRealtimeNanos() - start < DISPATCH_TIMEOUT_NS);
+                } while (snapshot.getLastRequestId() != requestId);
+
+                if (i >= 0) {
+                    callLatencies[i] = returned - start;
+                    dispatchLatencies[i] = snapshot.getLastDispatchTime() - start;
+                }
+            }
+
+            long readStart = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < CALLS; i++) {
+                statusRegion.read(snapshot);
+            }
+            long nanosPerRead = (SystemClock.elapsedRealtimeNanos() - readStart) / CALLS;
+
+            Arrays.sort(callLatencies);
+            Arrays.sort(dispatchLatencies);
+            Log.i(TAG, "oneway call returns: p50 " + callLatencies[CALLS / 2] / 1000 + "us, p99 " + callLatencies[CALLS * 99 / 100] / 1000 + "us");
+            Log.i(TAG, "call to GATT queue: p50 " + dispatchLatencies[CALLS / 2] / 1000 + "us, p99 " + dispatchLatencies[CALLS * 99 / 100] / 1000 + "us");
+            Log.i(TAG, "status region read: " + nanosPerRead + "ns");
+        } finally {
+            getContext().unbindService(mServiceConnection);
+        }
+    }
+}
@@ -2,14 +2,19 @@
 
 package tonyg.example.com.bleledremote;
 
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
@@ -21,13 +26,31 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
+import tonyg.example.com.bleledremote.ble.AdvertisementParser;
+import tonyg.example.com.bleledremote.ble.AdvertisementRecord;
 import tonyg.example.com.bleledremote.ble.BleCommManager;
+import tonyg.example.com.bleledremote.ble.DeviceRegistry;
+import tonyg.example.com.bleledremote.ble.GroupCommandTracker;
+import tonyg.example.com.bleledremote.ble.LedCandidateSelector;
+import tonyg.example.com.bleledremote.ble.LedFleetManager;
+import tonyg.example.com.bleledremote.ble.LedStateMonitor;
+import tonyg.example.com.bleledremote.ble.ProximityController;
+import tonyg.example.com.bleledremote.ble.RecentLedStore;
+import tonyg.example.com.bleledremote.ble.ScanBatchAggregator;
 import tonyg.example.com.bleledremote.ble.callbacks.BleRemoteLedCallback;
+import tonyg.example.com.bleledremote.ble.callbacks.LedFleetCallback;
+import tonyg.example.com.bleledremote.ble.callbacks.LedStateCallback;
+import tonyg.example.com.bleledremote.ble.callbacks.ProximityCallback;
 import tonyg.example.com.bleledremote.ble.callbacks.BleScanCallbackv21;
 import tonyg.example.com.bleledremote.ble.BleRemoteLed;
 import tonyg.example.com.bleledremote.ble.callbacks.BleScanCallbackv18;
+import tonyg.example.com.bleledremote.gateway.GatewaySettings;
+import tonyg.example.com.bleledremote.gateway.LedGatewayServer;
+import tonyg.example.com.bleledremote.gateway.LedGatewayService;
 
 /**
  * Connect to a BLE Device, list its GATT services
@@ -39,15 +62,32 @@ public class MainActivity extends AppCompatActivity {
     /** Constants **/
     private static final String TAG = MainActivity.class.getSimpleName();
     private final static int REQUEST_ENABLE_BT = 1;
+    private static final long RSSI_POLL_INTERVAL_MS = 250; // how often to read the connection RSSI in proximity mode
+    private static final long RECENT_LED_MAX_AGE_MS = 120000; // connect without scanning to a Remote Led heard this recently
+    private static final int GATEWAY_PORT = LedGatewayServer.DEFAULT_PORT;
 
     /** Bluetooth Stuff **/
     private BleCommManager mBleCommManager;
     private BleRemoteLed mBleRemoteLed;
+    private LedCandidateSelector mCandidateSelector = new LedCandidateSelector();
+    private ProximityController mProximityController;
+    private LedStateMonitor mLedStateMonitor = new LedStateMonitor(new LedStateCallback() {
+        @Override
+        public void onLedStateChanged(long packedAddress, int ledState, int batteryLevel) {
+            Log.v(TAG, "Remote Led " + DeviceRegistry.unpackAddress(packedAddress)
+                    + (ledState == BleRemoteLed.LED_STATE_ON ? " on" : " off")
+                    + ", battery " + batteryLevel + "%");
+        }
+    });
+    private LedFleetManager mLedFleetManager;
+    private boolean mIsProximityModeEnabled = false;
+    private boolean mIsPaused = false; // callbacks from a disconnect may arrive after onPause
+    private Handler mRssiPollHandler = new Handler();
 
     /** UI Stuff **/
     private MenuItem mProgressSpinner;
     private TextView mDeviceNameTV, mDeviceAddressTV;
-    private Switch mLedSwitch;
+    private Switch mLedSwitch, mProximitySwitch;
 
 
     @Override
@@ -66,11 +106,15 @@ public class MainActivity extends AppCompatActivity {
         loadUI();
 
         mBleRemoteLed = new BleRemoteLed(this, mBleRemoteLedCallback);
+        // quick taps on the switch are confirmed together
+        mBleRemoteLed.setFeatures(BleRemoteLed.FEATURE_MULTI_ACK);
+        mProximityController = new ProximityController(mProximityCallback);
     }
 
     @Override
     public void onResume() {
         super.onResume();
+        mIsPaused = false;
     }
 
     /**
@@ -79,9 +123,16 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onPause() {
         super.onPause();
+        mIsPaused = true;
+        mCandidateSelector.cancelSelection();
+        setProximityModeEnabled(false);
         stopScan();
+        mBleCommManager.stopBackgroundScan();
         disconnect();
         unregisterReceiver(mReceiver);
+
+        // keep listening for Remote Leds while the app is closed
+        startPendingIntentScan();
     }
 
 
@@ -93,8 +144,10 @@ public class MainActivity extends AppCompatActivity {
         mDeviceNameTV = (TextView)findViewById(R.id.broadcast_name);
         mDeviceAddressTV = (TextView)findViewById(R.id.mac_address);
         mLedSwitch = (Switch)findViewById(R.id.led_switch);
+        mProximitySwitch = (Switch)findViewById(R.id.proximity_switch);
 
         mLedSwitch.setVisibility(View.GONE);
+        mProximitySwitch.setVisibility(View.GONE);
     }
 
 
@@ -110,6 +163,7 @@ public class MainActivity extends AppCompatActivity {
 
         mProgressSpinner = menu.findItem(R.id.scan_progress_item);
         mProgressSpinner.setVisible(true);
+        menu.findItem(R.id.gateway_item).setChecked(GatewaySettings.isEnabled(this));
 
         initializeBluetooth();
 
@@ -118,6 +172,36 @@ public class MainActivity extends AppCompatActivity {
 
 
 
+    /**
+     * Turn the gateway on or off
+     *
+     * @param item the menu item selected
+     * @return <b>true</b> if processed successfully
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.broadcast_on_item || item.getItemId() == R.id.broadcast_off_item) {
+            byte command = item.getItemId() == R.id.broadcast_on_item ? BleRemoteLed.COMMAND_LED_ON : BleRemoteLed.COMMAND_LED_OFF;
+            if (mBleCommManager == null || !getLedFleetManager().broadcastGroupCommand(command)) {
+                Toast.makeText(this, R.string.broadcast_failed, Toast.LENGTH_LONG).show();
+            }
+            return true;
+        }
+        if (item.getItemId() == R.id.gateway_item) {
+            boolean isEnabled = !item.isChecked();
+            item.setChecked(isEnabled);
+            GatewaySettings.setEnabled(this, isEnabled);
+            if (isEnabled) {
+                LedGatewayService.start(this);
+                showGatewayAccess();
+            } else {
+                LedGatewayService.stop(this);
+            }
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     /**
      * Initialize the Bluetooth Radio
      */
@@ -135,18 +219,56 @@ public class MainActivity extends AppCompatActivity {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
         } else {
-            startScan();
+            // only if the user turned it on.  It keeps running in the background
+            LedGatewayService.start(this);
+            mBleCommManager.stopPendingIntentScan();
+            // skip the scan if a Remote Led was heard recently, while the app was closed
+            String recentAddress = RecentLedStore.getRecentAddress(this, RECENT_LED_MAX_AGE_MS);
+            if (recentAddress != null) {
+                Log.v(TAG, "connecting to recent Remote Led: " + recentAddress);
+                connectToDevice(mBleCommManager.getBluetoothAdapter().getRemoteDevice(recentAddress));
+            } else {
+                startScan();
+            }
         }
     }
 
 
 
+    /**
+     * Get the fleet that group broadcasts go through, creating it the first time
+     */
+    private LedFleetManager getLedFleetManager() {
+        if (mLedFleetManager == null) {
+            mLedFleetManager = new LedFleetManager(this, mBleCommManager.getBluetoothAdapter(), mLedFleetCallback);
+        }
+        return mLedFleetManager;
+    }
+
+    /**
+     * Show where the gateway listens and the token clients must send
+     */
+    private void showGatewayAccess() {
+        String bindAddress;
+        try {
+            bindAddress = GatewaySettings.getBindAddress(this).getHostAddress();
+        } catch (IOException e) {
+            bindAddress = GatewaySettings.DEFAULT_BIND_ADDRESS;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.gateway_item)
+                .setMessage(getString(R.string.gateway_access, bindAddress, GATEWAY_PORT, GatewaySettings.getAccessToken(this)))
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
     /**
      * Start scanning for Peripherals
      */
     private void startScan() {
         mDeviceNameTV.setText(R.string.scanning);
         mProgressSpinner.setVisible(true);
+        mCandidateSelector.beginSelection(SystemClock.elapsedRealtime());
 
         try {
             mBleCommManager.scanForPeripherals(mBleScanCallbackv18, mBleScanCallbackv21);
@@ -159,24 +281,49 @@ public class MainActivity extends AppCompatActivity {
 
     /**
      * Event trigger when new Peripheral is discovered
+     *
+     * @param bluetoothDevice the discovered Peripheral
+     * @param rssi the Peripheral's RSSI indicating how strong the radio signal is
+     * @param advertisementRecord the parsed advertisement
      */
-    public void onBlePeripheralDiscovered(BluetoothDevice bluetoothDevice) {
-        // only add the device if
-        // - it has a name, on
-        // - doesn't already exist in our list, or
-        // - is transmitting at a higher power (is closer) than an existing device
-        Log.v(TAG, "discovered peripheral: " + bluetoothDevice.getName());
+    public void onBlePeripheralDiscovered(BluetoothDevice bluetoothDevice, int rssi, AdvertisementRecord advertisementRecord) {
+        long now = SystemClock.elapsedRealtime();
+        DeviceRegistry deviceRegistry = mBleCommManager.getDeviceRegistry();
+        long packedAddress = DeviceRegistry.packAddress(bluetoothDevice.getAddress());
+        deviceRegistry.update(packedAddress, rssi, advertisementRecord.getFlags(), now);
+
+        // every Remote Led advertises its state, so follow them all without connecting
+        mLedStateMonitor.onAdvertisement(packedAddress, advertisementRecord);
+
+        // only consider the device if
+        // - it has a name, and
+        // - the name matches the Remote Led, and
+        // The closest Remote Led is chosen once the scan stops
         boolean addDevice = false;
-        if (bluetoothDevice.getName() != null) {
-            if (bluetoothDevice.getName().equals(BleRemoteLed.ADVERTISED_NAME)) {
-                Log.v(TAG, "found Remote Led!");
-                addDevice = true;
+        if (advertisementRecord.hasLocalName()) {
+            addDevice = advertisementRecord.nameEquals(BleRemoteLed.ADVERTISED_NAME);
+        } else {
+            // BluetoothDevice.getName() is a call into the Bluetooth service, so only make it once per Peripheral
+            String name = deviceRegistry.getName(packedAddress);
+            if (name == null) {
+                name = bluetoothDevice.getName();
+                deviceRegistry.setName(packedAddress, name);
             }
+            addDevice = BleRemoteLed.ADVERTISED_NAME.equals(name);
         }
 
         if (addDevice) {
-            stopScan();
-            connectToDevice(bluetoothDevice);
+            Log.v(TAG, "found Remote Led!");
+            if (mIsProximityModeEnabled) {
+                mProximityController.onRssi(packedAddress, rssi);
+            }
+            mCandidateSelector.addCandidate(packedAddress);
+            // stop once enough Remote Leds were seen, or one is close enough,
+            // but give the RSSI of each one time to settle first
+            boolean isScanPolicySatisfied = mBleCommManager.getScanPolicy().onCandidateFound(now, bluetoothDevice.getAddress(), rssi);
+            if (isScanPolicySatisfied && mCandidateSelector.isWindowComplete(now)) {
+                stopScan();
+            }
         }
     }
 
@@ -193,6 +340,14 @@ public class MainActivity extends AppCompatActivity {
      */
     public void onBleScanStopped() {
         mProgressSpinner.setVisible(false);
+
+        // connect to the best Remote Led found during the scan
+        if (mCandidateSelector.getCandidateCount() > 0 && !mIsPaused) {
+            long packedAddress = mCandidateSelector.selectBest(mBleCommManager.getDeviceRegistry());
+            if (packedAddress != DeviceRegistry.NO_ADDRESS) {
+                connectToDevice(mBleCommManager.getBluetoothAdapter().getRemoteDevice(DeviceRegistry.unpackAddress(packedAddress)));
+            }
+        }
     }
 
 
@@ -205,9 +360,11 @@ public class MainActivity extends AppCompatActivity {
     public void connectToDevice(BluetoothDevice bluetoothDevice) {
         mDeviceNameTV.setText(R.string.connecting);
         mProgressSpinner.setVisible(true);
+        mCandidateSelector.onConnectionAttempt(DeviceRegistry.packAddress(bluetoothDevice.getAddress()));
         try {
             mBleRemoteLed.connect(bluetoothDevice);
         } catch (Exception e) {
+            mCandidateSelector.onDisconnected();
             mProgressSpinner.setVisible(false);
             Log.e(TAG, "Error connecting to device");
         }
@@ -229,6 +386,7 @@ public class MainActivity extends AppCompatActivity {
      */
     public void onBleCommandProcessed() {
         Log.v(TAG, "Remote reported success!");
+        mCandidateSelector.onCommandConfirmed(SystemClock.elapsedRealtime());
         mLedSwitch.setEnabled(true);
     }
 
@@ -246,6 +404,14 @@ public class MainActivity extends AppCompatActivity {
      * Bluetooth Peripheral connected.  Update UI
      */
     public void onBleConnected() {
+        mCandidateSelector.onConnected();
+        long packedAddress = DeviceRegistry.packAddress(mBleRemoteLed.getBluetoothDevice().getAddress());
+        Log.v(TAG, "connection success rate: " + mCandidateSelector.getConnectionSuccessRate(packedAddress)
+                + " first command latency: " + mCandidateSelector.getFirstCommandLatency(packedAddress) + "ms");
+
+        RecentLedStore.save(this, mBleRemoteLed.getBluetoothDevice().getAddress(),
+                mBleCommManager.getDeviceRegistry().getSmoothedRssi(packedAddress), SystemClock.elapsedRealtime());
+
         mProgressSpinner.setVisible(false);
         mDeviceNameTV.setText(BleRemoteLed.ADVERTISED_NAME);
         mDeviceAddressTV.setText(mBleRemoteLed.getBluetoothDevice().getAddress());
@@ -257,6 +423,7 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 //mLedSwitch.setEnabled(false);
+                mCandidateSelector.onCommandSent(SystemClock.elapsedRealtime());
 
                 if (isChecked) {
                     mBleRemoteLed.turnLedOn();
@@ -265,12 +432,113 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         });
+
+        mProximitySwitch.setVisibility(View.VISIBLE);
+        mProximitySwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                setProximityModeEnabled(isChecked);
+            }
+        });
+    }
+
+    /**
+     * Turn the Remote Led on and off automatically, depending on how close it is
+     *
+     * @param isEnabled <b>true</b> to control the Remote Led by proximity
+     */
+    private void setProximityModeEnabled(boolean isEnabled) {
+        mIsProximityModeEnabled = isEnabled;
+        mRssiPollHandler.removeCallbacks(mRssiPoller);
+        mProximityController.reset();
+        if (isEnabled) {
+            mRssiPollHandler.post(mRssiPoller);
+        }
+    }
+
+    /**
+     * Read the connection RSSI regularly while in proximity mode
+     */
+    private final Runnable mRssiPoller = new Runnable() {
+        @Override
+        public void run() {
+            mBleRemoteLed.readRemoteRssi();
+            mRssiPollHandler.postDelayed(this, RSSI_POLL_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Event trigger when the connection RSSI was read
+     *
+     * @param rssi the RSSI of the connection
+     */
+    public void onBleRssiRead(int rssi) {
+        if (mIsProximityModeEnabled && mBleRemoteLed.getBluetoothDevice() != null) {
+            mProximityController.onRssi(DeviceRegistry.packAddress(mBleRemoteLed.getBluetoothDevice().getAddress()), rssi);
+        }
     }
 
     public void onBleDisconnected() {
+        mCandidateSelector.onDisconnected();
+        mProximitySwitch.setChecked(false);
+        mProximitySwitch.setVisibility(View.GONE);
         mDeviceNameTV.setText("");
         mDeviceAddressTV.setText("");
         mProgressSpinner.setVisible(false);
+
+        // wait in low power mode for a Remote Led to come back in range, unless the
+        // app was closed, where the PendingIntent scan does the waiting
+        if (!mIsPaused) {
+            startBackgroundScan();
+        }
+    }
+
+    /**
+     * Scan for Remote Leds in low power mode, for as long as we are idle
+     */
+    private void startBackgroundScan() {
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        filters.add(new ScanFilter.Builder().setDeviceName(BleRemoteLed.ADVERTISED_NAME).build());
+        mBleCommManager.startBackgroundScan(filters, mBleScanCallbackv21);
+    }
+
+    /**
+     * Scan for Remote Leds while the app is closed.
+     * The BackgroundScanReceiver remembers the closest one in the RecentLedStore
+     */
+    private void startPendingIntentScan() {
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(BleRemoteLed.SERVICE_UUID)).build());
+        mBleCommManager.startPendingIntentScan(filters);
+    }
+
+    /**
+     * Event trigger when a background scan reports the Peripherals it has found
+     *
+     * @param summaries one summary for each Peripheral heard since the last report
+     */
+    public void onBlePeripheralsSummarized(List<ScanBatchAggregator.DeviceSummary> summaries) {
+        long now = SystemClock.elapsedRealtime();
+        DeviceRegistry deviceRegistry = mBleCommManager.getDeviceRegistry();
+        ScanBatchAggregator.DeviceSummary closestSummary = null;
+        for (ScanBatchAggregator.DeviceSummary summary : summaries) {
+            long packedAddress = DeviceRegistry.packAddress(summary.getAddress());
+            deviceRegistry.update(packedAddress, summary.getLastRssi(), DeviceRegistry.UNKNOWN_FLAGS, now);
+            if (summary.getName() != null) {
+                deviceRegistry.setName(packedAddress, summary.getName());
+            }
+            if (BleRemoteLed.ADVERTISED_NAME.equals(summary.getName())) {
+                if (closestSummary == null || summary.getBatchMaxRssi() > closestSummary.getBatchMaxRssi()) {
+                    closestSummary = summary;
+                }
+            }
+        }
+
+        if (closestSummary != null && !mIsPaused) {
+            Log.v(TAG, "Remote Led back in range: " + closestSummary.getAddress());
+            mBleCommManager.stopBackgroundScan();
+            connectToDevice(mBleCommManager.getBluetoothAdapter().getRemoteDevice(closestSummary.getAddress()));
+        }
     }
 
     /**
@@ -309,6 +577,8 @@ public class MainActivity extends AppCompatActivity {
      * Use this callback for Android API 21 (Lollipop) or greater
      */
     private final BleScanCallbackv21 mBleScanCallbackv21 = new BleScanCallbackv21() {
+        private final AdvertisementRecord mAdvertisementRecord = new AdvertisementRecord();
+
         /**
          * New Peripheral discovered
          *
@@ -320,7 +590,7 @@ public class MainActivity extends AppCompatActivity {
             BluetoothDevice bluetoothDevice = result.getDevice();
             int rssi = result.getRssi();
 
-            onBlePeripheralDiscovered(bluetoothDevice);
+            onBlePeripheralDiscovered(bluetoothDevice, rssi, parseAdvertisement(result));
         }
 
         /**
@@ -334,10 +604,32 @@ public class MainActivity extends AppCompatActivity {
                 BluetoothDevice bluetoothDevice = result.getDevice();
                 int rssi = result.getRssi();
 
-                onBlePeripheralDiscovered(bluetoothDevice);
+                onBlePeripheralDiscovered(bluetoothDevice, rssi, parseAdvertisement(result));
             }
         }
 
+        /**
+         * Parse the raw advertisement of a scan result, reusing the same AdvertisementRecord every time
+         *
+         * @param result a Bluetooth Low Energy Scan Result
+         * @return the parsed advertisement
+         */
+        private AdvertisementRecord parseAdvertisement(ScanResult result) {
+            byte[] scanRecord = result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
+            AdvertisementParser.parse(scanRecord, mAdvertisementRecord);
+            return mAdvertisementRecord;
+        }
+
+        /**
+         * Peripherals found during a background scan
+         *
+         * @param summaries List: one summary for each Peripheral heard since the last report
+         */
+        @Override
+        public void onScanSummaries(final List<ScanBatchAggregator.DeviceSummary> summaries) {
+            onBlePeripheralsSummarized(summaries);
+        }
+
         /**
          * Scan failed to initialize
          *
@@ -386,6 +678,8 @@ public class MainActivity extends AppCompatActivity {
      * Use this callback for Android API 18, 19, and 20 (before Lollipop)
      */
     public final BleScanCallbackv18 mBleScanCallbackv18 = new BleScanCallbackv18() {
+        private final AdvertisementRecord mAdvertisementRecord = new AdvertisementRecord();
+
         /**
          * New Peripheral discovered
          * @param bluetoothDevice The Peripheral Device
@@ -394,7 +688,8 @@ public class MainActivity extends AppCompatActivity {
          */
         @Override
         public void onLeScan(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
-            onBlePeripheralDiscovered(bluetoothDevice);
+            AdvertisementParser.parse(scanRecord, mAdvertisementRecord);
+            onBlePeripheralDiscovered(bluetoothDevice, rssi, mAdvertisementRecord);
         }
 
         /**
@@ -461,5 +756,75 @@ public class MainActivity extends AppCompatActivity {
             });
 
         }
+
+        @Override
+        public void rssiRead(final int rssi) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onBleRssiRead(rssi);
+                }
+            });
+        }
+    };
+
+    /**
+     * The fleet only broadcasts for this Activity, so there is little to hear back
+     */
+    private final LedFleetCallback mLedFleetCallback = new LedFleetCallback() {
+        @Override
+        public void onLedConnected(long packedAddress) {
+        }
+
+        @Override
+        public void onLedDisconnected(long packedAddress) {
+        }
+
+        @Override
+        public void onLedStateChanged(long packedAddress, int ledState) {
+        }
+
+        @Override
+        public void onGroupCommandComplete(GroupCommandTracker groupCommandTracker) {
+            Log.v(TAG, "group command: " + groupCommandTracker);
+        }
+    };
+
+    /**
+     * Switch the connected Remote Led on or off as the phone comes near or goes away
+     */
+    private final ProximityCallback mProximityCallback = new ProximityCallback() {
+        @Override
+        public void onEnteredProximity(long packedAddress) {
+            if (isConnectedTo(packedAddress)) {
+                Log.v(TAG, "Remote Led is near");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the switch sends the command
+                        mLedSwitch.setChecked(true);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onExitedProximity(long packedAddress) {
+            if (isConnectedTo(packedAddress)) {
+                Log.v(TAG, "Remote Led is far");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the switch sends the command
+                        mLedSwitch.setChecked(false);
+                    }
+                });
+            }
+        }
+
+        private boolean isConnectedTo(long packedAddress) {
+            BluetoothDevice bluetoothDevice = mBleRemoteLed.getBluetoothDevice();
+            return bluetoothDevice != null && DeviceRegistry.packAddress(bluetoothDevice.getAddress()) == packedAddress;
+        }
     };
 }
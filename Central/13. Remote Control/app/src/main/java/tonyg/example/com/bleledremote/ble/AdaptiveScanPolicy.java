@@ -0,0 +1,225 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides how long a scan should run, and when it can stop early.
+ *
+ * Every scan starts in low latency mode.  The scan stops as soon as enough distinct
+ * candidates have been seen, or one of them is closer than the target RSSI.  Otherwise
+ * it runs for the scan window, which is derived from how long it took to find the first
+ * match in recent scans.
+ *
+ * All times are in milliseconds, supplied by the caller so this class can be used
+ * without a running Android system.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class AdaptiveScanPolicy {
+    /** Scan window limits **/
+    public static final long MIN_SCAN_PERIOD_MS = 1500;
+    public static final long MAX_SCAN_PERIOD_MS = 10000;
+    public static final long DEFAULT_SCAN_PERIOD_MS = 5000;
+
+    /** Early exit conditions **/
+    public static final int DEFAULT_TARGET_CANDIDATES = 3;
+    public static final int DEFAULT_TARGET_RSSI = -65;
+
+    // the scan window is this many times the 90th percentile time-to-first-match
+    private static final int WINDOW_MULTIPLIER = 2;
+    private static final int HISTORY_SIZE = 16;
+
+    private int mTargetCandidates = DEFAULT_TARGET_CANDIDATES;
+    private int mTargetRssi = DEFAULT_TARGET_RSSI;
+    private long mScanPeriod = DEFAULT_SCAN_PERIOD_MS;
+
+    /** Current scan **/
+    private boolean mIsScanning = false;
+    private long mScanStartTime;
+    private long mFirstMatchTime;
+    private final Set<String> mCandidates = new HashSet<String>();
+
+    /** Time-to-first-match history, as a ring buffer **/
+    private final long[] mTimeToFirstMatch = new long[HISTORY_SIZE];
+    private final long[] mSortedTimeToFirstMatch = new long[HISTORY_SIZE];
+    private int mHistoryPosition = 0;
+    private int mHistoryCount = 0;
+
+    /** Metrics **/
+    private long mScansStarted = 0;
+    private long mScansMatched = 0;
+    private long mScansExitedEarly = 0;
+    private long mScansTimedOut = 0;
+    private long mTotalScanTime = 0;
+
+    /**
+     * Set the number of distinct candidates that ends a scan early
+     *
+     * @param targetCandidates number of candidates
+     */
+    public synchronized void setTargetCandidates(int targetCandidates) {
+        mTargetCandidates = targetCandidates;
+    }
+
+    /**
+     * Set the RSSI at which a single candidate is close enough to end a scan early
+     *
+     * @param targetRssi the RSSI, in dBm
+     */
+    public synchronized void setTargetRssi(int targetRssi) {
+        mTargetRssi = targetRssi;
+    }
+
+    /**
+     * Get the scan window for the next scan
+     *
+     * @return the scan window in milliseconds
+     */
+    public synchronized long getScanPeriod() {
+        return mScanPeriod;
+    }
+
+    /**
+     * A scan has started
+     *
+     * @param now the current time
+     */
+    public synchronized void onScanStarted(long now) {
+        mIsScanning = true;
+        mScanStartTime = now;
+        mFirstMatchTime = -1;
+        mCandidates.clear();
+        mScansStarted++;
+    }
+
+    /**
+     * A matching Peripheral was found
+     *
+     * @param now the current time
+     * @param address the MAC address of the Peripheral
+     * @param rssi the RSSI of the Peripheral
+     * @return <b>true</b> if the scan can stop now
+     */
+    public synchronized boolean onCandidateFound(long now, String address, int rssi) {
+        if (!mIsScanning) {
+            return false;
+        }
+        if (mFirstMatchTime < 0) {
+            mFirstMatchTime = now;
+        }
+        mCandidates.add(address);
+        return mCandidates.size() >= mTargetCandidates || rssi >= mTargetRssi;
+    }
+
+    /**
+     * A scan has stopped, either early or because the scan window ran out.
+     * Learn from the scan and set the next scan window.
+     *
+     * @param now the current time
+     * @param stoppedEarly <b>true</b> if the scan was stopped before the scan window ran out
+     */
+    public synchronized void onScanStopped(long now, boolean stoppedEarly) {
+        if (!mIsScanning) {
+            return;
+        }
+        mIsScanning = false;
+        mTotalScanTime += now - mScanStartTime;
+        if (stoppedEarly) {
+            mScansExitedEarly++;
+        } else {
+            mScansTimedOut++;
+        }
+
+        if (mFirstMatchTime >= 0) {
+            mScansMatched++;
+            mTimeToFirstMatch[mHistoryPosition] = mFirstMatchTime - mScanStartTime;
+            mHistoryPosition = (mHistoryPosition + 1) % HISTORY_SIZE;
+            if (mHistoryCount < HISTORY_SIZE) {
+                mHistoryCount++;
+            }
+            mScanPeriod = clamp(WINDOW_MULTIPLIER * getTimeToFirstMatchPercentile(90));
+        } else if (!stoppedEarly) {
+            // nothing found, so the Peripheral may be further away than usual
+            mScanPeriod = clamp(mScanPeriod * 2);
+        }
+    }
+
+    /**
+     * Get a percentile of the recent time-to-first-match history
+     *
+     * @param percentile a percentile between 0 and 100
+     * @return the time to first match in milliseconds, or -1 if nothing has been found yet
+     */
+    public synchronized long getTimeToFirstMatchPercentile(int percentile) {
+        if (mHistoryCount == 0) {
+            return -1;
+        }
+        System.arraycopy(mTimeToFirstMatch, 0, mSortedTimeToFirstMatch, 0, mHistoryCount);
+        Arrays.sort(mSortedTimeToFirstMatch, 0, mHistoryCount);
+        int index = (percentile * (mHistoryCount - 1) + 50) / 100;
+        return mSortedTimeToFirstMatch[index];
+    }
+
+    /**
+     * Get a snapshot of the scan metrics
+     *
+     * @return the scan metrics
+     */
+    public synchronized Metrics getMetrics() {
+        return new Metrics(
+                mScansStarted,
+                mScansMatched,
+                mScansExitedEarly,
+                mScansTimedOut,
+                mTotalScanTime,
+                getTimeToFirstMatchPercentile(50),
+                getTimeToFirstMatchPercentile(90),
+                mScanPeriod);
+    }
+
+    private static long clamp(long scanPeriod) {
+        return Math.max(MIN_SCAN_PERIOD_MS, Math.min(MAX_SCAN_PERIOD_MS, scanPeriod));
+    }
+
+    /**
+     * Scan statistics, as exported to the rest of the app
+     */
+    public static class Metrics {
+        public final long scansStarted;
+        public final long scansMatched;
+        public final long scansExitedEarly;
+        public final long scansTimedOut;
+        public final long totalScanTimeMs;
+        public final long timeToFirstMatchP50Ms;
+        public final long timeToFirstMatchP90Ms;
+        public final long scanPeriodMs;
+
+        Metrics(long scansStarted, long scansMatched, long scansExitedEarly, long scansTimedOut,
+                long totalScanTimeMs, long timeToFirstMatchP50Ms, long timeToFirstMatchP90Ms,
+                long scanPeriodMs) {
+            this.scansStarted = scansStarted;
+            this.scansMatched = scansMatched;
+            this.scansExitedEarly = scansExitedEarly;
+            this.scansTimedOut = scansTimedOut;
+            this.totalScanTimeMs = totalScanTimeMs;
+            this.timeToFirstMatchP50Ms = timeToFirstMatchP50Ms;
+            this.timeToFirstMatchP90Ms = timeToFirstMatchP90Ms;
+            this.scanPeriodMs = scanPeriodMs;
+        }
+
+        @Override
+        public String toString() {
+            return "scans=" + scansStarted
+                    + " matched=" + scansMatched
+                    + " early=" + scansExitedEarly
+                    + " timedOut=" + scansTimedOut
+                    + " scanTimeMs=" + totalScanTimeMs
+                    + " ttfmP50Ms=" + timeToFirstMatchP50Ms
+                    + " ttfmP90Ms=" + timeToFirstMatchP90Ms
+                    + " nextWindowMs=" + scanPeriodMs;
+        }
+    }
+}
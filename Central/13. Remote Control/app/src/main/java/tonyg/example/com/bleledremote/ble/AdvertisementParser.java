@@ -0,0 +1,120 @@
+package tonyg.example.com.bleledremote.ble;
+
+/**
+ * Walk the AD structures of a raw advertising scan record.
+ *
+ * The scan record is a series of [length][type][data] structures, padded with zeros.
+ * The parser reads them in place and stores where each field is in an AdvertisementRecord,
+ * so parsing an advertisement doesn't allocate any memory.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class AdvertisementParser {
+    /** AD types, from the Bluetooth SIG Generic Access Profile assigned numbers **/
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_INCOMPLETE_UUID16 = 0x02;
+    public static final int TYPE_COMPLETE_UUID16 = 0x03;
+    public static final int TYPE_INCOMPLETE_UUID128 = 0x06;
+    public static final int TYPE_COMPLETE_UUID128 = 0x07;
+    public static final int TYPE_SHORTENED_LOCAL_NAME = 0x08;
+    public static final int TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SERVICE_DATA_UUID16 = 0x16;
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    private AdvertisementParser() {
+    }
+
+    /**
+     * Parse a raw scan record
+     *
+     * @param scanRecord the raw scan record, as passed to onLeScan() or returned by ScanRecord.getBytes()
+     * @param advertisementRecord the record to fill in.  Its previous contents are discarded
+     * @return <b>false</b> if the scan record was truncated.  Fields before the damage are still filled in
+     */
+    public static boolean parse(byte[] scanRecord, AdvertisementRecord advertisementRecord) {
+        advertisementRecord.reset(scanRecord);
+        if (scanRecord == null) {
+            return false;
+        }
+
+        int position = 0;
+        while (position < scanRecord.length) {
+            int length = scanRecord[position] & 0xFF;
+            if (length == 0) {
+                // the rest of the scan record is padding
+                break;
+            }
+            int dataOffset = position + 2;
+            int dataLength = length - 1;
+            if (position + 1 + length > scanRecord.length) {
+                return false;
+            }
+            int type = scanRecord[position + 1] & 0xFF;
+
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (dataLength >= 1) {
+                        advertisementRecord.mFlags = scanRecord[dataOffset] & 0xFF;
+                    }
+                    break;
+
+                case TYPE_INCOMPLETE_UUID16:
+                case TYPE_COMPLETE_UUID16:
+                    for (int offset = dataOffset; offset + 2 <= dataOffset + dataLength; offset += 2) {
+                        if (advertisementRecord.mUuid16Count < AdvertisementRecord.MAX_FIELDS) {
+                            advertisementRecord.mUuid16Offsets[advertisementRecord.mUuid16Count++] = offset;
+                        }
+                    }
+                    break;
+
+                case TYPE_INCOMPLETE_UUID128:
+                case TYPE_COMPLETE_UUID128:
+                    for (int offset = dataOffset; offset + 16 <= dataOffset + dataLength; offset += 16) {
+                        if (advertisementRecord.mUuid128Count < AdvertisementRecord.MAX_FIELDS) {
+                            advertisementRecord.mUuid128Offsets[advertisementRecord.mUuid128Count++] = offset;
+                        }
+                    }
+                    break;
+
+                case TYPE_SHORTENED_LOCAL_NAME:
+                case TYPE_COMPLETE_LOCAL_NAME:
+                    // prefer the complete name if both are present
+                    if (advertisementRecord.mNameOffset < 0 || type == TYPE_COMPLETE_LOCAL_NAME) {
+                        advertisementRecord.mNameOffset = dataOffset;
+                        advertisementRecord.mNameLength = dataLength;
+                    }
+                    break;
+
+                case TYPE_TX_POWER_LEVEL:
+                    if (dataLength >= 1) {
+                        advertisementRecord.mTxPower = scanRecord[dataOffset];
+                    }
+                    break;
+
+                case TYPE_SERVICE_DATA_UUID16:
+                    if (dataLength >= 2 && advertisementRecord.mServiceDataCount < AdvertisementRecord.MAX_FIELDS) {
+                        advertisementRecord.mServiceDataOffsets[advertisementRecord.mServiceDataCount] = dataOffset;
+                        advertisementRecord.mServiceDataLengths[advertisementRecord.mServiceDataCount] = dataLength - 2;
+                        advertisementRecord.mServiceDataCount++;
+                    }
+                    break;
+
+                case TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (dataLength >= 2 && advertisementRecord.mManufacturerDataCount < AdvertisementRecord.MAX_FIELDS) {
+                        advertisementRecord.mManufacturerDataOffsets[advertisementRecord.mManufacturerDataCount] = dataOffset;
+                        advertisementRecord.mManufacturerDataLengths[advertisementRecord.mManufacturerDataCount] = dataLength - 2;
+                        advertisementRecord.mManufacturerDataCount++;
+                    }
+                    break;
+
+                default:
+                    // not needed
+            }
+
+            position += 1 + length;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,265 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.UUID;
+
+/**
+ * The contents of one advertisement, as found by AdvertisementParser.
+ *
+ * A record doesn't copy anything out of the raw scan record.  It only remembers where each
+ * field is, so one record can be reused for every advertisement, and matching a name or a
+ * Service UUID doesn't create any Strings or UUIDs.  The record is only valid until the raw
+ * scan record it was parsed from is changed or the record is parsed again.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class AdvertisementRecord {
+    public static final int UNKNOWN_FLAGS = -1;
+    public static final int UNKNOWN_TX_POWER = Integer.MIN_VALUE;
+
+    // Bluetooth Base UUID, xxxxxxxx-0000-1000-8000-00805f9b34fb
+    private static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    private static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805f9b34fbL;
+
+    static final int MAX_FIELDS = 16;
+
+    byte[] mData;
+    int mFlags;
+    int mTxPower;
+    int mNameOffset, mNameLength;
+
+    // offsets of each 16-bit and 128-bit Service UUID
+    final int[] mUuid16Offsets = new int[MAX_FIELDS];
+    final int[] mUuid128Offsets = new int[MAX_FIELDS];
+    int mUuid16Count, mUuid128Count;
+
+    // offset of the 16-bit Service UUID at the start of each Service Data field
+    final int[] mServiceDataOffsets = new int[MAX_FIELDS];
+    final int[] mServiceDataLengths = new int[MAX_FIELDS];
+    int mServiceDataCount;
+
+    // offset of the Company Identifier at the start of each Manufacturer Specific Data field
+    final int[] mManufacturerDataOffsets = new int[MAX_FIELDS];
+    final int[] mManufacturerDataLengths = new int[MAX_FIELDS];
+    int mManufacturerDataCount;
+
+    /**
+     * Forget the previous advertisement
+     *
+     * @param data the raw scan record about to be parsed
+     */
+    void reset(byte[] data) {
+        mData = data;
+        mFlags = UNKNOWN_FLAGS;
+        mTxPower = UNKNOWN_TX_POWER;
+        mNameOffset = -1;
+        mNameLength = 0;
+        mUuid16Count = 0;
+        mUuid128Count = 0;
+        mServiceDataCount = 0;
+        mManufacturerDataCount = 0;
+    }
+
+    /**
+     * Get the raw scan record this record points into
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Get the advertised flags
+     *
+     * @return the flags, or UNKNOWN_FLAGS if none were advertised
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * Get the advertised transmission power
+     *
+     * @return the transmission power in dBm, or UNKNOWN_TX_POWER if none was advertised
+     */
+    public int getTxPowerLevel() {
+        return mTxPower;
+    }
+
+    /**
+     * Check if a complete or shortened local name was advertised
+     */
+    public boolean hasLocalName() {
+        return mNameOffset >= 0;
+    }
+
+    /**
+     * Compare the advertised local name to a name, without creating a String.
+     * Only ASCII names can match.
+     *
+     * @param name the name to compare
+     * @return <b>true</b> if the advertised name is the same as the name
+     */
+    public boolean nameEquals(String name) {
+        if (mNameOffset < 0 || name.length() != mNameLength) {
+            return false;
+        }
+        for (int i = 0; i < mNameLength; i++) {
+            if (mData[mNameOffset + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the advertised local name.  This creates a String, so prefer nameEquals()
+     *
+     * @return the local name, or null if none was advertised
+     */
+    public String getLocalName() {
+        if (mNameOffset < 0) {
+            return null;
+        }
+        char[] name = new char[mNameLength];
+        for (int i = 0; i < mNameLength; i++) {
+            name[i] = (char) (mData[mNameOffset + i] & 0xFF);
+        }
+        return new String(name);
+    }
+
+    /**
+     * Check if a 16-bit Service UUID was advertised
+     *
+     * @param uuid16 the 16-bit Service UUID, for example 0x1815
+     * @return <b>true</b> if the Service UUID was advertised
+     */
+    public boolean hasServiceUuid16(int uuid16) {
+        for (int i = 0; i < mUuid16Count; i++) {
+            if (readUint16(mUuid16Offsets[i]) == uuid16) {
+                return true;
+            }
+        }
+        // a 16-bit UUID may also be advertised in its 128-bit form
+        return hasServiceUuid128(BASE_UUID_MOST_SIGNIFICANT_BITS | ((long) uuid16 << 32), BASE_UUID_LEAST_SIGNIFICANT_BITS);
+    }
+
+    /**
+     * Check if a Service UUID was advertised, in either its 16-bit or 128-bit form
+     *
+     * @param uuid the Service UUID
+     * @return <b>true</b> if the Service UUID was advertised
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        int uuid16 = toUuid16(uuid);
+        if (uuid16 >= 0) {
+            return hasServiceUuid16(uuid16);
+        }
+        return hasServiceUuid128(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Get the number of bytes of Service Data advertised for a 16-bit Service UUID
+     *
+     * @param uuid16 the 16-bit Service UUID
+     * @return the number of bytes, or -1 if there is no Service Data for the Service
+     */
+    public int getServiceDataLength(int uuid16) {
+        int field = findServiceData(uuid16);
+        return field >= 0 ? mServiceDataLengths[field] : -1;
+    }
+
+    /**
+     * Get where the Service Data for a 16-bit Service UUID starts in getData()
+     *
+     * @param uuid16 the 16-bit Service UUID
+     * @return the offset of the first byte after the UUID, or -1 if there is no Service Data for the Service
+     */
+    public int getServiceDataOffset(int uuid16) {
+        int field = findServiceData(uuid16);
+        return field >= 0 ? mServiceDataOffsets[field] + 2 : -1;
+    }
+
+    /**
+     * Get the number of bytes of Manufacturer Specific Data advertised for a company
+     *
+     * @param companyId the Bluetooth SIG Company Identifier
+     * @return the number of bytes, or -1 if there is no data for the company
+     */
+    public int getManufacturerDataLength(int companyId) {
+        int field = findManufacturerData(companyId);
+        return field >= 0 ? mManufacturerDataLengths[field] : -1;
+    }
+
+    /**
+     * Get where the Manufacturer Specific Data for a company starts in getData()
+     *
+     * @param companyId the Bluetooth SIG Company Identifier
+     * @return the offset of the first byte after the Company Identifier, or -1 if there is no data for the company
+     */
+    public int getManufacturerDataOffset(int companyId) {
+        int field = findManufacturerData(companyId);
+        return field >= 0 ? mManufacturerDataOffsets[field] + 2 : -1;
+    }
+
+    /**
+     * Get the 16-bit form of a UUID built on the Bluetooth Base UUID
+     *
+     * @param uuid a UUID
+     * @return the 16-bit UUID, or -1 if the UUID has no 16-bit form
+     */
+    public static int toUuid16(UUID uuid) {
+        long mostSignificantBits = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LEAST_SIGNIFICANT_BITS
+                || (mostSignificantBits & 0xFFFF0000FFFFFFFFL) != BASE_UUID_MOST_SIGNIFICANT_BITS) {
+            return -1;
+        }
+        return (int) (mostSignificantBits >>> 32) & 0xFFFF;
+    }
+
+    private boolean hasServiceUuid128(long mostSignificantBits, long leastSignificantBits) {
+        for (int i = 0; i < mUuid128Count; i++) {
+            // 128-bit UUIDs are advertised least significant byte first
+            int offset = mUuid128Offsets[i];
+            if (readInt64(offset) == leastSignificantBits && readInt64(offset + 8) == mostSignificantBits) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int findServiceData(int uuid16) {
+        for (int i = 0; i < mServiceDataCount; i++) {
+            if (readUint16(mServiceDataOffsets[i]) == uuid16) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findManufacturerData(int companyId) {
+        for (int i = 0; i < mManufacturerDataCount; i++) {
+            if (readUint16(mManufacturerDataOffsets[i]) == companyId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read a little-endian 16-bit value
+     */
+    int readUint16(int offset) {
+        return (mData[offset] & 0xFF) | ((mData[offset + 1] & 0xFF) << 8);
+    }
+
+    /**
+     * Read a little-endian 64-bit value
+     */
+    private long readInt64(int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (mData[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
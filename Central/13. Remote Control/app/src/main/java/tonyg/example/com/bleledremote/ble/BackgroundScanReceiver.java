@@ -0,0 +1,68 @@
+package tonyg.example.com.bleledremote.ble;
+
+import android.bluetooth.le.ScanResult;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Receive the results of a PendingIntent scan, started by BleCommManager.startPendingIntentScan().
+ *
+ * The system delivers these even when the app's process has been stopped, starting it
+ * just long enough to run onReceive().  Each Remote Led found refreshes the DeviceRegistry
+ * and the RecentLedStore, so the UI has a recent address ready when it opens.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BackgroundScanReceiver extends BroadcastReceiver {
+    private static final String TAG = BackgroundScanReceiver.class.getSimpleName();
+
+    public static final String ACTION_SCAN_RESULT = "tonyg.example.com.bleledremote.action.SCAN_RESULT";
+
+    /** Extras added by BluetoothLeScanner, API 26 (Oreo) **/
+    private static final String EXTRA_LIST_SCAN_RESULT = "android.bluetooth.le.extra.LIST_SCAN_RESULT";
+    private static final String EXTRA_ERROR_CODE = "android.bluetooth.le.extra.ERROR_CODE";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_SCAN_RESULT.equals(intent.getAction())) {
+            return;
+        }
+
+        int errorCode = intent.getIntExtra(EXTRA_ERROR_CODE, 0);
+        if (errorCode != 0) {
+            Log.e(TAG, "Background scan failed: " + errorCode);
+            return;
+        }
+
+        List<ScanResult> results = intent.getParcelableArrayListExtra(EXTRA_LIST_SCAN_RESULT);
+        if (results == null) {
+            return;
+        }
+
+        DeviceRegistry deviceRegistry = BleCommManager.getSharedDeviceRegistry();
+        ScanResult closestResult = null;
+        for (ScanResult result : results) {
+            // ScanResult timestamps use the same clock as SystemClock.elapsedRealtime()
+            long lastSeen = result.getTimestampNanos() / 1000000;
+            long packedAddress = DeviceRegistry.packAddress(result.getDevice().getAddress());
+            deviceRegistry.update(packedAddress, result.getRssi(), DeviceRegistry.UNKNOWN_FLAGS, lastSeen);
+            if (closestResult == null || result.getRssi() > closestResult.getRssi()) {
+                closestResult = result;
+            }
+        }
+
+        // the scan filter only matches Remote Leds
+        if (closestResult != null) {
+            Log.v(TAG, "Remote Led seen in background: " + closestResult.getDevice().getAddress());
+            RecentLedStore.save(context,
+                    closestResult.getDevice().getAddress(),
+                    closestResult.getRssi(),
+                    closestResult.getTimestampNanos() / 1000000);
+        }
+    }
+}
@@ -3,12 +3,19 @@ package tonyg.example.com.bleledremote.ble;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.app.PendingIntent;
 import android.content.Context;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Timer;
@@ -26,12 +33,27 @@ import tonyg.example.com.bleledremote.ble.callbacks.BleScanCallbackv21;
  */
 public class BleCommManager {
     private static final String TAG = BleCommManager.class.getSimpleName();
-    private static final long SCAN_PERIOD = 5000; // 5 seconds of scanning time
 
     private BluetoothAdapter mBluetoothAdapter; // Andrdoid's Bluetooth Adapter
     private BluetoothLeScanner mBluetoothLeScanner; // Ble scanner - API >= 21
+    private Context mContext;
 
     private Timer mTimer = new Timer(); // scan timer
+    private AdaptiveScanPolicy mScanPolicy = new AdaptiveScanPolicy(); // scan window and early exit
+
+    // every Peripheral heard recently, shared with the BackgroundScanReceiver
+    private static final DeviceRegistry sDeviceRegistry = new DeviceRegistry();
+
+    /** Background scanning **/
+    private static final long BATCH_REPORT_DELAY_MS = 10000; // deliver batched results every 10 seconds
+    private final ScanBatchAggregator mBatchScanAggregator = new ScanBatchAggregator();
+    private List<ScanFilter> mBackgroundScanFilters;
+    private BleScanCallbackv21 mBackgroundScanCallbackv21;
+    private boolean mIsBackgroundScanBatched = false;
+
+    /** PendingIntent scanning, API 26 (Oreo) **/
+    private static final int BUILD_VERSION_CODE_O = 26;
+    private static final int FLAG_MUTABLE = 0x02000000; // PendingIntent.FLAG_MUTABLE, API 31
 
     /**
      * Initialize the BleCommManager
@@ -48,6 +70,7 @@ public class BleCommManager {
         // get a reference to the Bluetooth Manager class, which allows us to talk to talk to the BLE radio
         final BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         mBluetoothAdapter = bluetoothManager.getAdapter();
+        mContext = context.getApplicationContext();
     }
 
     /**
@@ -59,6 +82,34 @@ public class BleCommManager {
         return mBluetoothAdapter;
     }
 
+    /**
+     * Get the scan policy, which decides how long to scan for and when to stop early
+     *
+     * @return the AdaptiveScanPolicy
+     */
+    public AdaptiveScanPolicy getScanPolicy() {
+        return mScanPolicy;
+    }
+
+    /**
+     * Get the registry of Peripherals heard recently
+     *
+     * @return the DeviceRegistry
+     */
+    public DeviceRegistry getDeviceRegistry() {
+        return sDeviceRegistry;
+    }
+
+    /**
+     * Get the registry of Peripherals heard recently, without a BleCommManager.
+     * This is the same registry returned by getDeviceRegistry()
+     *
+     * @return the DeviceRegistry
+     */
+    public static DeviceRegistry getSharedDeviceRegistry() {
+        return sDeviceRegistry;
+    }
+
     /**
      * Scan for Peripherals
      *
@@ -70,63 +121,34 @@ public class BleCommManager {
         // Don't proceed if there is already a scan in progress
         mTimer.cancel();
 
+        // the scan window is learned from how quickly previous scans found a match
+        final long scanPeriod = mScanPolicy.getScanPeriod();
+
         // Use BluetoothAdapter.startLeScan() for Android API 18, 19, and 20
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            // Scan for SCAN_PERIOD milliseconds.
-            // at the end of that time, stop the scan.
-            new Thread() {
-                @Override
-                public void run() {
-                    mBluetoothAdapter.startLeScan(bleScanCallbackv18);
-
-                    try {
-                        Thread.sleep(SCAN_PERIOD);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-
-                    mBluetoothAdapter.stopLeScan(bleScanCallbackv18);
-                }
-            }.start();
-            // alert the system that BLE scanning has stopped after SCAN_PERIOD milliseconds
-            mTimer = new Timer();
-            mTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    stopScanning(bleScanCallbackv18, bleScanCallbackv21);
-                }
-            }, SCAN_PERIOD);
-
+            mBluetoothAdapter.startLeScan(bleScanCallbackv18);
 
         } else { // use BluetoothLeScanner.startScan() for API 21 (Lollipop) or greater
+            // start aggressively.  The scan is stopped early once the scan policy is satisfied
             final ScanSettings settings = new ScanSettings.Builder()
                     .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
                     .build();
             final List<ScanFilter> filters = new ArrayList<ScanFilter>();
             mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
-
-            new Thread() {
-                @Override
-                public void run() {
-                    mBluetoothLeScanner.startScan(filters, settings, bleScanCallbackv21);
-
-                    try {
-                        Thread.sleep(SCAN_PERIOD);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    mBluetoothLeScanner.stopScan(bleScanCallbackv21);
-                }
-            }.start();
-            // alert the system that BLE scanning has stopped after SCAN_PERIOD milliseconds
-            mTimer = new Timer();
-            mTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    stopScanning(bleScanCallbackv18, bleScanCallbackv21);
-                }
-            }, SCAN_PERIOD);
+            mBluetoothLeScanner.startScan(filters, settings, bleScanCallbackv21);
         }
+        mScanPolicy.onScanStarted(SystemClock.elapsedRealtime());
+        sDeviceRegistry.evictExpired(SystemClock.elapsedRealtime());
+
+        // Scan for scanPeriod milliseconds.
+        // at the end of that time, stop the scan and alert the system that BLE scanning has stopped
+        mTimer = new Timer();
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                stopScanning(bleScanCallbackv18, bleScanCallbackv21, false);
+            }
+        }, scanPeriod);
 
     }
 
@@ -138,16 +160,204 @@ public class BleCommManager {
      * @param bleScanCallbackv21 APIv21 compatible ScanCallback
      */
     public void stopScanning(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) {
+        stopScanning(bleScanCallbackv18, bleScanCallbackv21, true);
+    }
+
+    /**
+     * Stop Scanning, and let the scan policy learn from the scan
+     *
+     * @param bleScanCallbackv18 APIv18 compatible ScanCallback
+     * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     * @param stoppedEarly <b>true</b> if the scan stopped before the scan window ran out
+     */
+    private void stopScanning(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21, boolean stoppedEarly) {
         mTimer.cancel();
+        mScanPolicy.onScanStopped(SystemClock.elapsedRealtime(), stoppedEarly);
+        Log.v(TAG, "scan metrics: " + mScanPolicy.getMetrics());
+
         // propagate the onScanComplete through the system
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
             mBluetoothAdapter.stopLeScan(bleScanCallbackv18);
             bleScanCallbackv18.onScanComplete();
         } else {
-            mBluetoothLeScanner.stopScan(bleScanCallbackv21);
+            if (mBluetoothLeScanner != null) {
+                mBluetoothLeScanner.stopScan(bleScanCallbackv21);
+            }
             bleScanCallbackv21.onScanComplete();
         }
 
     }
-}
 
+    /**
+     * Scan for Peripherals in the background, using as little power as possible.
+     *
+     * Where the Bluetooth controller supports it, advertisements are batched in hardware
+     * and delivered every BATCH_REPORT_DELAY_MS milliseconds, so the app is not woken for
+     * each advertisement.  Otherwise results are delivered immediately.  Either way
+     * they are folded into one summary per Peripheral and delivered to
+     * BleScanCallbackv21.onScanSummaries().
+     *
+     * Requires Android API 21 (Lollipop) or greater
+     *
+     * @param filters ScanFilters to apply in the Bluetooth controller
+     * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     */
+    public void startBackgroundScan(final List<ScanFilter> filters, final BleScanCallbackv21 bleScanCallbackv21) {
+        stopBackgroundScan();
+        mBackgroundScanFilters = filters;
+        mBackgroundScanCallbackv21 = bleScanCallbackv21;
+        mBatchScanAggregator.clear();
+        mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+
+        mIsBackgroundScanBatched = mBluetoothAdapter.isOffloadedScanBatchingSupported();
+        startBackgroundScan();
+    }
+
+    /**
+     * Stop the background scan
+     */
+    public void stopBackgroundScan() {
+        if (mBackgroundScanCallbackv21 != null) {
+            if (mBluetoothLeScanner != null) {
+                mBluetoothLeScanner.stopScan(mBatchScanCallback);
+            }
+            mBackgroundScanCallbackv21 = null;
+        }
+    }
+
+    /**
+     * Check if the background scan is batched in the Bluetooth controller
+     *
+     * @return <b>true</b> if results are batched, <b>false</b> if they are delivered immediately
+     */
+    public boolean isBackgroundScanBatched() {
+        return mIsBackgroundScanBatched;
+    }
+
+    /**
+     * Start the background scan in batched or immediate mode
+     */
+    private void startBackgroundScan() {
+        ScanSettings.Builder settingsBuilder = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+        if (mIsBackgroundScanBatched) {
+            settingsBuilder.setReportDelay(BATCH_REPORT_DELAY_MS);
+        }
+        Log.v(TAG, "starting background scan, batched: " + mIsBackgroundScanBatched);
+        mBluetoothLeScanner.startScan(mBackgroundScanFilters, settingsBuilder.build(), mBatchScanCallback);
+    }
+
+    /**
+     * Fold each report into one summary per Peripheral before passing it on
+     */
+    private final ScanCallback mBatchScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            mBatchScanAggregator.beginBatch();
+            addToBatch(result);
+            deliverBatch();
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            mBatchScanAggregator.beginBatch();
+            for (ScanResult result : results) {
+                addToBatch(result);
+            }
+            deliverBatch();
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            // fall back to immediate mode if the controller can't batch after all
+            if (errorCode == SCAN_FAILED_FEATURE_UNSUPPORTED && mIsBackgroundScanBatched) {
+                Log.w(TAG, "batched scan not supported, falling back to immediate mode");
+                mIsBackgroundScanBatched = false;
+                startBackgroundScan();
+                return;
+            }
+            BleScanCallbackv21 bleScanCallbackv21 = mBackgroundScanCallbackv21;
+            if (bleScanCallbackv21 != null) {
+                bleScanCallbackv21.onScanFailed(errorCode);
+            }
+        }
+
+        private void addToBatch(ScanResult result) {
+            String name = null;
+            if (result.getScanRecord() != null) {
+                name = result.getScanRecord().getDeviceName();
+            }
+            mBatchScanAggregator.add(result.getDevice().getAddress(), name, result.getRssi(), result.getTimestampNanos());
+        }
+
+        private void deliverBatch() {
+            BleScanCallbackv21 bleScanCallbackv21 = mBackgroundScanCallbackv21;
+            if (bleScanCallbackv21 != null) {
+                bleScanCallbackv21.onScanSummaries(mBatchScanAggregator.getBatchSummaries());
+            }
+        }
+    };
+
+    /**
+     * Scan for Peripherals even while the app is not running.
+     *
+     * Matches are delivered to the BackgroundScanReceiver through a PendingIntent, so the
+     * scan survives the app's process being stopped.  The scan is opportunistic: it only
+     * sees advertisements found by scans that other apps or the system are already running,
+     * so it costs no extra radio time.
+     *
+     * Requires Android API 26 (Oreo) or greater
+     *
+     * @param filters ScanFilters to apply in the Bluetooth controller
+     * @return <b>true</b> if the scan started, <b>false</b> if it isn't supported on this device
+     */
+    public boolean startPendingIntentScan(List<ScanFilter> filters) {
+        if (Build.VERSION.SDK_INT < BUILD_VERSION_CODE_O) {
+            return false;
+        }
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_OPPORTUNISTIC)
+                .build();
+        mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        try {
+            // startScan(List, ScanSettings, PendingIntent) is newer than the SDK this app compiles against
+            Method startScanMethod = mBluetoothLeScanner.getClass().getMethod("startScan", List.class, ScanSettings.class, PendingIntent.class);
+            int status = (Integer) startScanMethod.invoke(mBluetoothLeScanner, filters, settings, getScanPendingIntent());
+            if (status != 0) {
+                Log.e(TAG, "Could not start PendingIntent scan: " + status);
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "PendingIntent scan not supported: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stop the PendingIntent scan
+     */
+    public void stopPendingIntentScan() {
+        if (Build.VERSION.SDK_INT < BUILD_VERSION_CODE_O) {
+            return;
+        }
+        mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        try {
+            Method stopScanMethod = mBluetoothLeScanner.getClass().getMethod("stopScan", PendingIntent.class);
+            stopScanMethod.invoke(mBluetoothLeScanner, getScanPendingIntent());
+        } catch (Exception e) {
+            Log.e(TAG, "Could not stop PendingIntent scan: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Build the PendingIntent that delivers scan results to the BackgroundScanReceiver.
+     * The same PendingIntent is built every time, so the scan can be stopped later.
+     */
+    private PendingIntent getScanPendingIntent() {
+        Intent intent = new Intent(mContext, BackgroundScanReceiver.class);
+        intent.setAction(BackgroundScanReceiver.ACTION_SCAN_RESULT);
+        // the system adds the scan results to the Intent, so it must stay mutable
+        return PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | FLAG_MUTABLE);
+    }
+}
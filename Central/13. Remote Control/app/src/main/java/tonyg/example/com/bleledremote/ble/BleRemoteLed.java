@@ -13,6 +13,7 @@ import android.os.Looper;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
@@ -32,7 +33,7 @@ public class BleRemoteLed {
     private BluetoothDevice mBluetoothDevice;
     private BluetoothGatt mBluetoothGatt;
     private BleRemoteLedCallback mBleRemoteLedCallback;
-    private BluetoothGattCharacteristic mCommandCharacteristic, mResponseCharacteristic;
+    private BluetoothGattCharacteristic mCommandCharacteristic, mResponseCharacteristic, mBroadcastKeyCharacteristic;
     private Context mContext;
 
     /** Bluetooth Device stuff **/
@@ -40,9 +41,19 @@ public class BleRemoteLed {
     public static final UUID SERVICE_UUID = UUID.fromString("00001815-0000-1000-8000-00805f9b34fb");
     public static final UUID COMMAND_CHARACTERISTIC_UUID = UUID.fromString("00002a56-0000-1000-8000-00805f9b34fb");
     public static final UUID RESPONSE_CHARACTERISTIC_UUID = UUID.fromString("00002a57-0000-1000-8000-00805f9b34fb");
+    // takes the broadcast command key, only over an encrypted link
+    public static final UUID BROADCAST_KEY_CHARACTERISTIC_UUID = UUID.fromString("5a1e0d31-8b3c-4f7e-9d2a-6c4b1e0f7a15");
 
     public static final UUID NOTIFY_DISCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    /** Ack modes, for Characteristics that can both notify and indicate **/
+    public static final int ACK_MODE_NOTIFY = 0;
+    public static final int ACK_MODE_INDICATE = 1;
+
+    /** Protocol features this Central can tell the Remote Led it supports **/
+    public static final int FEATURE_NONE = 0;
+    public static final int FEATURE_MULTI_ACK = 1;
+
     /** Data packet **/
     private static final int TRANSMISSION_LENGTH = 2;
 
@@ -54,6 +65,22 @@ public class BleRemoteLed {
 
     public static final byte COMMAND_LED_OFF = 2;
     public static final byte COMMAND_LED_ON = 1;
+    public static final byte COMMAND_TIME_SYNC = 3;
+    public static final byte COMMAND_EXECUTE_AT = 4;
+    public static final byte COMMAND_SET_FEATURES = 5;
+
+    // [COMMAND_TIME_SYNC][footer][sequence]
+    public static final int TIME_SYNC_SEQUENCE_POSITION = 2;
+    private static final int TIME_SYNC_COMMAND_LENGTH = 3;
+
+    // [COMMAND_EXECUTE_AT][footer][LED command][execution time, 8 bytes]
+    public static final int EXECUTE_AT_COMMAND_POSITION = 2;
+    public static final int EXECUTE_AT_TIME_POSITION = 3;
+    private static final int EXECUTE_AT_COMMAND_LENGTH = 11;
+
+    // [COMMAND_SET_FEATURES][footer][feature bits]
+    public static final int FEATURES_POSITION = 2;
+    private static final int FEATURES_COMMAND_LENGTH = 3;
 
     /** Receiving responses **/
     public static final int RESPONSE_FOOTER_POSITION = 1;
@@ -65,6 +92,34 @@ public class BleRemoteLed {
     public static final int RESPONSE_LED_STATE_ERROR = 1;
     public static final int LED_STATE_ON = 1;
     public static final int LED_STATE_OFF = 2;
+    public static final int RESPONSE_TIME_SYNC = 3;
+    public static final int RESPONSE_MULTI_ACK = 4;
+
+    // [RESPONSE_TIME_SYNC][footer][sequence][receive time, 8 bytes][send time, 8 bytes]
+    public static final int TIME_SYNC_RECEIVE_TIME_POSITION = 3;
+    public static final int TIME_SYNC_SEND_TIME_POSITION = 11;
+    private static final int TIME_SYNC_RESPONSE_LENGTH = 19;
+
+    // [LED state][footer][execution time, 8 bytes], when the command was scheduled
+    public static final int EXECUTED_TIME_POSITION = 2;
+    private static final int EXECUTED_RESPONSE_LENGTH = 10;
+
+    // [RESPONSE_MULTI_ACK][footer][confirmation count][the latest response]
+    public static final int MULTI_ACK_COUNT_POSITION = 2;
+    public static final int MULTI_ACK_RESPONSE_POSITION = 3;
+
+    /** Time sync **/
+    private final ClockSync mClockSync = new ClockSync();
+    private int mTimeSyncSequence = 0;
+    private long mTimeSyncSentTime = -1;
+    private long mResponseReceivedTime = -1;
+
+    private int mAckMode = ACK_MODE_NOTIFY;
+    private int mFeatures = FEATURE_NONE;
+
+    /** GATT operations, one at a time, so a command tapped in while the features are being written isn't dropped **/
+    private final GattOperationQueue mOperationQueue = new GattOperationQueue();
+    private boolean mIsRssiReadQueued = false; // polled RSSI reads don't pile up behind slow writes
 
     public BleRemoteLed(Context context, BleRemoteLedCallback peripheralCallback) {
         mContext = context;
@@ -119,6 +174,9 @@ public class BleRemoteLed {
      * to notify of a successful disconnect
      */
     public void close() {
+        // nothing queued may run on a closed connection
+        mOperationQueue.setReady(false);
+        mOperationQueue.clear();
         if (mBluetoothGatt != null) {
             mBluetoothGatt.close(); // close connection to Peripheral
             mBluetoothGatt = null; // release from memory
@@ -153,10 +211,56 @@ public class BleRemoteLed {
      * @param characteristic
      */
     public void readValueFromCharacteristic(final BluetoothGattCharacteristic characteristic) {
-        // Reading a characteristic requires both requesting the read and handling the callback that is
-        // sent when the read is successful
-        // http://stackoverflow.com/a/20020279
-        mBluetoothGatt.readCharacteristic(characteristic);
+        // the read takes its turn with the writes
+        mOperationQueue.enqueue(new GattOperationQueue.Operation() {
+            @Override
+            public void execute() {
+                // Reading a characteristic requires both requesting the read and handling the callback that is
+                // sent when the read is successful
+                // http://stackoverflow.com/a/20020279
+                if (!mBluetoothGatt.readCharacteristic(characteristic)) {
+                    Log.e(TAG, "could not read characteristic");
+                    mOperationQueue.onOperationComplete();
+                }
+            }
+
+            @Override
+            public void fail() {
+                Log.w(TAG, "Characteristic not read, the connection was lost");
+            }
+        });
+    }
+
+    /**
+     * Request the signal strength of the connection.  The result is passed to BleRemoteLedCallback.rssiRead().
+     * A request made while another is still waiting is dropped
+     */
+    public void readRemoteRssi() {
+        synchronized (mOperationQueue) {
+            if (mIsRssiReadQueued) {
+                return;
+            }
+            mIsRssiReadQueued = true;
+        }
+        mOperationQueue.enqueue(new GattOperationQueue.Operation() {
+            @Override
+            public void execute() {
+                synchronized (mOperationQueue) {
+                    mIsRssiReadQueued = false;
+                }
+                if (!mBluetoothGatt.readRemoteRssi()) {
+                    Log.e(TAG, "could not read RSSI");
+                    mOperationQueue.onOperationComplete();
+                }
+            }
+
+            @Override
+            public void fail() {
+                synchronized (mOperationQueue) {
+                    mIsRssiReadQueued = false;
+                }
+            }
+        });
     }
 
     /**
@@ -202,13 +306,248 @@ public class BleRemoteLed {
         data[COMMAND_DATA_POSITION] = command;
         data[COMMAND_FOOTER_POSITION] = COMMAND_FOOTER;
 
-        Log.d(TAG, "Writing Message: "+bytesToHex(data));
+        writeData(data);
+    }
+
+    /**
+     * Start a time sync exchange.  The Remote Led answers with its receive and send times,
+     * which are added to getClockSync().  Several exchanges are needed before the
+     * estimate is trusted
+     */
+    public void requestTimeSync() {
+        byte[] data = new byte[TIME_SYNC_COMMAND_LENGTH];
+        data[COMMAND_DATA_POSITION] = COMMAND_TIME_SYNC;
+        data[COMMAND_FOOTER_POSITION] = COMMAND_FOOTER;
+        synchronized (mClockSync) {
+            mTimeSyncSequence = (mTimeSyncSequence + 1) & 0xFF;
+            data[TIME_SYNC_SEQUENCE_POSITION] = (byte) mTimeSyncSequence;
+            mTimeSyncSentTime = ClockSync.nowMicros();
+        }
+        writeData(data);
+    }
+
+    /**
+     * Get the estimate of the Remote Led's clock
+     */
+    public ClockSync getClockSync() {
+        return mClockSync;
+    }
+
+    /**
+     * Have the Remote Led carry out a command at a set time, so a group of Remote Leds
+     * switch together however their writes are delayed.  The clock must be synchronized
+     *
+     * @param command the command, for example COMMAND_LED_ON
+     * @param localTime when to carry out the command, on the ClockSync.nowMicros() clock
+     */
+    public void writeScheduledCommand(byte command, long localTime) {
+        byte[] data = new byte[EXECUTE_AT_COMMAND_LENGTH];
+        data[COMMAND_DATA_POSITION] = COMMAND_EXECUTE_AT;
+        data[COMMAND_FOOTER_POSITION] = COMMAND_FOOTER;
+        data[EXECUTE_AT_COMMAND_POSITION] = command;
+        putInt64(data, EXECUTE_AT_TIME_POSITION, mClockSync.toRemoteTime(localTime));
+
+        writeData(data);
+    }
+
+    /**
+     * Tell the Remote Led which protocol features this Central supports
+     *
+     * @param features FEATURE_MULTI_ACK, or FEATURE_NONE
+     */
+    public void writeFeatures(int features) {
+        byte[] data = new byte[FEATURES_COMMAND_LENGTH];
+        data[COMMAND_DATA_POSITION] = COMMAND_SET_FEATURES;
+        data[COMMAND_FOOTER_POSITION] = COMMAND_FOOTER;
+        data[FEATURES_POSITION] = (byte) features;
+
+        writeData(data);
+    }
+
+    /**
+     * Queue a write to the Command Characteristic.  It starts once the writes before it
+     * are done and the connection is ready
+     */
+    private void writeData(final byte[] data) {
+        mOperationQueue.enqueue(new GattOperationQueue.Operation() {
+            @Override
+            public void execute() {
+                Log.d(TAG, "Writing Message: "+bytesToHex(data));
+
+                mCommandCharacteristic.setValue(data);
+                if (!mBluetoothGatt.writeCharacteristic(mCommandCharacteristic)) {
+                    Log.e(TAG, "could not write message " + bytesToHex(data));
+                    mOperationQueue.onOperationComplete();
+                }
+            }
+
+            @Override
+            public void fail() {
+                Log.w(TAG, "Message " + bytesToHex(data) + " not written, the connection was lost");
+            }
+        });
+    }
+
+    /**
+     * Queue a write of this install's broadcast command key to the Remote Led, so it takes
+     * the commands LedFleetManager broadcasts.  The Characteristic needs an encrypted link,
+     * so Android pairs with the Remote Led first if they aren't bonded yet
+     */
+    private void writeBroadcastKey() {
+        final byte[] key = BroadcastKeyStore.getOrCreateKey(mContext);
+        mOperationQueue.enqueue(new GattOperationQueue.Operation() {
+            @Override
+            public void execute() {
+                Log.d(TAG, "Writing broadcast key");
+
+                mBroadcastKeyCharacteristic.setValue(key);
+                if (!mBluetoothGatt.writeCharacteristic(mBroadcastKeyCharacteristic)) {
+                    Log.e(TAG, "could not write broadcast key");
+                    mOperationQueue.onOperationComplete();
+                }
+            }
+
+            @Override
+            public void fail() {
+                Log.w(TAG, "Broadcast key not written, the connection was lost");
+            }
+        });
+    }
+
+    /**
+     * Write a little-endian 64-bit value
+     */
+    public static void putInt64(byte[] data, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            data[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    /**
+     * Read a little-endian 64-bit value
+     */
+    public static long getInt64(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Make sense of a response from the Remote Led
+     */
+    private void processResponse(byte[] message) {
+        int ledState = RESPONSE_TYPE_ERROR;
+        // we are looking to see if the remote command worked
+        try {
+            ledState = getResponseType(message);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not discern message type from incoming message");
+        }
 
-        mCommandCharacteristic.setValue(data);
-        mBluetoothGatt.writeCharacteristic(mCommandCharacteristic);
+        switch (ledState) {
+            case BleRemoteLed.LED_STATE_ON:
+            case BleRemoteLed.LED_STATE_OFF:
+            {
+                // a scheduled command also reports when it was carried out
+                if (message.length >= EXECUTED_RESPONSE_LENGTH) {
+                    long executedTime = mClockSync.toLocalTime(getInt64(message, EXECUTED_TIME_POSITION));
+                    mBleRemoteLedCallback.commandExecuted(executedTime);
+                }
+                mBleRemoteLedCallback.ledStateChanged(ledState);
+            }
+            break;
+            case BleRemoteLed.RESPONSE_TIME_SYNC:
+                processTimeSyncResponse(message);
+                break;
+            case BleRemoteLed.RESPONSE_MULTI_ACK:
+                processMultiAck(message);
+                break;
+            default:
+
+                mBleRemoteLedCallback.ledError();
+
+        }
     }
 
+    /**
+     * A multi-ack confirms several commands at once, and carries the latest response
+     */
+    private void processMultiAck(byte[] message) {
+        if (message.length < MULTI_ACK_RESPONSE_POSITION + TRANSMISSION_LENGTH) {
+            mBleRemoteLedCallback.ledError();
+            return;
+        }
+        processResponse(Arrays.copyOfRange(message, MULTI_ACK_RESPONSE_POSITION, message.length));
+        int count = message[MULTI_ACK_COUNT_POSITION] & 0xFF;
+        if (count > 0) {
+            mBleRemoteLedCallback.commandsConfirmed(count);
+        }
+    }
 
+    /**
+     * Add a time sync response to the clock estimate
+     */
+    private void processTimeSyncResponse(byte[] message) {
+        if (message.length < TIME_SYNC_RESPONSE_LENGTH) {
+            return;
+        }
+        synchronized (mClockSync) {
+            // ignore an answer to an earlier request
+            if ((message[TIME_SYNC_SEQUENCE_POSITION] & 0xFF) != mTimeSyncSequence || mTimeSyncSentTime < 0) {
+                return;
+            }
+            mClockSync.addSample(mTimeSyncSentTime,
+                    getInt64(message, TIME_SYNC_RECEIVE_TIME_POSITION),
+                    getInt64(message, TIME_SYNC_SEND_TIME_POSITION),
+                    mResponseReceivedTime);
+            mTimeSyncSentTime = -1;
+        }
+        mBleRemoteLedCallback.clockSynchronized(mClockSync);
+    }
+
+
+
+    /**
+     * Choose notifications or indications for Characteristics that offer both.  Takes effect
+     * the next time a Characteristic is subscribed to.  Indications are confirmed, but
+     * arrive a connection event later and at half the rate or less
+     *
+     * @param ackMode ACK_MODE_NOTIFY, the default, or ACK_MODE_INDICATE
+     */
+    public void setAckMode(int ackMode) {
+        mAckMode = ackMode;
+    }
+
+    /**
+     * Choose which protocol features to tell the Remote Led about.  They are written once
+     * the Response Characteristic is subscribed to.  With FEATURE_MULTI_ACK, a burst of
+     * commands is confirmed in one response, and commandsConfirmed() says how many
+     *
+     * @param features FEATURE_MULTI_ACK, or FEATURE_NONE, the default
+     */
+    public void setFeatures(int features) {
+        mFeatures = features;
+    }
+
+    /**
+     * Get the Client Characteristic Configuration Descriptor value to subscribe with.
+     * A Characteristic that only indicates gets indications, and one that only notifies
+     * gets notifications, whatever the ack mode
+     *
+     * @param properties the Characteristic's properties
+     * @param ackMode ACK_MODE_NOTIFY or ACK_MODE_INDICATE
+     * @return the descriptor value
+     */
+    public static byte[] getSubscriptionValue(int properties, int ackMode) {
+        boolean canNotify = (properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
+        boolean canIndicate = (properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0;
+        if (canIndicate && (!canNotify || ackMode == ACK_MODE_INDICATE)) {
+            return BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+        return BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+    }
 
     /**
      * Subscribe or unsubscribe from Characteristic Notifications
@@ -219,28 +558,41 @@ public class BleRemoteLed {
      * @param isEnabled <b>true</b> for "subscribe" <b>false</b> for "unsubscribe"
      */
     public void setCharacteristicNotification(final BluetoothGattCharacteristic characteristic, final boolean isEnabled) {
-        // modified from http://stackoverflow.com/a/18011901/5671180
-        // This is a 2-step process
-        // Step 1: set the Characteristic Notification parameter locally
-        mBluetoothGatt.setCharacteristicNotification(characteristic, isEnabled);
-        // Step 2: Write a descriptor to the Bluetooth GATT enabling the subscription on the Perpiheral
-        // turns out you need to implement a delay between setCharacteristicNotification and setvalue.
-        // maybe it can be handled with a callback, but this is an easy way to implement
-        final Handler handler = new Handler(Looper.getMainLooper());
-        handler.postDelayed(new Runnable() {
+        // the descriptor write takes its turn with the command writes
+        mOperationQueue.enqueue(new GattOperationQueue.Operation() {
             @Override
-            public void run() {
-                BluetoothGattDescriptor descriptor = characteristic.getDescriptor(NOTIFY_DISCRIPTOR_UUID);
-                Log.v(TAG, "descriptor: "+descriptor);
-                if (isEnabled) {
-                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    //descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-                } else {
-                    descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                }
-                mBluetoothGatt.writeDescriptor(descriptor);
+            public void execute() {
+                // modified from http://stackoverflow.com/a/18011901/5671180
+                // This is a 2-step process
+                // Step 1: set the Characteristic Notification parameter locally
+                mBluetoothGatt.setCharacteristicNotification(characteristic, isEnabled);
+                // Step 2: Write a descriptor to the Bluetooth GATT enabling the subscription on the Perpiheral
+                // turns out you need to implement a delay between setCharacteristicNotification and setvalue.
+                // maybe it can be handled with a callback, but this is an easy way to implement
+                final Handler handler = new Handler(Looper.getMainLooper());
+                handler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(NOTIFY_DISCRIPTOR_UUID);
+                        Log.v(TAG, "descriptor: "+descriptor);
+                        if (isEnabled) {
+                            descriptor.setValue(getSubscriptionValue(characteristic.getProperties(), mAckMode));
+                        } else {
+                            descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                        }
+                        if (!mBluetoothGatt.writeDescriptor(descriptor)) {
+                            Log.e(TAG, "could not write descriptor");
+                            mOperationQueue.onOperationComplete();
+                        }
+                    }
+                }, 10);
+            }
+
+            @Override
+            public void fail() {
+                Log.w(TAG, "Subscription not changed, the connection was lost");
             }
-        }, 10);
+        });
     }
 
 
@@ -267,7 +619,7 @@ public class BleRemoteLed {
      * @return Returns <b>true</b> if property is supports notification
      */
     public static boolean isCharacteristicNotifiable(BluetoothGattCharacteristic characteristic) {
-        return (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
+        return (characteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0;
     }
 
 
@@ -295,27 +647,28 @@ public class BleRemoteLed {
 
                 Log.v(TAG, "Message received: "+ BleRemoteLed.bytesToHex(message));
 
-                int ledState = RESPONSE_TYPE_ERROR;
-                // we are looking to see if the remote command worked
-                try {
-                    ledState = getResponseType(message);
-                } catch (Exception e) {
-                    Log.e(TAG, "Could not discern message type from incoming message");
-                }
-
-                switch (ledState) {
-                    case BleRemoteLed.LED_STATE_ON:
-                    case BleRemoteLed.LED_STATE_OFF:
-                    {
-                        mBleRemoteLedCallback.ledStateChanged(ledState);
-                    }
-                    break;
-                    default:
-
-                        mBleRemoteLedCallback.ledError();
+                processResponse(message);
+            }
+            mOperationQueue.onOperationComplete();
+        }
 
-                }
+        /**
+         * The Response Characteristic was subscribed to.  Now say which features this Central supports
+         *
+         * @param gatt connection to GATT
+         * @param descriptor the Client Characteristic Configuration Descriptor
+         * @param status the status of the operation
+         */
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS
+                    && mFeatures != FEATURE_NONE
+                    && descriptor.getCharacteristic().getUuid().equals(RESPONSE_CHARACTERISTIC_UUID)
+                    && !Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+                // queued behind any command already waiting, and written once the descriptor write is done
+                writeFeatures(mFeatures);
             }
+            mOperationQueue.onOperationComplete();
         }
 
         /**
@@ -328,25 +681,52 @@ public class BleRemoteLed {
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
+            if (characteristic.getUuid().equals(BROADCAST_KEY_CHARACTERISTIC_UUID)) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    Log.v(TAG, "broadcast key provisioned");
+                } else {
+                    // GATT_INSUFFICIENT_AUTHENTICATION or GATT_INSUFFICIENT_ENCRYPTION if pairing was refused
+                    Log.e(TAG, "problem writing broadcast key: " + status);
+                }
+            } else if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.v(TAG, "command written");
                 mBleRemoteLedCallback.commandWritten();
             } else {
                 Log.e(TAG, "problem writing characteristic");
 
             }
+            mOperationQueue.onOperationComplete();
         }
 
         /**
-         * Charactersitic value changed.  Read new value.
+         * Charactersitic value changed.  The notification or indication carries the new value
          * @param gatt Connection to the GATT
          * @param characteristic The Characterstic
          */
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-            Log.v(TAG, "characteristic state changed");
-            readValueFromCharacteristic(characteristic);
+            // the time sync clock stops here, when the response arrives
+            mResponseReceivedTime = ClockSync.nowMicros();
+            final byte[] message = characteristic.getValue();
+
+            Log.v(TAG, "Message received: "+ BleRemoteLed.bytesToHex(message));
+
+            processResponse(message);
+        }
 
+        /**
+         * Signal strength of the connection was read
+         *
+         * @param gatt Connection to the GATT
+         * @param rssi the RSSI of the connection
+         * @param status status of the operation
+         */
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mBleRemoteLedCallback.rssiRead(rssi);
+            }
+            mOperationQueue.onOperationComplete();
         }
 
         /**
@@ -360,9 +740,12 @@ public class BleRemoteLed {
 
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 Log.v(TAG, "connected");
+                mClockSync.reset();
                 bluetoothGatt.discoverServices();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.e(TAG, "Disconnected from device");
+                mOperationQueue.setReady(false);
+                mOperationQueue.clear();
                 mBleRemoteLedCallback.disconnected();
 
                 disconnect();
@@ -399,10 +782,15 @@ public class BleRemoteLed {
                     Log.v(TAG, "service found");
                     mCommandCharacteristic = service.getCharacteristic(BleRemoteLed.COMMAND_CHARACTERISTIC_UUID);
                     mResponseCharacteristic = service.getCharacteristic(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID);
+                    mBroadcastKeyCharacteristic = service.getCharacteristic(BleRemoteLed.BROADCAST_KEY_CHARACTERISTIC_UUID);
 
                     if (isCharacteristicNotifiable(mResponseCharacteristic)) {
                         setCharacteristicNotification(mResponseCharacteristic, true);
                     }
+                    if (mBroadcastKeyCharacteristic != null) {
+                        writeBroadcastKey();
+                    }
+                    mOperationQueue.setReady(true);
                 }
 
             } else {
@@ -0,0 +1,120 @@
+package tonyg.example.com.bleledremote.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.security.SecureRandom;
+
+/**
+ * Send a command to every Remote Led in range at once, without connecting.
+ *
+ * The command is advertised as signed Manufacturer Specific Data for BROADCAST_DURATION_MS.
+ * Remote Leds scan at a low duty cycle to save power, so the broadcast has to outlast a
+ * scan interval to be heard by all of them.  A new broadcast replaces the one before.
+ *
+ * Requires a phone that supports Peripheral mode.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BroadcastCommandAdvertiser {
+    private static final String TAG = BroadcastCommandAdvertiser.class.getSimpleName();
+
+    public static final long BROADCAST_DURATION_MS = 6000; // longer than a low power scan interval and window, 5120 + 512ms
+
+    private final BluetoothLeAdvertiser mBluetoothAdvertiser;
+    private final BroadcastCommand mBroadcastCommand;
+    private final int mSource;
+    private long mSequence;
+    private boolean mIsBroadcasting = false;
+    private long mBroadcastStartTime;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Create a BroadcastCommandAdvertiser
+     *
+     * @param bluetoothAdapter the Bluetooth Adapter
+     * @param key the key shared with the Remote Leds, from BroadcastKeyStore
+     * @throws Exception if this phone can't advertise or sign commands
+     */
+    public BroadcastCommandAdvertiser(BluetoothAdapter bluetoothAdapter, byte[] key) throws Exception {
+        if (!bluetoothAdapter.isMultipleAdvertisementSupported() || bluetoothAdapter.getBluetoothLeAdvertiser() == null) {
+            throw new Exception("Peripheral mode not supported");
+        }
+        mBluetoothAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+        mBroadcastCommand = new BroadcastCommand(key);
+        mSource = new SecureRandom().nextInt(0x10000);
+        // start from the clock, so the sequence keeps going up when the app restarts
+        mSequence = System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Broadcast a command
+     *
+     * @param command the LED command, for example BleRemoteLed.COMMAND_LED_ON
+     * @param group the group of Remote Leds to act on it, or BroadcastCommand.ALL_GROUPS
+     */
+    public synchronized void broadcast(byte command, int group) {
+        stop();
+        mSequence = Math.max(mSequence + 1, System.currentTimeMillis() / 1000);
+        byte[] data = mBroadcastCommand.encode(mSource, mSequence & 0xFFFFFFFFL, command, group);
+
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+                .setConnectable(false)
+                .setTimeout((int) BROADCAST_DURATION_MS)
+                .build();
+        AdvertiseData advertiseData = new AdvertiseData.Builder()
+                .addManufacturerData(BroadcastCommand.COMPANY_ID, data)
+                .build();
+
+        mBroadcastStartTime = System.currentTimeMillis();
+        mBluetoothAdvertiser.startAdvertising(settings, advertiseData, mAdvertiseCallback);
+        mIsBroadcasting = true;
+        mHandler.postDelayed(mStopRunnable, BROADCAST_DURATION_MS);
+    }
+
+    /**
+     * Stop broadcasting
+     */
+    public synchronized void stop() {
+        mHandler.removeCallbacks(mStopRunnable);
+        if (mIsBroadcasting) {
+            mBluetoothAdvertiser.stopAdvertising(mAdvertiseCallback);
+            mIsBroadcasting = false;
+        }
+    }
+
+    public synchronized boolean isBroadcasting() {
+        return mIsBroadcasting;
+    }
+
+    private final Runnable mStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    };
+
+    private final AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+            Log.v(TAG, "Broadcasting command, " + (System.currentTimeMillis() - mBroadcastStartTime) + "ms to start");
+        }
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            Log.e(TAG, "Could not broadcast command: " + errorCode);
+            synchronized (BroadcastCommandAdvertiser.this) {
+                mIsBroadcasting = false;
+            }
+        }
+    };
+}
@@ -0,0 +1,97 @@
+package tonyg.example.com.bleledremote.ble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.security.SecureRandom;
+
+/**
+ * The key that signs broadcast commands, provisioned into each install.
+ *
+ * The Remote Control makes the key, with getOrCreateKey(), the first time it needs it.  It
+ * writes the key to each Remote Led it connects to, on the Broadcast Key Characteristic,
+ * which can only be written over an encrypted link, so the Remote Led must be paired
+ * first.  A Remote Led keeps the key with setKey(), and takes no broadcast commands until
+ * it has one.
+ *
+ * Kept the same, apart from its package, in the Remote Control and Remote Control LED apps.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BroadcastKeyStore {
+    public static final int KEY_LENGTH = 16;
+
+    private static final String PREFERENCES_NAME = "broadcast_key";
+    private static final String KEY_KEY = "key";
+
+    private BroadcastKeyStore() {
+    }
+
+    /**
+     * Get the provisioned key
+     *
+     * @param context the Application Context
+     * @return the key, or null if none was provisioned
+     */
+    public static byte[] getKey(Context context) {
+        String key = getPreferences(context).getString(KEY_KEY, null);
+        return key != null ? decodeHex(key) : null;
+    }
+
+    /**
+     * Get the provisioned key, making one the first time
+     *
+     * @param context the Application Context
+     * @return the key
+     */
+    public static synchronized byte[] getOrCreateKey(Context context) {
+        byte[] key = getKey(context);
+        if (key == null) {
+            key = new byte[KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+            setKey(context, key);
+        }
+        return key;
+    }
+
+    /**
+     * Provision the key
+     *
+     * @param context the Application Context
+     * @param key the key shared with the other app, KEY_LENGTH bytes
+     */
+    public static void setKey(Context context, byte[] key) {
+        if (!isValidKey(key)) {
+            throw new IllegalArgumentException("Broadcast keys must be " + KEY_LENGTH + " bytes");
+        }
+        getPreferences(context).edit().putString(KEY_KEY, encodeHex(key)).apply();
+    }
+
+    /**
+     * Check if a value written to the Broadcast Key Characteristic can be a key
+     */
+    public static boolean isValidKey(byte[] key) {
+        return key != null && key.length == KEY_LENGTH;
+    }
+
+    static String encodeHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+        }
+        return hex.toString();
+    }
+
+    static byte[] decodeHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
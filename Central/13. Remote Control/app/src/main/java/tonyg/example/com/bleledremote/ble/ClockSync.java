@@ -0,0 +1,179 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Estimate a Remote Led's clock from NTP-style time sync exchanges.
+ *
+ * Each exchange gives four timestamps: t0 when the Central sent the request, t1 when the
+ * Remote Led received it, t2 when the Remote Led sent its response, and t3 when the Central
+ * received it.  The Remote Led's clock is ahead by
+ *
+ *   offset = ((t1 - t0) + (t2 - t3)) / 2
+ *
+ * give or take half the round trip delay.  Exchanges that waited for a late connection
+ * event have long delays and unreliable offsets, so only the fastest half of the recent
+ * exchanges are used.  Once the exchanges span long enough for the clocks to drift apart
+ * measurably, a straight line fitted through their offsets also gives the drift.
+ *
+ * All times are in microseconds.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class ClockSync {
+    public static final int MAX_SAMPLES = 16;
+    public static final int MIN_SAMPLES = 4; // exchanges needed before the estimate is trusted
+    public static final long MIN_DRIFT_SPAN = 10000000; // exchanges must span 10s to measure drift
+    public static final double MAX_DRIFT = 500e-6; // no crystal is off by more than 500ppm
+
+    private final long[] mSampleTimes = new long[MAX_SAMPLES]; // local time at the middle of each exchange
+    private final long[] mOffsets = new long[MAX_SAMPLES];
+    private final long[] mDelays = new long[MAX_SAMPLES];
+    private int mSampleCount = 0;
+    private int mNextSample = 0;
+
+    // offset = mOffset + mDrift * (local time - mReferenceTime)
+    private long mReferenceTime = 0;
+    private double mOffset = 0;
+    private double mDrift = 0;
+    private long mRoundTripDelay = -1;
+
+    /**
+     * Get the current time on the clock used for time sync
+     */
+    public static long nowMicros() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Add a time sync exchange
+     *
+     * @param t0 local time the request was sent
+     * @param t1 remote time the request was received
+     * @param t2 remote time the response was sent
+     * @param t3 local time the response was received
+     */
+    public synchronized void addSample(long t0, long t1, long t2, long t3) {
+        mSampleTimes[mNextSample] = t0 + (t3 - t0) / 2;
+        mOffsets[mNextSample] = ((t1 - t0) + (t2 - t3)) / 2;
+        mDelays[mNextSample] = (t3 - t0) - (t2 - t1);
+        mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+        if (mSampleCount < MAX_SAMPLES) {
+            mSampleCount++;
+        }
+        fit();
+    }
+
+    /**
+     * Check if enough exchanges have been made to trust the estimate
+     */
+    public synchronized boolean isSynchronized() {
+        return mSampleCount >= MIN_SAMPLES;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Get how far the remote clock is ahead of the local clock at a local time
+     *
+     * @param localTime a local time
+     * @return the offset in microseconds
+     */
+    public synchronized long getOffset(long localTime) {
+        return Math.round(mOffset + mDrift * (localTime - mReferenceTime));
+    }
+
+    /**
+     * Get how much faster the remote clock runs than the local clock
+     *
+     * @return the drift in parts per million
+     */
+    public synchronized double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    /**
+     * Get the shortest round trip delay among the exchanges used
+     *
+     * @return the delay in microseconds, or -1 if there have been no exchanges
+     */
+    public synchronized long getRoundTripDelay() {
+        return mRoundTripDelay;
+    }
+
+    /**
+     * Convert a local time to the Remote Led's clock
+     */
+    public synchronized long toRemoteTime(long localTime) {
+        return localTime + getOffset(localTime);
+    }
+
+    /**
+     * Convert a time on the Remote Led's clock to the local clock
+     */
+    public synchronized long toLocalTime(long remoteTime) {
+        // solve remoteTime = localTime + mOffset + mDrift * (localTime - mReferenceTime)
+        return Math.round((remoteTime - mOffset + mDrift * mReferenceTime) / (1 + mDrift));
+    }
+
+    /**
+     * Forget every exchange, for example after reconnecting
+     */
+    public synchronized void reset() {
+        mSampleCount = 0;
+        mNextSample = 0;
+        mReferenceTime = 0;
+        mOffset = 0;
+        mDrift = 0;
+        mRoundTripDelay = -1;
+    }
+
+    /**
+     * Fit offset and drift through the fastest half of the exchanges
+     */
+    private void fit() {
+        Integer[] order = new Integer[mSampleCount];
+        for (int i = 0; i < mSampleCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return mDelays[a] < mDelays[b] ? -1 : (mDelays[a] > mDelays[b] ? 1 : 0);
+            }
+        });
+        int count = Math.max(1, (mSampleCount + 1) / 2);
+        mRoundTripDelay = mDelays[order[0]];
+
+        double meanTime = 0, meanOffset = 0;
+        for (int i = 0; i < count; i++) {
+            meanTime += mSampleTimes[order[i]];
+            meanOffset += mOffsets[order[i]];
+        }
+        meanTime /= count;
+        meanOffset /= count;
+
+        double covariance = 0, variance = 0;
+        long firstTime = Long.MAX_VALUE, lastTime = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            long sampleTime = mSampleTimes[order[i]];
+            double time = sampleTime - meanTime;
+            covariance += time * (mOffsets[order[i]] - meanOffset);
+            variance += time * time;
+            firstTime = Math.min(firstTime, sampleTime);
+            lastTime = Math.max(lastTime, sampleTime);
+        }
+        mReferenceTime = Math.round(meanTime);
+        mOffset = meanOffset;
+        // over a short span, offset jitter would swamp the drift
+        if (variance > 0 && lastTime - firstTime >= MIN_DRIFT_SPAN) {
+            mDrift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, covariance / variance));
+        } else {
+            mDrift = 0;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Share a limited number of connections between a larger fleet of Remote Leds.
+ *
+ * Android can only hold a handful of connections at once, depending on the Bluetooth chip.
+ * A Remote Led that has work to do asks for a slot.  If every slot is taken it waits in
+ * line, and each time a connected Remote Led finishes its work and gives up its slot, the
+ * next one in line gets it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class ConnectionSlotScheduler {
+    public static final int DEFAULT_MAX_CONNECTIONS = 7; // what most Android Bluetooth stacks allow
+
+    private final int mMaxConnections;
+    private final Set<Long> mConnected = new HashSet<Long>();
+    private final Queue<Long> mWaiting = new ArrayDeque<Long>();
+
+    public ConnectionSlotScheduler() {
+        this(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Create a ConnectionSlotScheduler
+     *
+     * @param maxConnections how many Remote Leds can be connected at once
+     * @throws IllegalArgumentException if maxConnections is less than 1
+     */
+    public ConnectionSlotScheduler(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("At least one connection is needed");
+        }
+        mMaxConnections = maxConnections;
+    }
+
+    /**
+     * A Remote Led has work to do and needs a connection
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return <b>true</b> if the Remote Led was given a slot and should connect now.
+     *         <b>false</b> if it already has a slot or has to wait for one
+     */
+    public synchronized boolean request(long packedAddress) {
+        if (mConnected.contains(packedAddress)) {
+            return false;
+        }
+        if (mConnected.size() < mMaxConnections) {
+            mConnected.add(packedAddress);
+            return true;
+        }
+        if (!mWaiting.contains(packedAddress)) {
+            mWaiting.add(packedAddress);
+        }
+        return false;
+    }
+
+    /**
+     * A Remote Led disconnected and gave up its slot
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return the packed MAC address of the Remote Led given the slot, which should connect now,
+     *         or DeviceRegistry.NO_ADDRESS if nothing is waiting
+     */
+    public synchronized long release(long packedAddress) {
+        if (!mConnected.remove(packedAddress)) {
+            mWaiting.remove(packedAddress);
+            return DeviceRegistry.NO_ADDRESS;
+        }
+        Long nextAddress = mWaiting.poll();
+        if (nextAddress == null) {
+            return DeviceRegistry.NO_ADDRESS;
+        }
+        mConnected.add(nextAddress);
+        return nextAddress;
+    }
+
+    /**
+     * Check if a Remote Led holds a slot
+     */
+    public synchronized boolean hasSlot(long packedAddress) {
+        return mConnected.contains(packedAddress);
+    }
+
+    /**
+     * Check if any Remote Led is waiting for a slot.  A connected Remote Led with nothing
+     * left to do should give up its slot if so
+     */
+    public synchronized boolean isAnyoneWaiting() {
+        return !mWaiting.isEmpty();
+    }
+
+    public synchronized int getConnectedCount() {
+        return mConnected.size();
+    }
+
+    public synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Forget every slot and everything waiting
+     */
+    public synchronized void clear() {
+        mConnected.clear();
+        mWaiting.clear();
+    }
+}
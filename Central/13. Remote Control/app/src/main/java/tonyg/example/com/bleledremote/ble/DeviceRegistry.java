@@ -0,0 +1,326 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Arrays;
+
+/**
+ * Keep track of every Peripheral heard while scanning.
+ *
+ * Peripherals are keyed by their 48-bit MAC address packed into a long, and stored in an
+ * open-addressing hash table made of parallel primitive arrays, so recording an
+ * advertisement never allocates memory once the table has grown to fit.  Each entry holds
+ * when the Peripheral was last seen, an exponentially weighted moving average of its RSSI,
+ * its advertised flags, and its name once it has been resolved.
+ *
+ * Entries that have not been seen for longer than the time-to-live are removed by
+ * evictExpired().
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class DeviceRegistry {
+    public static final long DEFAULT_TTL_MS = 60000; // forget Peripherals after 1 minute
+    public static final float DEFAULT_RSSI_SMOOTHING = 0.25f; // weight of the newest RSSI sample
+
+    /** a packed MAC address is at most 48 bits, so no MAC address is ever -1 **/
+    public static final long NO_ADDRESS = -1;
+    public static final int UNKNOWN_FLAGS = -1;
+
+    private static final int INITIAL_CAPACITY = 64; // must be a power of two
+    private static final int MAX_LOAD_PERCENT = 50;
+
+    private final long mTtl;
+    private final float mRssiSmoothing;
+
+    /** Hash table, one slot per index **/
+    private long[] mAddresses;
+    private long[] mLastSeen;
+    private float[] mSmoothedRssi;
+    private int[] mFlags;
+    private String[] mNames;
+    private int mSize = 0;
+    private int mMask;
+
+    /**
+     * Create a DeviceRegistry with the default time-to-live and RSSI smoothing
+     */
+    public DeviceRegistry() {
+        this(DEFAULT_TTL_MS, DEFAULT_RSSI_SMOOTHING);
+    }
+
+    /**
+     * Create a DeviceRegistry
+     *
+     * @param ttl how long a Peripheral is remembered after it was last seen, in milliseconds
+     * @param rssiSmoothing weight of the newest RSSI sample in the moving average, between 0 and 1
+     */
+    public DeviceRegistry(long ttl, float rssiSmoothing) {
+        mTtl = ttl;
+        mRssiSmoothing = rssiSmoothing;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Pack a MAC address in the form "AA:BB:CC:DD:EE:FF" into a long
+     *
+     * @param address the MAC address
+     * @return the MAC address as a 48-bit number
+     * @throws IllegalArgumentException if the address is not a MAC address
+     */
+    public static long packAddress(String address) {
+        if (address == null || address.length() != 17) {
+            throw new IllegalArgumentException("Not a MAC address: " + address);
+        }
+        long packedAddress = 0;
+        for (int i = 0; i < 17; i++) {
+            if (i % 3 == 2) {
+                if (address.charAt(i) != ':') {
+                    throw new IllegalArgumentException("Not a MAC address: " + address);
+                }
+                continue;
+            }
+            int nibble = Character.digit(address.charAt(i), 16);
+            if (nibble < 0) {
+                throw new IllegalArgumentException("Not a MAC address: " + address);
+            }
+            packedAddress = (packedAddress << 4) | nibble;
+        }
+        return packedAddress;
+    }
+
+    /**
+     * Convert a packed MAC address back to the form "AA:BB:CC:DD:EE:FF"
+     *
+     * @param packedAddress the MAC address as a 48-bit number
+     * @return the MAC address
+     */
+    public static String unpackAddress(long packedAddress) {
+        char[] address = new char[17];
+        for (int i = 16, shift = 0; i >= 0; i -= 3, shift += 8) {
+            int octet = (int) (packedAddress >>> shift) & 0xFF;
+            address[i - 1] = BleRemoteLed.hexArray[octet >>> 4];
+            address[i] = BleRemoteLed.hexArray[octet & 0x0F];
+            if (i > 1) {
+                address[i - 2] = ':';
+            }
+        }
+        return new String(address);
+    }
+
+    /**
+     * Record an advertisement from a Peripheral
+     *
+     * @param packedAddress the Peripheral's packed MAC address
+     * @param rssi the RSSI of the advertisement
+     * @param flags the advertised flags, or UNKNOWN_FLAGS
+     * @param now the current time in milliseconds
+     * @return <b>true</b> if the Peripheral was not already known
+     */
+    public synchronized boolean update(long packedAddress, int rssi, int flags, long now) {
+        int slot = findSlot(packedAddress);
+        boolean isNew = mAddresses[slot] == NO_ADDRESS;
+        if (isNew) {
+            if ((mSize + 1) * 100 > mAddresses.length * MAX_LOAD_PERCENT) {
+                grow();
+                slot = findSlot(packedAddress);
+            }
+            mAddresses[slot] = packedAddress;
+            mSmoothedRssi[slot] = rssi;
+            mFlags[slot] = UNKNOWN_FLAGS;
+            mNames[slot] = null;
+            mSize++;
+        } else {
+            mSmoothedRssi[slot] += mRssiSmoothing * (rssi - mSmoothedRssi[slot]);
+        }
+        mLastSeen[slot] = now;
+        if (flags != UNKNOWN_FLAGS) {
+            mFlags[slot] = flags;
+        }
+        return isNew;
+    }
+
+    /**
+     * Store the resolved name of a Peripheral
+     *
+     * @param packedAddress the Peripheral's packed MAC address
+     * @param name the Peripheral's name
+     */
+    public synchronized void setName(long packedAddress, String name) {
+        int slot = findSlot(packedAddress);
+        if (mAddresses[slot] != NO_ADDRESS) {
+            mNames[slot] = name;
+        }
+    }
+
+    /**
+     * Check if a Peripheral is known
+     *
+     * @param packedAddress the Peripheral's packed MAC address
+     * @return <b>true</b> if the Peripheral is in the registry
+     */
+    public synchronized boolean contains(long packedAddress) {
+        return mAddresses[findSlot(packedAddress)] != NO_ADDRESS;
+    }
+
+    /**
+     * Get the resolved name of a Peripheral
+     *
+     * @param packedAddress the Peripheral's packed MAC address
+     * @return the name, or null if the Peripheral is unknown or its name has not been resolved
+     */
+    public synchronized String getName(long packedAddress) {
+        int slot = findSlot(packedAddress);
+        return mAddresses[slot] != NO_ADDRESS ? mNames[slot] : null;
+    }
+
+    /**
+     * Get the smoothed RSSI of a Peripheral
+     *
+     * @param packedAddress the Peripheral's packed MAC address
+     * @return the smoothed RSSI, or Integer.MIN_VALUE if the Peripheral is unknown
+     */
+    public synchronized int getSmoothedRssi(long packedAddress) {
+        int slot = findSlot(packedAddress);
+        return mAddresses[slot] != NO_ADDRESS ? Math.round(mSmoothedRssi[slot]) : Integer.MIN_VALUE;
+    }
+
+    /**
+     * Get when a Peripheral was last seen
+     *
+     * @param packedAddress the Peripheral's packed MAC address
+     * @return the time in milliseconds, or -1 if the Peripheral is unknown
+     */
+    public synchronized long getLastSeen(long packedAddress) {
+        int slot = findSlot(packedAddress);
+        return mAddresses[slot] != NO_ADDRESS ? mLastSeen[slot] : -1;
+    }
+
+    /**
+     * Get the advertised flags of a Peripheral
+     *
+     * @param packedAddress the Peripheral's packed MAC address
+     * @return the flags, or UNKNOWN_FLAGS
+     */
+    public synchronized int getFlags(long packedAddress) {
+        int slot = findSlot(packedAddress);
+        return mAddresses[slot] != NO_ADDRESS ? mFlags[slot] : UNKNOWN_FLAGS;
+    }
+
+    /**
+     * Get the number of known Peripherals
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Forget every Peripheral that has not been seen within the time-to-live
+     *
+     * @param now the current time in milliseconds
+     * @return the number of Peripherals forgotten
+     */
+    public synchronized int evictExpired(long now) {
+        int evicted = 0;
+        int slot = 0;
+        while (slot < mAddresses.length) {
+            if (mAddresses[slot] != NO_ADDRESS && now - mLastSeen[slot] > mTtl) {
+                // removal may shift a later entry into this slot, so check it again
+                removeSlot(slot);
+                evicted++;
+            } else {
+                slot++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Forget every Peripheral
+     */
+    public synchronized void clear() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Find the slot holding a packed MAC address, or the empty slot where it belongs
+     */
+    private int findSlot(long packedAddress) {
+        int slot = hash(packedAddress) & mMask;
+        while (mAddresses[slot] != NO_ADDRESS && mAddresses[slot] != packedAddress) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Remove an entry and shift back any entries that probed past it,
+     * so lookups never need tombstones
+     */
+    private void removeSlot(int slot) {
+        int emptySlot = slot;
+        int nextSlot = (slot + 1) & mMask;
+        while (mAddresses[nextSlot] != NO_ADDRESS) {
+            int homeSlot = hash(mAddresses[nextSlot]) & mMask;
+            // move the entry if its home slot is not between the empty slot and where it lives now
+            boolean canMove = emptySlot <= nextSlot
+                    ? (homeSlot <= emptySlot || homeSlot > nextSlot)
+                    : (homeSlot <= emptySlot && homeSlot > nextSlot);
+            if (canMove) {
+                copySlot(nextSlot, emptySlot);
+                emptySlot = nextSlot;
+            }
+            nextSlot = (nextSlot + 1) & mMask;
+        }
+        mAddresses[emptySlot] = NO_ADDRESS;
+        mNames[emptySlot] = null;
+        mSize--;
+    }
+
+    private void copySlot(int from, int to) {
+        mAddresses[to] = mAddresses[from];
+        mLastSeen[to] = mLastSeen[from];
+        mSmoothedRssi[to] = mSmoothedRssi[from];
+        mFlags[to] = mFlags[from];
+        mNames[to] = mNames[from];
+    }
+
+    private void allocate(int capacity) {
+        mAddresses = new long[capacity];
+        Arrays.fill(mAddresses, NO_ADDRESS);
+        mLastSeen = new long[capacity];
+        mSmoothedRssi = new float[capacity];
+        mFlags = new int[capacity];
+        mNames = new String[capacity];
+        mMask = capacity - 1;
+        mSize = 0;
+    }
+
+    private void grow() {
+        long[] addresses = mAddresses;
+        long[] lastSeen = mLastSeen;
+        float[] smoothedRssi = mSmoothedRssi;
+        int[] flags = mFlags;
+        String[] names = mNames;
+        int size = mSize;
+
+        allocate(addresses.length * 2);
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] != NO_ADDRESS) {
+                int slot = findSlot(addresses[i]);
+                mAddresses[slot] = addresses[i];
+                mLastSeen[slot] = lastSeen[i];
+                mSmoothedRssi[slot] = smoothedRssi[i];
+                mFlags[slot] = flags[i];
+                mNames[slot] = names[i];
+            }
+        }
+        mSize = size;
+    }
+
+    /**
+     * Spread the bits of a MAC address, whose vendor prefix is often shared by every Peripheral
+     */
+    private static int hash(long packedAddress) {
+        long h = packedAddress * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,121 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Run GATT operations on one connection, one at a time.
+ *
+ * Android's BluetoothGatt drops a request made while another one is still in progress,
+ * so each connection gets its own queue.  An operation starts once the previous one has
+ * completed, and only while the connection is ready.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class GattOperationQueue {
+
+    /**
+     * One GATT operation
+     */
+    public static abstract class Operation {
+        /**
+         * Start the operation.  GattOperationQueue.onOperationComplete() must be called when it finishes
+         */
+        public abstract void execute();
+
+        /**
+         * The operation will never run, or never finish, because the connection was lost
+         */
+        public abstract void fail();
+    }
+
+    private final Queue<Operation> mOperations = new ArrayDeque<Operation>();
+    private Operation mCurrentOperation;
+    private boolean mIsReady = false;
+
+    /**
+     * Add an operation.  It starts right away if the queue is ready and idle
+     *
+     * @param operation the operation
+     */
+    public void enqueue(Operation operation) {
+        synchronized (this) {
+            mOperations.add(operation);
+        }
+        executeNext();
+    }
+
+    /**
+     * The current operation finished.  Start the next one
+     */
+    public void onOperationComplete() {
+        synchronized (this) {
+            mCurrentOperation = null;
+        }
+        executeNext();
+    }
+
+    /**
+     * Allow or stop operations from starting, for example when the connection is made or lost
+     *
+     * @param isReady <b>true</b> if operations can run
+     */
+    public void setReady(boolean isReady) {
+        synchronized (this) {
+            mIsReady = isReady;
+        }
+        if (isReady) {
+            executeNext();
+        }
+    }
+
+    /**
+     * Fail the current operation and every waiting one
+     */
+    public void clear() {
+        Operation[] failedOperations;
+        synchronized (this) {
+            int count = mOperations.size() + (mCurrentOperation != null ? 1 : 0);
+            failedOperations = new Operation[count];
+            int i = 0;
+            if (mCurrentOperation != null) {
+                failedOperations[i++] = mCurrentOperation;
+                mCurrentOperation = null;
+            }
+            while (!mOperations.isEmpty()) {
+                failedOperations[i++] = mOperations.remove();
+            }
+        }
+        for (Operation operation : failedOperations) {
+            operation.fail();
+        }
+    }
+
+    /**
+     * Get the number of operations waiting or running
+     */
+    public synchronized int size() {
+        return mOperations.size() + (mCurrentOperation != null ? 1 : 0);
+    }
+
+    /**
+     * Check if there is nothing waiting or running
+     */
+    public synchronized boolean isIdle() {
+        return mCurrentOperation == null && mOperations.isEmpty();
+    }
+
+    private void executeNext() {
+        Operation operation;
+        synchronized (this) {
+            if (!mIsReady || mCurrentOperation != null || mOperations.isEmpty()) {
+                return;
+            }
+            operation = mOperations.remove();
+            mCurrentOperation = operation;
+        }
+        // outside the lock: execute() may complete synchronously and call onOperationComplete()
+        operation.execute();
+    }
+}
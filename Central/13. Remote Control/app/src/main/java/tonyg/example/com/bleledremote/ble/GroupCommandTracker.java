@@ -0,0 +1,195 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Arrays;
+
+/**
+ * Follow one command sent to a group of Remote Leds.
+ *
+ * Records when each Remote Led confirmed the command, or failed to, and reports the
+ * latency of each one and of the group as a whole: the time until the last Remote Led
+ * was done.  For a scheduled command, it also records when each Remote Led actually
+ * switched, and reports the skew between the first and the last.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class GroupCommandTracker {
+    public static final long NOT_COMPLETE = -1;
+
+    private final byte mCommand;
+    private final long mStartTime;
+    private final long[] mAddresses;
+    private final long[] mLatencies;
+    private final boolean[] mIsSuccessful;
+    private final long[] mExecutedTimes;
+    private int mExecutedCount = 0;
+    private int mCompletedCount = 0;
+    private int mFailedCount = 0;
+    private long mLastCompletionTime;
+
+    /**
+     * Start following a group command
+     *
+     * @param command the command sent
+     * @param addresses the packed MAC addresses of the Remote Leds in the group
+     * @param startTime when the command was sent, in milliseconds
+     */
+    public GroupCommandTracker(byte command, long[] addresses, long startTime) {
+        mCommand = command;
+        mAddresses = addresses.clone();
+        mLatencies = new long[addresses.length];
+        mIsSuccessful = new boolean[addresses.length];
+        mExecutedTimes = new long[addresses.length];
+        Arrays.fill(mLatencies, NOT_COMPLETE);
+        mStartTime = startTime;
+        mLastCompletionTime = startTime;
+    }
+
+    /**
+     * A Remote Led in the group is done with the command
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param isSuccessful <b>true</b> if the Remote Led confirmed the command
+     * @param now the current time in milliseconds
+     * @return <b>true</b> if this was the last Remote Led in the group
+     */
+    public synchronized boolean onDeviceComplete(long packedAddress, boolean isSuccessful, long now) {
+        int index = indexOf(packedAddress);
+        if (index < 0 || mLatencies[index] != NOT_COMPLETE) {
+            return false;
+        }
+        mLatencies[index] = now - mStartTime;
+        mIsSuccessful[index] = isSuccessful;
+        mCompletedCount++;
+        if (!isSuccessful) {
+            mFailedCount++;
+        }
+        mLastCompletionTime = now;
+        return mCompletedCount == mAddresses.length;
+    }
+
+    /**
+     * A Remote Led in the group reported when it carried out a scheduled command
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param executedTime when it switched, on the local clock, in microseconds
+     */
+    public synchronized void onDeviceExecuted(long packedAddress, long executedTime) {
+        int index = indexOf(packedAddress);
+        if (index < 0) {
+            return;
+        }
+        if (mExecutedTimes[index] == 0) {
+            mExecutedCount++;
+        }
+        mExecutedTimes[index] = executedTime;
+    }
+
+    /**
+     * Get the time between the first and the last Remote Led switching, for a scheduled command
+     *
+     * @return the skew in microseconds, or NOT_COMPLETE if no Remote Led reported when it switched
+     */
+    public synchronized long getSwitchingSkew() {
+        if (mExecutedCount == 0) {
+            return NOT_COMPLETE;
+        }
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (long executedTime : mExecutedTimes) {
+            if (executedTime != 0) {
+                first = Math.min(first, executedTime);
+                last = Math.max(last, executedTime);
+            }
+        }
+        return last - first;
+    }
+
+    public byte getCommand() {
+        return mCommand;
+    }
+
+    public synchronized boolean isComplete() {
+        return mCompletedCount == mAddresses.length;
+    }
+
+    public int getDeviceCount() {
+        return mAddresses.length;
+    }
+
+    public synchronized int getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * Get how long a Remote Led took to complete the command
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return the latency in milliseconds, or NOT_COMPLETE
+     */
+    public synchronized long getLatency(long packedAddress) {
+        int index = indexOf(packedAddress);
+        return index >= 0 ? mLatencies[index] : NOT_COMPLETE;
+    }
+
+    /**
+     * Check if a Remote Led confirmed the command
+     */
+    public synchronized boolean isSuccessful(long packedAddress) {
+        int index = indexOf(packedAddress);
+        return index >= 0 && mIsSuccessful[index];
+    }
+
+    /**
+     * Get how long the whole group took to complete the command
+     *
+     * @return the latency in milliseconds, or NOT_COMPLETE if some Remote Leds are not done
+     */
+    public synchronized long getGroupLatency() {
+        return isComplete() ? mLastCompletionTime - mStartTime : NOT_COMPLETE;
+    }
+
+    /**
+     * Get the latency within which a fraction of the successful Remote Leds completed the command
+     *
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds, or NOT_COMPLETE if no Remote Led succeeded
+     */
+    public synchronized long getLatencyPercentile(int percentile) {
+        long[] latencies = new long[mCompletedCount - mFailedCount];
+        int count = 0;
+        for (int i = 0; i < mAddresses.length; i++) {
+            if (mIsSuccessful[i]) {
+                latencies[count++] = mLatencies[i];
+            }
+        }
+        if (count == 0) {
+            return NOT_COMPLETE;
+        }
+        Arrays.sort(latencies);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return latencies[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "command " + mCommand + ": " + (mCompletedCount - mFailedCount) + "/" + mAddresses.length + " confirmed"
+                + ", " + mFailedCount + " failed"
+                + ", p50 " + getLatencyPercentile(50) + "ms"
+                + ", p90 " + getLatencyPercentile(90) + "ms"
+                + ", group " + getGroupLatency() + "ms"
+                + (mExecutedCount > 0 ? ", switching skew " + getSwitchingSkew() + "us" : "");
+    }
+
+    private int indexOf(long packedAddress) {
+        for (int i = 0; i < mAddresses.length; i++) {
+            if (mAddresses[i] == packedAddress) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
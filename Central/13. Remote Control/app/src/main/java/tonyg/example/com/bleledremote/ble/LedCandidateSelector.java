@@ -0,0 +1,240 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Choose which of several Remote Leds to connect to.
+ *
+ * Candidates are collected over a short selection window, then ranked by their smoothed RSSI
+ * plus a bonus for how often connecting to them has worked before.  The Remote Led chosen
+ * last time is kept unless another one scores at least HYSTERESIS_DB better, so two Remote
+ * Leds at a similar distance don't cause the choice to flip back and forth.
+ *
+ * Each choice is tracked: how many connection attempts succeeded, and how long the first
+ * command took to be confirmed once connected.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LedCandidateSelector {
+    public static final long SELECTION_WINDOW_MS = 500; // collect candidates for at least this long
+    public static final int HYSTERESIS_DB = 6; // a new choice must score this much better than the last one
+    public static final int SUCCESS_BONUS_DB = 10; // bonus for a Remote Led that always connects
+
+    private static final int MAX_CANDIDATES = 32;
+
+    /** Current selection round **/
+    private final long[] mCandidates = new long[MAX_CANDIDATES];
+    private int mCandidateCount = 0;
+    private long mWindowStartTime = -1;
+
+    /** The last choice **/
+    private long mCurrentChoice = DeviceRegistry.NO_ADDRESS;
+
+    /** Connection attempt in progress **/
+    private long mAttemptAddress = DeviceRegistry.NO_ADDRESS;
+    private boolean mIsAttemptConnected = false;
+    private long mCommandSentTime = -1;
+    private boolean mIsFirstCommandConfirmed = false;
+
+    private final Map<Long, ChoiceStats> mChoiceStats = new HashMap<Long, ChoiceStats>();
+
+    /**
+     * Start a new selection round
+     *
+     * @param now the current time in milliseconds
+     */
+    public synchronized void beginSelection(long now) {
+        mCandidateCount = 0;
+        mWindowStartTime = now;
+    }
+
+    /**
+     * A Remote Led was heard during the selection round
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     */
+    public synchronized void addCandidate(long packedAddress) {
+        for (int i = 0; i < mCandidateCount; i++) {
+            if (mCandidates[i] == packedAddress) {
+                return;
+            }
+        }
+        if (mCandidateCount < MAX_CANDIDATES) {
+            mCandidates[mCandidateCount++] = packedAddress;
+        }
+    }
+
+    /**
+     * Check if candidates have been collected for long enough to choose between them
+     *
+     * @param now the current time in milliseconds
+     * @return <b>true</b> if the selection window has passed
+     */
+    public synchronized boolean isWindowComplete(long now) {
+        return mWindowStartTime >= 0 && now - mWindowStartTime >= SELECTION_WINDOW_MS;
+    }
+
+    /**
+     * Get the number of Remote Leds heard in this selection round
+     */
+    public synchronized int getCandidateCount() {
+        return mCandidateCount;
+    }
+
+    /**
+     * Choose the best Remote Led heard in this selection round
+     *
+     * @param deviceRegistry where the smoothed RSSI of each candidate is found
+     * @return the packed MAC address of the chosen Remote Led, or DeviceRegistry.NO_ADDRESS if none was heard
+     */
+    public synchronized long selectBest(DeviceRegistry deviceRegistry) {
+        long bestAddress = DeviceRegistry.NO_ADDRESS;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        float currentChoiceScore = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < mCandidateCount; i++) {
+            float score = getScore(deviceRegistry, mCandidates[i]);
+            if (score > bestScore) {
+                bestScore = score;
+                bestAddress = mCandidates[i];
+            }
+            if (mCandidates[i] == mCurrentChoice) {
+                currentChoiceScore = score;
+            }
+        }
+
+        // stick with the last choice unless the best candidate is clearly better
+        if (bestAddress != mCurrentChoice && currentChoiceScore + HYSTERESIS_DB > bestScore) {
+            bestAddress = mCurrentChoice;
+        }
+        if (bestAddress != DeviceRegistry.NO_ADDRESS) {
+            mCurrentChoice = bestAddress;
+        }
+        cancelSelection();
+        return bestAddress;
+    }
+
+    /**
+     * Abandon the selection round, forgetting its candidates
+     */
+    public synchronized void cancelSelection() {
+        mCandidateCount = 0;
+        mWindowStartTime = -1;
+    }
+
+    /**
+     * Score a candidate: its smoothed RSSI, plus a bonus for past connection success
+     */
+    private float getScore(DeviceRegistry deviceRegistry, long packedAddress) {
+        int smoothedRssi = deviceRegistry.getSmoothedRssi(packedAddress);
+        if (smoothedRssi == Integer.MIN_VALUE) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        return smoothedRssi + SUCCESS_BONUS_DB * getConnectionSuccessRate(packedAddress);
+    }
+
+    /**
+     * A connection to a chosen Remote Led is being attempted
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     */
+    public synchronized void onConnectionAttempt(long packedAddress) {
+        mAttemptAddress = packedAddress;
+        mIsAttemptConnected = false;
+        mCommandSentTime = -1;
+        mIsFirstCommandConfirmed = false;
+        getChoiceStats(packedAddress).mAttempts++;
+    }
+
+    /**
+     * The connection attempt succeeded
+     */
+    public synchronized void onConnected() {
+        if (mAttemptAddress != DeviceRegistry.NO_ADDRESS && !mIsAttemptConnected) {
+            mIsAttemptConnected = true;
+            getChoiceStats(mAttemptAddress).mSuccesses++;
+        }
+    }
+
+    /**
+     * The connection attempt failed, or the connection was lost
+     */
+    public synchronized void onDisconnected() {
+        mAttemptAddress = DeviceRegistry.NO_ADDRESS;
+        mIsAttemptConnected = false;
+    }
+
+    /**
+     * A command was sent to the connected Remote Led
+     *
+     * @param now the current time in milliseconds
+     */
+    public synchronized void onCommandSent(long now) {
+        if (mIsAttemptConnected && !mIsFirstCommandConfirmed && mCommandSentTime < 0) {
+            mCommandSentTime = now;
+        }
+    }
+
+    /**
+     * The connected Remote Led confirmed a command
+     *
+     * @param now the current time in milliseconds
+     */
+    public synchronized void onCommandConfirmed(long now) {
+        if (mIsAttemptConnected && !mIsFirstCommandConfirmed && mCommandSentTime >= 0) {
+            mIsFirstCommandConfirmed = true;
+            ChoiceStats choiceStats = getChoiceStats(mAttemptAddress);
+            choiceStats.mFirstCommandLatencyTotal += now - mCommandSentTime;
+            choiceStats.mFirstCommandCount++;
+        }
+    }
+
+    /**
+     * Get the fraction of connection attempts to a Remote Led that succeeded
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return the success rate between 0 and 1.  A Remote Led that was never tried scores 0.5
+     */
+    public synchronized float getConnectionSuccessRate(long packedAddress) {
+        ChoiceStats choiceStats = mChoiceStats.get(packedAddress);
+        if (choiceStats == null) {
+            return 0.5f;
+        }
+        // start every Remote Led at one success and one failure, so one bad attempt isn't final
+        return (choiceStats.mSuccesses + 1f) / (choiceStats.mAttempts + 2f);
+    }
+
+    /**
+     * Get the mean time from sending the first command on a connection to its confirmation
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return the latency in milliseconds, or -1 if no first command has been confirmed
+     */
+    public synchronized long getFirstCommandLatency(long packedAddress) {
+        ChoiceStats choiceStats = mChoiceStats.get(packedAddress);
+        if (choiceStats == null || choiceStats.mFirstCommandCount == 0) {
+            return -1;
+        }
+        return choiceStats.mFirstCommandLatencyTotal / choiceStats.mFirstCommandCount;
+    }
+
+    private ChoiceStats getChoiceStats(long packedAddress) {
+        ChoiceStats choiceStats = mChoiceStats.get(packedAddress);
+        if (choiceStats == null) {
+            choiceStats = new ChoiceStats();
+            mChoiceStats.put(packedAddress, choiceStats);
+        }
+        return choiceStats;
+    }
+
+    /**
+     * History of one Remote Led
+     */
+    private static class ChoiceStats {
+        int mAttempts;
+        int mSuccesses;
+        long mFirstCommandLatencyTotal;
+        int mFirstCommandCount;
+    }
+}
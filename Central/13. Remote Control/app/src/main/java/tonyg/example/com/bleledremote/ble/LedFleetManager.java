@@ -0,0 +1,434 @@
+package tonyg.example.com.bleledremote.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import tonyg.example.com.bleledremote.ble.callbacks.BleRemoteLedCallback;
+import tonyg.example.com.bleledremote.ble.callbacks.LedFleetCallback;
+
+/**
+ * Control many Remote Leds at once.
+ *
+ * Each Remote Led in the fleet has its own connection and its own GattOperationQueue, so
+ * a group command is written to every connected Remote Led in parallel.  When the fleet is
+ * bigger than the number of connections Android allows, the ConnectionSlotScheduler
+ * rotates through it: a Remote Led that has finished its commands disconnects to make
+ * room for the next one waiting.
+ *
+ * Writes land in different connection events, so even parallel commands switch the Remote
+ * Leds at different moments.  A synchronized command instead synchronizes each Remote Led's
+ * clock, then tells it to switch at the same instant.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LedFleetManager {
+    private static final String TAG = LedFleetManager.class.getSimpleName();
+
+    public static final long COMMAND_TIMEOUT_MS = 5000; // give up on a Remote Led that doesn't confirm a command
+    private static final long SUBSCRIBE_SETTLE_MS = 100; // time for the Response Characteristic subscription to be written
+    private static final int MAX_TIME_SYNC_EXCHANGES = 2 * ClockSync.MAX_SAMPLES; // give up synchronizing after this many
+    private static final long IMMEDIATELY = -1;
+
+    private final Context mContext;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final LedFleetCallback mLedFleetCallback;
+    private final ConnectionSlotScheduler mSlotScheduler;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<Long, FleetMember> mMembers = new HashMap<Long, FleetMember>();
+    private BroadcastCommandAdvertiser mBroadcastCommandAdvertiser;
+
+    public LedFleetManager(Context context, BluetoothAdapter bluetoothAdapter, LedFleetCallback ledFleetCallback) {
+        this(context, bluetoothAdapter, ledFleetCallback, ConnectionSlotScheduler.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Create a LedFleetManager
+     *
+     * @param context the Application Context
+     * @param bluetoothAdapter the Bluetooth Adapter
+     * @param ledFleetCallback notified of connections, LED states, and completed group commands
+     * @param maxConnections how many Remote Leds can be connected at once
+     */
+    public LedFleetManager(Context context, BluetoothAdapter bluetoothAdapter, LedFleetCallback ledFleetCallback, int maxConnections) {
+        mContext = context;
+        mBluetoothAdapter = bluetoothAdapter;
+        mLedFleetCallback = ledFleetCallback;
+        mSlotScheduler = new ConnectionSlotScheduler(maxConnections);
+    }
+
+    /**
+     * Add a Remote Led to the fleet.  It connects when it is first sent a command
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     */
+    public synchronized void addLed(long packedAddress) {
+        if (!mMembers.containsKey(packedAddress)) {
+            mMembers.put(packedAddress, new FleetMember(packedAddress));
+        }
+    }
+
+    /**
+     * Remove a Remote Led from the fleet, disconnecting it and failing its commands
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     */
+    public void removeLed(long packedAddress) {
+        FleetMember fleetMember;
+        synchronized (this) {
+            fleetMember = mMembers.remove(packedAddress);
+        }
+        if (fleetMember != null) {
+            fleetMember.mOperationQueue.clear();
+            fleetMember.disconnect();
+        }
+    }
+
+    public synchronized int getLedCount() {
+        return mMembers.size();
+    }
+
+    public ConnectionSlotScheduler getSlotScheduler() {
+        return mSlotScheduler;
+    }
+
+    /**
+     * Send a command to every Remote Led in the fleet
+     *
+     * @param command the command, for example BleRemoteLed.COMMAND_LED_ON
+     * @return the tracker that follows the command to each Remote Led
+     */
+    public GroupCommandTracker sendGroupCommand(byte command) {
+        long[] addresses;
+        synchronized (this) {
+            addresses = new long[mMembers.size()];
+            int i = 0;
+            for (long packedAddress : mMembers.keySet()) {
+                addresses[i++] = packedAddress;
+            }
+        }
+        return sendCommand(command, addresses);
+    }
+
+    /**
+     * Broadcast a command to every Remote Led in range, without connecting.  Unlike
+     * sendGroupCommand(), this reaches Remote Leds that aren't in the fleet, but nothing
+     * confirms that they heard it
+     *
+     * @param command the command, for example BleRemoteLed.COMMAND_LED_ON
+     * @return <b>false</b> if this phone can't broadcast
+     */
+    public boolean broadcastGroupCommand(byte command) {
+        BroadcastCommandAdvertiser broadcastCommandAdvertiser;
+        synchronized (this) {
+            if (mBroadcastCommandAdvertiser == null) {
+                try {
+                    mBroadcastCommandAdvertiser = new BroadcastCommandAdvertiser(mBluetoothAdapter, BroadcastKeyStore.getOrCreateKey(mContext));
+                } catch (Exception e) {
+                    Log.e(TAG, "Can't broadcast commands: " + e.getMessage());
+                    return false;
+                }
+            }
+            broadcastCommandAdvertiser = mBroadcastCommandAdvertiser;
+        }
+        broadcastCommandAdvertiser.broadcast(command, BroadcastCommand.ALL_GROUPS);
+        return true;
+    }
+
+    /**
+     * Send a command to some of the Remote Leds in the fleet
+     *
+     * @param command the command, for example BleRemoteLed.COMMAND_LED_ON
+     * @param addresses the packed MAC addresses of the Remote Leds.  Each must have been added with addLed()
+     * @return the tracker that follows the command to each Remote Led
+     */
+    public GroupCommandTracker sendCommand(byte command, long[] addresses) {
+        return sendCommand(command, addresses, IMMEDIATELY);
+    }
+
+    /**
+     * Send a command that some of the Remote Leds carry out together.  Each Remote Led's
+     * clock is synchronized first, if it isn't already
+     *
+     * @param command the command, for example BleRemoteLed.COMMAND_LED_ON
+     * @param addresses the packed MAC addresses of the Remote Leds.  Each must have been added with addLed()
+     * @param leadTime how long from now to switch, in milliseconds.  It must cover connecting
+     *                 and synchronizing every Remote Led, or late ones switch when they can
+     * @return the tracker that follows the command, including the switching skew across the group
+     */
+    public GroupCommandTracker sendSynchronizedCommand(byte command, long[] addresses, long leadTime) {
+        return sendCommand(command, addresses, ClockSync.nowMicros() + leadTime * 1000);
+    }
+
+    private GroupCommandTracker sendCommand(byte command, long[] addresses, long executeAt) {
+        GroupCommandTracker groupCommandTracker = new GroupCommandTracker(command, addresses, SystemClock.elapsedRealtime());
+        List<FleetMember> fleetMembers = new ArrayList<FleetMember>();
+        synchronized (this) {
+            for (long packedAddress : addresses) {
+                FleetMember fleetMember = mMembers.get(packedAddress);
+                if (fleetMember == null) {
+                    throw new IllegalArgumentException("Not in the fleet: " + DeviceRegistry.unpackAddress(packedAddress));
+                }
+                fleetMembers.add(fleetMember);
+            }
+        }
+
+        for (FleetMember fleetMember : fleetMembers) {
+            fleetMember.mOperationQueue.enqueue(new CommandOperation(fleetMember, command, executeAt, groupCommandTracker));
+            if (mSlotScheduler.request(fleetMember.mPackedAddress)) {
+                fleetMember.connect();
+            }
+        }
+        return groupCommandTracker;
+    }
+
+    /**
+     * Disconnect every Remote Led, failing any commands not yet confirmed
+     */
+    public void disconnectAll() {
+        List<FleetMember> fleetMembers;
+        synchronized (this) {
+            fleetMembers = new ArrayList<FleetMember>(mMembers.values());
+            if (mBroadcastCommandAdvertiser != null) {
+                mBroadcastCommandAdvertiser.stop();
+            }
+        }
+        mSlotScheduler.clear();
+        for (FleetMember fleetMember : fleetMembers) {
+            fleetMember.mOperationQueue.clear();
+            fleetMember.disconnect();
+        }
+    }
+
+    /**
+     * Give a free connection slot to the next Remote Led waiting for one
+     */
+    private void onSlotReleased(long packedAddress) {
+        long nextAddress = mSlotScheduler.release(packedAddress);
+        if (nextAddress == DeviceRegistry.NO_ADDRESS) {
+            return;
+        }
+        FleetMember nextMember;
+        synchronized (this) {
+            nextMember = mMembers.get(nextAddress);
+        }
+        if (nextMember != null) {
+            nextMember.connect();
+        } else {
+            // removed while waiting
+            onSlotReleased(nextAddress);
+        }
+    }
+
+    /**
+     * One Remote Led: its connection and its operation queue
+     */
+    private class FleetMember {
+        final long mPackedAddress;
+        final GattOperationQueue mOperationQueue = new GattOperationQueue();
+        final BleRemoteLed mBleRemoteLed;
+        CommandOperation mCurrentCommand;
+
+        FleetMember(long packedAddress) {
+            mPackedAddress = packedAddress;
+            mBleRemoteLed = new BleRemoteLed(mContext, mBleRemoteLedCallback);
+        }
+
+        void connect() {
+            try {
+                mBleRemoteLed.connect(mBluetoothAdapter.getRemoteDevice(DeviceRegistry.unpackAddress(mPackedAddress)));
+            } catch (Exception e) {
+                Log.e(TAG, "Could not connect to " + DeviceRegistry.unpackAddress(mPackedAddress) + ": " + e.getMessage());
+                mOperationQueue.clear();
+                onSlotReleased(mPackedAddress);
+            }
+        }
+
+        void disconnect() {
+            mBleRemoteLed.disconnect();
+        }
+
+        /**
+         * The current command is done.  Start the next one, or give up the connection
+         * slot if nothing is left to do and another Remote Led is waiting
+         */
+        void onCommandDone() {
+            mCurrentCommand = null;
+            mOperationQueue.onOperationComplete();
+            if (mOperationQueue.isIdle() && mSlotScheduler.isAnyoneWaiting()) {
+                disconnect();
+            }
+        }
+
+        synchronized void completeCurrentCommand(boolean isSuccessful) {
+            if (mCurrentCommand != null) {
+                mCurrentCommand.complete(isSuccessful);
+            }
+        }
+
+        private final Runnable mReadyRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mOperationQueue.setReady(true);
+            }
+        };
+
+        private final BleRemoteLedCallback mBleRemoteLedCallback = new BleRemoteLedCallback() {
+            @Override
+            public void connected() {
+                mLedFleetCallback.onLedConnected(mPackedAddress);
+                // let the subscription to the Response Characteristic go out before the first command
+                mHandler.postDelayed(mReadyRunnable, SUBSCRIBE_SETTLE_MS);
+            }
+
+            @Override
+            public void disconnected() {
+                mHandler.removeCallbacks(mReadyRunnable);
+                mOperationQueue.setReady(false);
+                mBleRemoteLed.close();
+                // commands left over mean the connection was lost
+                mOperationQueue.clear();
+                mLedFleetCallback.onLedDisconnected(mPackedAddress);
+                onSlotReleased(mPackedAddress);
+            }
+
+            @Override
+            public void commandWritten() {
+            }
+
+            @Override
+            public void ledStateChanged(int ledState) {
+                mLedFleetCallback.onLedStateChanged(mPackedAddress, ledState);
+                completeCurrentCommand(true);
+            }
+
+            @Override
+            public void ledError() {
+                completeCurrentCommand(false);
+            }
+
+            @Override
+            public void rssiRead(int rssi) {
+            }
+
+            @Override
+            public void clockSynchronized(ClockSync clockSync) {
+                CommandOperation currentCommand;
+                synchronized (FleetMember.this) {
+                    currentCommand = mCurrentCommand;
+                }
+                if (currentCommand != null) {
+                    currentCommand.onClockSynchronized();
+                }
+            }
+
+            @Override
+            public void commandExecuted(long executedTime) {
+                CommandOperation currentCommand;
+                synchronized (FleetMember.this) {
+                    currentCommand = mCurrentCommand;
+                }
+                if (currentCommand != null) {
+                    currentCommand.mGroupCommandTracker.onDeviceExecuted(mPackedAddress, executedTime);
+                }
+            }
+        };
+    }
+
+    /**
+     * Write a command to one Remote Led and wait for it to be confirmed.  A scheduled
+     * command first synchronizes the Remote Led's clock
+     */
+    private class CommandOperation extends GattOperationQueue.Operation {
+        private final FleetMember mFleetMember;
+        private final byte mCommand;
+        private final long mExecuteAt;
+        private final GroupCommandTracker mGroupCommandTracker;
+        private boolean mIsDone = false;
+        private int mTimeSyncExchanges = 0;
+
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, DeviceRegistry.unpackAddress(mFleetMember.mPackedAddress) + " did not confirm command " + mCommand);
+                complete(false);
+            }
+        };
+
+        CommandOperation(FleetMember fleetMember, byte command, long executeAt, GroupCommandTracker groupCommandTracker) {
+            mFleetMember = fleetMember;
+            mCommand = command;
+            mExecuteAt = executeAt;
+            mGroupCommandTracker = groupCommandTracker;
+        }
+
+        @Override
+        public void execute() {
+            synchronized (mFleetMember) {
+                mFleetMember.mCurrentCommand = this;
+            }
+            mHandler.postDelayed(mTimeoutRunnable, COMMAND_TIMEOUT_MS);
+            onClockSynchronized();
+        }
+
+        /**
+         * Synchronize the clock until the estimate can be trusted, then write the command
+         */
+        void onClockSynchronized() {
+            BleRemoteLed bleRemoteLed = mFleetMember.mBleRemoteLed;
+            try {
+                if (mExecuteAt == IMMEDIATELY) {
+                    bleRemoteLed.writeCommand(mCommand);
+                } else if (!bleRemoteLed.getClockSync().isSynchronized() && mTimeSyncExchanges < MAX_TIME_SYNC_EXCHANGES) {
+                    mTimeSyncExchanges++;
+                    bleRemoteLed.requestTimeSync();
+                } else {
+                    bleRemoteLed.writeScheduledCommand(mCommand, mExecuteAt);
+                }
+            } catch (Exception e) {
+                // the Remote Led Service wasn't found on this Peripheral
+                Log.e(TAG, "Could not write command: " + e.getMessage());
+                complete(false);
+            }
+        }
+
+        @Override
+        public void fail() {
+            finish(false);
+        }
+
+        /**
+         * The command was confirmed, rejected, or timed out.  Move on to the next command
+         */
+        void complete(boolean isSuccessful) {
+            if (finish(isSuccessful)) {
+                mFleetMember.onCommandDone();
+            }
+        }
+
+        private boolean finish(boolean isSuccessful) {
+            synchronized (this) {
+                if (mIsDone) {
+                    return false;
+                }
+                mIsDone = true;
+            }
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            mLedFleetCallback.onLedCommandComplete(mFleetMember.mPackedAddress, isSuccessful);
+            if (mGroupCommandTracker.onDeviceComplete(mFleetMember.mPackedAddress, isSuccessful, SystemClock.elapsedRealtime())) {
+                Log.v(TAG, mGroupCommandTracker.toString());
+                mLedFleetCallback.onGroupCommandComplete(mGroupCommandTracker);
+            }
+            return true;
+        }
+    }
+}
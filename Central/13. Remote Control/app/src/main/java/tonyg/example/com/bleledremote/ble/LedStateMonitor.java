@@ -0,0 +1,160 @@
+package tonyg.example.com.bleledremote.ble;
+
+import tonyg.example.com.bleledremote.ble.callbacks.LedStateCallback;
+
+/**
+ * Follow the state of many Remote Leds without connecting to any of them.
+ *
+ * Each Remote Led advertises Service Data for the Automation IO Service:
+ *
+ *   [LED state][sequence number][battery level]
+ *
+ * The sequence number goes up by one, wrapping at 255, every time the state changes.  A
+ * Remote Led advertises many times between changes, so an advertisement is only reported
+ * when its sequence number is newer than the last one seen from that Remote Led.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LedStateMonitor {
+    public static final int SERVICE_DATA_LENGTH = 3;
+    public static final int STATE_POSITION = 0;
+    public static final int SEQUENCE_POSITION = 1;
+    public static final int BATTERY_POSITION = 2;
+
+    public static final int UNKNOWN_STATE = -1;
+    public static final int MAX_LEDS = 64;
+
+    // Automation IO Service
+    private static final int SERVICE_UUID16 = AdvertisementRecord.toUuid16(BleRemoteLed.SERVICE_UUID);
+
+    private final LedStateCallback mLedStateCallback;
+
+    private final long[] mAddresses = new long[MAX_LEDS];
+    private final int[] mStates = new int[MAX_LEDS];
+    private final int[] mSequences = new int[MAX_LEDS];
+    private final int[] mBatteryLevels = new int[MAX_LEDS];
+    private int mLedCount = 0;
+    private int mNextEviction = 0;
+
+    /**
+     * Create a LedStateMonitor
+     *
+     * @param ledStateCallback notified when a Remote Led advertises a new state
+     */
+    public LedStateMonitor(LedStateCallback ledStateCallback) {
+        mLedStateCallback = ledStateCallback;
+    }
+
+    /**
+     * Read the state out of an advertisement
+     *
+     * @param packedAddress the advertiser's packed MAC address
+     * @param advertisementRecord the parsed advertisement
+     * @return <b>true</b> if the advertisement carried a new Remote Led state
+     */
+    public boolean onAdvertisement(long packedAddress, AdvertisementRecord advertisementRecord) {
+        int offset = advertisementRecord.getServiceDataOffset(SERVICE_UUID16);
+        if (offset < 0 || advertisementRecord.getServiceDataLength(SERVICE_UUID16) < SERVICE_DATA_LENGTH) {
+            return false;
+        }
+        byte[] data = advertisementRecord.getData();
+        return onServiceData(packedAddress,
+                data[offset + STATE_POSITION] & 0xFF,
+                data[offset + SEQUENCE_POSITION] & 0xFF,
+                data[offset + BATTERY_POSITION] & 0xFF);
+    }
+
+    /**
+     * Record a decoded Remote Led state
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param ledState the advertised LED state
+     * @param sequence the advertised sequence number
+     * @param batteryLevel the advertised battery level
+     * @return <b>true</b> if the state is newer than the last one seen from the Remote Led
+     */
+    public boolean onServiceData(long packedAddress, int ledState, int sequence, int batteryLevel) {
+        synchronized (this) {
+            int slot = findSlot(packedAddress);
+            if (slot < 0) {
+                slot = addSlot(packedAddress);
+            } else if (!isNewer(sequence, mSequences[slot])) {
+                return false;
+            }
+            mStates[slot] = ledState;
+            mSequences[slot] = sequence;
+            mBatteryLevels[slot] = batteryLevel;
+        }
+        // outside the lock, in case the callback reads the monitor
+        mLedStateCallback.onLedStateChanged(packedAddress, ledState, batteryLevel);
+        return true;
+    }
+
+    /**
+     * Get the last advertised state of a Remote Led
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return the LED state, or UNKNOWN_STATE if the Remote Led hasn't been heard
+     */
+    public synchronized int getLedState(long packedAddress) {
+        int slot = findSlot(packedAddress);
+        return slot >= 0 ? mStates[slot] : UNKNOWN_STATE;
+    }
+
+    /**
+     * Get the last advertised battery level of a Remote Led
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return the battery level in percent, or -1 if the Remote Led hasn't been heard
+     */
+    public synchronized int getBatteryLevel(long packedAddress) {
+        int slot = findSlot(packedAddress);
+        return slot >= 0 ? mBatteryLevels[slot] : -1;
+    }
+
+    /**
+     * Get the number of Remote Leds being followed
+     */
+    public synchronized int getLedCount() {
+        return mLedCount;
+    }
+
+    /**
+     * Forget every Remote Led
+     */
+    public synchronized void clear() {
+        mLedCount = 0;
+        mNextEviction = 0;
+    }
+
+    /**
+     * Check if a sequence number comes after another one, allowing for the wrap from 255 to 0
+     */
+    static boolean isNewer(int sequence, int lastSequence) {
+        int difference = (sequence - lastSequence) & 0xFF;
+        return difference != 0 && difference < 128;
+    }
+
+    private int findSlot(long packedAddress) {
+        for (int i = 0; i < mLedCount; i++) {
+            if (mAddresses[i] == packedAddress) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int addSlot(long packedAddress) {
+        int slot;
+        if (mLedCount < MAX_LEDS) {
+            slot = mLedCount++;
+        } else {
+            // replace the Remote Leds in turn once the table is full
+            slot = mNextEviction;
+            mNextEviction = (mNextEviction + 1) % MAX_LEDS;
+        }
+        mAddresses[slot] = packedAddress;
+        return slot;
+    }
+}
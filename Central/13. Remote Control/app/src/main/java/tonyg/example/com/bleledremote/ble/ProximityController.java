@@ -0,0 +1,135 @@
+package tonyg.example.com.bleledremote.ble;
+
+import tonyg.example.com.bleledremote.ble.callbacks.ProximityCallback;
+
+/**
+ * Decide when the phone is near a Remote Led, from a stream of RSSI readings.
+ *
+ * Each Remote Led's readings pass through its own RssiKalmanFilter.  A Remote Led is near
+ * once its filtered RSSI rises to the enter threshold, and stays near until it falls to the
+ * lower exit threshold, so a reading that hovers around one threshold doesn't flip the
+ * state back and forth.
+ *
+ * Filters for up to MAX_LEDS Remote Leds are created up front, so readings can arrive at
+ * the full rate of a low latency scan without any memory being allocated.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class ProximityController {
+    public static final int DEFAULT_ENTER_RSSI = -60;
+    public static final int DEFAULT_EXIT_RSSI = -75;
+    public static final int MAX_LEDS = 32;
+
+    private final ProximityCallback mProximityCallback;
+    private int mEnterRssi = DEFAULT_ENTER_RSSI;
+    private int mExitRssi = DEFAULT_EXIT_RSSI;
+
+    private final long[] mAddresses = new long[MAX_LEDS];
+    private final RssiKalmanFilter[] mFilters = new RssiKalmanFilter[MAX_LEDS];
+    private final boolean[] mIsNear = new boolean[MAX_LEDS];
+    private int mLedCount = 0;
+    private int mNextEviction = 0;
+
+    /**
+     * Create a ProximityController
+     *
+     * @param proximityCallback notified when a Remote Led comes near or goes away
+     */
+    public ProximityController(ProximityCallback proximityCallback) {
+        mProximityCallback = proximityCallback;
+        for (int i = 0; i < MAX_LEDS; i++) {
+            mFilters[i] = new RssiKalmanFilter();
+        }
+    }
+
+    /**
+     * Set the proximity thresholds
+     *
+     * @param enterRssi filtered RSSI at which a Remote Led becomes near, in dBm
+     * @param exitRssi filtered RSSI at which a near Remote Led is no longer near, in dBm
+     * @throws IllegalArgumentException if the exit threshold is not below the enter threshold
+     */
+    public synchronized void setThresholds(int enterRssi, int exitRssi) {
+        if (exitRssi >= enterRssi) {
+            throw new IllegalArgumentException("Exit threshold must be below the enter threshold");
+        }
+        mEnterRssi = enterRssi;
+        mExitRssi = exitRssi;
+    }
+
+    public synchronized int getEnterRssi() {
+        return mEnterRssi;
+    }
+
+    public synchronized int getExitRssi() {
+        return mExitRssi;
+    }
+
+    /**
+     * Add an RSSI reading from a Remote Led
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param rssi the RSSI reading, in dBm
+     * @return the filtered RSSI, in dBm
+     */
+    public synchronized float onRssi(long packedAddress, int rssi) {
+        int slot = findSlot(packedAddress);
+        float filteredRssi = mFilters[slot].update(rssi);
+
+        if (!mIsNear[slot] && filteredRssi >= mEnterRssi) {
+            mIsNear[slot] = true;
+            mProximityCallback.onEnteredProximity(packedAddress);
+        } else if (mIsNear[slot] && filteredRssi <= mExitRssi) {
+            mIsNear[slot] = false;
+            mProximityCallback.onExitedProximity(packedAddress);
+        }
+        return filteredRssi;
+    }
+
+    /**
+     * Check if a Remote Led is near
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return <b>true</b> if the Remote Led is within the proximity thresholds
+     */
+    public synchronized boolean isNear(long packedAddress) {
+        for (int i = 0; i < mLedCount; i++) {
+            if (mAddresses[i] == packedAddress) {
+                return mIsNear[i];
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget every Remote Led
+     */
+    public synchronized void reset() {
+        mLedCount = 0;
+        mNextEviction = 0;
+    }
+
+    /**
+     * Find the slot of a Remote Led, taking over a slot if it is new
+     */
+    private int findSlot(long packedAddress) {
+        for (int i = 0; i < mLedCount; i++) {
+            if (mAddresses[i] == packedAddress) {
+                return i;
+            }
+        }
+        int slot;
+        if (mLedCount < MAX_LEDS) {
+            slot = mLedCount++;
+        } else {
+            // every slot is taken, so reuse them in turn
+            slot = mNextEviction;
+            mNextEviction = (mNextEviction + 1) % MAX_LEDS;
+        }
+        mAddresses[slot] = packedAddress;
+        mFilters[slot].reset();
+        mIsNear[slot] = false;
+        return slot;
+    }
+}
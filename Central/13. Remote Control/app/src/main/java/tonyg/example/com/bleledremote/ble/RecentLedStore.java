@@ -0,0 +1,58 @@
+package tonyg.example.com.bleledremote.ble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+/**
+ * Remember the last Remote Led that was heard, across process restarts.
+ *
+ * Background scans save every Remote Led they hear here, so when the app opens it can
+ * connect straight to a Remote Led that was nearby a moment ago instead of scanning first.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class RecentLedStore {
+    private static final String PREFERENCES_NAME = "recent_led";
+    private static final String KEY_ADDRESS = "address";
+    private static final String KEY_RSSI = "rssi";
+    private static final String KEY_LAST_SEEN = "last_seen";
+
+    private RecentLedStore() {
+    }
+
+    /**
+     * Remember a Remote Led
+     *
+     * @param context the Application Context
+     * @param address the Remote Led's MAC address
+     * @param rssi the Remote Led's RSSI
+     * @param lastSeen when the Remote Led was heard, as SystemClock.elapsedRealtime()
+     */
+    public static void save(Context context, String address, int rssi, long lastSeen) {
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_ADDRESS, address)
+                .putInt(KEY_RSSI, rssi)
+                .putLong(KEY_LAST_SEEN, lastSeen)
+                .apply();
+    }
+
+    /**
+     * Get the last Remote Led that was heard, if it was heard recently
+     *
+     * @param context the Application Context
+     * @param maxAge how long ago the Remote Led may have been heard, in milliseconds
+     * @return the Remote Led's MAC address, or null if none was heard within maxAge
+     */
+    public static String getRecentAddress(Context context, long maxAge) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        long lastSeen = preferences.getLong(KEY_LAST_SEEN, -1);
+        long now = SystemClock.elapsedRealtime();
+        // the clock restarts at boot, so a time in the future is from before the last reboot
+        if (lastSeen < 0 || lastSeen > now || now - lastSeen > maxAge) {
+            return null;
+        }
+        return preferences.getString(KEY_ADDRESS, null);
+    }
+}
@@ -0,0 +1,80 @@
+package tonyg.example.com.bleledremote.ble;
+
+/**
+ * A one-dimensional Kalman filter that smooths the RSSI of one Peripheral.
+ *
+ * RSSI readings jump around by several dB from one advertisement to the next, even when
+ * nothing moves.  The filter treats the true RSSI as a slowly drifting value, and each
+ * reading as that value plus noise.  It keeps only two numbers, so updating it costs a
+ * handful of arithmetic operations and never allocates memory.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class RssiKalmanFilter {
+    public static final float DEFAULT_PROCESS_NOISE = 0.5f; // how far the true RSSI drifts per reading, in dB^2
+    public static final float DEFAULT_MEASUREMENT_NOISE = 16f; // how noisy each reading is, in dB^2
+
+    private final float mProcessNoise;
+    private final float mMeasurementNoise;
+
+    private float mEstimate;
+    private float mErrorCovariance;
+    private boolean mIsInitialized = false;
+
+    /**
+     * Create a filter with the default noise settings
+     */
+    public RssiKalmanFilter() {
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+    }
+
+    /**
+     * Create a filter
+     *
+     * @param processNoise how far the true RSSI drifts between readings, in dB^2.  Higher values follow movement faster
+     * @param measurementNoise how noisy each reading is, in dB^2.  Higher values smooth more
+     */
+    public RssiKalmanFilter(float processNoise, float measurementNoise) {
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+    }
+
+    /**
+     * Add an RSSI reading
+     *
+     * @param rssi the RSSI reading, in dBm
+     * @return the filtered RSSI, in dBm
+     */
+    public float update(int rssi) {
+        if (!mIsInitialized) {
+            mEstimate = rssi;
+            mErrorCovariance = mMeasurementNoise;
+            mIsInitialized = true;
+            return mEstimate;
+        }
+        // predict: the true RSSI may have drifted since the last reading
+        mErrorCovariance += mProcessNoise;
+        // correct: move towards the reading, by how much we trust it
+        float gain = mErrorCovariance / (mErrorCovariance + mMeasurementNoise);
+        mEstimate += gain * (rssi - mEstimate);
+        mErrorCovariance *= 1 - gain;
+        return mEstimate;
+    }
+
+    /**
+     * Get the filtered RSSI
+     *
+     * @return the filtered RSSI in dBm, or Float.NaN if there have been no readings
+     */
+    public float getEstimate() {
+        return mIsInitialized ? mEstimate : Float.NaN;
+    }
+
+    /**
+     * Forget every reading
+     */
+    public void reset() {
+        mIsInitialized = false;
+    }
+}
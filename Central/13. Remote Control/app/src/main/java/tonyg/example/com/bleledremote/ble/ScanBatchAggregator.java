@@ -0,0 +1,179 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fold batches of scan results into one summary per Peripheral.
+ *
+ * A batch delivered by a low power scan contains every advertisement heard during the
+ * report delay, so the same Peripheral usually appears many times.  Each batch is
+ * reduced to a single summary per Peripheral, and the summaries are kept between
+ * batches so a Peripheral's history survives the gaps between reports.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class ScanBatchAggregator {
+    private final Map<String, DeviceSummary> mSummaries = new HashMap<String, DeviceSummary>();
+    private final List<DeviceSummary> mBatchSummaries = new ArrayList<DeviceSummary>();
+    private long mBatchNumber = 0;
+
+    /**
+     * Start folding a new batch of scan results
+     */
+    public synchronized void beginBatch() {
+        mBatchNumber++;
+        mBatchSummaries.clear();
+    }
+
+    /**
+     * Fold a scan result into the current batch
+     *
+     * @param address the MAC address of the Peripheral
+     * @param name the advertised name of the Peripheral, or null if it has none
+     * @param rssi the RSSI of the advertisement
+     * @param timestampNanos when the advertisement was heard
+     */
+    public synchronized void add(String address, String name, int rssi, long timestampNanos) {
+        DeviceSummary summary = mSummaries.get(address);
+        if (summary == null) {
+            summary = new DeviceSummary(address);
+            mSummaries.put(address, summary);
+        }
+        if (summary.mBatchNumber != mBatchNumber) {
+            summary.startBatch(mBatchNumber);
+            mBatchSummaries.add(summary);
+        }
+        summary.add(name, rssi, timestampNanos);
+    }
+
+    /**
+     * Get one summary for each Peripheral heard in the current batch
+     *
+     * @return the summaries.  The list is reused by the next batch
+     */
+    public synchronized List<DeviceSummary> getBatchSummaries() {
+        return mBatchSummaries;
+    }
+
+    /**
+     * Get the number of Peripherals heard since the aggregator was created or cleared
+     *
+     * @return the number of Peripherals
+     */
+    public synchronized int getDeviceCount() {
+        return mSummaries.size();
+    }
+
+    /**
+     * Forget every Peripheral
+     */
+    public synchronized void clear() {
+        mSummaries.clear();
+        mBatchSummaries.clear();
+    }
+
+    /**
+     * Everything known about one Peripheral
+     */
+    public static class DeviceSummary {
+        private final String mAddress;
+        private String mName;
+        private long mBatchNumber = -1;
+
+        // current batch
+        private int mBatchAdvertisementCount;
+        private int mBatchMinRssi, mBatchMaxRssi, mBatchRssiTotal;
+
+        // lifetime
+        private long mAdvertisementCount;
+        private long mFirstSeenNanos, mLastSeenNanos;
+        private int mLastRssi;
+
+        DeviceSummary(String address) {
+            mAddress = address;
+        }
+
+        private void startBatch(long batchNumber) {
+            mBatchNumber = batchNumber;
+            mBatchAdvertisementCount = 0;
+            mBatchMinRssi = Integer.MAX_VALUE;
+            mBatchMaxRssi = Integer.MIN_VALUE;
+            mBatchRssiTotal = 0;
+        }
+
+        private void add(String name, int rssi, long timestampNanos) {
+            if (name != null) {
+                mName = name;
+            }
+            if (mAdvertisementCount == 0 || timestampNanos < mFirstSeenNanos) {
+                mFirstSeenNanos = timestampNanos;
+            }
+            if (timestampNanos >= mLastSeenNanos) {
+                mLastSeenNanos = timestampNanos;
+                mLastRssi = rssi;
+            }
+            mAdvertisementCount++;
+
+            mBatchAdvertisementCount++;
+            mBatchMinRssi = Math.min(mBatchMinRssi, rssi);
+            mBatchMaxRssi = Math.max(mBatchMaxRssi, rssi);
+            mBatchRssiTotal += rssi;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return the most recent advertised name, or null if none has been heard
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the number of advertisements heard in the current batch
+         */
+        public int getBatchAdvertisementCount() {
+            return mBatchAdvertisementCount;
+        }
+
+        public int getBatchMinRssi() {
+            return mBatchMinRssi;
+        }
+
+        public int getBatchMaxRssi() {
+            return mBatchMaxRssi;
+        }
+
+        /**
+         * @return the mean RSSI of the advertisements in the current batch
+         */
+        public int getBatchAverageRssi() {
+            return mBatchRssiTotal / mBatchAdvertisementCount;
+        }
+
+        public int getLastRssi() {
+            return mLastRssi;
+        }
+
+        /**
+         * @return the number of advertisements heard from this Peripheral in every batch
+         */
+        public long getAdvertisementCount() {
+            return mAdvertisementCount;
+        }
+
+        public long getFirstSeenNanos() {
+            return mFirstSeenNanos;
+        }
+
+        public long getLastSeenNanos() {
+            return mLastSeenNanos;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package tonyg.example.com.bleledremote.ble.callbacks;
 
+import tonyg.example.com.bleledremote.ble.ClockSync;
+
 
 /**
  * Relay state changes from Led Remote
@@ -31,8 +33,40 @@ public abstract class BleRemoteLedCallback {
      */
     public abstract void ledStateChanged(final int ledState);
 
+    /**
+     * Led Remote confirmed several commands in one multi-ack.  ledStateChanged() is called
+     * once beforehand, with the latest state
+     *
+     * @param count how many commands were confirmed
+     */
+    public void commandsConfirmed(final int count) {
+    }
+
     /**
      * Led Remote experienced an error
      */
     public abstract void ledError();
+
+    /**
+     * Led Remote signal strength was read
+     *
+     * @param rssi the RSSI of the connection, in dBm
+     */
+    public abstract void rssiRead(final int rssi);
+
+    /**
+     * Led Remote answered a time sync request
+     *
+     * @param clockSync the updated estimate of the Led Remote's clock
+     */
+    public void clockSynchronized(final ClockSync clockSync) {
+    }
+
+    /**
+     * Led Remote carried out a scheduled command
+     *
+     * @param executedTime when the command was carried out, on the ClockSync.nowMicros() clock
+     */
+    public void commandExecuted(final long executedTime) {
+    }
 }
@@ -5,6 +5,7 @@ import android.bluetooth.le.ScanResult;
 
 import java.util.List;
 
+import tonyg.example.com.bleledremote.ble.ScanBatchAggregator;
 
 /**
  * BleScanCallbackv18 has callbacks to support not only onLeScan when a new Peripheral is found,
@@ -43,4 +44,13 @@ public abstract class BleScanCallbackv21 extends ScanCallback {
      * Scan has completed
      */
     public abstract void onScanComplete();
+
+    /**
+     * Peripherals found during a background scan, one summary per Peripheral.
+     * Override to receive background scan results.
+     *
+     * @param summaries List: one summary for each Peripheral heard since the last report
+     */
+    public void onScanSummaries(List<ScanBatchAggregator.DeviceSummary> summaries) {
+    }
 }
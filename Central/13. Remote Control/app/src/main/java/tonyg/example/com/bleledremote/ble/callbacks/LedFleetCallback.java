@@ -0,0 +1,50 @@
+package tonyg.example.com.bleledremote.ble.callbacks;
+
+import tonyg.example.com.bleledremote.ble.GroupCommandTracker;
+
+/**
+ * Relay state changes from the LedFleetManager
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class LedFleetCallback {
+
+    /**
+     * A Remote Led in the fleet connected
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     */
+    public abstract void onLedConnected(final long packedAddress);
+
+    /**
+     * A Remote Led in the fleet disconnected
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     */
+    public abstract void onLedDisconnected(final long packedAddress);
+
+    /**
+     * A Remote Led changed state
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param ledState the LED state
+     */
+    public abstract void onLedStateChanged(final long packedAddress, final int ledState);
+
+    /**
+     * One Remote Led confirmed a command, failed it, or timed out
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param isSuccessful <b>true</b> if the Remote Led confirmed the command
+     */
+    public void onLedCommandComplete(final long packedAddress, final boolean isSuccessful) {
+    }
+
+    /**
+     * Every Remote Led in a group command confirmed it or failed
+     *
+     * @param groupCommandTracker the per-device and group latencies
+     */
+    public abstract void onGroupCommandComplete(final GroupCommandTracker groupCommandTracker);
+}
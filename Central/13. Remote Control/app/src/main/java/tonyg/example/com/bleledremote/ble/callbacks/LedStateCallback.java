@@ -0,0 +1,19 @@
+package tonyg.example.com.bleledremote.ble.callbacks;
+
+/**
+ * Relay advertised Remote Led states from the LedStateMonitor
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class LedStateCallback {
+
+    /**
+     * A Remote Led advertised a new state
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param ledState the Remote Led's state.  See BleRemoteLed.LED_STATE_ON and BleRemoteLed.LED_STATE_OFF
+     * @param batteryLevel the Remote Led's battery level, in percent
+     */
+    public abstract void onLedStateChanged(final long packedAddress, final int ledState, final int batteryLevel);
+}
@@ -0,0 +1,24 @@
+package tonyg.example.com.bleledremote.ble.callbacks;
+
+/**
+ * Relay proximity changes from the ProximityController
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class ProximityCallback {
+
+    /**
+     * A Remote Led came within the enter threshold
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     */
+    public abstract void onEnteredProximity(final long packedAddress);
+
+    /**
+     * A Remote Led went beyond the exit threshold
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     */
+    public abstract void onExitedProximity(final long packedAddress);
+}
@@ -0,0 +1,206 @@
+package tonyg.example.com.bleledremote.gateway;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gather commands from many concurrent requests into as few GATT writes as possible.
+ *
+ * Each Remote Led has at most one command in flight.  Requests that arrive meanwhile wait
+ * for the next batch, and only the latest of them is written: the Remote Led ends up in the
+ * state last asked for, and every request waiting on it is answered when that one write is
+ * confirmed.  A batch groups the Remote Leds that get the same command, so they can be
+ * written in parallel.
+ *
+ * Not thread safe.  The LedGatewayServer only uses it from its own thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class CommandBatcher {
+
+    /**
+     * Waits for the result of a command
+     */
+    public static abstract class Waiter {
+        /**
+         * The command was confirmed or failed
+         *
+         * @param packedAddress the Remote Led's packed MAC address
+         * @param isSuccessful <b>true</b> if the Remote Led confirmed the command
+         */
+        public abstract void onResult(long packedAddress, boolean isSuccessful);
+    }
+
+    /**
+     * Remote Leds that get the same command
+     */
+    public static class Batch {
+        private final byte mCommand;
+        private final long[] mAddresses;
+
+        Batch(byte command, long[] addresses) {
+            mCommand = command;
+            mAddresses = addresses;
+        }
+
+        public byte getCommand() {
+            return mCommand;
+        }
+
+        public long[] getAddresses() {
+            return mAddresses;
+        }
+    }
+
+    private final Map<Long, Pending> mPending = new LinkedHashMap<Long, Pending>(); // waiting for the next batch
+    private final Map<Long, List<Waiter>> mInFlight = new HashMap<Long, List<Waiter>>();
+
+    /** Metrics **/
+    private long mSubmittedCount = 0;
+    private long mCoalescedCount = 0;
+    private long mWrittenCount = 0;
+    private long mBatchCount = 0;
+
+    /**
+     * Ask for a command to be sent to a Remote Led
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param command the command, for example BleRemoteLed.COMMAND_LED_ON
+     * @param waiter told when the command, or a later one that replaced it, is done
+     */
+    public void submit(long packedAddress, byte command, Waiter waiter) {
+        mSubmittedCount++;
+        Pending pending = mPending.get(packedAddress);
+        if (pending == null) {
+            pending = new Pending();
+            mPending.put(packedAddress, pending);
+        } else {
+            mCoalescedCount++;
+        }
+        pending.mCommand = command;
+        pending.mWaiters.add(waiter);
+    }
+
+    /**
+     * Check if a batch would send anything
+     */
+    public boolean hasReadyCommands() {
+        for (long packedAddress : mPending.keySet()) {
+            if (!mInFlight.containsKey(packedAddress)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the commands for every Remote Led without one in flight
+     *
+     * @return one batch for each command
+     */
+    public List<Batch> drain() {
+        Map<Byte, List<Long>> addressesByCommand = new LinkedHashMap<Byte, List<Long>>();
+        Iterator<Map.Entry<Long, Pending>> iterator = mPending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Pending> entry = iterator.next();
+            long packedAddress = entry.getKey();
+            if (mInFlight.containsKey(packedAddress)) {
+                continue;
+            }
+            Pending pending = entry.getValue();
+            iterator.remove();
+            mInFlight.put(packedAddress, pending.mWaiters);
+            List<Long> addresses = addressesByCommand.get(pending.mCommand);
+            if (addresses == null) {
+                addresses = new ArrayList<Long>();
+                addressesByCommand.put(pending.mCommand, addresses);
+            }
+            addresses.add(packedAddress);
+        }
+
+        List<Batch> batches = new ArrayList<Batch>(addressesByCommand.size());
+        for (Map.Entry<Byte, List<Long>> entry : addressesByCommand.entrySet()) {
+            List<Long> addresses = entry.getValue();
+            long[] packedAddresses = new long[addresses.size()];
+            for (int i = 0; i < packedAddresses.length; i++) {
+                packedAddresses[i] = addresses.get(i);
+            }
+            batches.add(new Batch(entry.getKey(), packedAddresses));
+            mWrittenCount += packedAddresses.length;
+        }
+        mBatchCount += batches.size();
+        return batches;
+    }
+
+    /**
+     * The command in flight to a Remote Led is done.  Its waiters are told
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param isSuccessful <b>true</b> if the Remote Led confirmed the command
+     * @return <b>true</b> if more commands are waiting for the Remote Led
+     */
+    public boolean onComplete(long packedAddress, boolean isSuccessful) {
+        List<Waiter> waiters = mInFlight.remove(packedAddress);
+        if (waiters != null) {
+            for (Waiter waiter : waiters) {
+                waiter.onResult(packedAddress, isSuccessful);
+            }
+        }
+        return mPending.containsKey(packedAddress);
+    }
+
+    /**
+     * Fail every command, pending or in flight
+     */
+    public void failAll() {
+        List<Long> addresses = new ArrayList<Long>(mInFlight.keySet());
+        for (long packedAddress : addresses) {
+            onComplete(packedAddress, false);
+        }
+        for (Map.Entry<Long, Pending> entry : mPending.entrySet()) {
+            for (Waiter waiter : entry.getValue().mWaiters) {
+                waiter.onResult(entry.getKey(), false);
+            }
+        }
+        mPending.clear();
+    }
+
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmittedCount;
+    }
+
+    /**
+     * Get the number of commands replaced by a later one before they were written
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Get the number of commands written to Remote Leds
+     */
+    public long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    public long getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * The latest command for one Remote Led, and everyone waiting on it
+     */
+    private static class Pending {
+        byte mCommand;
+        final List<Waiter> mWaiters = new ArrayList<Waiter>();
+    }
+}
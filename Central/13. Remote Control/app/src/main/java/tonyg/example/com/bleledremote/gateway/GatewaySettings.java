@@ -0,0 +1,117 @@
+package tonyg.example.com.bleledremote.gateway;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The LedGatewayServer's settings, kept across process restarts.
+ *
+ * The gateway is off until the user turns it on, and then listens on loopback unless
+ * another bind address was set.  The access token is made once per install, from
+ * SecureRandom, and stays the same until it is reset.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class GatewaySettings {
+    public static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+
+    private static final String PREFERENCES_NAME = "gateway";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_BIND_ADDRESS = "bind_address";
+    private static final String KEY_ACCESS_TOKEN = "access_token";
+    private static final String KEY_ALLOWED_ORIGINS = "allowed_origins";
+    private static final int ACCESS_TOKEN_BYTE_LENGTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private GatewaySettings() {
+    }
+
+    /**
+     * Check if the user turned the gateway on
+     */
+    public static boolean isEnabled(Context context) {
+        return getPreferences(context).getBoolean(KEY_ENABLED, false);
+    }
+
+    public static void setEnabled(Context context, boolean isEnabled) {
+        getPreferences(context).edit().putBoolean(KEY_ENABLED, isEnabled).apply();
+    }
+
+    /**
+     * Get the address the gateway listens on
+     *
+     * @return the address, loopback by default
+     * @throws UnknownHostException if the saved address isn't an IP address
+     */
+    public static InetAddress getBindAddress(Context context) throws UnknownHostException {
+        String bindAddress = getPreferences(context).getString(KEY_BIND_ADDRESS, DEFAULT_BIND_ADDRESS);
+        // a literal IP address is parsed, never looked up
+        return InetAddress.getByName(bindAddress);
+    }
+
+    /**
+     * Set the address the gateway listens on, for example "0.0.0.0" for every network
+     * interface.  Takes effect the next time the gateway starts
+     */
+    public static void setBindAddress(Context context, String bindAddress) {
+        getPreferences(context).edit().putString(KEY_BIND_ADDRESS, bindAddress).apply();
+    }
+
+    /**
+     * Get the origins whose web pages may use the gateway.  None by default
+     */
+    public static Set<String> getAllowedOrigins(Context context) {
+        Set<String> allowedOrigins = getPreferences(context).getStringSet(KEY_ALLOWED_ORIGINS, null);
+        return allowedOrigins != null ? new HashSet<String>(allowedOrigins) : Collections.<String>emptySet();
+    }
+
+    public static void setAllowedOrigins(Context context, Set<String> allowedOrigins) {
+        getPreferences(context).edit().putStringSet(KEY_ALLOWED_ORIGINS, new HashSet<String>(allowedOrigins)).apply();
+    }
+
+    /**
+     * Get this install's access token, making it the first time
+     */
+    public static synchronized String getAccessToken(Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        String accessToken = preferences.getString(KEY_ACCESS_TOKEN, null);
+        if (accessToken == null) {
+            accessToken = newAccessToken(new SecureRandom());
+            preferences.edit().putString(KEY_ACCESS_TOKEN, accessToken).apply();
+        }
+        return accessToken;
+    }
+
+    /**
+     * Forget the access token, so clients given the old one are refused from the next start
+     */
+    public static synchronized void resetAccessToken(Context context) {
+        getPreferences(context).edit().remove(KEY_ACCESS_TOKEN).apply();
+    }
+
+    /**
+     * Make an access token: ACCESS_TOKEN_BYTE_LENGTH random bytes, in hex
+     */
+    static String newAccessToken(SecureRandom random) {
+        byte[] bytes = new byte[ACCESS_TOKEN_BYTE_LENGTH];
+        random.nextBytes(bytes);
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
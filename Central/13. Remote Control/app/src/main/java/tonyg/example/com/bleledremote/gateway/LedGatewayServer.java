@@ -0,0 +1,993 @@
+package tonyg.example.com.bleledremote.gateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import tonyg.example.com.bleledremote.ble.BleRemoteLed;
+import tonyg.example.com.bleledremote.ble.DeviceRegistry;
+import tonyg.example.com.bleledremote.gateway.callbacks.LedGatewayCallback;
+
+/**
+ * A small HTTP and WebSocket server that lets the local network control the Remote Leds.
+ *
+ *   GET  /leds                    the shadow state of every Remote Led
+ *   GET  /leds/{address}          the shadow state of one Remote Led
+ *   POST /leds/{address}/on|off   switch one Remote Led.  Answered once it confirms
+ *   POST /leds/on|off             switch every Remote Led.  Answered once all are done
+ *   GET  /events                  a WebSocket that streams each shadow as it changes
+ *   GET  /metrics                 request and batching counters
+ *
+ * One thread runs a non-blocking Selector over every client connection, so a thousand
+ * clients cost no more threads than one.  State requests are answered from the
+ * LedShadowStore without touching the radio.  Commands go through a CommandBatcher: ones
+ * arriving within BATCH_WINDOW_MS of each other are handed to the LedGatewayCallback as
+ * one batch, and a Remote Led asked to switch again while busy is only written once more.
+ *
+ * Connections are kept alive and may pipeline requests.  Responses always go out in the
+ * order the requests came in.
+ *
+ * The server listens on one address, loopback unless told otherwise.  Every request,
+ * including the WebSocket upgrade, must carry the access token as
+ * "Authorization: Bearer {token}", or is refused with 401.  Browsers can't set headers on
+ * a WebSocket, so the upgrade may carry it as "?access_token={token}" instead.  A request
+ * with an Origin header is refused with 403 unless that origin was allowed, so web pages
+ * the phone's browser visits can't reach the server.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LedGatewayServer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final long BATCH_WINDOW_MS = 5; // gather commands this long before writing them
+    public static final int MAX_CONNECTIONS = 512;
+
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private static final int MAX_QUEUED_BYTES = 256 * 1024; // a WebSocket subscriber further behind is dropped
+    private static final int ACCEPT_BACKLOG = 128;
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final String ACCESS_TOKEN_PARAMETER = "access_token=";
+
+    /** WebSocket, from RFC 6455 **/
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final InetAddress mBindAddress;
+    private final int mPort;
+    private final byte[] mAccessToken;
+    private final LedGatewayCallback mLedGatewayCallback;
+    private final Set<String> mAllowedOrigins = new HashSet<String>();
+    private final LedShadowStore mShadowStore = new LedShadowStore();
+    private final CommandBatcher mCommandBatcher = new CommandBatcher();
+    private final ConcurrentLinkedQueue<Runnable> mEvents = new ConcurrentLinkedQueue<Runnable>(); // from other threads
+    private final List<Connection> mSubscribers = new ArrayList<Connection>();
+
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private Thread mThread;
+    private volatile boolean mIsRunning = false;
+    private long mBatchDeadline = NO_DEADLINE;
+
+    /** Metrics, only touched on the gateway thread **/
+    private long mRequestCount = 0;
+    private int mOpenConnectionCount = 0;
+    private long mRejectedConnectionCount = 0;
+    private long mDroppedSubscriberCount = 0;
+    private long mUnauthorizedCount = 0;
+
+    /**
+     * Create a LedGatewayServer
+     *
+     * @param bindAddress the address to listen on, for example InetAddress.getLoopbackAddress()
+     * @param port the TCP port to listen on, or 0 for any free port
+     * @param accessToken the token every request must carry
+     * @param ledGatewayCallback sends the commands to the Remote Leds
+     */
+    public LedGatewayServer(InetAddress bindAddress, int port, String accessToken, LedGatewayCallback ledGatewayCallback) {
+        if (accessToken == null || accessToken.isEmpty()) {
+            throw new IllegalArgumentException("An access token is required");
+        }
+        mBindAddress = bindAddress;
+        mPort = port;
+        mAccessToken = accessToken.getBytes(UTF_8);
+        mLedGatewayCallback = ledGatewayCallback;
+    }
+
+    /**
+     * Let web pages from these origins make requests, for example "http://192.168.1.10:8000".
+     * They still need the access token.  Set before start()
+     *
+     * @param allowedOrigins the origins, exactly as browsers send them in the Origin header
+     */
+    public synchronized void setAllowedOrigins(Collection<String> allowedOrigins) {
+        mAllowedOrigins.clear();
+        mAllowedOrigins.addAll(allowedOrigins);
+    }
+
+    /**
+     * Start listening on the bind address
+     *
+     * @throws IOException if the port can't be opened
+     */
+    public synchronized void start() throws IOException {
+        if (mIsRunning) {
+            return;
+        }
+        mEvents.clear();
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.configureBlocking(false);
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(mBindAddress, mPort), ACCEPT_BACKLOG);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mIsRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelectLoop();
+            }
+        }, "LedGateway");
+        mThread.start();
+    }
+
+    /**
+     * Stop listening, close every connection, and fail the commands not yet done
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!mIsRunning) {
+                return;
+            }
+            mIsRunning = false;
+            thread = mThread;
+        }
+        mSelector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * Get the port being listened on, which is chosen by the system if the server was created with port 0
+     */
+    public synchronized int getPort() {
+        return mServerChannel != null ? mServerChannel.socket().getLocalPort() : mPort;
+    }
+
+    public LedShadowStore getShadowStore() {
+        return mShadowStore;
+    }
+
+    /**
+     * Expose a Remote Led.  May be called from any thread
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     */
+    public void addLed(long packedAddress) {
+        if (mShadowStore.addLed(packedAddress)) {
+            publish(packedAddress);
+        }
+    }
+
+    /**
+     * A Remote Led reported its state.  May be called from any thread
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param ledState the LED state, for example BleRemoteLed.LED_STATE_ON
+     * @param batteryLevel the battery level in percent, or LedShadowStore.UNKNOWN
+     */
+    public void onLedStateChanged(long packedAddress, int ledState, int batteryLevel) {
+        if (mShadowStore.onLedStateChanged(packedAddress, ledState, batteryLevel)) {
+            publish(packedAddress);
+        }
+    }
+
+    /**
+     * A Remote Led connected or disconnected.  May be called from any thread
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param isConnected <b>true</b> if the Remote Led is connected
+     */
+    public void onLedConnectionChanged(long packedAddress, boolean isConnected) {
+        if (mShadowStore.onConnectionChanged(packedAddress, isConnected)) {
+            publish(packedAddress);
+        }
+    }
+
+    /**
+     * A command from LedGatewayCallback.onCommandBatch() is done.  May be called from any thread
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param isSuccessful <b>true</b> if the Remote Led confirmed the command
+     */
+    public void onCommandComplete(final long packedAddress, final boolean isSuccessful) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCommandBatcher.onComplete(packedAddress, isSuccessful)) {
+                    scheduleBatch();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run something on the gateway thread
+     */
+    private void post(Runnable runnable) {
+        if (!mIsRunning) {
+            return;
+        }
+        mEvents.add(runnable);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Send a shadow to every WebSocket subscriber
+     */
+    private void publish(final long packedAddress) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSubscribers.isEmpty()) {
+                    return;
+                }
+                String json = mShadowStore.toJson(packedAddress);
+                if (json == null) {
+                    return;
+                }
+                // every subscriber writes from the same frame
+                byte[] frame = buildFrame(OPCODE_TEXT, json.getBytes(UTF_8));
+                for (Connection subscriber : new ArrayList<Connection>(mSubscribers)) {
+                    subscriber.send(frame);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait on the Selector for connections, data, and events from other threads
+     */
+    private void runSelectLoop() {
+        try {
+            while (mIsRunning) {
+                long timeout = 0; // forever
+                if (mBatchDeadline != NO_DEADLINE) {
+                    timeout = Math.max(1, (mBatchDeadline - System.nanoTime()) / 1000000);
+                }
+                mSelector.select(timeout);
+
+                Runnable event;
+                while ((event = mEvents.poll()) != null) {
+                    event.run();
+                }
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.writeOutput();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // one bad request shouldn't take down the gateway
+                        connection.close();
+                    }
+                }
+
+                if (mBatchDeadline != NO_DEADLINE && System.nanoTime() - mBatchDeadline >= 0) {
+                    mBatchDeadline = NO_DEADLINE;
+                    sendBatches();
+                }
+            }
+        } catch (IOException e) {
+            // the Selector failed; nothing more can be served
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            if (mOpenConnectionCount >= MAX_CONNECTIONS) {
+                mRejectedConnectionCount++;
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            mOpenConnectionCount++;
+        }
+    }
+
+    private void shutdown() {
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        mCommandBatcher.failAll();
+        mEvents.clear();
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // already closing
+        }
+        try {
+            mServerChannel.close();
+        } catch (IOException e) {
+            // already closing
+        }
+    }
+
+    /**
+     * Hand the commands gathered so far to the LedGatewayCallback after the batch window
+     */
+    private void scheduleBatch() {
+        if (mBatchDeadline == NO_DEADLINE) {
+            mBatchDeadline = System.nanoTime() + BATCH_WINDOW_MS * 1000000;
+        }
+    }
+
+    private void sendBatches() {
+        for (CommandBatcher.Batch batch : mCommandBatcher.drain()) {
+            try {
+                mLedGatewayCallback.onCommandBatch(batch.getCommand(), batch.getAddresses());
+            } catch (RuntimeException e) {
+                for (long packedAddress : batch.getAddresses()) {
+                    if (mCommandBatcher.onComplete(packedAddress, false)) {
+                        scheduleBatch();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Route an HTTP request
+     */
+    private void handleRequest(Connection connection, HttpRequest request) {
+        mRequestCount++;
+        PendingResponse response = new PendingResponse(connection, request.isKeepAlive());
+        connection.mResponses.add(response);
+
+        String path = request.mPath;
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+            path = path.substring(0, queryStart);
+        }
+        String[] segments = path.split("/");
+        boolean isGet = "GET".equals(request.mMethod);
+        boolean isPost = "POST".equals(request.mMethod);
+
+        String origin = request.getHeader("origin");
+        if (origin != null && !mAllowedOrigins.contains(origin)) {
+            mUnauthorizedCount++;
+            response.complete(403, "{\"error\":\"Origin not allowed\"}");
+            return;
+        }
+        boolean isUpgrade = segments.length == 2 && "events".equals(segments[1]);
+        if (!isAuthorized(request, isUpgrade ? queryStart : -1)) {
+            mUnauthorizedCount++;
+            response.complete(401, "WWW-Authenticate: Bearer\r\n", "{\"error\":\"Missing or wrong access token\"}");
+            return;
+        }
+
+        if (segments.length < 2 || !segments[0].isEmpty()) {
+            response.complete(404, "{\"error\":\"Not found\"}");
+        } else if (segments.length == 2 && "leds".equals(segments[1])) {
+            if (isGet) {
+                response.complete(200, mShadowStore.toJson());
+            } else {
+                response.complete(405, "{\"error\":\"Use GET\"}");
+            }
+        } else if (segments.length == 2 && "metrics".equals(segments[1])) {
+            response.complete(200, getMetricsJson());
+        } else if (segments.length == 2 && "events".equals(segments[1])) {
+            if (isGet && request.isWebSocketUpgrade() && connection.mResponses.size() == 1) {
+                connection.mResponses.clear();
+                connection.upgrade(request.getHeader("sec-websocket-key"));
+            } else {
+                response.complete(400, "{\"error\":\"Expected a WebSocket upgrade\"}");
+            }
+        } else if (segments.length == 3 && "leds".equals(segments[1]) && parseCommand(segments[2]) != 0) {
+            if (isPost) {
+                sendGroupCommand(parseCommand(segments[2]), response);
+            } else {
+                response.complete(405, "{\"error\":\"Use POST\"}");
+            }
+        } else if ((segments.length == 3 || segments.length == 4) && "leds".equals(segments[1])) {
+            long packedAddress;
+            try {
+                packedAddress = DeviceRegistry.packAddress(segments[2].toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                response.complete(400, "{\"error\":\"Not a MAC address\"}");
+                return;
+            }
+            byte command = segments.length == 4 ? parseCommand(segments[3]) : 0;
+            if (!mShadowStore.contains(packedAddress)) {
+                response.complete(404, "{\"error\":\"No such Remote Led\"}");
+            } else if (segments.length == 3) {
+                if (isGet) {
+                    response.complete(200, mShadowStore.toJson(packedAddress));
+                } else {
+                    response.complete(405, "{\"error\":\"Use GET\"}");
+                }
+            } else if (command == 0) {
+                response.complete(404, "{\"error\":\"Not found\"}");
+            } else if (isPost) {
+                sendCommand(packedAddress, command, response);
+            } else {
+                response.complete(405, "{\"error\":\"Use POST\"}");
+            }
+        } else {
+            response.complete(404, "{\"error\":\"Not found\"}");
+        }
+    }
+
+    /**
+     * Check the request's access token, compared in constant time
+     *
+     * @param queryStart where the query starts in the path, if the token may be there, or -1
+     */
+    private boolean isAuthorized(HttpRequest request, int queryStart) {
+        String token = null;
+        String authorization = request.getHeader("authorization");
+        if (authorization != null && authorization.startsWith(BEARER_PREFIX)) {
+            token = authorization.substring(BEARER_PREFIX.length()).trim();
+        } else if (queryStart >= 0) {
+            for (String parameter : request.mPath.substring(queryStart + 1).split("&")) {
+                if (parameter.startsWith(ACCESS_TOKEN_PARAMETER)) {
+                    token = parameter.substring(ACCESS_TOKEN_PARAMETER.length());
+                }
+            }
+        }
+        return token != null && MessageDigest.isEqual(mAccessToken, token.getBytes(UTF_8));
+    }
+
+    /**
+     * Get the command named in a path, or 0 if it isn't one
+     */
+    private static byte parseCommand(String name) {
+        if ("on".equals(name)) {
+            return BleRemoteLed.COMMAND_LED_ON;
+        } else if ("off".equals(name)) {
+            return BleRemoteLed.COMMAND_LED_OFF;
+        }
+        return 0;
+    }
+
+    private void sendCommand(long packedAddress, byte command, final PendingResponse response) {
+        mCommandBatcher.submit(packedAddress, command, new CommandBatcher.Waiter() {
+            @Override
+            public void onResult(long packedAddress, boolean isSuccessful) {
+                if (isSuccessful) {
+                    response.complete(200, mShadowStore.toJson(packedAddress));
+                } else {
+                    response.complete(502, "{\"error\":\"The Remote Led did not confirm the command\"}");
+                }
+            }
+        });
+        scheduleBatch();
+    }
+
+    private void sendGroupCommand(byte command, final PendingResponse response) {
+        final long[] addresses = mShadowStore.getAddresses();
+        if (addresses.length == 0) {
+            response.complete(200, "{\"succeeded\":0,\"failed\":0}");
+            return;
+        }
+        CommandBatcher.Waiter waiter = new CommandBatcher.Waiter() {
+            private int mSucceededCount = 0;
+            private int mFailedCount = 0;
+
+            @Override
+            public void onResult(long packedAddress, boolean isSuccessful) {
+                if (isSuccessful) {
+                    mSucceededCount++;
+                } else {
+                    mFailedCount++;
+                }
+                if (mSucceededCount + mFailedCount == addresses.length) {
+                    response.complete(200, "{\"succeeded\":" + mSucceededCount + ",\"failed\":" + mFailedCount + "}");
+                }
+            }
+        };
+        for (long packedAddress : addresses) {
+            mCommandBatcher.submit(packedAddress, command, waiter);
+        }
+        scheduleBatch();
+    }
+
+    private String getMetricsJson() {
+        return "{\"requests\":" + mRequestCount
+                + ",\"connections\":" + mOpenConnectionCount
+                + ",\"subscribers\":" + mSubscribers.size()
+                + ",\"rejectedConnections\":" + mRejectedConnectionCount
+                + ",\"droppedSubscribers\":" + mDroppedSubscriberCount
+                + ",\"unauthorized\":" + mUnauthorizedCount
+                + ",\"commandsSubmitted\":" + mCommandBatcher.getSubmittedCount()
+                + ",\"commandsCoalesced\":" + mCommandBatcher.getCoalescedCount()
+                + ",\"commandsWritten\":" + mCommandBatcher.getWrittenCount()
+                + ",\"commandsInFlight\":" + mCommandBatcher.getInFlightCount()
+                + ",\"batches\":" + mCommandBatcher.getBatchCount() + "}";
+    }
+
+    /**
+     * One client connection, either HTTP or, once upgraded, a WebSocket subscriber
+     */
+    private class Connection {
+        final SocketChannel mChannel;
+        final SelectionKey mKey;
+        final ByteBuffer mInput = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        final ArrayDeque<PendingResponse> mResponses = new ArrayDeque<PendingResponse>(); // in request order
+        final ArrayDeque<ByteBuffer> mOutput = new ArrayDeque<ByteBuffer>();
+        int mQueuedBytes = 0;
+        boolean mIsWebSocket = false;
+        boolean mIsClosing = false; // close once the output is written
+        boolean mIsClosed = false;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            mChannel = channel;
+            mKey = key;
+        }
+
+        void onReadable() throws IOException {
+            if (mChannel.read(mInput) < 0) {
+                close();
+                return;
+            }
+            mInput.flip();
+            if (!mIsWebSocket) {
+                readRequests();
+            }
+            if (mIsWebSocket) {
+                readFrames();
+            }
+            if (mIsClosed) {
+                return;
+            }
+            mInput.compact();
+            if (!mInput.hasRemaining()) {
+                // a request that doesn't fit is too big to be one of ours
+                if (!mIsWebSocket) {
+                    sendError(413, "Request too large");
+                } else {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Handle every complete HTTP request in the input
+         */
+        private void readRequests() {
+            while (!mIsClosing && !mIsClosed && !mIsWebSocket) {
+                int headerEnd = findHeaderEnd();
+                if (headerEnd < 0) {
+                    return;
+                }
+                int start = mInput.position();
+                HttpRequest request = HttpRequest.parse(new String(mInput.array(), start, headerEnd - start, ISO_8859_1));
+                if (request == null) {
+                    sendError(400, "Malformed request");
+                    return;
+                }
+                int contentLength = request.getContentLength();
+                if (contentLength < 0) {
+                    sendError(400, "Unsupported body");
+                    return;
+                }
+                if (mInput.limit() - headerEnd < contentLength) {
+                    // wait for the rest of the body
+                    return;
+                }
+                // commands are in the path, so any body is skipped
+                mInput.position(headerEnd + contentLength);
+                handleRequest(this, request);
+            }
+            // ignore anything sent after a request asking to close
+            if (mIsClosing) {
+                mInput.position(mInput.limit());
+            }
+        }
+
+        /**
+         * Find the end of the first request's headers
+         *
+         * @return the index just after the blank line, or -1 if it hasn't arrived yet
+         */
+        private int findHeaderEnd() {
+            byte[] input = mInput.array();
+            for (int i = mInput.position(); i + 3 < mInput.limit(); i++) {
+                if (input[i] == '\r' && input[i + 1] == '\n' && input[i + 2] == '\r' && input[i + 3] == '\n') {
+                    return i + 4;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Handle every complete WebSocket frame in the input.  Subscribers only listen,
+         * so apart from close and ping, frames are ignored
+         */
+        private void readFrames() {
+            while (!mIsClosed && mInput.remaining() >= 2) {
+                int start = mInput.position();
+                int opcode = mInput.get(start) & 0x0F;
+                boolean isMasked = (mInput.get(start + 1) & 0x80) != 0;
+                int length = mInput.get(start + 1) & 0x7F;
+                int headerLength = 2;
+                if (length == 126) {
+                    if (mInput.remaining() < 4) {
+                        return;
+                    }
+                    length = ((mInput.get(start + 2) & 0xFF) << 8) | (mInput.get(start + 3) & 0xFF);
+                    headerLength = 4;
+                } else if (length == 127 || !isMasked) {
+                    // far bigger than any control frame, or not masked as clients must
+                    close();
+                    return;
+                }
+                headerLength += 4; // masking key
+                if (headerLength + length > MAX_REQUEST_SIZE) {
+                    close();
+                    return;
+                }
+                if (mInput.remaining() < headerLength + length) {
+                    return;
+                }
+                byte[] payload = new byte[length];
+                int maskPosition = start + headerLength - 4;
+                for (int i = 0; i < length; i++) {
+                    payload[i] = (byte) (mInput.get(start + headerLength + i) ^ mInput.get(maskPosition + (i & 3)));
+                }
+                mInput.position(start + headerLength + length);
+
+                if (opcode == OPCODE_CLOSE) {
+                    mIsClosing = true;
+                    send(buildFrame(OPCODE_CLOSE, payload));
+                    return;
+                } else if (opcode == OPCODE_PING) {
+                    send(buildFrame(OPCODE_PONG, payload));
+                }
+            }
+        }
+
+        /**
+         * Accept a WebSocket upgrade, then send the current shadow of every Remote Led
+         */
+        void upgrade(String key) {
+            String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + getWebSocketAccept(key) + "\r\n\r\n";
+            mIsWebSocket = true;
+            mSubscribers.add(this);
+            send(response.getBytes(ISO_8859_1));
+            for (long packedAddress : mShadowStore.getAddresses()) {
+                String json = mShadowStore.toJson(packedAddress);
+                if (json != null) {
+                    send(buildFrame(OPCODE_TEXT, json.getBytes(UTF_8)));
+                }
+            }
+        }
+
+        /**
+         * Send every response that is ready, stopping at the first one that isn't
+         */
+        void flushResponses() {
+            while (!mIsClosed && !mResponses.isEmpty() && mResponses.peek().mBytes != null) {
+                PendingResponse response = mResponses.poll();
+                if (!response.mIsKeepAlive) {
+                    mIsClosing = true;
+                    mResponses.clear();
+                }
+                send(response.mBytes);
+            }
+        }
+
+        private void sendError(int status, String message) {
+            PendingResponse response = new PendingResponse(this, false);
+            mResponses.add(response);
+            response.complete(status, "{\"error\":\"" + message + "\"}");
+        }
+
+        /**
+         * Queue bytes to send, and write as much as the socket takes now
+         */
+        void send(byte[] bytes) {
+            if (mIsClosed) {
+                return;
+            }
+            mOutput.add(ByteBuffer.wrap(bytes));
+            mQueuedBytes += bytes.length;
+            if (mIsWebSocket && mQueuedBytes > MAX_QUEUED_BYTES) {
+                mDroppedSubscriberCount++;
+                close();
+                return;
+            }
+            try {
+                writeOutput();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void writeOutput() throws IOException {
+            while (!mOutput.isEmpty()) {
+                ByteBuffer buffer = mOutput.peek();
+                mQueuedBytes -= mChannel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // the socket is full; continue when it is writable
+                    mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                mOutput.poll();
+            }
+            if (mIsClosing) {
+                close();
+            } else {
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            if (mIsClosed) {
+                return;
+            }
+            mIsClosed = true;
+            mKey.cancel();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            mOutput.clear();
+            mResponses.clear();
+            if (mIsWebSocket) {
+                mSubscribers.remove(this);
+            }
+            mOpenConnectionCount--;
+        }
+    }
+
+    /**
+     * A response slot, filled in when the answer is known
+     */
+    private static class PendingResponse {
+        final Connection mConnection;
+        final boolean mIsKeepAlive;
+        byte[] mBytes;
+
+        PendingResponse(Connection connection, boolean isKeepAlive) {
+            mConnection = connection;
+            mIsKeepAlive = isKeepAlive;
+        }
+
+        void complete(int status, String body) {
+            complete(status, "", body);
+        }
+
+        /**
+         * @param headers extra headers, each ending in CRLF
+         */
+        void complete(int status, String headers, String body) {
+            byte[] content = body.getBytes(UTF_8);
+            String head = "HTTP/1.1 " + status + " " + getReasonPhrase(status) + "\r\n"
+                    + headers
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + content.length + "\r\n"
+                    + (mIsKeepAlive ? "" : "Connection: close\r\n")
+                    + "\r\n";
+            byte[] headBytes = head.getBytes(ISO_8859_1);
+            mBytes = new byte[headBytes.length + content.length];
+            System.arraycopy(headBytes, 0, mBytes, 0, headBytes.length);
+            System.arraycopy(content, 0, mBytes, headBytes.length, content.length);
+            mConnection.flushResponses();
+        }
+    }
+
+    /**
+     * The request line and headers of an HTTP request
+     */
+    private static class HttpRequest {
+        String mMethod;
+        String mPath;
+        String mVersion;
+        final Map<String, String> mHeaders = new HashMap<String, String>(); // names in lower case
+
+        /**
+         * Parse the request line and headers
+         *
+         * @return the request, or null if it is malformed
+         */
+        static HttpRequest parse(String head) {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                return null;
+            }
+            HttpRequest request = new HttpRequest();
+            request.mMethod = requestLine[0];
+            request.mPath = requestLine[1];
+            request.mVersion = requestLine[2];
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    return null;
+                }
+                request.mHeaders.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+            }
+            return request;
+        }
+
+        String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        boolean isKeepAlive() {
+            String connection = getHeader("connection");
+            if ("HTTP/1.0".equals(mVersion)) {
+                return "keep-alive".equalsIgnoreCase(connection);
+            }
+            return !"close".equalsIgnoreCase(connection);
+        }
+
+        /**
+         * Get the length of the body
+         *
+         * @return the length in bytes, or -1 if it can't be read
+         */
+        int getContentLength() {
+            if (getHeader("transfer-encoding") != null) {
+                return -1;
+            }
+            String contentLength = getHeader("content-length");
+            if (contentLength == null) {
+                return 0;
+            }
+            try {
+                return Integer.parseInt(contentLength);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        boolean isWebSocketUpgrade() {
+            String connection = getHeader("connection");
+            return "websocket".equalsIgnoreCase(getHeader("upgrade"))
+                    && connection != null && connection.toLowerCase(Locale.US).contains("upgrade")
+                    && getHeader("sec-websocket-key") != null;
+        }
+    }
+
+    private static String getReasonPhrase(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 413:
+                return "Payload Too Large";
+            case 502:
+                return "Bad Gateway";
+            default:
+                return "Error";
+        }
+    }
+
+    /**
+     * Build an unmasked WebSocket frame, as servers send
+     */
+    private static byte[] buildFrame(int opcode, byte[] payload) {
+        int headerLength = payload.length < 126 ? 2 : (payload.length < 65536 ? 4 : 10);
+        byte[] frame = new byte[headerLength + payload.length];
+        frame[0] = (byte) (0x80 | opcode); // final fragment
+        if (payload.length < 126) {
+            frame[1] = (byte) payload.length;
+        } else if (payload.length < 65536) {
+            frame[1] = 126;
+            frame[2] = (byte) (payload.length >> 8);
+            frame[3] = (byte) payload.length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) payload.length >>> (56 - 8 * i));
+            }
+        }
+        System.arraycopy(payload, 0, frame, headerLength, payload.length);
+        return frame;
+    }
+
+    /**
+     * Answer a WebSocket key: the Base64 SHA-1 of the key and the WebSocket GUID
+     */
+    static String getWebSocketAccept(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(ISO_8859_1));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        return encodeBase64(digest);
+    }
+
+    private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static String encodeBase64(byte[] data) {
+        StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int block = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length) {
+                block |= (data[i + 1] & 0xFF) << 8;
+            }
+            if (i + 2 < data.length) {
+                block |= data[i + 2] & 0xFF;
+            }
+            encoded.append(BASE64_ALPHABET[(block >> 18) & 0x3F]);
+            encoded.append(BASE64_ALPHABET[(block >> 12) & 0x3F]);
+            encoded.append(i + 1 < data.length ? BASE64_ALPHABET[(block >> 6) & 0x3F] : '=');
+            encoded.append(i + 2 < data.length ? BASE64_ALPHABET[block & 0x3F] : '=');
+        }
+        return encoded.toString();
+    }
+}
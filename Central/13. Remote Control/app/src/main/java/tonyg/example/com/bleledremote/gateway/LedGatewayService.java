@@ -0,0 +1,274 @@
+package tonyg.example.com.bleledremote.gateway;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.ParcelUuid;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import tonyg.example.com.bleledremote.MainActivity;
+import tonyg.example.com.bleledremote.R;
+import tonyg.example.com.bleledremote.ble.AdvertisementParser;
+import tonyg.example.com.bleledremote.ble.AdvertisementRecord;
+import tonyg.example.com.bleledremote.ble.BleCommManager;
+import tonyg.example.com.bleledremote.ble.BleRemoteLed;
+import tonyg.example.com.bleledremote.ble.DeviceRegistry;
+import tonyg.example.com.bleledremote.ble.GroupCommandTracker;
+import tonyg.example.com.bleledremote.ble.LedFleetManager;
+import tonyg.example.com.bleledremote.ble.LedStateMonitor;
+import tonyg.example.com.bleledremote.ble.callbacks.LedFleetCallback;
+import tonyg.example.com.bleledremote.ble.callbacks.LedStateCallback;
+import tonyg.example.com.bleledremote.gateway.callbacks.LedGatewayCallback;
+
+/**
+ * Keep the LedGatewayServer running while the app is in the background.
+ *
+ * The service runs in the foreground, with an ongoing notification, so the gateway and
+ * the LedFleetManager it writes through outlive the Activity.  It scans in low power mode
+ * for the states the Remote Leds advertise, so the gateway's shadows stay current without
+ * the Activity's scan.  It is started when GatewaySettings.isEnabled(), and stops itself
+ * if the gateway was turned off or can't listen.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LedGatewayService extends Service {
+    private static final String TAG = LedGatewayService.class.getSimpleName();
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private LedGatewayServer mLedGatewayServer;
+    private LedFleetManager mLedFleetManager;
+    private LedStateMonitor mLedStateMonitor;
+    private BluetoothLeScanner mBluetoothLeScanner;
+
+    /**
+     * Start the gateway, if the user turned it on
+     *
+     * @param context the Application Context
+     */
+    public static void start(Context context) {
+        if (GatewaySettings.isEnabled(context)) {
+            context.startService(new Intent(context, LedGatewayService.class));
+        }
+    }
+
+    /**
+     * Stop the gateway and disconnect the Remote Leds it was controlling
+     *
+     * @param context the Application Context
+     */
+    public static void stop(Context context) {
+        context.stopService(new Intent(context, LedGatewayService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BleCommManager bleCommManager;
+        try {
+            bleCommManager = new BleCommManager(this);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not initialize bluetooth: " + e.getMessage());
+            return;
+        }
+        InetAddress bindAddress;
+        try {
+            bindAddress = GatewaySettings.getBindAddress(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Bad gateway bind address: " + e.getMessage());
+            return;
+        }
+        mLedFleetManager = new LedFleetManager(getApplicationContext(), bleCommManager.getBluetoothAdapter(), mLedFleetCallback);
+        mLedStateMonitor = new LedStateMonitor(mLedStateCallback);
+
+        LedGatewayServer ledGatewayServer = new LedGatewayServer(bindAddress, LedGatewayServer.DEFAULT_PORT, GatewaySettings.getAccessToken(this), mLedGatewayCallback);
+        ledGatewayServer.setAllowedOrigins(GatewaySettings.getAllowedOrigins(this));
+        try {
+            ledGatewayServer.start();
+            Log.v(TAG, "gateway listening on " + bindAddress.getHostAddress() + ":" + ledGatewayServer.getPort());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start the gateway: " + e.getMessage());
+            Toast.makeText(this, R.string.gateway_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
+        mLedGatewayServer = ledGatewayServer;
+
+        startForeground(NOTIFICATION_ID, buildNotification(bindAddress.getHostAddress(), ledGatewayServer.getPort()));
+        mBluetoothLeScanner = bleCommManager.getBluetoothAdapter().getBluetoothLeScanner();
+        startStateScan();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (mLedGatewayServer == null || !GatewaySettings.isEnabled(this)) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        // restarted, with the gateway, if the system has to kill the process
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mBluetoothLeScanner != null) {
+            mBluetoothLeScanner.stopScan(mScanCallback);
+        }
+        if (mLedGatewayServer != null) {
+            mLedGatewayServer.stop();
+            mLedGatewayServer = null;
+        }
+        if (mLedFleetManager != null) {
+            mLedFleetManager.disconnectAll();
+        }
+        stopForeground(true);
+        super.onDestroy();
+    }
+
+    /**
+     * Build the ongoing notification, which says where the gateway listens and opens the app
+     */
+    private Notification buildNotification(String bindAddress, int port) {
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+        return new Notification.Builder(this)
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle(getString(R.string.gateway_item))
+                .setContentText(getString(R.string.gateway_running, bindAddress, port))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * Follow the state every Remote Led advertises, without connecting
+     */
+    private void startStateScan() {
+        if (mBluetoothLeScanner == null) {
+            // Bluetooth is off
+            return;
+        }
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(BleRemoteLed.SERVICE_UUID)).build());
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .build();
+        mBluetoothLeScanner.startScan(filters, settings, mScanCallback);
+    }
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        private final AdvertisementRecord mAdvertisementRecord = new AdvertisementRecord();
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onLedAdvertisement(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onLedAdvertisement(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Could not scan for Remote Led states: " + errorCode);
+        }
+
+        private void onLedAdvertisement(ScanResult result) {
+            if (result.getScanRecord() == null) {
+                return;
+            }
+            AdvertisementParser.parse(result.getScanRecord().getBytes(), mAdvertisementRecord);
+            mLedStateMonitor.onAdvertisement(DeviceRegistry.packAddress(result.getDevice().getAddress()), mAdvertisementRecord);
+        }
+    };
+
+    /**
+     * Expose every Remote Led heard through the gateway, with its advertised state
+     */
+    private final LedStateCallback mLedStateCallback = new LedStateCallback() {
+        @Override
+        public void onLedStateChanged(long packedAddress, int ledState, int batteryLevel) {
+            LedGatewayServer ledGatewayServer = mLedGatewayServer;
+            if (ledGatewayServer != null) {
+                mLedFleetManager.addLed(packedAddress);
+                ledGatewayServer.onLedStateChanged(packedAddress, ledState, batteryLevel);
+            }
+        }
+    };
+
+    /**
+     * Write the gateway's commands through the fleet, which connects to each Remote Led as needed
+     */
+    private final LedGatewayCallback mLedGatewayCallback = new LedGatewayCallback() {
+        @Override
+        public void onCommandBatch(byte command, long[] addresses) {
+            for (long packedAddress : addresses) {
+                mLedFleetManager.addLed(packedAddress);
+            }
+            mLedFleetManager.sendCommand(command, addresses);
+        }
+    };
+
+    /**
+     * Report the fleet's connections, states, and command results to the gateway
+     */
+    private final LedFleetCallback mLedFleetCallback = new LedFleetCallback() {
+        @Override
+        public void onLedConnected(long packedAddress) {
+            LedGatewayServer ledGatewayServer = mLedGatewayServer;
+            if (ledGatewayServer != null) {
+                ledGatewayServer.onLedConnectionChanged(packedAddress, true);
+            }
+        }
+
+        @Override
+        public void onLedDisconnected(long packedAddress) {
+            LedGatewayServer ledGatewayServer = mLedGatewayServer;
+            if (ledGatewayServer != null) {
+                ledGatewayServer.onLedConnectionChanged(packedAddress, false);
+            }
+        }
+
+        @Override
+        public void onLedStateChanged(long packedAddress, int ledState) {
+            LedGatewayServer ledGatewayServer = mLedGatewayServer;
+            if (ledGatewayServer != null) {
+                ledGatewayServer.onLedStateChanged(packedAddress, ledState, LedShadowStore.UNKNOWN);
+            }
+        }
+
+        @Override
+        public void onLedCommandComplete(long packedAddress, boolean isSuccessful) {
+            LedGatewayServer ledGatewayServer = mLedGatewayServer;
+            if (ledGatewayServer != null) {
+                ledGatewayServer.onCommandComplete(packedAddress, isSuccessful);
+            }
+        }
+
+        @Override
+        public void onGroupCommandComplete(GroupCommandTracker groupCommandTracker) {
+            Log.v(TAG, "gateway command: " + groupCommandTracker);
+        }
+    };
+}
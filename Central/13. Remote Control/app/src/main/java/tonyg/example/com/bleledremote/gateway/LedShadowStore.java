@@ -0,0 +1,171 @@
+package tonyg.example.com.bleledremote.gateway;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import tonyg.example.com.bleledremote.ble.BleRemoteLed;
+import tonyg.example.com.bleledremote.ble.DeviceRegistry;
+
+/**
+ * The last known state of every Remote Led the gateway exposes.
+ *
+ * Reading a shadow never touches the radio, so the gateway can answer any number of state
+ * requests while the Remote Leds themselves are busy or out of range.  Each shadow carries
+ * a version that goes up whenever it changes, so clients can tell a fresh state from one
+ * they have already seen.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LedShadowStore {
+    public static final int UNKNOWN = -1;
+
+    private final Map<Long, Shadow> mShadows = new LinkedHashMap<Long, Shadow>(); // in the order added
+
+    /**
+     * Start following a Remote Led
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return <b>true</b> if the Remote Led wasn't already followed
+     */
+    public synchronized boolean addLed(long packedAddress) {
+        if (mShadows.containsKey(packedAddress)) {
+            return false;
+        }
+        mShadows.put(packedAddress, new Shadow());
+        return true;
+    }
+
+    public synchronized boolean contains(long packedAddress) {
+        return mShadows.containsKey(packedAddress);
+    }
+
+    public synchronized int size() {
+        return mShadows.size();
+    }
+
+    /**
+     * Get the packed MAC addresses of every Remote Led followed, in the order added
+     */
+    public synchronized long[] getAddresses() {
+        long[] addresses = new long[mShadows.size()];
+        int i = 0;
+        for (long packedAddress : mShadows.keySet()) {
+            addresses[i++] = packedAddress;
+        }
+        return addresses;
+    }
+
+    /**
+     * A Remote Led reported its state.  Unknown Remote Leds are added
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param ledState the LED state, for example BleRemoteLed.LED_STATE_ON
+     * @param batteryLevel the battery level in percent, or UNKNOWN to keep the last one
+     * @return <b>true</b> if the shadow changed
+     */
+    public synchronized boolean onLedStateChanged(long packedAddress, int ledState, int batteryLevel) {
+        Shadow shadow = getShadow(packedAddress);
+        boolean isChanged = shadow.mLedState != ledState;
+        shadow.mLedState = ledState;
+        if (batteryLevel != UNKNOWN && batteryLevel != shadow.mBatteryLevel) {
+            shadow.mBatteryLevel = batteryLevel;
+            isChanged = true;
+        }
+        if (isChanged) {
+            shadow.mVersion++;
+        }
+        return isChanged;
+    }
+
+    /**
+     * A Remote Led connected or disconnected.  Unknown Remote Leds are added
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param isConnected <b>true</b> if the Remote Led is connected
+     * @return <b>true</b> if the shadow changed
+     */
+    public synchronized boolean onConnectionChanged(long packedAddress, boolean isConnected) {
+        Shadow shadow = getShadow(packedAddress);
+        if (shadow.mIsConnected == isConnected) {
+            return false;
+        }
+        shadow.mIsConnected = isConnected;
+        shadow.mVersion++;
+        return true;
+    }
+
+    /**
+     * Describe one Remote Led as JSON
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @return the JSON object, or null if the Remote Led isn't followed
+     */
+    public synchronized String toJson(long packedAddress) {
+        Shadow shadow = mShadows.get(packedAddress);
+        if (shadow == null) {
+            return null;
+        }
+        StringBuilder json = new StringBuilder(128);
+        appendJson(json, packedAddress, shadow);
+        return json.toString();
+    }
+
+    /**
+     * Describe every Remote Led as JSON
+     *
+     * @return a JSON object holding a "leds" array
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder(16 + 128 * mShadows.size());
+        json.append("{\"leds\":[");
+        boolean isFirst = true;
+        for (Map.Entry<Long, Shadow> entry : mShadows.entrySet()) {
+            if (!isFirst) {
+                json.append(',');
+            }
+            appendJson(json, entry.getKey(), entry.getValue());
+            isFirst = false;
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendJson(StringBuilder json, long packedAddress, Shadow shadow) {
+        json.append("{\"address\":\"").append(DeviceRegistry.unpackAddress(packedAddress)).append('"');
+        json.append(",\"state\":");
+        if (shadow.mLedState == BleRemoteLed.LED_STATE_ON) {
+            json.append("\"on\"");
+        } else if (shadow.mLedState == BleRemoteLed.LED_STATE_OFF) {
+            json.append("\"off\"");
+        } else {
+            json.append("null");
+        }
+        json.append(",\"battery\":");
+        if (shadow.mBatteryLevel == UNKNOWN) {
+            json.append("null");
+        } else {
+            json.append(shadow.mBatteryLevel);
+        }
+        json.append(",\"connected\":").append(shadow.mIsConnected);
+        json.append(",\"version\":").append(shadow.mVersion).append('}');
+    }
+
+    private Shadow getShadow(long packedAddress) {
+        Shadow shadow = mShadows.get(packedAddress);
+        if (shadow == null) {
+            shadow = new Shadow();
+            mShadows.put(packedAddress, shadow);
+        }
+        return shadow;
+    }
+
+    /**
+     * The last known state of one Remote Led
+     */
+    private static class Shadow {
+        int mLedState = UNKNOWN;
+        int mBatteryLevel = UNKNOWN;
+        boolean mIsConnected = false;
+        long mVersion = 0;
+    }
+}
@@ -0,0 +1,19 @@
+package tonyg.example.com.bleledremote.gateway.callbacks;
+
+/**
+ * Relay commands from the LedGatewayServer to the Remote Leds
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class LedGatewayCallback {
+
+    /**
+     * Send a command to some Remote Leds.  Called on the gateway's thread, so return quickly.
+     * Report each result with LedGatewayServer.onCommandComplete()
+     *
+     * @param command the command, for example BleRemoteLed.COMMAND_LED_ON
+     * @param addresses the packed MAC addresses of the Remote Leds
+     */
+    public abstract void onCommandBatch(final byte command, final long[] addresses);
+}
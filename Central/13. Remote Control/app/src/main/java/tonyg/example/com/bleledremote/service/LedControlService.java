@@ -0,0 +1,284 @@
+package tonyg.example.com.bleledremote.service;
+
+import android.app.Service;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import tonyg.example.com.bleledremote.ble.AdvertisementParser;
+import tonyg.example.com.bleledremote.ble.AdvertisementRecord;
+import tonyg.example.com.bleledremote.ble.BleCommManager;
+import tonyg.example.com.bleledremote.ble.BleRemoteLed;
+import tonyg.example.com.bleledremote.ble.DeviceRegistry;
+import tonyg.example.com.bleledremote.ble.GroupCommandTracker;
+import tonyg.example.com.bleledremote.ble.LedFleetManager;
+import tonyg.example.com.bleledremote.ble.LedStateMonitor;
+import tonyg.example.com.bleledremote.ble.callbacks.LedFleetCallback;
+import tonyg.example.com.bleledremote.ble.callbacks.LedStateCallback;
+
+/**
+ * Let other apps on the phone control the Remote Leds.
+ *
+ * Commands arrive as oneway Binder calls, so the caller never waits on the service.  Each
+ * one is handed to the LedFleetManager straight from the Binder thread.  The state of
+ * every Remote Led is published in a LedStatusRegion: a small memory-mapped file that each
+ * client maps read-only, so reading the state costs no IPC at all.
+ *
+ * While anyone is bound, the service scans in low power mode for Remote Leds advertising
+ * their state.  It runs in its own process, and clients must hold PERMISSION_CONTROL_LED.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LedControlService extends Service {
+    private static final String TAG = LedControlService.class.getSimpleName();
+
+    public static final String ACTION_CONTROL_LED = "tonyg.example.com.bleledremote.action.CONTROL_LED";
+    public static final String PERMISSION_CONTROL_LED = "tonyg.example.com.bleledremote.permission.CONTROL_LED";
+    private static final String STATUS_REGION_FILE_NAME = "led_status";
+
+    private File mStatusRegionFile;
+    private LedStatusRegion mStatusRegion;
+    private LedFleetManager mLedFleetManager;
+    private LedStateMonitor mLedStateMonitor;
+    private BluetoothLeScanner mBluetoothLeScanner;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        try {
+            mStatusRegion = createStatusRegion();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create the status region: " + e.getMessage());
+        }
+
+        BleCommManager bleCommManager;
+        try {
+            bleCommManager = new BleCommManager(this);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not initialize bluetooth: " + e.getMessage());
+            return;
+        }
+        mLedFleetManager = new LedFleetManager(getApplicationContext(), bleCommManager.getBluetoothAdapter(), mLedFleetCallback);
+        mLedStateMonitor = new LedStateMonitor(mLedStateCallback);
+        mBluetoothLeScanner = bleCommManager.getBluetoothAdapter().getBluetoothLeScanner();
+        startStateScan();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mBluetoothLeScanner != null) {
+            mBluetoothLeScanner.stopScan(mScanCallback);
+        }
+        if (mLedFleetManager != null) {
+            mLedFleetManager.disconnectAll();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Map a status region returned by ILedControlService.getStatusRegion(), for reading.
+     * The mapping stays valid after the file descriptor is closed
+     *
+     * @param parcelFileDescriptor the status region's file descriptor.  It is closed
+     * @return the status region
+     * @throws IOException if the region can't be mapped
+     */
+    public static LedStatusRegion mapStatusRegion(ParcelFileDescriptor parcelFileDescriptor) throws IOException {
+        if (parcelFileDescriptor == null) {
+            throw new IOException("No status region");
+        }
+        FileInputStream inputStream = new FileInputStream(parcelFileDescriptor.getFileDescriptor());
+        try {
+            MappedByteBuffer buffer = inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, LedStatusRegion.SIZE);
+            return new LedStatusRegion(buffer);
+        } finally {
+            inputStream.close();
+            parcelFileDescriptor.close();
+        }
+    }
+
+    /**
+     * Create the status region in a private file, mapped for writing
+     */
+    private LedStatusRegion createStatusRegion() throws IOException {
+        mStatusRegionFile = new File(getFilesDir(), STATUS_REGION_FILE_NAME);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mStatusRegionFile, "rw");
+        try {
+            randomAccessFile.setLength(LedStatusRegion.SIZE);
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, LedStatusRegion.SIZE);
+            LedStatusRegion statusRegion = new LedStatusRegion(buffer);
+            statusRegion.initialize();
+            return statusRegion;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Follow the state every Remote Led advertises, without connecting
+     */
+    private void startStateScan() {
+        if (mBluetoothLeScanner == null) {
+            // Bluetooth is off
+            return;
+        }
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(BleRemoteLed.SERVICE_UUID)).build());
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .build();
+        mBluetoothLeScanner.startScan(filters, settings, mScanCallback);
+    }
+
+    /**
+     * A client's command was handed to the Remote Leds
+     */
+    private void onDispatched(int requestId) {
+        if (mStatusRegion != null) {
+            mStatusRegion.setLastDispatch(requestId, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    /**
+     * Handle calls from clients, on Binder threads
+     */
+    private final ILedControlService.Stub mBinder = new ILedControlService.Stub() {
+        @Override
+        public void setLed(String address, boolean isOn, int requestId) {
+            LedFleetManager ledFleetManager = mLedFleetManager;
+            if (ledFleetManager == null) {
+                return;
+            }
+            long packedAddress;
+            try {
+                packedAddress = DeviceRegistry.packAddress(address);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, e.getMessage());
+                return;
+            }
+            ledFleetManager.addLed(packedAddress);
+            ledFleetManager.sendCommand(isOn ? BleRemoteLed.COMMAND_LED_ON : BleRemoteLed.COMMAND_LED_OFF, new long[] {packedAddress});
+            onDispatched(requestId);
+        }
+
+        @Override
+        public void setAllLeds(boolean isOn, int requestId) {
+            LedFleetManager ledFleetManager = mLedFleetManager;
+            if (ledFleetManager == null) {
+                return;
+            }
+            ledFleetManager.sendGroupCommand(isOn ? BleRemoteLed.COMMAND_LED_ON : BleRemoteLed.COMMAND_LED_OFF);
+            onDispatched(requestId);
+        }
+
+        @Override
+        public ParcelFileDescriptor getStatusRegion() {
+            if (mStatusRegion == null) {
+                return null;
+            }
+            try {
+                return ParcelFileDescriptor.open(mStatusRegionFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "Could not open the status region: " + e.getMessage());
+                return null;
+            }
+        }
+    };
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        private final AdvertisementRecord mAdvertisementRecord = new AdvertisementRecord();
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onLedAdvertisement(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onLedAdvertisement(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Could not scan for Remote Led states: " + errorCode);
+        }
+
+        private void onLedAdvertisement(ScanResult result) {
+            if (result.getScanRecord() == null) {
+                return;
+            }
+            AdvertisementParser.parse(result.getScanRecord().getBytes(), mAdvertisementRecord);
+            mLedStateMonitor.onAdvertisement(DeviceRegistry.packAddress(result.getDevice().getAddress()), mAdvertisementRecord);
+        }
+    };
+
+    /**
+     * Publish the advertised states, and let group commands reach every Remote Led heard
+     */
+    private final LedStateCallback mLedStateCallback = new LedStateCallback() {
+        @Override
+        public void onLedStateChanged(long packedAddress, int ledState, int batteryLevel) {
+            mLedFleetManager.addLed(packedAddress);
+            if (mStatusRegion != null) {
+                mStatusRegion.setLedState(packedAddress, ledState, batteryLevel);
+            }
+        }
+    };
+
+    /**
+     * Publish connections and confirmed states
+     */
+    private final LedFleetCallback mLedFleetCallback = new LedFleetCallback() {
+        @Override
+        public void onLedConnected(long packedAddress) {
+            if (mStatusRegion != null) {
+                mStatusRegion.setConnected(packedAddress, true);
+            }
+        }
+
+        @Override
+        public void onLedDisconnected(long packedAddress) {
+            if (mStatusRegion != null) {
+                mStatusRegion.setConnected(packedAddress, false);
+            }
+        }
+
+        @Override
+        public void onLedStateChanged(long packedAddress, int ledState) {
+            if (mStatusRegion != null) {
+                mStatusRegion.setLedState(packedAddress, ledState, LedStatusRegion.UNKNOWN);
+            }
+        }
+
+        @Override
+        public void onGroupCommandComplete(GroupCommandTracker groupCommandTracker) {
+            Log.v(TAG, groupCommandTracker.toString());
+        }
+    };
+}
@@ -0,0 +1,308 @@
+package tonyg.example.com.bleledremote.service;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The state of every Remote Led, laid out in a small block of shared memory.
+ *
+ * The LedControlService writes the region and each client maps it read-only, so reading
+ * the state of the Remote Leds is a memory copy rather than a Binder call.  The layout is
+ * big-endian:
+ *
+ *   [magic][layout version][sequence][checksum][LED count][last request ID][last dispatch time, 8 bytes]
+ *   then MAX_LEDS entries of [address, 8 bytes][state][battery][connected][reserved, 5 bytes]
+ *
+ * The writer makes the sequence odd while it changes the region, and even again once the
+ * checksum is updated.  A reader copies the region, and keeps the copy only if the
+ * sequence was the same even number before and after and the checksum matches.  Java can't
+ * fence a mapped buffer, so the checksum catches any torn copy the sequence alone would miss.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LedStatusRegion {
+    public static final int MAGIC = 0x4C454453; // "LEDS"
+    public static final int LAYOUT_VERSION = 1;
+    public static final int MAX_LEDS = 32;
+    public static final int UNKNOWN = -1;
+    public static final int NO_REQUEST = 0;
+
+    /** Layout **/
+    private static final int MAGIC_POSITION = 0;
+    private static final int LAYOUT_VERSION_POSITION = 4;
+    private static final int SEQUENCE_POSITION = 8;
+    private static final int CHECKSUM_POSITION = 12;
+    private static final int COUNT_POSITION = 16; // the checksum covers everything from here on
+    private static final int REQUEST_ID_POSITION = 20;
+    private static final int DISPATCH_TIME_POSITION = 24;
+    private static final int ENTRIES_POSITION = 32;
+    private static final int ENTRY_LENGTH = 16;
+    private static final int ENTRY_ADDRESS_POSITION = 0;
+    private static final int ENTRY_STATE_POSITION = 8;
+    private static final int ENTRY_BATTERY_POSITION = 9;
+    private static final int ENTRY_CONNECTED_POSITION = 10;
+    public static final int SIZE = ENTRIES_POSITION + MAX_LEDS * ENTRY_LENGTH;
+
+    private static final int MAX_READ_ATTEMPTS = 64;
+
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer mCopyView; // for bulk copies, so mBuffer's position is never touched
+    private final byte[] mCopy = new byte[SIZE];
+    private final ByteBuffer mCopyBuffer = ByteBuffer.wrap(mCopy);
+    private final CRC32 mChecksum = new CRC32();
+
+    /**
+     * Use a block of memory as a status region
+     *
+     * @param buffer at least SIZE bytes: a memory-mapped file, or any ByteBuffer for testing
+     */
+    public LedStatusRegion(ByteBuffer buffer) {
+        if (buffer.capacity() < SIZE) {
+            throw new IllegalArgumentException("A status region needs " + SIZE + " bytes");
+        }
+        mBuffer = buffer;
+        mCopyView = buffer.duplicate();
+    }
+
+    /** Writing **/
+
+    /**
+     * Clear the region and mark it as a valid status region
+     */
+    public synchronized void initialize() {
+        int sequence = beginWrite();
+        for (int i = COUNT_POSITION; i < SIZE; i++) {
+            mBuffer.put(i, (byte) 0);
+        }
+        mBuffer.putInt(MAGIC_POSITION, MAGIC);
+        mBuffer.putInt(LAYOUT_VERSION_POSITION, LAYOUT_VERSION);
+        endWrite(sequence);
+    }
+
+    /**
+     * Record the state of a Remote Led.  Unknown Remote Leds are added while there is room
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param ledState the LED state, for example BleRemoteLed.LED_STATE_ON
+     * @param batteryLevel the battery level in percent, or UNKNOWN to keep the last one
+     * @return <b>false</b> if the region is full
+     */
+    public synchronized boolean setLedState(long packedAddress, int ledState, int batteryLevel) {
+        int entry = findOrAddEntry(packedAddress);
+        if (entry < 0) {
+            return false;
+        }
+        int sequence = beginWrite();
+        mBuffer.put(entry + ENTRY_STATE_POSITION, (byte) ledState);
+        if (batteryLevel != UNKNOWN) {
+            mBuffer.put(entry + ENTRY_BATTERY_POSITION, (byte) batteryLevel);
+        }
+        endWrite(sequence);
+        return true;
+    }
+
+    /**
+     * Record whether a Remote Led is connected.  Unknown Remote Leds are added while there is room
+     *
+     * @param packedAddress the Remote Led's packed MAC address
+     * @param isConnected <b>true</b> if the Remote Led is connected
+     * @return <b>false</b> if the region is full
+     */
+    public synchronized boolean setConnected(long packedAddress, boolean isConnected) {
+        int entry = findOrAddEntry(packedAddress);
+        if (entry < 0) {
+            return false;
+        }
+        int sequence = beginWrite();
+        mBuffer.put(entry + ENTRY_CONNECTED_POSITION, (byte) (isConnected ? 1 : 0));
+        endWrite(sequence);
+        return true;
+    }
+
+    /**
+     * Record that a client's command was handed to the Remote Leds
+     *
+     * @param requestId the ID the client sent with the command
+     * @param dispatchTime when, in SystemClock.elapsedRealtimeNanos() time
+     */
+    public synchronized void setLastDispatch(int requestId, long dispatchTime) {
+        int sequence = beginWrite();
+        mBuffer.putInt(REQUEST_ID_POSITION, requestId);
+        mBuffer.putLong(DISPATCH_TIME_POSITION, dispatchTime);
+        endWrite(sequence);
+    }
+
+    private int findOrAddEntry(long packedAddress) {
+        int count = mBuffer.getInt(COUNT_POSITION);
+        for (int i = 0; i < count; i++) {
+            int entry = ENTRIES_POSITION + i * ENTRY_LENGTH;
+            if (mBuffer.getLong(entry + ENTRY_ADDRESS_POSITION) == packedAddress) {
+                return entry;
+            }
+        }
+        if (count >= MAX_LEDS) {
+            return -1;
+        }
+        int entry = ENTRIES_POSITION + count * ENTRY_LENGTH;
+        int sequence = beginWrite();
+        mBuffer.putLong(entry + ENTRY_ADDRESS_POSITION, packedAddress);
+        mBuffer.put(entry + ENTRY_STATE_POSITION, (byte) UNKNOWN);
+        mBuffer.put(entry + ENTRY_BATTERY_POSITION, (byte) UNKNOWN);
+        mBuffer.put(entry + ENTRY_CONNECTED_POSITION, (byte) 0);
+        mBuffer.putInt(COUNT_POSITION, count + 1);
+        endWrite(sequence);
+        return entry;
+    }
+
+    /**
+     * Make the sequence odd, so readers know the region is changing
+     */
+    private int beginWrite() {
+        int sequence = mBuffer.getInt(SEQUENCE_POSITION) | 1;
+        mBuffer.putInt(SEQUENCE_POSITION, sequence);
+        return sequence;
+    }
+
+    /**
+     * Update the checksum, then make the sequence even again
+     */
+    private void endWrite(int sequence) {
+        copyRegion();
+        mChecksum.reset();
+        mChecksum.update(mCopy, COUNT_POSITION, SIZE - COUNT_POSITION);
+        mBuffer.putInt(CHECKSUM_POSITION, (int) mChecksum.getValue());
+        mBuffer.putInt(SEQUENCE_POSITION, sequence + 1);
+    }
+
+    /** Reading **/
+
+    /**
+     * Read a consistent copy of the region
+     *
+     * @param snapshot filled in with the state of every Remote Led
+     * @return <b>false</b> if the region isn't a status region, or the writer kept changing it
+     */
+    public synchronized boolean read(Snapshot snapshot) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            int sequence = mBuffer.getInt(SEQUENCE_POSITION);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            copyRegion();
+            if (mBuffer.getInt(SEQUENCE_POSITION) != sequence || !isCopyValid()) {
+                continue;
+            }
+
+            int count = Math.min(mCopyBuffer.getInt(COUNT_POSITION), MAX_LEDS);
+            snapshot.mSequence = sequence;
+            snapshot.mLedCount = count;
+            snapshot.mLastRequestId = mCopyBuffer.getInt(REQUEST_ID_POSITION);
+            snapshot.mLastDispatchTime = mCopyBuffer.getLong(DISPATCH_TIME_POSITION);
+            for (int i = 0; i < count; i++) {
+                int entry = ENTRIES_POSITION + i * ENTRY_LENGTH;
+                snapshot.mAddresses[i] = mCopyBuffer.getLong(entry + ENTRY_ADDRESS_POSITION);
+                snapshot.mLedStates[i] = mCopy[entry + ENTRY_STATE_POSITION];
+                snapshot.mBatteryLevels[i] = mCopy[entry + ENTRY_BATTERY_POSITION];
+                snapshot.mIsConnected[i] = mCopy[entry + ENTRY_CONNECTED_POSITION] != 0;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isCopyValid() {
+        if (mCopyBuffer.getInt(MAGIC_POSITION) != MAGIC || mCopyBuffer.getInt(LAYOUT_VERSION_POSITION) != LAYOUT_VERSION) {
+            return false;
+        }
+        mChecksum.reset();
+        mChecksum.update(mCopy, COUNT_POSITION, SIZE - COUNT_POSITION);
+        return mCopyBuffer.getInt(CHECKSUM_POSITION) == (int) mChecksum.getValue();
+    }
+
+    private void copyRegion() {
+        mCopyView.clear();
+        mCopyView.get(mCopy, 0, SIZE);
+    }
+
+    /**
+     * A consistent copy of the region.  Reuse one for every read, so reading doesn't allocate
+     */
+    public static class Snapshot {
+        private int mSequence;
+        private int mLedCount;
+        private int mLastRequestId = NO_REQUEST;
+        private long mLastDispatchTime;
+        private final long[] mAddresses = new long[MAX_LEDS];
+        private final int[] mLedStates = new int[MAX_LEDS];
+        private final int[] mBatteryLevels = new int[MAX_LEDS];
+        private final boolean[] mIsConnected = new boolean[MAX_LEDS];
+
+        /**
+         * Get the region's sequence, which changes whenever the region does
+         */
+        public int getSequence() {
+            return mSequence;
+        }
+
+        public int getLedCount() {
+            return mLedCount;
+        }
+
+        /**
+         * Find a Remote Led
+         *
+         * @param packedAddress the Remote Led's packed MAC address
+         * @return its index, or -1 if it isn't in the region
+         */
+        public int indexOf(long packedAddress) {
+            for (int i = 0; i < mLedCount; i++) {
+                if (mAddresses[i] == packedAddress) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public long getAddress(int index) {
+            return mAddresses[index];
+        }
+
+        /**
+         * Get the state of a Remote Led
+         *
+         * @return the LED state, for example BleRemoteLed.LED_STATE_ON, or UNKNOWN
+         */
+        public int getLedState(int index) {
+            return mLedStates[index];
+        }
+
+        /**
+         * Get the battery level of a Remote Led
+         *
+         * @return the battery level in percent, or UNKNOWN
+         */
+        public int getBatteryLevel(int index) {
+            return mBatteryLevels[index];
+        }
+
+        public boolean isConnected(int index) {
+            return mIsConnected[index];
+        }
+
+        /**
+         * Get the ID of the last command handed to the Remote Leds
+         */
+        public int getLastRequestId() {
+            return mLastRequestId;
+        }
+
+        /**
+         * Get when the last command was handed to the Remote Leds, in SystemClock.elapsedRealtimeNanos() time
+         */
+        public long getLastDispatchTime() {
+            return mLastDispatchTime;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * AdaptiveScanPolicy scan windows and early exits, replaying scan histories
+ */
+public class AdaptiveScanPolicyTest {
+
+    /**
+     * Play one scan
+     *
+     * @param start when the scan starts
+     * @param timeToFirstMatch when the Peripheral is found, after the start, or -1 for never
+     * @param duration when the scan stops, after the start
+     * @param stoppedEarly <b>true</b> if it stops before the window runs out
+     * @return when the scan stopped
+     */
+    private static long scan(AdaptiveScanPolicy policy, long start, long timeToFirstMatch, long duration, boolean stoppedEarly) {
+        policy.onScanStarted(start);
+        if (timeToFirstMatch >= 0) {
+            policy.onCandidateFound(start + timeToFirstMatch, "A4:C1:38:0F:9E:2B", -80);
+        }
+        policy.onScanStopped(start + duration, stoppedEarly);
+        return start + duration;
+    }
+
+    @Test
+    public void onScanStopped_sizesTheWindowFromThe90thPercentile() throws Exception {
+        AdaptiveScanPolicy policy = new AdaptiveScanPolicy();
+        assertEquals(AdaptiveScanPolicy.DEFAULT_SCAN_PERIOD_MS, policy.getScanPeriod());
+        long now = 0;
+        for (int i = 1; i <= 10; i++) {
+            now = scan(policy, now, i * 100, i * 100, true);
+        }
+
+        assertEquals(900, policy.getTimeToFirstMatchPercentile(90));
+        assertEquals(1800, policy.getScanPeriod());
+        AdaptiveScanPolicy.Metrics metrics = policy.getMetrics();
+        assertEquals(10, metrics.scansStarted);
+        assertEquals(10, metrics.scansMatched);
+        assertEquals(10, metrics.scansExitedEarly);
+        assertEquals(0, metrics.scansTimedOut);
+        assertEquals(5500, metrics.totalScanTimeMs);
+        assertEquals(600, metrics.timeToFirstMatchP50Ms);
+        assertEquals(900, metrics.timeToFirstMatchP90Ms);
+        assertEquals(1800, metrics.scanPeriodMs);
+    }
+
+    @Test
+    public void onScanStopped_ignoresAnOutlierPastThe90thPercentile() throws Exception {
+        AdaptiveScanPolicy policy = new AdaptiveScanPolicy();
+        long now = 0;
+        // the history holds the last 16 scans
+        for (int i = 0; i < 16; i++) {
+            now = scan(policy, now, 4000, 4000, true);
+        }
+        assertEquals(8000, policy.getScanPeriod());
+        for (int i = 0; i < 14; i++) {
+            now = scan(policy, now, 100, 100, true);
+        }
+        // two slow scans are still past the 90th percentile
+        assertEquals(8000, policy.getScanPeriod());
+        now = scan(policy, now, 100, 100, true);
+        // one is an outlier, so the window shrinks, no lower than the minimum
+        assertEquals(100, policy.getTimeToFirstMatchPercentile(90));
+        assertEquals(AdaptiveScanPolicy.MIN_SCAN_PERIOD_MS, policy.getScanPeriod());
+    }
+
+    @Test
+    public void onScanStopped_doublesTheWindowAfterAnEmptyTimeout() throws Exception {
+        AdaptiveScanPolicy policy = new AdaptiveScanPolicy();
+        long now = scan(policy, 0, -1, AdaptiveScanPolicy.DEFAULT_SCAN_PERIOD_MS, false);
+        assertEquals(2 * AdaptiveScanPolicy.DEFAULT_SCAN_PERIOD_MS, policy.getScanPeriod());
+        now = scan(policy, now, -1, policy.getScanPeriod(), false);
+        assertEquals(AdaptiveScanPolicy.MAX_SCAN_PERIOD_MS, policy.getScanPeriod());
+        // a scan stopped by the user, having found nothing, says nothing about the window
+        now = scan(policy, now, -1, 300, true);
+        assertEquals(AdaptiveScanPolicy.MAX_SCAN_PERIOD_MS, policy.getScanPeriod());
+
+        AdaptiveScanPolicy.Metrics metrics = policy.getMetrics();
+        assertEquals(3, metrics.scansStarted);
+        assertEquals(0, metrics.scansMatched);
+        assertEquals(2, metrics.scansTimedOut);
+        assertEquals(1, metrics.scansExitedEarly);
+        assertEquals(now, metrics.totalScanTimeMs);
+        assertEquals(-1, metrics.timeToFirstMatchP50Ms);
+    }
+
+    @Test
+    public void onScanStopped_clampsTheWindow() throws Exception {
+        AdaptiveScanPolicy policy = new AdaptiveScanPolicy();
+        long now = scan(policy, 0, 8000, 9000, false);
+        assertEquals(AdaptiveScanPolicy.MAX_SCAN_PERIOD_MS, policy.getScanPeriod());
+
+        policy = new AdaptiveScanPolicy();
+        scan(policy, now, 100, 100, true);
+        assertEquals(AdaptiveScanPolicy.MIN_SCAN_PERIOD_MS, policy.getScanPeriod());
+    }
+
+    @Test
+    public void onCandidateFound_exitsOnEnoughCandidatesOrACloseOne() throws Exception {
+        AdaptiveScanPolicy policy = new AdaptiveScanPolicy();
+        assertFalse(policy.onCandidateFound(0, "02:00:00:00:00:01", -40));
+
+        policy.onScanStarted(0);
+        assertFalse(policy.onCandidateFound(10, "02:00:00:00:00:01", -80));
+        // the same Peripheral again doesn't count twice
+        assertFalse(policy.onCandidateFound(20, "02:00:00:00:00:01", -80));
+        assertFalse(policy.onCandidateFound(30, "02:00:00:00:00:02", -80));
+        assertTrue(policy.onCandidateFound(40, "02:00:00:00:00:03", -80));
+        policy.onScanStopped(40, true);
+
+        policy.setTargetCandidates(10);
+        policy.setTargetRssi(-50);
+        policy.onScanStarted(100);
+        assertFalse(policy.onCandidateFound(110, "02:00:00:00:00:01", -51));
+        assertTrue(policy.onCandidateFound(120, "02:00:00:00:00:02", -50));
+        policy.onScanStopped(120, true);
+        assertEquals(10, policy.getTimeToFirstMatchPercentile(50));
+    }
+}
@@ -0,0 +1,125 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * AdvertisementParser over scan records captured from real Peripherals
+ */
+public class AdvertisementParserTest {
+    // Remote Led, as delivered to onLeScan(): flags, complete name, 16-bit Services, zero padding
+    private static final String LED_REMOTE =
+            "020106"
+            + "0A094C656452656D6F7465"
+            + "0703" + "0A180F181518"
+            + "000000000000000000000000000000000000000000000000000000000000000000000000";
+
+    // Nordic UART Peripheral: flags, 128-bit Service, TX power, Battery Service Data, shortened name
+    private static final String NORDIC_UART =
+            "020106"
+            + "1107" + "9ECADC240EE5A9E093F3A3B50100406E"
+            + "020A04"
+            + "04160F185A"
+            + "0508" + "4E6F7264";
+
+    // iBeacon: flags and Apple Manufacturer Specific Data
+    private static final String IBEACON =
+            "020106"
+            + "1AFF" + "4C000215" + "FDA50693A4E24FB1AFCFC6EB07647825" + "2711" + "4CB9" + "C5";
+
+    private static final UUID NORDIC_UART_SERVICE_UUID = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    @Test
+    public void parse_ledRemote() throws Exception {
+        AdvertisementRecord record = new AdvertisementRecord();
+        assertTrue(AdvertisementParser.parse(hex(LED_REMOTE), record));
+
+        assertEquals(0x06, record.getFlags());
+        assertTrue(record.hasLocalName());
+        assertTrue(record.nameEquals(BleRemoteLed.ADVERTISED_NAME));
+        assertFalse(record.nameEquals("LedRemot"));
+        assertFalse(record.nameEquals("LedRemotE"));
+        assertEquals("LedRemote", record.getLocalName());
+        assertTrue(record.hasServiceUuid16(0x1815));
+        assertTrue(record.hasServiceUuid(BleRemoteLed.SERVICE_UUID));
+        assertFalse(record.hasServiceUuid16(0x1800));
+        assertEquals(AdvertisementRecord.UNKNOWN_TX_POWER, record.getTxPowerLevel());
+        assertEquals(-1, record.getServiceDataOffset(0x180F));
+    }
+
+    @Test
+    public void parse_uuid128TxPowerAndServiceData() throws Exception {
+        byte[] scanRecord = hex(NORDIC_UART);
+        AdvertisementRecord record = new AdvertisementRecord();
+        assertTrue(AdvertisementParser.parse(scanRecord, record));
+
+        assertTrue(record.hasServiceUuid(NORDIC_UART_SERVICE_UUID));
+        assertFalse(record.hasServiceUuid(UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e")));
+        assertEquals(4, record.getTxPowerLevel());
+        assertEquals(1, record.getServiceDataLength(0x180F));
+        assertEquals(90, scanRecord[record.getServiceDataOffset(0x180F)]);
+        assertTrue(record.nameEquals("Nord"));
+    }
+
+    @Test
+    public void parse_manufacturerData() throws Exception {
+        byte[] scanRecord = hex(IBEACON);
+        AdvertisementRecord record = new AdvertisementRecord();
+        assertTrue(AdvertisementParser.parse(scanRecord, record));
+
+        assertFalse(record.hasLocalName());
+        assertNull(record.getLocalName());
+        assertEquals(23, record.getManufacturerDataLength(0x004C));
+        assertEquals(0x02, scanRecord[record.getManufacturerDataOffset(0x004C)]);
+        assertEquals(-1, record.getManufacturerDataOffset(0x0059));
+    }
+
+    @Test
+    public void parse_uuid16InBaseUuidForm() throws Exception {
+        // Automation IO Service advertised as a 128-bit UUID
+        byte[] scanRecord = hex("1107" + "FB349B5F80000080001000001518" + "0000");
+        AdvertisementRecord record = new AdvertisementRecord();
+        assertTrue(AdvertisementParser.parse(scanRecord, record));
+
+        assertTrue(record.hasServiceUuid16(0x1815));
+        assertTrue(record.hasServiceUuid(BleRemoteLed.SERVICE_UUID));
+    }
+
+    @Test
+    public void parse_truncatedRecordKeepsEarlierFields() throws Exception {
+        AdvertisementRecord record = new AdvertisementRecord();
+        assertFalse(AdvertisementParser.parse(hex("020106" + "0A094C6564"), record));
+
+        assertEquals(0x06, record.getFlags());
+        assertFalse(record.hasLocalName());
+    }
+
+    @Test
+    public void parse_reusedRecordForgetsPreviousAdvertisement() throws Exception {
+        AdvertisementRecord record = new AdvertisementRecord();
+        AdvertisementParser.parse(hex(NORDIC_UART), record);
+        AdvertisementParser.parse(hex(IBEACON), record);
+
+        assertFalse(record.hasLocalName());
+        assertEquals(AdvertisementRecord.UNKNOWN_TX_POWER, record.getTxPowerLevel());
+        assertFalse(record.hasServiceUuid(NORDIC_UART_SERVICE_UUID));
+        assertEquals(-1, record.getServiceDataOffset(0x180F));
+    }
+
+    @Test
+    public void toUuid16() throws Exception {
+        assertEquals(0x1815, AdvertisementRecord.toUuid16(BleRemoteLed.SERVICE_UUID));
+        assertEquals(-1, AdvertisementRecord.toUuid16(NORDIC_UART_SERVICE_UUID));
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
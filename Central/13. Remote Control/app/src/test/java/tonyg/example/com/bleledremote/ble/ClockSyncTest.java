@@ -0,0 +1,136 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * ClockSync estimates over a simulated connection, and the switching skew they give a group
+ */
+public class ClockSyncTest {
+    private static final long CONNECTION_INTERVAL = 30000; // 30ms connection interval, in microseconds
+
+    /**
+     * A Remote Led's clock: ahead of the local clock by an offset, and running fast or slow
+     */
+    private static class RemoteClock {
+        final long mOffset;
+        final double mDrift;
+
+        RemoteClock(long offset, double drift) {
+            mOffset = offset;
+            mDrift = drift;
+        }
+
+        long at(long localTime) {
+            return localTime + mOffset + Math.round(mDrift * localTime);
+        }
+    }
+
+    /**
+     * Exchange time sync messages over a link that only delivers on connection events
+     *
+     * @return the local time after the last exchange
+     */
+    private static long synchronize(ClockSync clockSync, RemoteClock remoteClock, long startTime, int exchanges, Random random) {
+        return synchronize(clockSync, remoteClock, startTime, exchanges, 100000, random);
+    }
+
+    private static long synchronize(ClockSync clockSync, RemoteClock remoteClock, long startTime, int exchanges, long spacing, Random random) {
+        long now = startTime;
+        for (int i = 0; i < exchanges; i++) {
+            long t0 = now;
+            // wait up to one connection interval each way, plus a little processing time
+            long requestArrives = t0 + random.nextInt((int) CONNECTION_INTERVAL) + 500;
+            long responseSent = requestArrives + 200 + random.nextInt(300);
+            long t3 = responseSent + random.nextInt((int) CONNECTION_INTERVAL) + 500;
+            clockSync.addSample(t0, remoteClock.at(requestArrives), remoteClock.at(responseSent), t3);
+            now = t3 + spacing;
+        }
+        return now;
+    }
+
+    @Test
+    public void addSample_estimatesOffset() throws Exception {
+        ClockSync clockSync = new ClockSync();
+        RemoteClock remoteClock = new RemoteClock(-7345678901L, 0);
+        synchronize(clockSync, remoteClock, 1000000, ClockSync.MAX_SAMPLES, new Random(5));
+
+        assertTrue(clockSync.isSynchronized());
+        long error = clockSync.toRemoteTime(5000000) - remoteClock.at(5000000);
+        assertTrue("offset error " + error + "us", Math.abs(error) < CONNECTION_INTERVAL / 4);
+        assertTrue(clockSync.getRoundTripDelay() < CONNECTION_INTERVAL);
+    }
+
+    @Test
+    public void addSample_estimatesDrift() throws Exception {
+        ClockSync clockSync = new ClockSync();
+        // 50ppm fast, a typical crystal
+        RemoteClock remoteClock = new RemoteClock(123456, 50e-6);
+        // one exchange a minute, for a quarter of an hour
+        long now = synchronize(clockSync, remoteClock, 0, ClockSync.MAX_SAMPLES, 60000000, new Random(6));
+
+        assertEquals(50, clockSync.getDriftPpm(), 25);
+        // predicting a minute ahead still lands within a few ms
+        long later = now + 60000000;
+        assertTrue(Math.abs(clockSync.toRemoteTime(later) - remoteClock.at(later)) < CONNECTION_INTERVAL / 4);
+    }
+
+    @Test
+    public void addSample_ignoresDriftOverShortSpan() throws Exception {
+        ClockSync clockSync = new ClockSync();
+        synchronize(clockSync, new RemoteClock(123456, 50e-6), 0, ClockSync.MAX_SAMPLES, new Random(10));
+        assertEquals(0, clockSync.getDriftPpm(), 0);
+    }
+
+    @Test
+    public void toLocalTime_invertsToRemoteTime() throws Exception {
+        ClockSync clockSync = new ClockSync();
+        synchronize(clockSync, new RemoteClock(999999, 20e-6), 0, ClockSync.MAX_SAMPLES, 1000000, new Random(7));
+        long localTime = 3000000;
+        assertEquals(localTime, clockSync.toLocalTime(clockSync.toRemoteTime(localTime)), 1);
+    }
+
+    @Test
+    public void isSynchronized_needsMinimumSamples() throws Exception {
+        ClockSync clockSync = new ClockSync();
+        synchronize(clockSync, new RemoteClock(0, 0), 0, ClockSync.MIN_SAMPLES - 1, new Random(8));
+        assertFalse(clockSync.isSynchronized());
+        clockSync.reset();
+        assertEquals(0, clockSync.getSampleCount());
+    }
+
+    @Test
+    public void scheduledCommand_switchingSkewAcrossGroup() throws Exception {
+        int groupSize = 10;
+        Random random = new Random(9);
+        long[] addresses = new long[groupSize];
+        for (int i = 0; i < groupSize; i++) {
+            addresses[i] = 0xA4C1380F9E00L + i;
+        }
+        GroupCommandTracker scheduled = new GroupCommandTracker(BleRemoteLed.COMMAND_LED_ON, addresses, 0);
+        GroupCommandTracker immediate = new GroupCommandTracker(BleRemoteLed.COMMAND_LED_ON, addresses, 0);
+        long executeAt = 5000000;
+
+        for (int i = 0; i < groupSize; i++) {
+            RemoteClock remoteClock = new RemoteClock(random.nextLong() % 1000000000L, (random.nextDouble() - 0.5) * 100e-6);
+            ClockSync clockSync = new ClockSync();
+            synchronize(clockSync, remoteClock, 0, 2 * ClockSync.MIN_SAMPLES, random);
+
+            // the Remote Led switches when its own clock reaches the converted time
+            long remoteExecuteAt = clockSync.toRemoteTime(executeAt);
+            long trueLocalTime = executeAt + (remoteExecuteAt - remoteClock.at(executeAt));
+            scheduled.onDeviceExecuted(addresses[i], trueLocalTime);
+
+            // without scheduling, each one switches on its next connection event
+            immediate.onDeviceExecuted(addresses[i], executeAt + random.nextInt((int) CONNECTION_INTERVAL));
+        }
+
+        System.out.println("ClockSync: switching skew " + scheduled.getSwitchingSkew() + "us scheduled, "
+                + immediate.getSwitchingSkew() + "us immediate");
+        assertTrue(scheduled.getSwitchingSkew() < immediate.getSwitchingSkew());
+        assertTrue(scheduled.getSwitchingSkew() < CONNECTION_INTERVAL / 2);
+    }
+}
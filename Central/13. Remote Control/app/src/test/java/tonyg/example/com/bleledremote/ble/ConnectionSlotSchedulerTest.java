@@ -0,0 +1,117 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * ConnectionSlotScheduler rotation through a fleet bigger than the connection limit
+ */
+public class ConnectionSlotSchedulerTest {
+    private static final long LED = 0xA4C1380F9E00L;
+
+    @Test
+    public void request_waitsWhenSlotsAreFull() throws Exception {
+        ConnectionSlotScheduler slotScheduler = new ConnectionSlotScheduler(2);
+        assertTrue(slotScheduler.request(LED));
+        assertTrue(slotScheduler.request(LED + 1));
+        assertFalse(slotScheduler.request(LED + 2));
+        assertFalse(slotScheduler.request(LED));
+
+        assertEquals(2, slotScheduler.getConnectedCount());
+        assertEquals(1, slotScheduler.getWaitingCount());
+        assertTrue(slotScheduler.isAnyoneWaiting());
+    }
+
+    @Test
+    public void release_handsSlotToNextInLine() throws Exception {
+        ConnectionSlotScheduler slotScheduler = new ConnectionSlotScheduler(1);
+        slotScheduler.request(LED);
+        slotScheduler.request(LED + 1);
+        slotScheduler.request(LED + 2);
+
+        assertEquals(LED + 1, slotScheduler.release(LED));
+        assertTrue(slotScheduler.hasSlot(LED + 1));
+        assertEquals(LED + 2, slotScheduler.release(LED + 1));
+        assertEquals(DeviceRegistry.NO_ADDRESS, slotScheduler.release(LED + 2));
+        assertEquals(0, slotScheduler.getConnectedCount());
+    }
+
+    @Test
+    public void release_ofWaitingLedLeavesLine() throws Exception {
+        ConnectionSlotScheduler slotScheduler = new ConnectionSlotScheduler(1);
+        slotScheduler.request(LED);
+        slotScheduler.request(LED + 1);
+
+        assertEquals(DeviceRegistry.NO_ADDRESS, slotScheduler.release(LED + 1));
+        assertFalse(slotScheduler.isAnyoneWaiting());
+    }
+
+    @Test
+    public void groupCommand_rotatesThroughFleet() throws Exception {
+        int fleetSize = 30;
+        int maxConnections = 7;
+        long connectTime = 600;
+        Random random = new Random(4);
+
+        long[] addresses = new long[fleetSize];
+        for (int i = 0; i < fleetSize; i++) {
+            addresses[i] = LED + i;
+        }
+        ConnectionSlotScheduler slotScheduler = new ConnectionSlotScheduler(maxConnections);
+        GroupCommandTracker groupCommandTracker = new GroupCommandTracker(BleRemoteLed.COMMAND_LED_ON, addresses, 0);
+
+        // each connected Remote Led confirms the command after connecting and a write round trip,
+        // then disconnects to make room for the next
+        PriorityQueue<long[]> events = new PriorityQueue<long[]>(fleetSize, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+            }
+        });
+        for (long packedAddress : addresses) {
+            if (slotScheduler.request(packedAddress)) {
+                events.add(new long[] {connectTime + 30 + random.nextInt(60), packedAddress});
+            }
+        }
+        int maxConnected = slotScheduler.getConnectedCount();
+        while (!events.isEmpty()) {
+            long[] event = events.poll();
+            long now = event[0];
+            groupCommandTracker.onDeviceComplete(event[1], true, now);
+            long nextAddress = slotScheduler.release(event[1]);
+            if (nextAddress != DeviceRegistry.NO_ADDRESS) {
+                events.add(new long[] {now + connectTime + 30 + random.nextInt(60), nextAddress});
+            }
+            maxConnected = Math.max(maxConnected, slotScheduler.getConnectedCount());
+        }
+
+        System.out.println("ConnectionSlotScheduler: " + groupCommandTracker);
+        assertTrue(groupCommandTracker.isComplete());
+        assertEquals(0, groupCommandTracker.getFailedCount());
+        assertEquals(maxConnections, maxConnected);
+        // 30 Remote Leds through 7 slots take 5 rounds, not 30 sequential sessions
+        assertTrue(groupCommandTracker.getGroupLatency() <= 5 * (connectTime + 90));
+        assertTrue(groupCommandTracker.getLatencyPercentile(50) < groupCommandTracker.getGroupLatency());
+    }
+
+    @Test
+    public void groupCommandTracker_reportsFailuresAndIgnoresRepeats() throws Exception {
+        GroupCommandTracker groupCommandTracker = new GroupCommandTracker(BleRemoteLed.COMMAND_LED_OFF, new long[] {LED, LED + 1}, 100);
+        assertFalse(groupCommandTracker.onDeviceComplete(LED, true, 150));
+        assertFalse(groupCommandTracker.onDeviceComplete(LED, false, 170));
+        assertEquals(GroupCommandTracker.NOT_COMPLETE, groupCommandTracker.getGroupLatency());
+        assertTrue(groupCommandTracker.onDeviceComplete(LED + 1, false, 300));
+
+        assertEquals(50, groupCommandTracker.getLatency(LED));
+        assertTrue(groupCommandTracker.isSuccessful(LED));
+        assertFalse(groupCommandTracker.isSuccessful(LED + 1));
+        assertEquals(1, groupCommandTracker.getFailedCount());
+        assertEquals(200, groupCommandTracker.getGroupLatency());
+        assertEquals(50, groupCommandTracker.getLatencyPercentile(90));
+    }
+}
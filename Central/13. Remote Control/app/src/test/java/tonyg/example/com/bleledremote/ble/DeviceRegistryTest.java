@@ -0,0 +1,95 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * DeviceRegistry bookkeeping, eviction, and update throughput
+ */
+public class DeviceRegistryTest {
+    private static final long MIN_UPDATES_PER_SECOND = 50000;
+
+    @Test
+    public void packAddress_roundTrips() throws Exception {
+        long packedAddress = DeviceRegistry.packAddress("A4:C1:38:0F:9E:2B");
+        assertEquals(0xA4C1380F9E2BL, packedAddress);
+        assertEquals("A4:C1:38:0F:9E:2B", DeviceRegistry.unpackAddress(packedAddress));
+        assertEquals(0xA4C1380F9E2BL, DeviceRegistry.packAddress("a4:c1:38:0f:9e:2b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void packAddress_rejectsMalformedAddress() throws Exception {
+        DeviceRegistry.packAddress("A4-C1-38-0F-9E-2B");
+    }
+
+    @Test
+    public void update_smoothsRssi() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(1000, 0.5f);
+        assertTrue(registry.update(1, -80, 0x06, 0));
+        assertFalse(registry.update(1, -60, DeviceRegistry.UNKNOWN_FLAGS, 10));
+
+        assertEquals(-70, registry.getSmoothedRssi(1));
+        assertEquals(0x06, registry.getFlags(1));
+        assertEquals(10, registry.getLastSeen(1));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void setName_isRememberedUntilEviction() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(1000, 0.5f);
+        registry.setName(1, "ignored");
+        assertNull(registry.getName(1));
+
+        registry.update(1, -70, DeviceRegistry.UNKNOWN_FLAGS, 0);
+        registry.setName(1, "LedRemote");
+        assertEquals("LedRemote", registry.getName(1));
+
+        registry.evictExpired(2000);
+        assertNull(registry.getName(1));
+        assertFalse(registry.contains(1));
+    }
+
+    @Test
+    public void evictExpired_keepsRecentDevicesReachable() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(1000, 0.5f);
+        // plenty of devices sharing a vendor prefix, so probe chains form and wrap around
+        for (int i = 0; i < 1000; i++) {
+            registry.update(0xA4C138000000L + i, -60, DeviceRegistry.UNKNOWN_FLAGS, i % 2 == 0 ? 0 : 1500);
+        }
+        assertEquals(500, registry.evictExpired(1600));
+        assertEquals(500, registry.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 != 0, registry.contains(0xA4C138000000L + i));
+        }
+    }
+
+    @Test
+    public void update_throughput() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry();
+        int deviceCount = 500;
+        long[] addresses = new long[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            addresses[i] = 0xA4C138000000L + i * 7919;
+        }
+
+        // warm up, and grow the table to its final size
+        runUpdates(registry, addresses, 200000);
+
+        int updates = 2000000;
+        long start = System.nanoTime();
+        runUpdates(registry, addresses, updates);
+        long elapsed = System.nanoTime() - start;
+
+        long updatesPerSecond = updates * 1000000000L / Math.max(1, elapsed);
+        System.out.println("DeviceRegistry: " + updatesPerSecond + " updates/s");
+        assertTrue("only " + updatesPerSecond + " updates/s", updatesPerSecond >= MIN_UPDATES_PER_SECOND);
+        assertEquals(deviceCount, registry.size());
+    }
+
+    private static void runUpdates(DeviceRegistry registry, long[] addresses, int updates) {
+        for (int i = 0; i < updates; i++) {
+            registry.update(addresses[i % addresses.length], -40 - (i & 0x3F), 0x06, i);
+        }
+    }
+}
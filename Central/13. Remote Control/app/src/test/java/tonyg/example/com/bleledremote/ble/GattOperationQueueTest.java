@@ -0,0 +1,67 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * GattOperationQueue ordering and failure handling
+ */
+public class GattOperationQueueTest {
+    private final List<String> mEvents = new ArrayList<String>();
+
+    private GattOperationQueue.Operation operation(final String name) {
+        return new GattOperationQueue.Operation() {
+            @Override
+            public void execute() {
+                mEvents.add("execute " + name);
+            }
+
+            @Override
+            public void fail() {
+                mEvents.add("fail " + name);
+            }
+        };
+    }
+
+    @Test
+    public void enqueue_waitsUntilReady() throws Exception {
+        GattOperationQueue operationQueue = new GattOperationQueue();
+        operationQueue.enqueue(operation("a"));
+        assertTrue(mEvents.isEmpty());
+
+        operationQueue.setReady(true);
+        assertEquals("execute a", mEvents.get(0));
+    }
+
+    @Test
+    public void enqueue_runsOneAtATime() throws Exception {
+        GattOperationQueue operationQueue = new GattOperationQueue();
+        operationQueue.setReady(true);
+        operationQueue.enqueue(operation("a"));
+        operationQueue.enqueue(operation("b"));
+        assertEquals(1, mEvents.size());
+        assertEquals(2, operationQueue.size());
+
+        operationQueue.onOperationComplete();
+        assertEquals("execute b", mEvents.get(1));
+        operationQueue.onOperationComplete();
+        assertTrue(operationQueue.isIdle());
+    }
+
+    @Test
+    public void clear_failsRunningAndWaitingOperations() throws Exception {
+        GattOperationQueue operationQueue = new GattOperationQueue();
+        operationQueue.setReady(true);
+        operationQueue.enqueue(operation("a"));
+        operationQueue.enqueue(operation("b"));
+        operationQueue.clear();
+
+        assertEquals("fail a", mEvents.get(1));
+        assertEquals("fail b", mEvents.get(2));
+        assertTrue(operationQueue.isIdle());
+    }
+}
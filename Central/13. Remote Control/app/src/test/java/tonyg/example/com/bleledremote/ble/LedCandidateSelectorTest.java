@@ -0,0 +1,135 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * LedCandidateSelector ranking, hysteresis against churn, and connection tracking
+ */
+public class LedCandidateSelectorTest {
+    private static final long LED_1 = 0x020000000001L;
+    private static final long LED_2 = 0x020000000002L;
+
+    private final DeviceRegistry mDeviceRegistry = new DeviceRegistry(60000, 1f); // no smoothing: the RSSI is the last one heard
+
+    /**
+     * Play one selection round, hearing each Remote Led at the given RSSI
+     */
+    private long select(LedCandidateSelector selector, long now, int led1Rssi, int led2Rssi) {
+        selector.beginSelection(now);
+        mDeviceRegistry.update(LED_1, led1Rssi, DeviceRegistry.UNKNOWN_FLAGS, now);
+        selector.addCandidate(LED_1);
+        mDeviceRegistry.update(LED_2, led2Rssi, DeviceRegistry.UNKNOWN_FLAGS, now);
+        selector.addCandidate(LED_2);
+        return selector.selectBest(mDeviceRegistry);
+    }
+
+    private static void connect(LedCandidateSelector selector, long packedAddress, boolean isConnected) {
+        selector.onConnectionAttempt(packedAddress);
+        if (isConnected) {
+            selector.onConnected();
+        }
+        selector.onDisconnected();
+    }
+
+    @Test
+    public void selectBest_ranksBySmoothedRssiAndSuccessRate() throws Exception {
+        LedCandidateSelector selector = new LedCandidateSelector();
+        assertEquals(LED_1, select(selector, 0, -60, -70));
+
+        selector = new LedCandidateSelector();
+        // the closer Remote Led keeps failing to connect, the other always connects
+        for (int i = 0; i < 3; i++) {
+            connect(selector, LED_1, false);
+            connect(selector, LED_2, true);
+        }
+        assertEquals(0.2f, selector.getConnectionSuccessRate(LED_1), 0.001f);
+        assertEquals(0.8f, selector.getConnectionSuccessRate(LED_2), 0.001f);
+        // -60 + 2 scores below -64 + 8
+        assertEquals(LED_2, select(selector, 1000, -60, -64));
+    }
+
+    @Test
+    public void selectBest_keepsTheLastChoiceUnlessAnotherIsClearlyBetter() throws Exception {
+        LedCandidateSelector selector = new LedCandidateSelector();
+        assertEquals(LED_1, select(selector, 0, -60, -62));
+        // two Remote Leds at about the same distance, their RSSIs wavering 4 dB apart either way
+        int switches = 0;
+        long choice = LED_1;
+        for (int i = 1; i <= 20; i++) {
+            int wobble = i % 2 == 0 ? 2 : -2;
+            long newChoice = select(selector, i * 1000, -60 - wobble, -60 + wobble);
+            if (newChoice != choice) {
+                switches++;
+            }
+            choice = newChoice;
+        }
+        assertEquals(0, switches);
+
+        assertEquals(LED_1, select(selector, 30000, -60, -60 + LedCandidateSelector.HYSTERESIS_DB - 1));
+        assertEquals(LED_2, select(selector, 31000, -60, -60 + LedCandidateSelector.HYSTERESIS_DB));
+        // and now the new choice is the one kept
+        assertEquals(LED_2, select(selector, 32000, -57, -60));
+    }
+
+    @Test
+    public void selectBest_choosesAnotherWhenTheLastChoiceIsntHeard() throws Exception {
+        LedCandidateSelector selector = new LedCandidateSelector();
+        assertEquals(LED_1, select(selector, 0, -60, -80));
+
+        selector.beginSelection(1000);
+        mDeviceRegistry.update(LED_2, -80, DeviceRegistry.UNKNOWN_FLAGS, 1000);
+        selector.addCandidate(LED_2);
+        selector.addCandidate(LED_2);
+        assertEquals(1, selector.getCandidateCount());
+        assertEquals(LED_2, selector.selectBest(mDeviceRegistry));
+
+        // nothing heard
+        selector.beginSelection(2000);
+        assertEquals(DeviceRegistry.NO_ADDRESS, selector.selectBest(mDeviceRegistry));
+    }
+
+    @Test
+    public void isWindowComplete_waitsForTheSelectionWindow() throws Exception {
+        LedCandidateSelector selector = new LedCandidateSelector();
+        assertFalse(selector.isWindowComplete(0));
+        selector.beginSelection(1000);
+        assertFalse(selector.isWindowComplete(1000 + LedCandidateSelector.SELECTION_WINDOW_MS - 1));
+        assertTrue(selector.isWindowComplete(1000 + LedCandidateSelector.SELECTION_WINDOW_MS));
+        selector.cancelSelection();
+        assertFalse(selector.isWindowComplete(5000));
+    }
+
+    @Test
+    public void onCommandConfirmed_tracksSuccessAndFirstCommandLatency() throws Exception {
+        LedCandidateSelector selector = new LedCandidateSelector();
+        assertEquals(0.5f, selector.getConnectionSuccessRate(LED_1), 0.001f);
+        assertEquals(-1, selector.getFirstCommandLatency(LED_1));
+
+        selector.onConnectionAttempt(LED_1);
+        // not connected yet, so not timed
+        selector.onCommandSent(50);
+        selector.onConnected();
+        selector.onConnected();
+        selector.onCommandSent(100);
+        selector.onCommandSent(150);
+        selector.onCommandConfirmed(180);
+        // only the first command on a connection counts
+        selector.onCommandSent(200);
+        selector.onCommandConfirmed(900);
+        selector.onDisconnected();
+        assertEquals(80, selector.getFirstCommandLatency(LED_1));
+
+        connect(selector, LED_1, false);
+        assertEquals(0.5f, selector.getConnectionSuccessRate(LED_1), 0.001f);
+
+        selector.onConnectionAttempt(LED_1);
+        selector.onConnected();
+        selector.onCommandSent(1000);
+        selector.onCommandConfirmed(1040);
+        selector.onDisconnected();
+        assertEquals(60, selector.getFirstCommandLatency(LED_1));
+        assertEquals(0.6f, selector.getConnectionSuccessRate(LED_1), 0.001f);
+    }
+}
@@ -0,0 +1,97 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import tonyg.example.com.bleledremote.ble.callbacks.LedStateCallback;
+
+import static org.junit.Assert.*;
+
+/**
+ * LedStateMonitor decoding of advertised Remote Led states
+ */
+public class LedStateMonitorTest {
+    private static final long LED = 0xA4C1380F9E2BL;
+
+    // Remote Led: flags, complete name, 16-bit Services, Automation IO Service Data [on, seq 7, 85%]
+    private static final String LED_REMOTE_ON =
+            "020106"
+            + "0A094C656452656D6F7465"
+            + "0703" + "0A180F181518"
+            + "0616" + "1518" + "010755";
+
+    private int mChangeCount;
+    private int mLastState, mLastBatteryLevel;
+
+    private final LedStateCallback mLedStateCallback = new LedStateCallback() {
+        @Override
+        public void onLedStateChanged(long packedAddress, int ledState, int batteryLevel) {
+            mChangeCount++;
+            mLastState = ledState;
+            mLastBatteryLevel = batteryLevel;
+        }
+    };
+
+    @Test
+    public void onAdvertisement_decodesServiceData() throws Exception {
+        LedStateMonitor ledStateMonitor = new LedStateMonitor(mLedStateCallback);
+        AdvertisementRecord record = new AdvertisementRecord();
+        AdvertisementParser.parse(hex(LED_REMOTE_ON), record);
+
+        assertTrue(ledStateMonitor.onAdvertisement(LED, record));
+        assertEquals(BleRemoteLed.LED_STATE_ON, mLastState);
+        assertEquals(85, mLastBatteryLevel);
+        assertEquals(BleRemoteLed.LED_STATE_ON, ledStateMonitor.getLedState(LED));
+    }
+
+    @Test
+    public void onAdvertisement_repeatedAdvertisementReportedOnce() throws Exception {
+        LedStateMonitor ledStateMonitor = new LedStateMonitor(mLedStateCallback);
+        AdvertisementRecord record = new AdvertisementRecord();
+        AdvertisementParser.parse(hex(LED_REMOTE_ON), record);
+
+        for (int i = 0; i < 10; i++) {
+            ledStateMonitor.onAdvertisement(LED, record);
+        }
+        assertEquals(1, mChangeCount);
+    }
+
+    @Test
+    public void onAdvertisement_ignoresAdvertisementWithoutServiceData() throws Exception {
+        LedStateMonitor ledStateMonitor = new LedStateMonitor(mLedStateCallback);
+        AdvertisementRecord record = new AdvertisementRecord();
+        AdvertisementParser.parse(hex("020106" + "0A094C656452656D6F7465"), record);
+
+        assertFalse(ledStateMonitor.onAdvertisement(LED, record));
+        assertEquals(LedStateMonitor.UNKNOWN_STATE, ledStateMonitor.getLedState(LED));
+    }
+
+    @Test
+    public void onServiceData_sequenceWrapsAndStaleStateIgnored() throws Exception {
+        LedStateMonitor ledStateMonitor = new LedStateMonitor(mLedStateCallback);
+        assertTrue(ledStateMonitor.onServiceData(LED, BleRemoteLed.LED_STATE_ON, 254, 90));
+        assertTrue(ledStateMonitor.onServiceData(LED, BleRemoteLed.LED_STATE_OFF, 255, 90));
+        assertTrue(ledStateMonitor.onServiceData(LED, BleRemoteLed.LED_STATE_ON, 0, 90));
+        // a late advertisement from before the wrap
+        assertFalse(ledStateMonitor.onServiceData(LED, BleRemoteLed.LED_STATE_OFF, 255, 90));
+        assertEquals(BleRemoteLed.LED_STATE_ON, ledStateMonitor.getLedState(LED));
+    }
+
+    @Test
+    public void onServiceData_followsManyLeds() throws Exception {
+        LedStateMonitor ledStateMonitor = new LedStateMonitor(mLedStateCallback);
+        for (int i = 0; i < LedStateMonitor.MAX_LEDS; i++) {
+            ledStateMonitor.onServiceData(LED + i, BleRemoteLed.LED_STATE_OFF, 0, i);
+        }
+        assertEquals(LedStateMonitor.MAX_LEDS, ledStateMonitor.getLedCount());
+        assertEquals(LedStateMonitor.MAX_LEDS, mChangeCount);
+        assertEquals(10, ledStateMonitor.getBatteryLevel(LED + 10));
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,139 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import tonyg.example.com.bleledremote.ble.callbacks.ProximityCallback;
+
+import static org.junit.Assert.*;
+
+/**
+ * ProximityController decisions and filter cost over RSSI traces
+ */
+public class ProximityControllerTest {
+    private static final long LED = 0xA4C1380F9E2BL;
+    private static final long MAX_NANOS_PER_READING = 2000;
+
+    private int mEnteredCount, mExitedCount;
+
+    private final ProximityCallback mProximityCallback = new ProximityCallback() {
+        @Override
+        public void onEnteredProximity(long packedAddress) {
+            mEnteredCount++;
+        }
+
+        @Override
+        public void onExitedProximity(long packedAddress) {
+            mExitedCount++;
+        }
+    };
+
+    @Test
+    public void onRssi_walkUpAndAwayTogglesOnce() throws Exception {
+        ProximityController proximityController = new ProximityController(mProximityCallback);
+        int[] trace = walkUpAndAway(new Random(1));
+        for (int rssi : trace) {
+            proximityController.onRssi(LED, rssi);
+        }
+        assertEquals(1, mEnteredCount);
+        assertEquals(1, mExitedCount);
+        assertFalse(proximityController.isNear(LED));
+    }
+
+    @Test
+    public void onRssi_hoveringAtThresholdDoesNotChatter() throws Exception {
+        ProximityController proximityController = new ProximityController(mProximityCallback);
+        Random random = new Random(2);
+        for (int i = 0; i < 10000; i++) {
+            proximityController.onRssi(LED, ProximityController.DEFAULT_ENTER_RSSI + noise(random));
+        }
+        assertTrue(mEnteredCount <= 1);
+        assertEquals(0, mExitedCount);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setThresholds_rejectsInvertedThresholds() throws Exception {
+        new ProximityController(mProximityCallback).setThresholds(-80, -60);
+    }
+
+    @Test
+    public void onRssi_costPerReading() throws Exception {
+        ProximityController proximityController = new ProximityController(mProximityCallback);
+        int[] trace = walkUpAndAway(new Random(3));
+        long[] leds = new long[ProximityController.MAX_LEDS];
+        for (int i = 0; i < leds.length; i++) {
+            leds[i] = LED + i;
+        }
+
+        // warm up
+        runTrace(proximityController, leds, trace, 20);
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = getAllocatedBytes(threadMXBean);
+        int repetitions = 200;
+        long start = System.nanoTime();
+        runTrace(proximityController, leds, trace, repetitions);
+        long elapsed = System.nanoTime() - start;
+        long allocated = getAllocatedBytes(threadMXBean) - allocatedBefore;
+
+        long readings = (long) repetitions * trace.length * leds.length;
+        long nanosPerReading = elapsed / readings;
+        System.out.println("ProximityController: " + nanosPerReading + " ns/reading, " + allocated + " bytes allocated over " + readings + " readings");
+        assertTrue("took " + nanosPerReading + " ns/reading", nanosPerReading <= MAX_NANOS_PER_READING);
+        if (allocatedBefore >= 0) {
+            // allow for the measurement itself, but nothing per reading
+            assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+        }
+    }
+
+    private static void runTrace(ProximityController proximityController, long[] leds, int[] trace, int repetitions) {
+        for (int r = 0; r < repetitions; r++) {
+            for (int rssi : trace) {
+                for (long led : leds) {
+                    proximityController.onRssi(led, rssi);
+                }
+            }
+        }
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean threadMXBean) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * RSSI as seen at 10 readings per second while walking from across the room to the
+     * Remote Led, standing there, and walking away again
+     */
+    private static int[] walkUpAndAway(Random random) {
+        int[] trace = new int[600];
+        for (int i = 0; i < trace.length; i++) {
+            double meanRssi;
+            if (i < 200) {
+                meanRssi = -90 + 45.0 * i / 200;
+            } else if (i < 400) {
+                meanRssi = -45;
+            } else {
+                meanRssi = -45 - 45.0 * (i - 400) / 200;
+            }
+            trace[i] = (int) Math.round(meanRssi) + noise(random);
+        }
+        return trace;
+    }
+
+    /**
+     * Reading-to-reading RSSI noise, roughly +/- 4 dB with the odd deep fade
+     */
+    private static int noise(Random random) {
+        int noise = (int) Math.round(random.nextGaussian() * 3);
+        if (random.nextInt(20) == 0) {
+            noise -= 10;
+        }
+        return noise;
+    }
+}
@@ -0,0 +1,80 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * ScanBatchAggregator folding repeated and interleaved scan results into one summary
+ * per Peripheral
+ */
+public class ScanBatchAggregatorTest {
+    private static final String LED_1 = "02:00:00:00:00:01";
+    private static final String LED_2 = "02:00:00:00:00:02";
+
+    @Test
+    public void add_foldsABatchIntoOneSummaryPerPeripheral() throws Exception {
+        ScanBatchAggregator aggregator = new ScanBatchAggregator();
+        aggregator.beginBatch();
+        aggregator.add(LED_1, "LedRemote", -70, 100);
+        aggregator.add(LED_2, null, -60, 200);
+        aggregator.add(LED_1, null, -80, 300);
+        // a batch may arrive out of order
+        aggregator.add(LED_2, "LedRemote 2", -50, 150);
+        aggregator.add(LED_1, null, -60, 250);
+
+        List<ScanBatchAggregator.DeviceSummary> summaries = aggregator.getBatchSummaries();
+        assertEquals(2, summaries.size());
+        ScanBatchAggregator.DeviceSummary led1 = summaries.get(0);
+        assertEquals(LED_1, led1.getAddress());
+        // a scan response without the name doesn't forget it
+        assertEquals("LedRemote", led1.getName());
+        assertEquals(3, led1.getBatchAdvertisementCount());
+        assertEquals(-80, led1.getBatchMinRssi());
+        assertEquals(-60, led1.getBatchMaxRssi());
+        assertEquals(-70, led1.getBatchAverageRssi());
+        assertEquals(100, led1.getFirstSeenNanos());
+        assertEquals(300, led1.getLastSeenNanos());
+        assertEquals(-80, led1.getLastRssi());
+
+        ScanBatchAggregator.DeviceSummary led2 = summaries.get(1);
+        assertEquals(LED_2, led2.getAddress());
+        assertEquals("LedRemote 2", led2.getName());
+        assertEquals(2, led2.getBatchAdvertisementCount());
+        assertEquals(-55, led2.getBatchAverageRssi());
+        assertEquals(150, led2.getFirstSeenNanos());
+        assertEquals(200, led2.getLastSeenNanos());
+        assertEquals(-60, led2.getLastRssi());
+    }
+
+    @Test
+    public void beginBatch_keepsEachPeripheralsHistoryBetweenBatches() throws Exception {
+        ScanBatchAggregator aggregator = new ScanBatchAggregator();
+        aggregator.beginBatch();
+        aggregator.add(LED_1, "LedRemote", -70, 100);
+        aggregator.add(LED_1, null, -72, 110);
+        aggregator.add(LED_2, null, -60, 120);
+        ScanBatchAggregator.DeviceSummary led1 = aggregator.getBatchSummaries().get(0);
+
+        aggregator.beginBatch();
+        aggregator.add(LED_1, null, -90, 400);
+        List<ScanBatchAggregator.DeviceSummary> summaries = aggregator.getBatchSummaries();
+        assertEquals(1, summaries.size());
+        // the same summary, carried on
+        assertSame(led1, summaries.get(0));
+        assertEquals(1, led1.getBatchAdvertisementCount());
+        assertEquals(-90, led1.getBatchMinRssi());
+        assertEquals(-90, led1.getBatchMaxRssi());
+        assertEquals(3, led1.getAdvertisementCount());
+        assertEquals(100, led1.getFirstSeenNanos());
+        assertEquals(400, led1.getLastSeenNanos());
+        assertEquals("LedRemote", led1.getName());
+        assertEquals(2, aggregator.getDeviceCount());
+
+        aggregator.clear();
+        assertEquals(0, aggregator.getDeviceCount());
+        assertTrue(aggregator.getBatchSummaries().isEmpty());
+    }
+}
@@ -0,0 +1,432 @@
+package tonyg.example.com.bleledremote.gateway;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import tonyg.example.com.bleledremote.ble.BleRemoteLed;
+import tonyg.example.com.bleledremote.ble.DeviceRegistry;
+import tonyg.example.com.bleledremote.gateway.callbacks.LedGatewayCallback;
+
+import static org.junit.Assert.*;
+
+/**
+ * LedGatewayServer requests, batching, and WebSocket streaming over loopback, and a load client
+ */
+public class LedGatewayServerTest {
+    private static final long LED = 0xA4C1380F9E2BL;
+    private static final String LED_ADDRESS = DeviceRegistry.unpackAddress(LED);
+    private static final long GATT_DELAY_MS = 30; // a write and its confirmation, about two connection intervals
+    private static final String ACCESS_TOKEN = "0123456789abcdef";
+    private static final String ALLOWED_ORIGIN = "http://127.0.0.1:8000";
+
+    private LedGatewayServer mServer;
+    private final ScheduledExecutorService mRadio = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> mBatches = new ArrayList<String>();
+    private final AtomicInteger mWrittenCount = new AtomicInteger();
+    private volatile boolean mIsConfirming = true; // false to leave commands in flight
+
+    /**
+     * Acts as the fleet: confirms each command after a GATT round trip
+     */
+    private final LedGatewayCallback mLedGatewayCallback = new LedGatewayCallback() {
+        @Override
+        public void onCommandBatch(final byte command, long[] addresses) {
+            synchronized (mBatches) {
+                mBatches.add(command + ":" + addresses.length);
+            }
+            mWrittenCount.addAndGet(addresses.length);
+            if (!mIsConfirming) {
+                return;
+            }
+            for (final long packedAddress : addresses) {
+                mRadio.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        confirm(packedAddress, command);
+                    }
+                }, GATT_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    };
+
+    private void confirm(long packedAddress, byte command) {
+        int ledState = command == BleRemoteLed.COMMAND_LED_ON ? BleRemoteLed.LED_STATE_ON : BleRemoteLed.LED_STATE_OFF;
+        mServer.onLedStateChanged(packedAddress, ledState, LedShadowStore.UNKNOWN);
+        mServer.onCommandComplete(packedAddress, true);
+    }
+
+    private void startServer() throws IOException {
+        mServer = new LedGatewayServer(InetAddress.getLoopbackAddress(), 0, ACCESS_TOKEN, mLedGatewayCallback);
+        mServer.setAllowedOrigins(Arrays.asList(ALLOWED_ORIGIN));
+        mServer.start();
+        mServer.onLedStateChanged(LED, BleRemoteLed.LED_STATE_OFF, 80);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        mRadio.shutdownNow();
+    }
+
+    @Test
+    public void getLeds_returnsShadowState() throws Exception {
+        startServer();
+        HttpClient client = new HttpClient(mServer.getPort());
+        HttpClient.Response response = client.request("GET", "/leds");
+        assertEquals(200, response.mStatus);
+        assertTrue(response.mBody, response.mBody.contains("\"address\":\"" + LED_ADDRESS + "\""));
+        assertTrue(response.mBody, response.mBody.contains("\"state\":\"off\",\"battery\":80"));
+
+        assertEquals(200, client.request("GET", "/leds/" + LED_ADDRESS.toLowerCase()).mStatus);
+        assertEquals(404, client.request("GET", "/leds/00:11:22:33:44:55").mStatus);
+        assertEquals(400, client.request("GET", "/leds/not-an-address").mStatus);
+        assertEquals(405, client.request("GET", "/leds/" + LED_ADDRESS + "/on").mStatus);
+        assertEquals(404, client.request("GET", "/nothing").mStatus);
+        client.close();
+    }
+
+    @Test
+    public void postCommand_answersOnceConfirmed() throws Exception {
+        startServer();
+        HttpClient client = new HttpClient(mServer.getPort());
+        long start = System.nanoTime();
+        HttpClient.Response response = client.request("POST", "/leds/" + LED_ADDRESS + "/on");
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(200, response.mStatus);
+        assertTrue(response.mBody, response.mBody.contains("\"state\":\"on\""));
+        assertTrue("answered after " + elapsedMs + "ms", elapsedMs >= GATT_DELAY_MS);
+        client.close();
+    }
+
+    @Test
+    public void postCommand_coalescesWhileInFlight() throws Exception {
+        mIsConfirming = false;
+        startServer();
+        HttpClient client = new HttpClient(mServer.getPort());
+        // pipelined: the first goes out, the rest wait for it and only the last is written
+        client.send("POST", "/leds/" + LED_ADDRESS + "/on");
+        Thread.sleep(50);
+        client.send("POST", "/leds/" + LED_ADDRESS + "/on");
+        client.send("POST", "/leds/" + LED_ADDRESS + "/off");
+        client.send("GET", "/metrics");
+        Thread.sleep(50);
+        assertEquals(1, mWrittenCount.get());
+
+        confirm(LED, BleRemoteLed.COMMAND_LED_ON);
+        Thread.sleep(50);
+        confirm(LED, BleRemoteLed.COMMAND_LED_OFF);
+
+        assertEquals(200, client.receive().mStatus);
+        assertTrue(client.receive().mBody.contains("\"state\":\"off\""));
+        assertTrue(client.receive().mBody.contains("\"state\":\"off\""));
+        HttpClient.Response metrics = client.receive();
+        assertEquals(3, getMetric(metrics.mBody, "commandsSubmitted"));
+        assertEquals(1, getMetric(metrics.mBody, "commandsCoalesced"));
+        assertEquals(2, mWrittenCount.get());
+        synchronized (mBatches) {
+            assertEquals(Arrays.asList(BleRemoteLed.COMMAND_LED_ON + ":1", BleRemoteLed.COMMAND_LED_OFF + ":1"), mBatches);
+        }
+        client.close();
+    }
+
+    @Test
+    public void postGroupCommand_batchesEveryLed() throws Exception {
+        startServer();
+        for (int i = 1; i < 10; i++) {
+            mServer.addLed(LED + i);
+        }
+        HttpClient client = new HttpClient(mServer.getPort());
+        HttpClient.Response response = client.request("POST", "/leds/on");
+        assertEquals(200, response.mStatus);
+        assertEquals("{\"succeeded\":10,\"failed\":0}", response.mBody);
+        synchronized (mBatches) {
+            assertEquals(Arrays.asList(BleRemoteLed.COMMAND_LED_ON + ":10"), mBatches);
+        }
+        client.close();
+    }
+
+    @Test
+    public void events_streamStateChanges() throws Exception {
+        startServer();
+        Socket socket = new Socket("127.0.0.1", mServer.getPort());
+        OutputStream output = socket.getOutputStream();
+        InputStream input = socket.getInputStream();
+        String key = "dGhlIHNhbXBsZSBub25jZQ==";
+        // as a browser on an allowed page would, with the token in the query
+        output.write(("GET /events?access_token=" + ACCESS_TOKEN + " HTTP/1.1\r\nHost: localhost\r\nOrigin: " + ALLOWED_ORIGIN + "\r\n"
+                + "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes("ISO-8859-1"));
+
+        String head = readHead(input);
+        assertTrue(head, head.startsWith("HTTP/1.1 101"));
+        // the example from RFC 6455
+        assertTrue(head, head.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+        // a snapshot of every Remote Led first
+        assertTrue(readTextFrame(input).contains("\"state\":\"off\""));
+
+        mServer.onLedStateChanged(LED, BleRemoteLed.LED_STATE_ON, 79);
+        String frame = readTextFrame(input);
+        assertTrue(frame, frame.contains("\"state\":\"on\",\"battery\":79"));
+
+        // a masked ping is answered with a pong
+        output.write(new byte[] {(byte) 0x89, (byte) 0x80, 1, 2, 3, 4});
+        assertEquals(0x8A, input.read());
+        assertEquals(0, input.read());
+        socket.close();
+    }
+
+    @Test
+    public void request_refusedWithoutTokenOrFromOtherOrigins() throws Exception {
+        startServer();
+        HttpClient client = new HttpClient(mServer.getPort());
+        assertEquals(401, client.request("GET", "/leds", null, null).mStatus);
+        assertEquals(401, client.request("POST", "/leds/on", "wrong", null).mStatus);
+        // only the WebSocket upgrade may carry the token in the query
+        assertEquals(401, client.request("POST", "/leds/on?access_token=" + ACCESS_TOKEN, null, null).mStatus);
+        // a page the phone's browser visits, even one that somehow has the token
+        assertEquals(403, client.request("POST", "/leds/on", ACCESS_TOKEN, "http://example.com").mStatus);
+        assertEquals(200, client.request("GET", "/leds", ACCESS_TOKEN, ALLOWED_ORIGIN).mStatus);
+        synchronized (mBatches) {
+            assertTrue(mBatches.isEmpty());
+        }
+        assertEquals(4, getMetric(client.request("GET", "/metrics").mBody, "unauthorized"));
+        client.close();
+
+        Socket socket = new Socket("127.0.0.1", mServer.getPort());
+        socket.getOutputStream().write(("GET /events HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes("ISO-8859-1"));
+        String head = readHead(socket.getInputStream());
+        assertTrue(head, head.startsWith("HTTP/1.1 401"));
+        assertTrue(head, head.contains("WWW-Authenticate: Bearer"));
+        socket.close();
+    }
+
+    /** Load test **/
+    private static final int LOAD_LED_COUNT = 8;
+    private static final int LOAD_CLIENT_COUNT = 32;
+    private static final int LOAD_PIPELINE_DEPTH = 8; // requests each client keeps outstanding
+    private static final long LOAD_DURATION_MS = 3000;
+    private static final int LOAD_COMMAND_PERCENT = 20;
+
+    @Test
+    public void load_thousandsOfRequestsPerSecond() throws Exception {
+        startServer();
+        final long[] leds = new long[LOAD_LED_COUNT];
+        for (int i = 0; i < leds.length; i++) {
+            leds[i] = LED + i;
+            mServer.addLed(leds[i]);
+        }
+
+        final long endTime = System.nanoTime() + LOAD_DURATION_MS * 1000000;
+        final long[][] latencies = new long[LOAD_CLIENT_COUNT][];
+        final int[] failures = new int[LOAD_CLIENT_COUNT];
+        final int[] commandCounts = new int[LOAD_CLIENT_COUNT];
+        Thread[] clients = new Thread[LOAD_CLIENT_COUNT];
+        for (int c = 0; c < LOAD_CLIENT_COUNT; c++) {
+            final int clientNumber = c;
+            clients[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    latencies[clientNumber] = runLoadClient(leds, endTime, new Random(clientNumber), failures, commandCounts, clientNumber);
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        int requestCount = 0;
+        int failureCount = 0;
+        int commandCount = 0;
+        for (int c = 0; c < LOAD_CLIENT_COUNT; c++) {
+            requestCount += latencies[c].length;
+            failureCount += failures[c];
+            commandCount += commandCounts[c];
+        }
+        long[] allLatencies = new long[requestCount];
+        int position = 0;
+        for (long[] clientLatencies : latencies) {
+            System.arraycopy(clientLatencies, 0, allLatencies, position, clientLatencies.length);
+            position += clientLatencies.length;
+        }
+        Arrays.sort(allLatencies);
+        long requestsPerSecond = requestCount * 1000L / LOAD_DURATION_MS;
+        System.out.println("Gateway load: " + requestsPerSecond + " requests/s over " + LOAD_CLIENT_COUNT + " connections, "
+                + "p50 " + allLatencies[requestCount / 2] / 1000 + "us, p99 " + allLatencies[requestCount * 99 / 100] / 1000 + "us, "
+                + commandCount + " commands in " + mWrittenCount.get() + " GATT writes, " + failureCount + " failures");
+
+        assertEquals(0, failureCount);
+        assertTrue(requestsPerSecond >= 2000);
+        // a Remote Led takes GATT_DELAY_MS per write, so coalescing must keep the writes far below the commands
+        assertTrue(mWrittenCount.get() <= LOAD_LED_COUNT * (LOAD_DURATION_MS / GATT_DELAY_MS + 2));
+        assertTrue(mWrittenCount.get() < commandCount);
+    }
+
+    /**
+     * Keep LOAD_PIPELINE_DEPTH requests outstanding on one keep-alive connection until the end time
+     *
+     * @return the latency of each request, in nanoseconds
+     */
+    private long[] runLoadClient(long[] leds, long endTime, Random random, int[] failures, int[] commandCounts, int clientNumber) {
+        long[] latencies = new long[1 << 16];
+        int count = 0;
+        long[] sentTimes = new long[LOAD_PIPELINE_DEPTH];
+        try {
+            HttpClient client = new HttpClient(mServer.getPort());
+            int head = 0, outstanding = 0;
+            while (true) {
+                boolean isRunning = System.nanoTime() < endTime;
+                if (isRunning && outstanding < LOAD_PIPELINE_DEPTH) {
+                    String address = DeviceRegistry.unpackAddress(leds[random.nextInt(leds.length)]);
+                    if (random.nextInt(100) < LOAD_COMMAND_PERCENT) {
+                        client.send("POST", "/leds/" + address + (random.nextBoolean() ? "/on" : "/off"));
+                        commandCounts[clientNumber]++;
+                    } else {
+                        client.send("GET", "/leds/" + address);
+                    }
+                    sentTimes[(head + outstanding) % LOAD_PIPELINE_DEPTH] = System.nanoTime();
+                    outstanding++;
+                    continue;
+                }
+                if (outstanding == 0) {
+                    break;
+                }
+                HttpClient.Response response = client.receive();
+                if (response.mStatus != 200) {
+                    failures[clientNumber]++;
+                }
+                if (count < latencies.length) {
+                    latencies[count++] = System.nanoTime() - sentTimes[head];
+                }
+                head = (head + 1) % LOAD_PIPELINE_DEPTH;
+                outstanding--;
+            }
+            client.close();
+        } catch (IOException e) {
+            failures[clientNumber]++;
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    private static long getMetric(String json, String name) {
+        Matcher matcher = Pattern.compile("\"" + name + "\":(\\d+)").matcher(json);
+        assertTrue(json, matcher.find());
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private static String readHead(InputStream input) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = input.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return head.toString("ISO-8859-1");
+    }
+
+    private static String readTextFrame(InputStream input) throws IOException {
+        assertEquals(0x81, input.read());
+        int length = input.read();
+        if (length == 126) {
+            length = (input.read() << 8) | input.read();
+        }
+        byte[] payload = new byte[length];
+        readFully(input, payload);
+        return new String(payload, "UTF-8");
+    }
+
+    private static void readFully(InputStream input, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int count = input.read(buffer, read, buffer.length - read);
+            if (count < 0) {
+                throw new IOException("Connection closed");
+            }
+            read += count;
+        }
+    }
+
+    /**
+     * A keep-alive HTTP client that can pipeline requests
+     */
+    private static class HttpClient {
+        private final Socket mSocket;
+        private final OutputStream mOutput;
+        private final InputStream mInput;
+
+        static class Response {
+            int mStatus;
+            String mBody;
+        }
+
+        HttpClient(int port) throws IOException {
+            mSocket = new Socket("127.0.0.1", port);
+            mSocket.setTcpNoDelay(true);
+            mSocket.setSoTimeout(10000);
+            mOutput = mSocket.getOutputStream();
+            mInput = new java.io.BufferedInputStream(mSocket.getInputStream());
+        }
+
+        void send(String method, String path) throws IOException {
+            send(method, path, ACCESS_TOKEN, null);
+        }
+
+        void send(String method, String path, String accessToken, String origin) throws IOException {
+            mOutput.write((method + " " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+                    + (accessToken != null ? "Authorization: Bearer " + accessToken + "\r\n" : "")
+                    + (origin != null ? "Origin: " + origin + "\r\n" : "")
+                    + "\r\n").getBytes("ISO-8859-1"));
+            mOutput.flush();
+        }
+
+        Response receive() throws IOException {
+            String head = readHead(mInput);
+            Response response = new Response();
+            response.mStatus = Integer.parseInt(head.substring(9, 12));
+            Matcher matcher = Pattern.compile("Content-Length: (\\d+)").matcher(head);
+            byte[] body = new byte[matcher.find() ? Integer.parseInt(matcher.group(1)) : 0];
+            readFully(mInput, body);
+            response.mBody = new String(body, "UTF-8");
+            return response;
+        }
+
+        Response request(String method, String path) throws IOException {
+            send(method, path);
+            return receive();
+        }
+
+        Response request(String method, String path, String accessToken, String origin) throws IOException {
+            send(method, path, accessToken, origin);
+            return receive();
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package tonyg.example.com.bleledremote.service;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import tonyg.example.com.bleledremote.ble.BleRemoteLed;
+
+import static org.junit.Assert.*;
+
+/**
+ * LedStatusRegion layout, torn read detection, and read cost against a concurrent writer
+ */
+public class LedStatusRegionTest {
+    private static final long LED = 0xA4C1380F9E2BL;
+    private static final long MAX_NANOS_PER_READ = 20000; // far below a Binder round trip
+
+    @Test
+    public void read_seesWhatWasWritten() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(LedStatusRegion.SIZE);
+        LedStatusRegion writer = new LedStatusRegion(buffer);
+        LedStatusRegion reader = new LedStatusRegion(buffer.asReadOnlyBuffer());
+        writer.initialize();
+        writer.setLedState(LED, BleRemoteLed.LED_STATE_ON, 87);
+        writer.setConnected(LED + 1, true);
+        writer.setLedState(LED, BleRemoteLed.LED_STATE_OFF, LedStatusRegion.UNKNOWN);
+        writer.setLastDispatch(42, 123456789L);
+
+        LedStatusRegion.Snapshot snapshot = new LedStatusRegion.Snapshot();
+        assertTrue(reader.read(snapshot));
+        assertEquals(2, snapshot.getLedCount());
+        int index = snapshot.indexOf(LED);
+        assertEquals(BleRemoteLed.LED_STATE_OFF, snapshot.getLedState(index));
+        assertEquals(87, snapshot.getBatteryLevel(index));
+        assertFalse(snapshot.isConnected(index));
+        int other = snapshot.indexOf(LED + 1);
+        assertTrue(snapshot.isConnected(other));
+        assertEquals(LedStatusRegion.UNKNOWN, snapshot.getLedState(other));
+        assertEquals(42, snapshot.getLastRequestId());
+        assertEquals(123456789L, snapshot.getLastDispatchTime());
+        assertEquals(-1, snapshot.indexOf(LED + 2));
+        assertEquals(0, snapshot.getSequence() & 1);
+    }
+
+    @Test
+    public void read_rejectsUninitializedOrDamagedRegion() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(LedStatusRegion.SIZE);
+        LedStatusRegion writer = new LedStatusRegion(buffer);
+        LedStatusRegion.Snapshot snapshot = new LedStatusRegion.Snapshot();
+        assertFalse(writer.read(snapshot));
+
+        writer.initialize();
+        writer.setLedState(LED, BleRemoteLed.LED_STATE_ON, 50);
+        assertTrue(writer.read(snapshot));
+        // a byte changed without the checksum, as a torn copy would look
+        buffer.put(LedStatusRegion.SIZE - 1, (byte) 1);
+        assertFalse(writer.read(snapshot));
+    }
+
+    @Test
+    public void setLedState_stopsWhenFull() throws Exception {
+        LedStatusRegion statusRegion = new LedStatusRegion(ByteBuffer.allocate(LedStatusRegion.SIZE));
+        statusRegion.initialize();
+        for (int i = 0; i < LedStatusRegion.MAX_LEDS; i++) {
+            assertTrue(statusRegion.setLedState(LED + i, BleRemoteLed.LED_STATE_ON, 50));
+        }
+        assertFalse(statusRegion.setLedState(LED + LedStatusRegion.MAX_LEDS, BleRemoteLed.LED_STATE_ON, 50));
+        assertTrue(statusRegion.setLedState(LED, BleRemoteLed.LED_STATE_OFF, 49));
+    }
+
+    @Test
+    public void read_neverTornWhileWriting() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(LedStatusRegion.SIZE);
+        final LedStatusRegion writer = new LedStatusRegion(buffer);
+        LedStatusRegion reader = new LedStatusRegion(buffer.asReadOnlyBuffer());
+        writer.initialize();
+        for (int i = 0; i < LedStatusRegion.MAX_LEDS; i++) {
+            writer.setLedState(LED + i, BleRemoteLed.LED_STATE_OFF, 0);
+        }
+
+        // the writer sweeps the Remote Leds to each new battery level, one write at a time, so a
+        // consistent copy shows the new level on a prefix and the previous level on the rest
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int level = 0;
+                while (isWriting.get()) {
+                    level = (level + 1) % 100;
+                    for (int i = 0; i < LedStatusRegion.MAX_LEDS; i++) {
+                        writer.setLedState(LED + i, BleRemoteLed.LED_STATE_ON, level);
+                    }
+                    writer.setLastDispatch(level, level);
+                }
+            }
+        });
+        writerThread.start();
+
+        LedStatusRegion.Snapshot snapshot = new LedStatusRegion.Snapshot();
+        int consistentCount = 0;
+        int retryCount = 0;
+        long endTime = System.nanoTime() + 500000000L;
+        while (System.nanoTime() < endTime) {
+            if (!reader.read(snapshot)) {
+                retryCount++;
+                continue;
+            }
+            int level = snapshot.getBatteryLevel(0);
+            int previousLevel = (level + 99) % 100;
+            int i = 1;
+            while (i < snapshot.getLedCount() && snapshot.getBatteryLevel(i) == level) {
+                i++;
+            }
+            boolean isSweepDone = i == snapshot.getLedCount();
+            while (i < snapshot.getLedCount()) {
+                assertEquals(previousLevel, snapshot.getBatteryLevel(i));
+                i++;
+            }
+            if (isSweepDone) {
+                assertTrue(snapshot.getLastRequestId() == level || snapshot.getLastRequestId() == previousLevel);
+            } else {
+                assertEquals(previousLevel, snapshot.getLastRequestId());
+            }
+            consistentCount++;
+        }
+        isWriting.set(false);
+        writerThread.join();
+
+        System.out.println("LedStatusRegion: " + consistentCount + " consistent reads, " + retryCount + " gave up while writing");
+        assertTrue(consistentCount > 0);
+    }
+
+    @Test
+    public void read_cost() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(LedStatusRegion.SIZE);
+        LedStatusRegion writer = new LedStatusRegion(buffer);
+        LedStatusRegion reader = new LedStatusRegion(buffer.asReadOnlyBuffer());
+        writer.initialize();
+        for (int i = 0; i < LedStatusRegion.MAX_LEDS; i++) {
+            writer.setLedState(LED + i, BleRemoteLed.LED_STATE_ON, 50);
+        }
+        LedStatusRegion.Snapshot snapshot = new LedStatusRegion.Snapshot();
+
+        // warm up
+        for (int i = 0; i < 20000; i++) {
+            reader.read(snapshot);
+        }
+        int reads = 200000;
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            assertTrue(reader.read(snapshot));
+        }
+        long nanosPerRead = (System.nanoTime() - start) / reads;
+        System.out.println("LedStatusRegion: " + nanosPerRead + " ns/read of " + LedStatusRegion.MAX_LEDS + " Remote Leds");
+        assertTrue("took " + nanosPerRead + " ns/read", nanosPerRead <= MAX_NANOS_PER_READ);
+    }
+}
@@ -32,6 +32,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import tonyg.example.com.examplebleperipheral.ble.BleRemoteLed;
+import tonyg.example.com.examplebleperipheral.ble.BroadcastCommand;
 import tonyg.example.com.examplebleperipheral.ble.callbacks.BleRemoteLedCallback;
 
 
@@ -90,8 +91,9 @@ public class MainActivity extends AppCompatActivity {
     public void onPause() {
         super.onPause();
         // stop advertising when the activity pauses
-        mBleRemoteLed.stopAdvertising();
         onLedOffCommand();
+        // onResume makes a new one, so this one's threads and GATT server are let go
+        closeBleRemoteLed();
     }
 
     @Override
@@ -104,6 +106,17 @@ public class MainActivity extends AppCompatActivity {
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(mBleBroadcastReceiver);
+        closeBleRemoteLed();
+    }
+
+    /**
+     * Stop advertising and shut down the Remote Led
+     */
+    private void closeBleRemoteLed() {
+        if (mBleRemoteLed != null) {
+            mBleRemoteLed.close();
+            mBleRemoteLed = null;
+        }
     }
 
     /**
@@ -123,6 +136,7 @@ public class MainActivity extends AppCompatActivity {
      */
     public void initializeBluetooth() {
         // reset connection variables
+        closeBleRemoteLed();
         try {
             mBleRemoteLed = new BleRemoteLed(this, mBlePeripheralCallback);
         } catch (Exception e) {
@@ -154,6 +168,9 @@ public class MainActivity extends AppCompatActivity {
     public void startAdvertising() {
         try {
             mBleRemoteLed.startAdvertising();
+            if (!mBleRemoteLed.startBroadcastReceiving(BroadcastCommand.ALL_GROUPS)) {
+                Log.v(TAG, "Broadcast commands start once a Remote Control provisions the key");
+            }
         } catch (Exception e) {
             Log.e(TAG, "error starting advertising: " + e.getMessage());
             e.printStackTrace();
@@ -174,7 +191,8 @@ public class MainActivity extends AppCompatActivity {
      * @param bluetoothDevice
      */
     public void onBleCentralDisconnected(final BluetoothDevice bluetoothDevice) {
-        mCentralConnectedSwitch.setChecked(false);
+        // other Centrals may still be connected
+        mCentralConnectedSwitch.setChecked(mBleRemoteLed != null && mBleRemoteLed.getBlePeripheral().getCentralSessionManager().getCentralCount() > 0);
     }
 
     /**
@@ -182,16 +200,7 @@ public class MainActivity extends AppCompatActivity {
      */
     public void onLedOnCommand() {
         mLedStateSwitch.setChecked(true);
-
-        if (mIsFlashAvailable) {
-            try {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    mCameraManager.setTorchMode(mCameraId, true);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+        setTorchMode(true);
     }
 
     /**
@@ -199,17 +208,25 @@ public class MainActivity extends AppCompatActivity {
      */
     public void onLedOffCommand() {
         mLedStateSwitch.setChecked(false);
+        setTorchMode(false);
+    }
+
+    /**
+     * Turn the camera flash on or off.  Safe to call from any thread
+     *
+     * @param isOn <b>true</b> to turn the flash on
+     */
+    private void setTorchMode(boolean isOn) {
         if (mIsFlashAvailable) {
             try {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    mCameraManager.setTorchMode(mCameraId, false);
+                    mCameraManager.setTorchMode(mCameraId, isOn);
                 }
             } catch (Exception e) {
                 Log.d(TAG, "could not open camera flash: " + e.getMessage());
                 e.printStackTrace();
             }
         }
-
     }
 
     /**
@@ -219,6 +236,10 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            if (mBleRemoteLed == null) {
+                // paused: onResume starts Bluetooth again
+                return;
+            }
 
             if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
                 final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
@@ -269,20 +290,23 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void onLedTurnedOn() {
+            // switch the flash right away, so scheduled commands aren't delayed by the UI thread
+            setTorchMode(true);
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    onLedOnCommand();
+                    mLedStateSwitch.setChecked(true);
                 }
             });
         }
 
         @Override
         public void onLedTurnedOff() {
+            setTorchMode(false);
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    onLedOffCommand();
+                    mLedStateSwitch.setChecked(false);
                 }
             });
 
@@ -0,0 +1,82 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+/**
+ * Responses waiting to go to one Central as a single multi-ack.
+ *
+ * A Central that takes multi-acks isn't sent a notification per command.  The first
+ * response opens the window, and everything meant for the Central until the window is
+ * closed is folded in: each confirmation adds to the count, and only the latest response
+ * is kept, since it supersedes the ones before it.  Closing the window makes one multi-ack:
+ *
+ *   [MULTI_ACK_TYPE][MULTI_ACK_FOOTER][confirmation count][the latest response]
+ *
+ * A count of 0 means the latest response is news the Central didn't ask for, such as a
+ * change another Central made.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class AckWindow {
+    public static final byte MULTI_ACK_TYPE = 4; // no single response starts with this
+    public static final byte MULTI_ACK_FOOTER = 1;
+    public static final int MAX_COUNT = 255;
+
+    /** Layout **/
+    public static final int TYPE_POSITION = 0;
+    public static final int FOOTER_POSITION = 1;
+    public static final int COUNT_POSITION = 2;
+    public static final int RESPONSE_POSITION = 3;
+
+    private boolean mIsOpen;
+    private int mCount;
+    private byte[] mLatestValue;
+
+    /**
+     * Fold a response into the window, opening it if needed
+     *
+     * @param value the response.  A later response replaces it
+     * @param isConfirmation <b>true</b> if the response confirms one of the Central's commands
+     * @return <b>true</b> if this opened the window
+     */
+    public synchronized boolean add(byte[] value, boolean isConfirmation) {
+        boolean isOpening = !mIsOpen;
+        mIsOpen = true;
+        mLatestValue = value;
+        if (isConfirmation) {
+            mCount++;
+        }
+        return isOpening;
+    }
+
+    /**
+     * Check if the count can't go any higher, so the window must be closed now
+     */
+    public synchronized boolean isFull() {
+        return mCount >= MAX_COUNT;
+    }
+
+    public synchronized boolean isOpen() {
+        return mIsOpen;
+    }
+
+    /**
+     * Close the window
+     *
+     * @return the multi-ack, or null if the window wasn't open
+     */
+    public synchronized byte[] close() {
+        if (!mIsOpen) {
+            return null;
+        }
+        byte[] multiAck = new byte[RESPONSE_POSITION + mLatestValue.length];
+        multiAck[TYPE_POSITION] = MULTI_ACK_TYPE;
+        multiAck[FOOTER_POSITION] = MULTI_ACK_FOOTER;
+        multiAck[COUNT_POSITION] = (byte) mCount;
+        System.arraycopy(mLatestValue, 0, multiAck, RESPONSE_POSITION, mLatestValue.length);
+
+        mIsOpen = false;
+        mCount = 0;
+        mLatestValue = null;
+        return multiAck;
+    }
+}
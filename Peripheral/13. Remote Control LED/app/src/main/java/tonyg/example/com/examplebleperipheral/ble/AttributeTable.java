@@ -0,0 +1,167 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Peripheral's Characteristics, by UUID, with everything a read or write needs.
+ *
+ * The table is filled in while the GATT profile is set up.  Each Attribute is immutable:
+ * changing one replaces it, so a request always sees a whole Attribute.  An Attribute says
+ * up front what a write does to it: which WriteHandler takes the value, whether the value
+ * is kept for reads, and whether the writer is notified.
+ *
+ * Attributes that never change, such as the model number, hold their value already
+ * encoded.  Reads of them are served straight from it, and since it can't change, every
+ * piece of a long read comes from the same value without taking a snapshot.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class AttributeTable {
+
+    /**
+     * Takes the values written to a Characteristic
+     */
+    public static abstract class WriteHandler {
+        /**
+         * @param device the Central that wrote
+         * @param characteristicUuid the Characteristic written
+         * @param value the value written
+         * @param receivedTime when the write arrived, in CommandScheduler.nowMicros() time
+         */
+        public abstract void onCharacteristicWritten(BluetoothDevice device, UUID characteristicUuid, byte[] value, long receivedTime);
+    }
+
+    /**
+     * One Characteristic's entry
+     */
+    public static class Attribute {
+        private final byte[] mStaticValue;
+        private final WriteHandler mWriteHandler;
+        private final boolean mIsWriteKept;
+        private final boolean mIsWriteEchoed;
+
+        private Attribute(byte[] staticValue, WriteHandler writeHandler, boolean isWriteKept, boolean isWriteEchoed) {
+            mStaticValue = staticValue;
+            mWriteHandler = writeHandler;
+            mIsWriteKept = isWriteKept;
+            mIsWriteEchoed = isWriteEchoed;
+        }
+
+        /**
+         * Check if the value never changes, so it's read from the table
+         */
+        public boolean isStatic() {
+            return mStaticValue != null;
+        }
+
+        /**
+         * Read the static value from an offset
+         *
+         * @return the value from the offset on, or null if the offset is past its end.  Don't change it
+         */
+        public byte[] readAt(int offset) {
+            if (offset < 0 || offset > mStaticValue.length) {
+                return null;
+            }
+            if (offset == 0) {
+                return mStaticValue;
+            }
+            return Arrays.copyOfRange(mStaticValue, offset, mStaticValue.length);
+        }
+
+        public WriteHandler getWriteHandler() {
+            return mWriteHandler;
+        }
+
+        /**
+         * Check if a written value is kept as the Characteristic's value, for reads
+         */
+        public boolean isWriteKept() {
+            return mIsWriteKept;
+        }
+
+        /**
+         * Check if the Central that wrote is notified of the new value
+         */
+        public boolean isWriteEchoed() {
+            return mIsWriteEchoed;
+        }
+    }
+
+    private final ConcurrentHashMap<UUID, Attribute> mAttributes = new ConcurrentHashMap<UUID, Attribute>();
+    private final WriteHandler mDefaultWriteHandler;
+
+    /**
+     * @param defaultWriteHandler takes writes to Characteristics with no WriteHandler of their own
+     */
+    public AttributeTable(WriteHandler defaultWriteHandler) {
+        mDefaultWriteHandler = defaultWriteHandler;
+    }
+
+    /**
+     * Enter a Characteristic, working out what writes do to it from its properties.  A
+     * static value or WriteHandler it was already given is kept
+     */
+    public void addCharacteristic(BluetoothGattCharacteristic characteristic) {
+        addCharacteristic(characteristic.getUuid(), characteristic.getProperties());
+    }
+
+    /**
+     * Enter a Characteristic, working out what writes do to it from its properties.  A
+     * static value or WriteHandler it was already given is kept
+     *
+     * @param characteristicUuid the Characteristic
+     * @param properties its properties, as from BluetoothGattCharacteristic.getProperties()
+     */
+    public synchronized void addCharacteristic(UUID characteristicUuid, int properties) {
+        Attribute attribute = getOrDefault(characteristicUuid);
+        boolean isWriteKept = (properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0
+                && (properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0;
+        boolean isWriteEchoed = (properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0;
+        mAttributes.put(characteristicUuid, new Attribute(attribute.mStaticValue, attribute.mWriteHandler,
+                isWriteKept, isWriteEchoed));
+    }
+
+    /**
+     * Give a Characteristic a value that never changes
+     *
+     * @param value the encoded value.  It's copied, so the caller may reuse it
+     */
+    public synchronized void setStaticValue(UUID characteristicUuid, byte[] value) {
+        Attribute attribute = getOrDefault(characteristicUuid);
+        mAttributes.put(characteristicUuid, new Attribute(value.clone(), attribute.mWriteHandler,
+                attribute.mIsWriteKept, attribute.mIsWriteEchoed));
+    }
+
+    /**
+     * Send the values written to a Characteristic to their own WriteHandler
+     */
+    public synchronized void setWriteHandler(UUID characteristicUuid, WriteHandler writeHandler) {
+        Attribute attribute = getOrDefault(characteristicUuid);
+        mAttributes.put(characteristicUuid, new Attribute(attribute.mStaticValue, writeHandler,
+                attribute.mIsWriteKept, attribute.mIsWriteEchoed));
+    }
+
+    /**
+     * Look up a Characteristic
+     *
+     * @return its Attribute, or null if it was never entered
+     */
+    public Attribute getAttribute(UUID characteristicUuid) {
+        return mAttributes.get(characteristicUuid);
+    }
+
+    private Attribute getOrDefault(UUID characteristicUuid) {
+        Attribute attribute = mAttributes.get(characteristicUuid);
+        if (attribute == null) {
+            attribute = new Attribute(null, mDefaultWriteHandler, false, false);
+        }
+        return attribute;
+    }
+}
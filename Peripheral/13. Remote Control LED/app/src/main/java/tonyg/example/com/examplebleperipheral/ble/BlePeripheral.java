@@ -16,14 +16,19 @@ import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.BatteryManager;
+import android.os.Build;
 import android.os.ParcelUuid;
 import android.util.Log;
 
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import tonyg.example.com.examplebleperipheral.ble.callbacks.BlePeripheralCallback;
 
@@ -42,6 +47,15 @@ public class BlePeripheral {
 
     private static final int BATTERY_STATUS_CHECK_TIME_MS = 5*50*1000; // 5 minutes
 
+    private static final int BUILD_VERSION_CODE_TIRAMISU = 33;
+    private static final int BLUETOOTH_STATUS_SUCCESS = 0; // BluetoothStatusCodes.SUCCESS
+    private static final int GATT_CCCD_IMPROPERLY_CONFIGURED = 0xFD;
+    private static final int GATT_INSUFFICIENT_RESOURCES = 0x11;
+    public static final int GATT_COMMAND_RATE_EXCEEDED = 0x80; // first application error code
+
+    // reads and writes may be refused, so they leave room for the callbacks that mustn't be
+    private static final int REQUEST_HEADROOM = GattEventRing.DEFAULT_CAPACITY / 4;
+
     /** Peripheral and GATT Profile **/
     private String mPeripheralAdvertisingName;
 
@@ -75,9 +89,53 @@ public class BlePeripheral {
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothLeAdvertiser mBluetoothAdvertiser;
     private BluetoothManager mBluetoothManager;
-    private BluetoothDevice mConnectedCentral;
+    private final CentralSessionManager mCentralSessionManager = new CentralSessionManager(new CentralSessionManager.NotificationSender() {
+        @Override
+        public boolean sendNotification(CentralSession centralSession, UUID characteristicUuid, byte[] value, boolean confirm) {
+            BluetoothGattCharacteristic characteristic = mNotifiableCharacteristics.get(characteristicUuid);
+            return characteristic != null && notifyCharacteristicChanged(centralSession.getDevice(), characteristic, confirm, value);
+        }
+
+        @Override
+        public void onAckWindowOpened(final CentralSession centralSession, final UUID characteristicUuid, long windowMs) {
+            mAckWindowTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    mCentralSessionManager.flushAckWindow(centralSession.getAddress(), characteristicUuid);
+                }
+            }, windowMs);
+        }
+
+        @Override
+        public void onCreditsSpent(final CentralSession centralSession, long retryMs) {
+            mAckWindowTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    mCentralSessionManager.retryQueued(centralSession.getAddress());
+                }
+            }, retryMs);
+        }
+    });
+    private final Timer mAckWindowTimer = new Timer("AckWindows", true); // also retries notifications stuck without credits
+    private final ConcurrentHashMap<UUID, BluetoothGattCharacteristic> mNotifiableCharacteristics = new ConcurrentHashMap<UUID, BluetoothGattCharacteristic>();
+    private final ConcurrentHashMap<UUID, BluetoothGattCharacteristic> mCharacteristics = new ConcurrentHashMap<UUID, BluetoothGattCharacteristic>(); // writes are queued and handled by UUID
+    private Method mNotifyWithValueMethod; // API 33 notifyCharacteristicChanged(device, characteristic, confirm, value)
+    private final GattEventRing mGattEventRing;
+    private final FairCommandQueue mFairCommandQueue = new FairCommandQueue(); // GATT event thread only
+    private final AttributeTable mAttributeTable = new AttributeTable(new AttributeTable.WriteHandler() {
+        @Override
+        public void onCharacteristicWritten(BluetoothDevice device, UUID characteristicUuid, byte[] value, long receivedTime) {
+            mBlePeripheralCallback.onCharacteristicWritten(device, mCharacteristics.get(characteristicUuid), value, receivedTime);
+        }
+    });
+
+    /** Write acknowledgement metrics **/
+    private final AtomicLong mWriteAckCount = new AtomicLong();
+    private final AtomicLong mWriteAckTotalNanos = new AtomicLong();
+    private final AtomicLong mWriteAckMaxNanos = new AtomicLong();
 
     private BluetoothGattServer mGattServer;
+    private Timer mBatteryLevelTimer;
     private BluetoothGattService mDeviceInformationService, mBatteryLevelService;
     private BluetoothGattCharacteristic mDeviceNameCharacteristic,
             mModelNumberCharacteristic,
@@ -85,6 +143,10 @@ public class BlePeripheral {
             mBatteryLevelCharactersitic;
 
     private Context mContext;
+    private boolean mIsAdvertising = false;
+    private boolean mIsAdvertisingConnectable = false;
+    private UUID mServiceDataUuid;
+    private byte[] mServiceData;
     private String mModelNumber = "";
     private String mSerialNumber = "";
 
@@ -98,6 +160,7 @@ public class BlePeripheral {
     public BlePeripheral(final Context context, BlePeripheralCallback blePeripheralCallback) throws Exception {
         mBlePeripheralCallback = blePeripheralCallback;
         mContext = context;
+        mGattEventRing = new GattEventRing(GattEventRing.DEFAULT_CAPACITY, mGattEventHandler);
 
         // make sure Android device supports Bluetooth Low Energy
         if (!context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
@@ -110,6 +173,15 @@ public class BlePeripheral {
         mGattServer = mBluetoothManager.openGattServer(context, mGattServerCallback);
         mBluetoothAdapter = mBluetoothManager.getAdapter();
 
+        if (Build.VERSION.SDK_INT >= BUILD_VERSION_CODE_TIRAMISU) {
+            try {
+                // newer than the SDK this app compiles against
+                mNotifyWithValueMethod = BluetoothGattServer.class.getMethod("notifyCharacteristicChanged", BluetoothDevice.class, BluetoothGattCharacteristic.class, boolean.class, byte[].class);
+            } catch (NoSuchMethodException e) {
+                Log.w(TAG, "Notifications will share the Characteristic value");
+            }
+        }
+
         // Beware: this function doesn't work on some systems
         if(!mBluetoothAdapter.isMultipleAdvertisementSupported()) {
             throw new Exception ("Peripheral mode not supported");
@@ -139,6 +211,57 @@ public class BlePeripheral {
         return mGattServer;
     }
 
+    /**
+     * Get the Centrals connected to this Peripheral
+     */
+    public CentralSessionManager getCentralSessionManager() {
+        return mCentralSessionManager;
+    }
+
+    /**
+     * Set how many Centrals may be connected at once.  While that many are connected,
+     * the Peripheral keeps advertising but can't be connected to
+     *
+     * @param maxCentrals at least 1
+     */
+    public void setMaxCentrals(int maxCentrals) {
+        mCentralSessionManager.setMaxCentrals(maxCentrals);
+        onConnectableChanged();
+    }
+
+    /**
+     * Choose between notifications and indications for Centrals that subscribe to both.
+     * Centrals that subscribe to one get that one
+     *
+     * @param characteristicUuid the Characteristic
+     * @param ackPolicy CentralSessionManager.ACK_PREFER_NOTIFY or ACK_PREFER_INDICATE
+     */
+    public void setAckPolicy(UUID characteristicUuid, int ackPolicy) {
+        mCentralSessionManager.setAckPolicy(characteristicUuid, ackPolicy);
+    }
+
+    /**
+     * Let responses on a Characteristic go as multi-acks to Centrals that support them,
+     * so a burst of commands is confirmed in one notification
+     *
+     * @param characteristicUuid the Characteristic
+     * @param isEnabled <b>true</b> to aggregate
+     */
+    public void setAckAggregation(UUID characteristicUuid, boolean isEnabled) {
+        mCentralSessionManager.setAckAggregation(characteristicUuid, isEnabled);
+    }
+
+    /**
+     * Set how fast each Central may write.  Writes over the rate are refused with
+     * GATT_COMMAND_RATE_EXCEEDED
+     *
+     * @param commandsPerSecond the steady rate
+     * @param burst how many writes may come at once, up to CentralSessionManager.MAX_COMMAND_BURST
+     */
+    public void setCommandRate(double commandsPerSecond, int burst) {
+        mCentralSessionManager.setCommandRate(commandsPerSecond, burst);
+    }
+
     /**
      * Get the model number
      */
@@ -151,6 +274,7 @@ public class BlePeripheral {
      */
     public void setModelNumber(String modelNumber) {
         mModelNumber = modelNumber;
+        mAttributeTable.setStaticValue(MODEL_NUMBER_CHARACTERISTIC_UUID, encode(mModelNumber));
     }
 
     /**
@@ -165,6 +289,7 @@ public class BlePeripheral {
      */
     public void setSerialNumber(String serialNumber) {
         mSerialNumber = serialNumber;
+        mAttributeTable.setStaticValue(SERIAL_NUMBER_CHARACTERISTIC_UUID, encode(mSerialNumber));
     }
 
     /**
@@ -212,27 +337,29 @@ public class BlePeripheral {
 
         mBatteryLevelService.addCharacteristic(mBatteryLevelCharactersitic);
 
-        // put in fake values for the Characteristic.
-        mModelNumberCharacteristic.setValue(mModelNumber);
-        mSerialNumberCharacteristic.setValue(mSerialNumber);
+        // the model and serial numbers never change, so they're encoded once, for every read
+        mAttributeTable.setStaticValue(MODEL_NUMBER_CHARACTERISTIC_UUID, encode(mModelNumber));
+        mAttributeTable.setStaticValue(SERIAL_NUMBER_CHARACTERISTIC_UUID, encode(mSerialNumber));
 
         // add Services to Peripheral
-        mGattServer.addService(mDeviceInformationService);
-        mGattServer.addService(mBatteryLevelService);
+        addService(mDeviceInformationService);
+        addService(mBatteryLevelService);
 
         // update the battery level every BATTERY_STATUS_CHECK_TIME_MS milliseconds
         TimerTask updateBatteryTask = new TimerTask() {
             @Override
             public void run() {
-                mBatteryLevelCharactersitic.setValue(getBatteryLevel(), BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-                if (mConnectedCentral != null) {
-                    mGattServer.notifyCharacteristicChanged(mConnectedCentral, mBatteryLevelCharactersitic, true);
+                byte[] batteryLevel = new byte[] {(byte) getBatteryLevel()};
+                synchronized (mBatteryLevelCharactersitic) {
+                    // for reads
+                    mBatteryLevelCharactersitic.setValue(batteryLevel);
                 }
+                mCentralSessionManager.notifyAllCentrals(BATTERY_LEVEL_CHARACTERISTIC_UUID, batteryLevel);
             }
         };
-        Timer randomStringTimer = new Timer();
+        mBatteryLevelTimer = new Timer("BatteryLevel", true);
         // schedule the battery update and run it once immediately
-        randomStringTimer.schedule(updateBatteryTask, 0, BATTERY_STATUS_CHECK_TIME_MS);
+        mBatteryLevelTimer.schedule(updateBatteryTask, 0, BATTERY_STATUS_CHECK_TIME_MS);
 
     }
 
@@ -242,12 +369,12 @@ public class BlePeripheral {
      * @param peripheralAdvertisingName
      */
     public void setPeripheralAdvertisingName(String peripheralAdvertisingName) throws Exception {
-        mPeripheralAdvertisingName = peripheralAdvertisingName;
-        mDeviceNameCharacteristic.setValue(mPeripheralAdvertisingName);
-        int advertisingNameByteLength = mPeripheralAdvertisingName.getBytes(CHARSET).length;
-        if (advertisingNameByteLength > MAX_ADVERTISING_NAME_BYTE_LENGTH) {
+        byte[] encodedName = encode(peripheralAdvertisingName);
+        if (encodedName.length > MAX_ADVERTISING_NAME_BYTE_LENGTH) {
             throw new Exception("Advertising name too long.  Must be less than "+MAX_ADVERTISING_NAME_BYTE_LENGTH+" bytes");
         }
+        mPeripheralAdvertisingName = peripheralAdvertisingName;
+        mAttributeTable.setStaticValue(DEVICE_NAME_CHARACTERISTIC_UUID, encodedName);
     }
 
     /**
@@ -277,9 +404,94 @@ public class BlePeripheral {
      * @param service the Service to add
      */
     public void addService(BluetoothGattService service) {
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            mAttributeTable.addCharacteristic(characteristic);
+            mCharacteristics.put(characteristic.getUuid(), characteristic);
+            if (isCharacteristicNotifiable(characteristic)) {
+                mNotifiableCharacteristics.put(characteristic.getUuid(), characteristic);
+            }
+        }
         mGattServer.addService(service);
     }
 
+    /**
+     * Send the values written to a Characteristic to their own handler, rather than to
+     * BlePeripheralCallback.onCharacteristicWritten()
+     *
+     * @param characteristicUuid the Characteristic
+     * @param writeHandler takes each value written, on the GATT event thread
+     */
+    public void setWriteHandler(UUID characteristicUuid, AttributeTable.WriteHandler writeHandler) {
+        mAttributeTable.setWriteHandler(characteristicUuid, writeHandler);
+    }
+
+    /**
+     * Encode a String value in CHARSET
+     */
+    private static byte[] encode(String value) {
+        return value.getBytes(Charset.forName(CHARSET));
+    }
+
+    /**
+     * Notify one Central that a Characteristic changed
+     *
+     * @param device the Central
+     * @param characteristicUuid the Characteristic
+     * @param value the new value, for this notification only
+     * @return <b>false</b> if the Central isn't connected or subscribed, or the notification couldn't be sent
+     */
+    public boolean notifyCentral(BluetoothDevice device, UUID characteristicUuid, byte[] value) {
+        return mCentralSessionManager.notifyCentral(device.getAddress(), characteristicUuid, value);
+    }
+
+    /**
+     * Confirm a Central's command.  Centrals that support multi-acks are sent it with the
+     * other confirmations in the same window
+     *
+     * @param device the Central
+     * @param characteristicUuid the Characteristic
+     * @param value the response, for this Central only
+     * @return <b>false</b> if the Central isn't connected or subscribed, or the response couldn't be sent
+     */
+    public boolean acknowledge(BluetoothDevice device, UUID characteristicUuid, byte[] value) {
+        return mCentralSessionManager.acknowledge(device.getAddress(), characteristicUuid, value);
+    }
+
+    /**
+     * Notify every Central subscribed to a Characteristic that it changed
+     *
+     * @param characteristicUuid the Characteristic
+     * @param value the new value.  Don't change it afterwards
+     * @return how many Centrals were sent the notification
+     */
+    public int notifyAllCentrals(UUID characteristicUuid, byte[] value) {
+        return mCentralSessionManager.notifyAllCentrals(characteristicUuid, value);
+    }
+
+    /**
+     * Send a notification carrying its own value.  Before API 33 the GATT server sends the
+     * Characteristic's value, so the value is set and sent under a lock, which keeps
+     * concurrent notifications from overwriting each other's value before it's sent
+     */
+    private boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean confirm, byte[] value) {
+        if (device == null) {
+            return false;
+        }
+        if (mNotifyWithValueMethod != null) {
+            try {
+                int status = (Integer) mNotifyWithValueMethod.invoke(mGattServer, device, characteristic, confirm, value);
+                return status == BLUETOOTH_STATUS_SUCCESS;
+            } catch (Exception e) {
+                Log.e(TAG, "Could not send notification: " + e.getMessage());
+                return false;
+            }
+        }
+        synchronized (characteristic) {
+            characteristic.setValue(value);
+            return mGattServer.notifyCharacteristicChanged(device, characteristic, confirm);
+        }
+    }
+
     /**
      * Build the Advertising Data, including the transmission power, advertising name, and Services
      *
@@ -300,10 +512,50 @@ public class BlePeripheral {
             advertiseBuilder.addServiceUuid(new ParcelUuid(service.getUuid()));
         }
 
+        // add Service Data, so Centrals can read it without connecting
+        if (mServiceDataUuid != null && mServiceData != null) {
+            advertiseBuilder.addServiceData(new ParcelUuid(mServiceDataUuid), mServiceData);
+        }
+
         return advertiseBuilder.build();
 
     }
 
+    /**
+     * Advertise Service Data.  If the Peripheral is advertising, the advertisement is updated
+     * right away.  The whole advertisement must fit in 31 bytes: flags, name, and Service UUIDs
+     * already use most of it, so keep Service Data to a few bytes
+     *
+     * @param serviceUuid the 16-bit Service UUID the data belongs to
+     * @param serviceData the Service Data
+     */
+    public synchronized void setServiceData(UUID serviceUuid, byte[] serviceData) {
+        mServiceDataUuid = serviceUuid;
+        mServiceData = serviceData;
+        // API 21 can't change the data of a running advertisement, so restart it
+        restartAdvertising();
+    }
+
+    /**
+     * Restart a running advertisement, so it picks up new data or settings
+     */
+    private synchronized void restartAdvertising() {
+        if (mIsAdvertising) {
+            mBluetoothAdvertiser.stopAdvertising(mAdvertiseCallback);
+            mBluetoothAdvertiser.startAdvertising(buildAdvertiseSettings(), buildAdvertisingData(), mAdvertiseCallback);
+        }
+    }
+
+    /**
+     * Keep advertising while Centrals come and go, but only invite connections while there's room
+     */
+    private synchronized void onConnectableChanged() {
+        boolean isConnectable = !mCentralSessionManager.isFull();
+        if (isConnectable != mIsAdvertisingConnectable) {
+            restartAdvertising();
+        }
+    }
+
     /**
      * Build Advertise settings with transmission power and advertise speed
      *
@@ -314,12 +566,10 @@ public class BlePeripheral {
         settingsBuilder.setAdvertiseMode(mAdvertisingMode);
         settingsBuilder.setTxPowerLevel(mTransmissionPower);
 
-        // There's no need to connect to a Peripheral that doesn't host a Gatt profile
-        if (mGattServer != null) {
-            settingsBuilder.setConnectable(true);
-        } else {
-            settingsBuilder.setConnectable(false);
-        }
+        // There's no need to connect to a Peripheral that doesn't host a Gatt profile,
+        // or one that can't take another Central
+        mIsAdvertisingConnectable = mGattServer != null && !mCentralSessionManager.isFull();
+        settingsBuilder.setConnectable(mIsAdvertisingConnectable);
 
         return settingsBuilder.build();
 
@@ -330,7 +580,8 @@ public class BlePeripheral {
      *
      * @throws Exception Exception thrown if Bluetooth Peripheral mode is not supported
      */
-    public void startAdvertising() {
+    public synchronized void startAdvertising() {
+        mIsAdvertising = true;
         AdvertiseSettings advertiseSettings = buildAdvertiseSettings();
         AdvertiseData advertiseData = buildAdvertisingData();
 
@@ -341,13 +592,31 @@ public class BlePeripheral {
     /**
      * Stop advertising
      */
-    public void stopAdvertising() {
+    public synchronized void stopAdvertising() {
+        mIsAdvertising = false;
         if (mBluetoothAdvertiser != null) {
             mBluetoothAdvertiser.stopAdvertising(mAdvertiseCallback);
             mBlePeripheralCallback.onAdvertisingStopped();
         }
     }
 
+    /**
+     * Stop advertising, stop the timers and the GATT event consumer, and close the GATT
+     * server.  The Peripheral can't be used afterwards
+     */
+    public synchronized void close() {
+        stopAdvertising();
+        // the consumer stops first, so it doesn't schedule on a cancelled timer
+        mGattEventRing.shutdown();
+        if (mBatteryLevelTimer != null) {
+            mBatteryLevelTimer.cancel();
+        }
+        mAckWindowTimer.cancel();
+        if (mGattServer != null) {
+            mGattServer.close();
+        }
+    }
+
     /**
      * Check if a Characetristic supports write permissions
      * @return Returns <b>true</b> if property is writable
@@ -378,7 +647,21 @@ public class BlePeripheral {
      * @return Returns <b>true</b> if property is supports notification
      */
     public static boolean isCharacteristicNotifiable(BluetoothGattCharacteristic characteristic) {
-        return (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
+        return (characteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0;
+    }
+
+    /**
+     * Check if a Characteristic supports the notifications or indications a Central asked for
+     *
+     * @param properties the Characteristic's properties, from BluetoothGattCharacteristic.getProperties()
+     * @param subscription the Client Characteristic Configuration bits the Central wrote
+     * @return Returns <b>true</b> if the Characteristic supports them
+     */
+    public static boolean isSubscriptionSupported(int properties, int subscription) {
+        if ((subscription & CentralSession.SUBSCRIPTION_NOTIFY) != 0 && (properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+            return false;
+        }
+        return (subscription & CentralSession.SUBSCRIPTION_INDICATE) == 0 || (properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0;
     }
 
     /**
@@ -402,50 +685,50 @@ public class BlePeripheral {
         return (descriptor.getPermissions() & BluetoothGattCharacteristic.PERMISSION_WRITE) != 0;
     }
 
+    /**
+     * Record how long a write waited for its acknowledgement
+     */
+    private void onWriteAcknowledged(long elapsedNanos) {
+        mWriteAckCount.incrementAndGet();
+        mWriteAckTotalNanos.addAndGet(elapsedNanos);
+        long maxNanos = mWriteAckMaxNanos.get();
+        while (elapsedNanos > maxNanos && !mWriteAckMaxNanos.compareAndSet(maxNanos, elapsedNanos)) {
+            maxNanos = mWriteAckMaxNanos.get();
+        }
+    }
+
+    /**
+     * Capture each GATT server callback in the event ring, and let the Binder thread go.
+     * Writes are acknowledged here, before the command is carried out
+     */
     private final BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
         @Override
         public void onConnectionStateChange(BluetoothDevice device, final int status, int newState) {
             super.onConnectionStateChange(device, status, newState);
-            Log.v(TAG, "Connected");
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (newState == BluetoothGatt.STATE_CONNECTED) {
-                    mConnectedCentral = device;
-                    mBlePeripheralCallback.onCentralConnected(device);
-                    stopAdvertising();
-
-
-                } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-                    mConnectedCentral = null;
-                    mBlePeripheralCallback.onCentralDisconnected(device);
-                    try {
-                        startAdvertising();
-                    } catch (Exception e) {
-                        Log.e(TAG, "error starting advertising");
-                    }
-                }
-            }
-
+            long sequence = mGattEventRing.claim();
+            mGattEventRing.get(sequence).setConnectionStateChange(device, status, newState);
+            mGattEventRing.publish(sequence);
         }
 
         @Override
         public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
                                                 BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-            Log.d(TAG, "Device tried to read characteristic: " + characteristic.getUuid());
-            Log.d(TAG, "Value: " + Arrays.toString(characteristic.getValue()));
-            if (offset != 0) {
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, characteristic.getValue());
+            long sequence = mGattEventRing.tryClaim(REQUEST_HEADROOM);
+            if (sequence == GattEventRing.NO_SEQUENCE) {
+                mGattServer.sendResponse(device, requestId, GATT_INSUFFICIENT_RESOURCES, offset, null);
                 return;
             }
-            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS,
-                    offset, characteristic.getValue());
+            mGattEventRing.get(sequence).setCharacteristicRead(device, requestId, offset, characteristic);
+            mGattEventRing.publish(sequence);
         }
 
         @Override
         public void onNotificationSent(BluetoothDevice device, int status) {
             super.onNotificationSent(device, status);
-            Log.v(TAG, "Notification sent. Status: " + status);
+            long sequence = mGattEventRing.claim();
+            mGattEventRing.get(sequence).setNotificationSent(device, status);
+            mGattEventRing.publish(sequence);
         }
 
         @Override
@@ -454,31 +737,287 @@ public class BlePeripheral {
                                                  int offset, byte[] value) {
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite,
                     responseNeeded, offset, value);
-            Log.v(TAG, "Characteristic Write request: " + Arrays.toString(value));
-
-            mBlePeripheralCallback.onCharacteristicWritten(device, characteristic, value);
-
-            if (isCharacteristicWritableWithResponse(characteristic)) {
-                characteristic.setValue(value);
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            long arrivedNanos = System.nanoTime();
+
+            if (preparedWrite) {
+                // a piece of a long write, which waits for onExecuteWrite.  It goes through the
+                // ring, so it's prepared after the Central's connection has been applied
+                long sequence = mGattEventRing.tryClaim(REQUEST_HEADROOM);
+                if (sequence == GattEventRing.NO_SEQUENCE) {
+                    if (responseNeeded) {
+                        mGattServer.sendResponse(device, requestId, GATT_INSUFFICIENT_RESOURCES, offset, value);
+                    }
+                    return;
+                }
+                mGattEventRing.get(sequence).setPreparedWrite(device, requestId, characteristic, responseNeeded, offset, value);
+                mGattEventRing.publish(sequence);
+                return;
             }
 
+            // a Central over its rate, or with its lane full, is refused straight away, before
+            // its write takes any room.  An admitted write holds its place in the lane, so the
+            // success sent below is never followed by the command being dropped
+            int admission = mCentralSessionManager.admitCommands(device.getAddress(), 1, arrivedNanos);
+            if (admission != CentralSessionManager.COMMAND_ADMITTED) {
+                if (responseNeeded) {
+                    int status = admission == CentralSessionManager.COMMAND_LANE_FULL ? GATT_INSUFFICIENT_RESOURCES : GATT_COMMAND_RATE_EXCEEDED;
+                    mGattServer.sendResponse(device, requestId, status, 0, null);
+                    onWriteAcknowledged(System.nanoTime() - arrivedNanos);
+                }
+                return;
+            }
 
-            if (isCharacteristicNotifiable(characteristic)) {
-                boolean isNotifiedOfSend = false;
-                mGattServer.notifyCharacteristicChanged(device, characteristic, isNotifiedOfSend);
+            // too many events waiting: refuse the write so the Central knows it was lost
+            long sequence = mGattEventRing.tryClaim(REQUEST_HEADROOM);
+            if (sequence != GattEventRing.NO_SEQUENCE) {
+                mGattEventRing.get(sequence).setCharacteristicWrite(device, requestId, characteristic, responseNeeded, offset, value, CommandScheduler.nowMicros());
+                mGattEventRing.publish(sequence);
+            } else {
+                mCentralSessionManager.releaseCommands(device.getAddress(), 1);
+            }
+            if (responseNeeded) {
+                int status = sequence != GattEventRing.NO_SEQUENCE ? BluetoothGatt.GATT_SUCCESS : GATT_INSUFFICIENT_RESOURCES;
+                mGattServer.sendResponse(device, requestId, status, 0, null);
+                onWriteAcknowledged(System.nanoTime() - arrivedNanos);
             }
         }
 
+        /**
+         * Commit a Central's prepared writes as whole values, or drop them, after the
+         * prepared writes before it
+         */
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            super.onExecuteWrite(device, requestId, execute);
+            // the prepared writes are only settled by an execute, so it must not be lost
+            long sequence = mGattEventRing.claim();
+            mGattEventRing.get(sequence).setExecuteWrite(device, requestId, execute, CommandScheduler.nowMicros());
+            mGattEventRing.publish(sequence);
+        }
+
         // https://stackoverflow.com/questions/24865120/any-way-to-implement-ble-notifications-in-android-l-preview/25508053#25508053
         @Override
         public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
                                              BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded,
                                              int offset,
                                              byte[] value) {
-            Log.v(TAG, "Descriptor Write Request " + descriptor.getUuid() + " " + Arrays.toString(value));
             super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded,
                     offset, value);
+            // subscriptions must not be lost
+            long sequence = mGattEventRing.claim();
+            mGattEventRing.get(sequence).setDescriptorWrite(device, requestId, descriptor, responseNeeded, offset, value);
+            mGattEventRing.publish(sequence);
+        }
+
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+            super.onDescriptorReadRequest(device, requestId, offset, descriptor);
+            long sequence = mGattEventRing.claim();
+            mGattEventRing.get(sequence).setDescriptorRead(device, requestId, offset, descriptor);
+            mGattEventRing.publish(sequence);
+        }
+    };
+
+    /**
+     * Apply the GATT server callbacks one at a time, in the order they arrived
+     */
+    private final GattEventRing.EventHandler mGattEventHandler = new GattEventRing.EventHandler() {
+        @Override
+        public void onEvent(GattEvent event) {
+            switch (event.getType()) {
+                case GattEvent.TYPE_CONNECTION_STATE_CHANGE:
+                    onConnectionStateChange(event.getDevice(), event.getStatus(), event.getNewState());
+                    break;
+                case GattEvent.TYPE_CHARACTERISTIC_READ:
+                    onCharacteristicRead(event.getDevice(), event.getRequestId(), event.getOffset(), event.getCharacteristic());
+                    break;
+                case GattEvent.TYPE_CHARACTERISTIC_WRITE:
+                    queueCommand(event.getDevice(), event.getCharacteristic(), event.getValue(), event.getReceivedTime());
+                    break;
+                case GattEvent.TYPE_PREPARED_WRITE:
+                    onPreparedWrite(event.getDevice(), event.getRequestId(), event.getCharacteristic(), event.isResponseNeeded(), event.getOffset(), event.getValue());
+                    break;
+                case GattEvent.TYPE_EXECUTE_WRITE:
+                    onExecuteWrite(event.getDevice(), event.getRequestId(), event.isExecute(), event.getReceivedTime());
+                    break;
+                case GattEvent.TYPE_DESCRIPTOR_READ:
+                    onDescriptorRead(event.getDevice(), event.getRequestId(), event.getOffset(), event.getDescriptor());
+                    break;
+                case GattEvent.TYPE_DESCRIPTOR_WRITE:
+                    onDescriptorWrite(event.getDevice(), event.getRequestId(), event.getDescriptor(), event.isResponseNeeded(), event.getOffset(), event.getValue());
+                    break;
+                case GattEvent.TYPE_NOTIFICATION_SENT:
+                    Log.v(TAG, "Notification sent. Status: " + event.getStatus());
+                    // the stack has room for the next one
+                    mCentralSessionManager.onNotificationSent(event.getDevice().getAddress(), event.getStatus());
+                    break;
+            }
+        }
+
+        @Override
+        public void onEventFailed(GattEvent event, RuntimeException e) {
+            Log.e(TAG, "Could not handle GATT event " + event.getType() + ": " + e.getMessage());
+        }
+
+        /**
+         * Carry out one waiting command, from the next Central in turn
+         */
+        @Override
+        public boolean onRingDrained() {
+            FairCommandQueue.PendingCommand pendingCommand = mFairCommandQueue.poll();
+            if (pendingCommand != null) {
+                BluetoothDevice device = pendingCommand.getDevice();
+                onCharacteristicWrite(device, pendingCommand.getCharacteristic(), pendingCommand.getValue(), pendingCommand.getReceivedTime());
+                mCentralSessionManager.releaseCommands(device.getAddress(), 1);
+            }
+            return !mFairCommandQueue.isEmpty();
+        }
+
+        private void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            Log.v(TAG, "Connection state " + newState + " status " + status);
+
+            if (newState == BluetoothGatt.STATE_CONNECTED && status == BluetoothGatt.GATT_SUCCESS) {
+                if (mCentralSessionManager.onCentralConnected(device.getAddress(), device) == null) {
+                    Log.w(TAG, "Too many Centrals, turning away " + device.getAddress());
+                    mGattServer.cancelConnection(device);
+                    return;
+                }
+                mBlePeripheralCallback.onCentralConnected(device);
+                onConnectableChanged();
+
+            } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+                // a link lost with an error status is still gone
+                mFairCommandQueue.removeLane(device.getAddress());
+                if (mCentralSessionManager.onCentralDisconnected(device.getAddress()) != null) {
+                    mBlePeripheralCallback.onCentralDisconnected(device);
+                    onConnectableChanged();
+                }
+            }
+        }
+
+        /**
+         * Serve a read, or a blob read carrying on a long read from an offset.  The whole
+         * long read is served from the value as it was when the read started
+         */
+        private void onCharacteristicRead(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+            CentralSession centralSession = mCentralSessionManager.getSession(device.getAddress());
+            AttributeTable.Attribute attribute = mAttributeTable.getAttribute(characteristic.getUuid());
+            byte[] value;
+            if (attribute != null && attribute.isStatic()) {
+                // it never changes, so it needs no snapshot
+                value = attribute.readAt(offset);
+            } else {
+                synchronized (characteristic) {
+                    if (centralSession != null) {
+                        value = centralSession.readAt(characteristic.getUuid(), offset, characteristic.getValue());
+                    } else {
+                        value = offset == 0 ? characteristic.getValue() : null;
+                    }
+                }
+            }
+            if (value == null) {
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                return;
+            }
+            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS,
+                    offset, value);
+        }
+
+        /**
+         * Queue a write to be carried out in its Central's turn.  Room was held for it when
+         * it was admitted, so the lane has space
+         */
+        private void queueCommand(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value, long receivedTime) {
+            FairCommandQueue.PendingCommand pendingCommand = mFairCommandQueue.offer(device.getAddress());
+            if (pendingCommand == null) {
+                Log.w(TAG, "Too many commands waiting for " + device.getAddress() + ", command dropped");
+                mCentralSessionManager.releaseCommands(device.getAddress(), 1);
+            } else {
+                pendingCommand.set(device, characteristic, value, receivedTime);
+            }
+        }
+
+        private void onPreparedWrite(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean responseNeeded, int offset, byte[] value) {
+            CentralSession centralSession = mCentralSessionManager.getSession(device.getAddress());
+            int status = centralSession != null ? centralSession.getPreparedWriteQueue().prepare(characteristic.getUuid(), offset, value) : BluetoothGatt.GATT_FAILURE;
+            if (responseNeeded) {
+                // echoed back, so a reliable write can check the piece arrived intact
+                mGattServer.sendResponse(device, requestId, status, offset, value);
+            }
+        }
+
+        /**
+         * Commit a Central's prepared writes as whole values, or drop them.  Each value
+         * committed counts as one command against the Central's rate and holds its place in
+         * the Central's lane, so all of them are admitted before the execute succeeds, or none
+         *
+         * @param receivedTime when the execute arrived, in CommandScheduler.nowMicros() time
+         */
+        private void onExecuteWrite(final BluetoothDevice device, int requestId, boolean execute, final long receivedTime) {
+            CentralSession centralSession = mCentralSessionManager.getSession(device.getAddress());
+            if (centralSession == null) {
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+                return;
+            }
+
+            PreparedWriteQueue preparedWriteQueue = centralSession.getPreparedWriteQueue();
+            int valueCount = preparedWriteQueue.getQueuedValueCount();
+            int status = BluetoothGatt.GATT_SUCCESS;
+            if (!execute) {
+                preparedWriteQueue.cancel();
+            } else if (valueCount > 0) {
+                int admission = mCentralSessionManager.admitCommands(device.getAddress(), valueCount, receivedTime * 1000);
+                if (admission != CentralSessionManager.COMMAND_ADMITTED) {
+                    preparedWriteQueue.cancel();
+                    status = admission == CentralSessionManager.COMMAND_LANE_FULL ? GATT_INSUFFICIENT_RESOURCES : GATT_COMMAND_RATE_EXCEEDED;
+                } else {
+                    status = preparedWriteQueue.execute(new PreparedWriteQueue.Committer() {
+                        @Override
+                        public void onCommit(UUID characteristicUuid, byte[] value) {
+                            BluetoothGattCharacteristic characteristic = mCharacteristics.get(characteristicUuid);
+                            if (characteristic != null) {
+                                queueCommand(device, characteristic, value, receivedTime);
+                            } else {
+                                Log.w(TAG, "Long write to unknown Characteristic " + characteristicUuid + " dropped");
+                                mCentralSessionManager.releaseCommands(device.getAddress(), 1);
+                            }
+                        }
+                    });
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        // nothing was committed
+                        mCentralSessionManager.releaseCommands(device.getAddress(), valueCount);
+                    }
+                }
+            }
+            mGattServer.sendResponse(device, requestId, status, 0, null);
+            onWriteAcknowledged(System.nanoTime() - receivedTime * 1000);
+        }
+
+        /**
+         * Carry out a write.  It was acknowledged when it arrived
+         */
+        private void onCharacteristicWrite(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value, long receivedTime) {
+            AttributeTable.Attribute attribute = mAttributeTable.getAttribute(characteristic.getUuid());
+            if (attribute == null) {
+                Log.w(TAG, "Write to unknown Characteristic " + characteristic.getUuid() + " dropped");
+                return;
+            }
+
+            attribute.getWriteHandler().onCharacteristicWritten(device, characteristic.getUuid(), value, receivedTime);
+
+            if (attribute.isWriteKept()) {
+                synchronized (characteristic) {
+                    characteristic.setValue(value);
+                }
+            }
+
+            if (attribute.isWriteEchoed()) {
+                notifyCentral(device, characteristic.getUuid(), value);
+            }
+        }
+
+        private void onDescriptorWrite(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean responseNeeded, int offset, byte[] value) {
+            Log.v(TAG, "Descriptor Write Request " + descriptor.getUuid() + " " + Arrays.toString(value));
 
             // determine which Characteristic is being requested
             BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
@@ -486,27 +1025,61 @@ public class BlePeripheral {
 
             // is the descriptor writeable?
             if (isDescriptorWriteable(descriptor)) {
-                descriptor.setValue(value);
+                int status = BluetoothGatt.GATT_SUCCESS;
 
                 // was this a subscription or an unsubscription?
                 if (descriptor.getUuid().equals(NOTIFY_DESCRIPTOR_UUID)) {
-                    if (value == BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE) {
-                        mBlePeripheralCallback.onCharacteristicSubscribedTo(characteristic);
-                    } else if (value == BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE) {
-                        mBlePeripheralCallback.onCharacteristicUnsubscribedFrom(characteristic);
-                    }
-                    // send a confirmation if necessary
-                    if (isDescriptorReadable(descriptor)) {
-                        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+                    // each Central has its own subscription, so the descriptor's shared value isn't touched
+                    int subscription = CentralSession.parseCccdValue(value);
+                    if (subscription == CentralSession.INVALID_SUBSCRIPTION) {
+                        status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+                    } else if (!isSubscriptionSupported(characteristic.getProperties(), subscription)) {
+                        status = GATT_CCCD_IMPROPERLY_CONFIGURED;
+                    } else {
+                        int previousSubscription = mCentralSessionManager.onSubscriptionChanged(device.getAddress(), characteristic.getUuid(), subscription);
+                        if (previousSubscription == CentralSession.SUBSCRIPTION_NONE && subscription != CentralSession.SUBSCRIPTION_NONE) {
+                            mBlePeripheralCallback.onCharacteristicSubscribedTo(characteristic);
+                        } else if (previousSubscription != CentralSession.SUBSCRIPTION_NONE && subscription == CentralSession.SUBSCRIPTION_NONE) {
+                            mBlePeripheralCallback.onCharacteristicUnsubscribedFrom(characteristic);
+                        }
                     }
+                } else {
+                    descriptor.setValue(value);
+                }
+                // send a confirmation if necessary
+                if (responseNeeded) {
+                    mGattServer.sendResponse(device, requestId, status, offset, value);
                 }
             } else {
                 // notify failure if necessary
-                if (isDescriptorReadable(descriptor)) {
+                if (responseNeeded) {
                     mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, offset, value);
                 }
             }
         }
+
+        /**
+         * Answer a Descriptor read.  A long read asks for the value from an offset
+         */
+        private void onDescriptorRead(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+            byte[] value;
+            if (descriptor.getUuid().equals(NOTIFY_DESCRIPTOR_UUID)) {
+                // a Central reads back its own subscription
+                CentralSession centralSession = mCentralSessionManager.getSession(device.getAddress());
+                value = centralSession != null ? centralSession.getCccdValue(descriptor.getCharacteristic().getUuid()) : CentralSession.DISABLE_NOTIFICATION_VALUE;
+            } else {
+                value = descriptor.getValue();
+            }
+            int length = value != null ? value.length : 0;
+            if (offset < 0 || offset > length) {
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                return;
+            }
+            if (offset > 0) {
+                value = Arrays.copyOfRange(value, offset, length);
+            }
+            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+        }
     };
 
     public AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
@@ -521,6 +1094,7 @@ public class BlePeripheral {
         @Override
         public void onStartFailure(int errorCode) {
             super.onStartFailure(errorCode);
+            mIsAdvertising = false;
             mBlePeripheralCallback.onAdvertisingFailed(errorCode);
         }
     };
@@ -12,6 +12,7 @@ import java.util.UUID;
 
 import tonyg.example.com.examplebleperipheral.ble.callbacks.BlePeripheralCallback;
 import tonyg.example.com.examplebleperipheral.ble.callbacks.BleRemoteLedCallback;
+import tonyg.example.com.examplebleperipheral.ble.callbacks.BroadcastCommandCallback;
 
 
 /**
@@ -36,6 +37,8 @@ public class BleRemoteLed {
     public static final UUID AUTOMATION_IO_SERVICE_UUID = UUID.fromString("00001815-0000-1000-8000-00805f9b34fb"); // Automation IO Service
     public static final UUID COMMAND_CHARACTERISTIC_UUID = UUID.fromString("00002a56-0000-1000-8000-00805f9b34fb");
     public static final UUID RESPONSE_CHARACTERISTIC_UUID = UUID.fromString("00002a57-0000-1000-8000-00805f9b34fb");
+    // the Remote Control writes the broadcast command key here, only over an encrypted link
+    public static final UUID BROADCAST_KEY_CHARACTERISTIC_UUID = UUID.fromString("5a1e0d31-8b3c-4f7e-9d2a-6c4b1e0f7a15");
 
 
     private static final int COMMAND_CHARACTERISTIC_LENGTH = 20;
@@ -53,6 +56,22 @@ public class BleRemoteLed {
 
     public static final byte COMMAND_LED_OFF = 2;
     public static final byte COMMAND_LED_ON = 1;
+    public static final byte COMMAND_TIME_SYNC = 3;
+    public static final byte COMMAND_EXECUTE_AT = 4;
+    public static final byte COMMAND_SET_FEATURES = 5;
+
+    // [COMMAND_TIME_SYNC][footer][sequence]
+    public static final int TIME_SYNC_SEQUENCE_POSITION = 2;
+    private static final int TIME_SYNC_COMMAND_LENGTH = 3;
+
+    // [COMMAND_EXECUTE_AT][footer][LED command][execution time, 8 bytes]
+    public static final int EXECUTE_AT_COMMAND_POSITION = 2;
+    public static final int EXECUTE_AT_TIME_POSITION = 3;
+    private static final int EXECUTE_AT_COMMAND_LENGTH = 11;
+
+    // [COMMAND_SET_FEATURES][footer][CentralSession feature bits]
+    public static final int FEATURES_POSITION = 2;
+    private static final int FEATURES_COMMAND_LENGTH = 3;
 
     /** Receiving responses **/
     public static final int RESPONSE_FOOTER_POSITION = 1;
@@ -64,17 +83,46 @@ public class BleRemoteLed {
     public static final byte RESPONSE_LED_STATE_ERROR = 1;
     public static final byte LED_STATE_ON = 1;
     public static final byte LED_STATE_OFF = 2;
+    public static final byte RESPONSE_TIME_SYNC = 3;
+    public static final byte RESPONSE_MULTI_ACK = AckWindow.MULTI_ACK_TYPE;
+
+    // [RESPONSE_TIME_SYNC][footer][sequence][receive time, 8 bytes][send time, 8 bytes]
+    public static final int TIME_SYNC_RECEIVE_TIME_POSITION = 3;
+    public static final int TIME_SYNC_SEND_TIME_POSITION = 11;
+    private static final int TIME_SYNC_RESPONSE_LENGTH = 19;
+
+    // [LED state][footer][execution time, 8 bytes], when the command was scheduled
+    public static final int EXECUTED_TIME_POSITION = 2;
+    private static final int EXECUTED_RESPONSE_LENGTH = 10;
+
+    // either LED state response ends with the low 32 bits of the state's version
+    public static final int STATE_VERSION_LENGTH = 4;
+
+    /** Advertised state: [LED state][sequence number][battery level] **/
+    private static final int STATE_SERVICE_DATA_LENGTH = 3;
+    public static final int STATE_POSITION = 0;
+    public static final int STATE_SEQUENCE_POSITION = 1;
+    public static final int STATE_BATTERY_POSITION = 2;
 
 
     /** Callback Handlers **/
     public BleRemoteLedCallback mBleRemoteLedCallback;
 
+    private final Context mContext;
+
     /** Bluetooth Stuff **/
     private BlePeripheral mBlePeripheral;
 
     private BluetoothGattService mAutomationIoService;
-    private BluetoothGattCharacteristic mCommandCharacteristic, mResponseCharacteristic;
+    private BluetoothGattCharacteristic mCommandCharacteristic, mResponseCharacteristic, mBroadcastKeyCharacteristic;
+
+    private final LedStateRegister mLedStateRegister;
 
+    private final CommandScheduler mCommandScheduler = new CommandScheduler();
+    private BroadcastCommandScanner mBroadcastCommandScanner;
+    private boolean mIsBroadcastReceivingRequested = false;
+    private int mBroadcastGroup = BroadcastCommand.ALL_GROUPS;
+    private boolean mIsRelayEnabled = false;
 
 
 
@@ -86,7 +134,9 @@ public class BleRemoteLed {
      * @throws Exception Exception thrown if Bluetooth is not supported
      */
     public BleRemoteLed(final Context context, BleRemoteLedCallback bleRemoteLedCallback) throws Exception {
+        mContext = context;
         mBleRemoteLedCallback = bleRemoteLedCallback;
+        mLedStateRegister = new LedStateRegister(LED_STATE_OFF, mLedStateChangeListener);
 
         mBlePeripheral = new BlePeripheral(context, mBlePeripheralCallback);
 
@@ -112,17 +162,32 @@ public class BleRemoteLed {
 
         mResponseCharacteristic = new BluetoothGattCharacteristic(
                 RESPONSE_CHARACTERISTIC_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE,
                 BluetoothGattCharacteristic.PERMISSION_READ);
 
         // add Notification support to Characteristic
         BluetoothGattDescriptor notifyDescriptor = new BluetoothGattDescriptor(BlePeripheral.NOTIFY_DESCRIPTOR_UUID, BluetoothGattDescriptor.PERMISSION_WRITE | BluetoothGattDescriptor.PERMISSION_READ);
         mResponseCharacteristic.addDescriptor(notifyDescriptor);
 
+        // writing it makes the Central pair first, so only a bonded Remote Control can set the key
+        mBroadcastKeyCharacteristic = new BluetoothGattCharacteristic(
+                BROADCAST_KEY_CHARACTERISTIC_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED);
+
         mAutomationIoService.addCharacteristic(mCommandCharacteristic);
         mAutomationIoService.addCharacteristic(mResponseCharacteristic);
+        mAutomationIoService.addCharacteristic(mBroadcastKeyCharacteristic);
 
         mBlePeripheral.addService(mAutomationIoService);
+        mBlePeripheral.setWriteHandler(COMMAND_CHARACTERISTIC_UUID, mCommandWriteHandler);
+        mBlePeripheral.setWriteHandler(BROADCAST_KEY_CHARACTERISTIC_UUID, mBroadcastKeyWriteHandler);
+
+        // each write is already acknowledged, so responses don't need the extra round trip
+        // of an indication unless the Central asks for one
+        mBlePeripheral.setAckPolicy(RESPONSE_CHARACTERISTIC_UUID, CentralSessionManager.ACK_PREFER_NOTIFY);
+        // and Centrals that can count them get a burst of confirmations in one notification
+        mBlePeripheral.setAckAggregation(RESPONSE_CHARACTERISTIC_UUID, true);
     }
 
     /**
@@ -133,6 +198,7 @@ public class BleRemoteLed {
     public void startAdvertising() throws Exception {
         // set the device name
         mBlePeripheral.setPeripheralAdvertisingName(ADVERTISING_NAME);
+        advertiseLedState();
 
         mBlePeripheral.startAdvertising();
     }
@@ -144,6 +210,127 @@ public class BleRemoteLed {
         mBlePeripheral.stopAdvertising();
     }
 
+    /**
+     * Also take commands broadcast by a Central, without a connection.  Until a Remote
+     * Control has written the broadcast key, nothing is received; receiving starts when
+     * the key arrives
+     *
+     * @param group the group this Remote Led belongs to, or BroadcastCommand.ALL_GROUPS
+     * @return <b>true</b> if receiving started, <b>false</b> if it waits for the key
+     * @throws Exception if the broadcast command signature can't be checked on this device
+     */
+    public synchronized boolean startBroadcastReceiving(int group) throws Exception {
+        mIsBroadcastReceivingRequested = true;
+        mBroadcastGroup = group;
+        if (mBroadcastCommandScanner == null) {
+            byte[] key = BroadcastKeyStore.getKey(mContext);
+            if (key == null) {
+                Log.i(TAG, "No broadcast key yet, broadcast commands wait for a Remote Control to provision one");
+                return false;
+            }
+            startBroadcastCommandScanner(key);
+        } else {
+            mBroadcastCommandScanner.getBroadcastCommandReceiver().setGroup(group);
+            mBroadcastCommandScanner.start();
+        }
+        return true;
+    }
+
+    /**
+     * Relay broadcast commands to Remote Leds out of the Central's range.
+     * Takes effect while broadcast commands are being received
+     *
+     * @param isEnabled <b>true</b> to relay
+     * @throws Exception if the broadcast command signature can't be checked on this device
+     */
+    public synchronized void setRelayEnabled(boolean isEnabled) throws Exception {
+        mIsRelayEnabled = isEnabled;
+        if (mBroadcastCommandScanner != null) {
+            mBroadcastCommandScanner.setRelay(isEnabled ? createRelay(BroadcastKeyStore.getKey(mContext)) : null);
+        }
+    }
+
+    /**
+     * Stop taking broadcast commands
+     */
+    public synchronized void stopBroadcastReceiving() {
+        mIsBroadcastReceivingRequested = false;
+        if (mBroadcastCommandScanner != null) {
+            mBroadcastCommandScanner.stop();
+        }
+    }
+
+    /**
+     * Start taking broadcast commands signed with a key, replacing any scanner that checked
+     * them with an older one
+     */
+    private void startBroadcastCommandScanner(byte[] key) throws Exception {
+        if (mBroadcastCommandScanner != null) {
+            mBroadcastCommandScanner.stop();
+        }
+        BroadcastCommandReceiver broadcastCommandReceiver = new BroadcastCommandReceiver(new BroadcastCommand(key));
+        broadcastCommandReceiver.setGroup(mBroadcastGroup);
+        mBroadcastCommandScanner = new BroadcastCommandScanner(mBlePeripheral.getBluetoothAdapter(), broadcastCommandReceiver, mBroadcastCommandCallback);
+        if (mIsRelayEnabled) {
+            mBroadcastCommandScanner.setRelay(createRelay(key));
+        }
+        mBroadcastCommandScanner.start();
+    }
+
+    private BroadcastCommandRelay createRelay(byte[] key) throws Exception {
+        return new BroadcastCommandRelay(mBlePeripheral.getBluetoothAdapter(), new MeshRelay(new BroadcastCommand(key)));
+    }
+
+    /**
+     * Keep the broadcast key a Remote Control wrote, and check broadcast commands with it
+     * from now on
+     */
+    private synchronized void onBroadcastKeyProvisioned(byte[] key) {
+        if (!BroadcastKeyStore.isValidKey(key)) {
+            Log.w(TAG, "Ignoring a broadcast key of " + key.length + " bytes");
+            return;
+        }
+        BroadcastKeyStore.setKey(mContext, key);
+        Log.i(TAG, "Broadcast key provisioned");
+        if (mBroadcastCommandScanner != null) {
+            mBroadcastCommandScanner.stop();
+            mBroadcastCommandScanner = null;
+        }
+        if (mIsBroadcastReceivingRequested) {
+            try {
+                startBroadcastCommandScanner(key);
+            } catch (Exception e) {
+                Log.e(TAG, "Can't take broadcast commands: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stop everything this Remote Led started: advertising, broadcast receiving, scheduled
+     * commands and the GATT server.  It can't be used afterwards
+     */
+    public void close() {
+        stopBroadcastReceiving();
+        mCommandScheduler.shutdown();
+        mBlePeripheral.close();
+    }
+
+    /**
+     * Set how commands that race to change the LED are settled
+     *
+     * @param arbitration LedStateRegister.ARBITRATION_LAST_WRITER_WINS or LedStateRegister.ARBITRATION_PRIORITY
+     */
+    public void setArbitration(int arbitration) {
+        mLedStateRegister.setArbitration(arbitration);
+    }
+
+    /**
+     * Get the LED state, its version and who set it
+     */
+    public LedStateRegister getLedStateRegister() {
+        return mLedStateRegister;
+    }
+
     /**
      * Get the BlePeripheral
      */
@@ -155,21 +342,48 @@ public class BleRemoteLed {
      * Make sense of the incoming byte array as a command
      *
      * @param bleCommandValue the incoming Bluetooth value
+     * @param receivedTime when the command arrived.  Time sync measures from this moment,
+     *     not from when the GATT event thread got to it
      */
-    private void processCommand(final BluetoothDevice connectedDevice, final byte[] bleCommandValue) {
-        if (bleCommandValue[COMMAND_FOOTER_POSITION] == COMMAND_FOOTER) {
+    private void processCommand(final BluetoothDevice connectedDevice, final byte[] bleCommandValue, long receivedTime) {
+        // the command was meant for the LED as it is now
+        final long observedVersion = mLedStateRegister.getVersion();
+        final int writerId = getWriterId(connectedDevice);
+        if (bleCommandValue.length >= TRANSMISSION_LENGTH && bleCommandValue[COMMAND_FOOTER_POSITION] == COMMAND_FOOTER) {
             Log.v(TAG, "Command found");
             switch (bleCommandValue[COMMAND_DATA_POSITION]) {
                 case COMMAND_LED_ON:
-                    Log.v(TAG, "Command to turn LED on");
-                    sendBleResponse(connectedDevice, LED_STATE_ON);
-                    mBleRemoteLedCallback.onLedTurnedOn();
+                case COMMAND_LED_OFF:
+                    executeLedCommand(connectedDevice, bleCommandValue[COMMAND_DATA_POSITION], writerId, observedVersion, null);
                     break;
 
-                case COMMAND_LED_OFF:
-                    Log.v(TAG, "Command to turn LED off");
-                    sendBleResponse(connectedDevice, LED_STATE_OFF);
-                    mBleRemoteLedCallback.onLedTurnedOff();
+                case COMMAND_TIME_SYNC:
+                    if (bleCommandValue.length >= TIME_SYNC_COMMAND_LENGTH) {
+                        Log.v(TAG, "Time sync request");
+                        sendTimeSyncResponse(connectedDevice, bleCommandValue[TIME_SYNC_SEQUENCE_POSITION], receivedTime);
+                    }
+                    break;
+
+                case COMMAND_EXECUTE_AT:
+                    if (bleCommandValue.length >= EXECUTE_AT_COMMAND_LENGTH) {
+                        final byte ledCommand = bleCommandValue[EXECUTE_AT_COMMAND_POSITION];
+                        long executeAt = getInt64(bleCommandValue, EXECUTE_AT_TIME_POSITION);
+                        Log.v(TAG, "Command " + ledCommand + " scheduled in " + (executeAt - receivedTime) + "us");
+                        mCommandScheduler.scheduleAt(executeAt, new CommandScheduler.ScheduledCommand() {
+                            @Override
+                            public void execute(long executedTime) {
+                                executeLedCommand(connectedDevice, ledCommand, writerId, observedVersion, executedTime);
+                            }
+                        });
+                    }
+                    break;
+
+                case COMMAND_SET_FEATURES:
+                    if (bleCommandValue.length >= FEATURES_COMMAND_LENGTH) {
+                        int features = bleCommandValue[FEATURES_POSITION] & 0xFF;
+                        Log.v(TAG, "Central supports features " + features);
+                        mBlePeripheral.getCentralSessionManager().setFeatures(connectedDevice.getAddress(), features);
+                    }
                     break;
 
                 default:
@@ -179,20 +393,208 @@ public class BleRemoteLed {
     }
 
     /**
-     * Send a formatted response out via a Bluetooth Characteristic
+     * Turn the LED on or off.  If the LED was changed, every Central hears about it from the
+     * LedStateRegister.  Otherwise only the Central that sent the command is told the LED state.
+     * A Central that takes multi-acks has the command counted in its next one either way
+     *
+     * @param connectedDevice the Central that sent the command, or null
+     * @param ledCommand COMMAND_LED_ON or COMMAND_LED_OFF
+     * @param writerId who sent the command, from LedStateRegister.writerId()
+     * @param observedVersion the LED state version when the command was sent
+     * @param executedTime when a scheduled command was carried out, or null if it wasn't scheduled
+     */
+    private void executeLedCommand(BluetoothDevice connectedDevice, byte ledCommand, int writerId, long observedVersion, Long executedTime) {
+        byte ledState;
+        switch (ledCommand) {
+            case COMMAND_LED_ON:
+                Log.v(TAG, "Command to turn LED on");
+                ledState = LED_STATE_ON;
+                break;
+
+            case COMMAND_LED_OFF:
+                Log.v(TAG, "Command to turn LED off");
+                ledState = LED_STATE_OFF;
+                break;
+
+            default:
+                Log.d(TAG, "Unknown LED command");
+                return;
+        }
+
+        int result = mLedStateRegister.write(ledState, writerId, observedVersion, executedTime);
+        if (connectedDevice == null) {
+            return;
+        }
+        if (result == LedStateRegister.RESULT_ACCEPTED
+                && !mBlePeripheral.getCentralSessionManager().isAggregatingAcks(connectedDevice.getAddress(), RESPONSE_CHARACTERISTIC_UUID)) {
+            // the new state went to every Central, so this one has its response already
+            return;
+        }
+        if (result == LedStateRegister.RESULT_REJECTED) {
+            Log.v(TAG, "Command lost to another writer");
+        }
+        long register = mLedStateRegister.get();
+        byte[] responseValue = buildStateResponse((byte) LedStateRegister.getState(register), executedTime, LedStateRegister.getVersion(register));
+        mBlePeripheral.acknowledge(connectedDevice, RESPONSE_CHARACTERISTIC_UUID, responseValue);
+    }
+
+    /**
+     * Tell Centrals apart as writers of the LED state, by the last byte of their address
+     */
+    private static int getWriterId(BluetoothDevice connectedDevice) {
+        int index = 0;
+        if (connectedDevice != null) {
+            String address = connectedDevice.getAddress();
+            index = Integer.parseInt(address.substring(address.length() - 2), 16);
+        }
+        return LedStateRegister.writerId(LedStateRegister.PRIORITY_CENTRAL, index);
+    }
+
+    /**
+     * Put the LED state, its sequence number, and the battery level in the Advertising Data,
+     * so Centrals can follow the LED without connecting
+     */
+    private void advertiseLedState() {
+        long register = mLedStateRegister.get();
+        byte[] serviceData = new byte[STATE_SERVICE_DATA_LENGTH];
+        serviceData[STATE_POSITION] = (byte) LedStateRegister.getState(register);
+        serviceData[STATE_SEQUENCE_POSITION] = (byte) LedStateRegister.getVersion(register);
+        serviceData[STATE_BATTERY_POSITION] = (byte) mBlePeripheral.getBatteryLevel();
+        mBlePeripheral.setServiceData(AUTOMATION_IO_SERVICE_UUID, serviceData);
+    }
+
+    /**
+     * Answer a time sync request with the time it arrived and the time the answer is sent
      *
-     * @param ledState the new LED state
+     * @param sequence the sequence number of the request
+     * @param receivedTime when the request arrived
      */
-    private void sendBleResponse(final BluetoothDevice connectedDevice, byte ledState) {
-        byte[] responseValue = new byte[TRANSMISSION_LENGTH];
+    private void sendTimeSyncResponse(final BluetoothDevice connectedDevice, byte sequence, long receivedTime) {
+        byte[] responseValue = new byte[TIME_SYNC_RESPONSE_LENGTH];
+        responseValue[RESPONSE_DATA_POSITION] = RESPONSE_TIME_SYNC;
+        responseValue[RESPONSE_FOOTER_POSITION] = RESPONSE_TYPE_CONFIRMATION;
+        responseValue[TIME_SYNC_SEQUENCE_POSITION] = sequence;
+        putInt64(responseValue, TIME_SYNC_RECEIVE_TIME_POSITION, receivedTime);
+        putInt64(responseValue, TIME_SYNC_SEND_TIME_POSITION, CommandScheduler.nowMicros());
+
+        sendBleResponse(connectedDevice, responseValue);
+    }
+
+    /**
+     * Build an LED state response
+     *
+     * @param ledState the LED state
+     * @param executedTime when a scheduled command was carried out, or null if it wasn't scheduled
+     * @param version the LED state's version
+     */
+    private static byte[] buildStateResponse(byte ledState, Long executedTime, long version) {
+        int length = executedTime != null ? EXECUTED_RESPONSE_LENGTH : TRANSMISSION_LENGTH;
+        byte[] responseValue = new byte[length + STATE_VERSION_LENGTH];
         responseValue[RESPONSE_FOOTER_POSITION] = RESPONSE_TYPE_CONFIRMATION;
         responseValue[RESPONSE_DATA_POSITION] = ledState;
+        if (executedTime != null) {
+            putInt64(responseValue, EXECUTED_TIME_POSITION, executedTime);
+        }
+        putInt32(responseValue, length, (int) version);
+        return responseValue;
+    }
 
-        Log.v(TAG, "sending response: " + Arrays.toString(mResponseCharacteristic.getValue()) + " to characteristic: "+mResponseCharacteristic);
-        mResponseCharacteristic.setValue(responseValue);
-        mBlePeripheral.getGattServer().notifyCharacteristicChanged(connectedDevice, mResponseCharacteristic, true);
+    /**
+     * Send a response to one Central via a Bluetooth Characteristic
+     *
+     * @param responseValue the response
+     */
+    private void sendBleResponse(final BluetoothDevice connectedDevice, byte[] responseValue) {
+        if (connectedDevice == null) {
+            return;
+        }
+
+        Log.v(TAG, "sending response: " + Arrays.toString(responseValue) + " to characteristic: " + RESPONSE_CHARACTERISTIC_UUID);
+        mBlePeripheral.notifyCentral(connectedDevice, RESPONSE_CHARACTERISTIC_UUID, responseValue);
+    }
+
+    /**
+     * Write a little-endian 64-bit value
+     */
+    private static void putInt64(byte[] data, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            data[offset + i] = (byte) (value >>> (8 * i));
+        }
     }
 
+    /**
+     * Write a little-endian 32-bit value
+     */
+    private static void putInt32(byte[] data, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            data[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    /**
+     * Read a little-endian 64-bit value
+     */
+    private static long getInt64(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Carry out each accepted LED change, in order: switch the LED, send the new state and
+     * its version to every connected Central, and advertise it
+     */
+    private final LedStateRegister.ChangeListener mLedStateChangeListener = new LedStateRegister.ChangeListener() {
+        @Override
+        public void onLedStateChanged(long register, Long executedTime) {
+            byte ledState = (byte) LedStateRegister.getState(register);
+            if (ledState == LED_STATE_ON) {
+                mBleRemoteLedCallback.onLedTurnedOn();
+            } else {
+                mBleRemoteLedCallback.onLedTurnedOff();
+            }
+            byte[] responseValue = buildStateResponse(ledState, executedTime, LedStateRegister.getVersion(register));
+            Log.v(TAG, "sending response: " + Arrays.toString(responseValue) + " to characteristic: " + RESPONSE_CHARACTERISTIC_UUID);
+            mBlePeripheral.notifyAllCentrals(RESPONSE_CHARACTERISTIC_UUID, responseValue);
+            advertiseLedState();
+        }
+    };
+
+    private final BroadcastCommandCallback mBroadcastCommandCallback = new BroadcastCommandCallback() {
+        @Override
+        public void onBroadcastCommand(byte command) {
+            // no Central sent it, but connected Centrals still hear about the change
+            executeLedCommand(null, command, LedStateRegister.WRITER_BROADCAST, mLedStateRegister.getVersion(), null);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Can't take broadcast commands: " + errorCode);
+        }
+    };
+
+    /**
+     * Take the commands written to the Command Characteristic
+     */
+    private final AttributeTable.WriteHandler mCommandWriteHandler = new AttributeTable.WriteHandler() {
+        @Override
+        public void onCharacteristicWritten(BluetoothDevice connectedDevice, UUID characteristicUuid, byte[] value, long receivedTime) {
+            processCommand(connectedDevice, value, receivedTime);
+        }
+    };
+
+    /**
+     * Take the broadcast key written to the Broadcast Key Characteristic
+     */
+    private final AttributeTable.WriteHandler mBroadcastKeyWriteHandler = new AttributeTable.WriteHandler() {
+        @Override
+        public void onCharacteristicWritten(BluetoothDevice connectedDevice, UUID characteristicUuid, byte[] value, long receivedTime) {
+            onBroadcastKeyProvisioned(value);
+        }
+    };
+
     private BlePeripheralCallback mBlePeripheralCallback = new BlePeripheralCallback() {
         @Override
         public void onAdvertisingStarted() {
@@ -221,8 +623,7 @@ public class BleRemoteLed {
 
         @Override
         public void onCharacteristicWritten(BluetoothDevice connectedDevice, BluetoothGattCharacteristic characteristic, byte[] value) {
-            // copy value to the read Characteristic
-            processCommand(connectedDevice, value);
+            // commands arrive through mCommandWriteHandler
         }
 
         @Override
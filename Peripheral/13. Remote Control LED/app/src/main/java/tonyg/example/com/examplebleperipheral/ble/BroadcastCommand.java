@@ -0,0 +1,174 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A command broadcast to many Remote Leds at once, in Manufacturer Specific Data.
+ *
+ *   [type][source, 2 bytes][sequence, 4 bytes][LED command][group][signature, 4 bytes][TTL]
+ *
+ * The source identifies the Central that sent the command, and its sequence number goes up
+ * with every command, so a Remote Led can ignore an advertisement it has already acted on.
+ * The signature is the start of an HMAC-SHA256 of the rest of the command, with a key shared
+ * by the Central and its Remote Leds, so nothing else nearby can switch them.  The TTL is
+ * how many more times Remote Leds may relay the command.  Each relay lowers it, so it is
+ * left out of the signature.
+ *
+ * All values are little-endian.
+ *
+ * This class is kept the same, apart from its package, in the Remote Control and Remote
+ * Control LED apps, so the two agree on the format.  Change both together.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BroadcastCommand {
+    public static final int COMPANY_ID = 0xFFFF; // reserved by the Bluetooth SIG for testing
+    public static final byte TYPE_COMMAND = 1;
+    public static final int ALL_GROUPS = 0;
+
+    public static final int TYPE_POSITION = 0;
+    public static final int SOURCE_POSITION = 1;
+    public static final int SEQUENCE_POSITION = 3;
+    public static final int COMMAND_POSITION = 7;
+    public static final int GROUP_POSITION = 8;
+    public static final int SIGNATURE_POSITION = 9;
+    public static final int SIGNATURE_LENGTH = 4;
+    public static final int TTL_POSITION = 13;
+    public static final int LENGTH = 14;
+
+    public static final int DEFAULT_TTL = 3;
+    public static final int MAX_TTL = 7; // the TTL isn't signed, so don't trust a bigger one
+
+    // for tests and demos only: it's in both APKs, so anyone can sign commands with it.
+    // Neither app uses it; installs are given their own key through BroadcastKeyStore
+    public static final byte[] DEMO_KEY = "LedRemote broadcast key".getBytes(Charset.forName("US-ASCII"));
+
+    private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+
+    private final Mac mMac;
+    private final byte[] mSignature = new byte[32];
+
+    /**
+     * Create a BroadcastCommand signer
+     *
+     * @param key the key shared by the Central and its Remote Leds
+     * @throws GeneralSecurityException if HMAC-SHA256 is not available
+     */
+    public BroadcastCommand(byte[] key) throws GeneralSecurityException {
+        mMac = Mac.getInstance(SIGNATURE_ALGORITHM);
+        mMac.init(new SecretKeySpec(key, SIGNATURE_ALGORITHM));
+    }
+
+    /**
+     * Build a signed command
+     *
+     * @param source the sender's source ID
+     * @param sequence the command's sequence number
+     * @param command the LED command, for example BleRemoteLed.COMMAND_LED_ON
+     * @param group the group of Remote Leds to act on it, or ALL_GROUPS
+     * @return the Manufacturer Specific Data, without the Company ID
+     */
+    public byte[] encode(int source, long sequence, byte command, int group) {
+        return encode(source, sequence, command, group, DEFAULT_TTL);
+    }
+
+    /**
+     * Build a signed command
+     *
+     * @param source the sender's source ID
+     * @param sequence the command's sequence number
+     * @param command the LED command, for example BleRemoteLed.COMMAND_LED_ON
+     * @param group the group of Remote Leds to act on it, or ALL_GROUPS
+     * @param ttl how many times the command may be relayed
+     * @return the Manufacturer Specific Data, without the Company ID
+     */
+    public synchronized byte[] encode(int source, long sequence, byte command, int group, int ttl) {
+        byte[] data = new byte[LENGTH];
+        data[TYPE_POSITION] = TYPE_COMMAND;
+        data[SOURCE_POSITION] = (byte) source;
+        data[SOURCE_POSITION + 1] = (byte) (source >>> 8);
+        for (int i = 0; i < 4; i++) {
+            data[SEQUENCE_POSITION + i] = (byte) (sequence >>> (8 * i));
+        }
+        data[COMMAND_POSITION] = command;
+        data[GROUP_POSITION] = (byte) group;
+        sign(data);
+        System.arraycopy(mSignature, 0, data, SIGNATURE_POSITION, SIGNATURE_LENGTH);
+        data[TTL_POSITION] = (byte) ttl;
+        return data;
+    }
+
+    /**
+     * Check a command's signature
+     *
+     * @param data the Manufacturer Specific Data, without the Company ID
+     * @return <b>true</b> if the command was signed with this key
+     */
+    public synchronized boolean verify(byte[] data) {
+        if (data == null || data.length < LENGTH) {
+            return false;
+        }
+        sign(data);
+        // compare every byte, so the time taken doesn't hint at how much matched
+        int difference = 0;
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            difference |= mSignature[i] ^ data[SIGNATURE_POSITION + i];
+        }
+        return difference == 0;
+    }
+
+    public static int getSource(byte[] data) {
+        return (data[SOURCE_POSITION] & 0xFF) | ((data[SOURCE_POSITION + 1] & 0xFF) << 8);
+    }
+
+    public static long getSequence(byte[] data) {
+        long sequence = 0;
+        for (int i = 3; i >= 0; i--) {
+            sequence = (sequence << 8) | (data[SEQUENCE_POSITION + i] & 0xFF);
+        }
+        return sequence;
+    }
+
+    public static int getTtl(byte[] data) {
+        return Math.min(data[TTL_POSITION] & 0xFF, MAX_TTL);
+    }
+
+    /**
+     * Copy a command with a new TTL.  The signature stays valid
+     *
+     * @param data the Manufacturer Specific Data, without the Company ID
+     * @param ttl the new TTL
+     * @return the copy
+     */
+    public static byte[] withTtl(byte[] data, int ttl) {
+        byte[] copy = data.clone();
+        copy[TTL_POSITION] = (byte) ttl;
+        return copy;
+    }
+
+    public static byte getCommand(byte[] data) {
+        return data[COMMAND_POSITION];
+    }
+
+    public static int getGroup(byte[] data) {
+        return data[GROUP_POSITION] & 0xFF;
+    }
+
+    /**
+     * Sign everything before the signature into mSignature
+     */
+    private void sign(byte[] data) {
+        mMac.update(data, 0, SIGNATURE_POSITION);
+        try {
+            mMac.doFinal(mSignature, 0);
+        } catch (GeneralSecurityException e) {
+            // mSignature is always big enough
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decide which broadcast commands to act on.
+ *
+ * A Central repeats each broadcast command for several seconds, so the same command is
+ * heard many times.  A command is only accepted if its signature is good, it is meant for
+ * this Remote Led's group, and its sequence number is newer than the last one accepted from
+ * the same Central.  That also stops an old command recorded off the air from being
+ * replayed later.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BroadcastCommandReceiver {
+    public static final int NOT_ACCEPTED = -1;
+
+    private final BroadcastCommand mBroadcastCommand;
+    private int mGroup = BroadcastCommand.ALL_GROUPS;
+    private final Map<Integer, Long> mLastSequences = new HashMap<Integer, Long>();
+
+    /** Metrics **/
+    private int mAcceptedCount = 0;
+    private int mDuplicateCount = 0;
+    private int mRejectedCount = 0;
+    private int mOtherGroupCount = 0;
+
+    /**
+     * Create a BroadcastCommandReceiver
+     *
+     * @param broadcastCommand checks signatures with the key shared with the Central
+     */
+    public BroadcastCommandReceiver(BroadcastCommand broadcastCommand) {
+        mBroadcastCommand = broadcastCommand;
+    }
+
+    /**
+     * Set the group this Remote Led belongs to.  Commands for ALL_GROUPS are always accepted
+     */
+    public synchronized void setGroup(int group) {
+        mGroup = group;
+    }
+
+    /**
+     * Check a broadcast command heard in an advertisement
+     *
+     * @param data the Manufacturer Specific Data, without the Company ID
+     * @return the LED command to carry out, or NOT_ACCEPTED
+     */
+    public synchronized int onManufacturerData(byte[] data) {
+        if (data == null || data.length < BroadcastCommand.LENGTH || data[BroadcastCommand.TYPE_POSITION] != BroadcastCommand.TYPE_COMMAND) {
+            mRejectedCount++;
+            return NOT_ACCEPTED;
+        }
+
+        // most advertisements are repeats, so check the sequence before the signature
+        int source = BroadcastCommand.getSource(data);
+        long sequence = BroadcastCommand.getSequence(data);
+        Long lastSequence = mLastSequences.get(source);
+        if (lastSequence != null && sequence <= lastSequence) {
+            mDuplicateCount++;
+            return NOT_ACCEPTED;
+        }
+        if (!mBroadcastCommand.verify(data)) {
+            mRejectedCount++;
+            return NOT_ACCEPTED;
+        }
+        mLastSequences.put(source, sequence);
+
+        int group = BroadcastCommand.getGroup(data);
+        if (group != BroadcastCommand.ALL_GROUPS && group != mGroup) {
+            mOtherGroupCount++;
+            return NOT_ACCEPTED;
+        }
+        mAcceptedCount++;
+        return BroadcastCommand.getCommand(data);
+    }
+
+    public synchronized int getAcceptedCount() {
+        return mAcceptedCount;
+    }
+
+    public synchronized int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    public synchronized int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public synchronized int getOtherGroupCount() {
+        return mOtherGroupCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mAcceptedCount + " accepted, " + mDuplicateCount + " duplicates, "
+                + mRejectedCount + " rejected, " + mOtherGroupCount + " for other groups";
+    }
+}
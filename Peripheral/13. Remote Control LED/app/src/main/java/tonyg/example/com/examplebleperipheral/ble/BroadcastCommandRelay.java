@@ -0,0 +1,110 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Re-advertise broadcast commands, as decided by a MeshRelay.
+ *
+ * Relayed commands are advertised alongside the Remote Led's own connectable advertisement,
+ * for long enough to be heard by neighbours scanning at a low duty cycle.  A new relay
+ * replaces the one before.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BroadcastCommandRelay {
+    private static final String TAG = BroadcastCommandRelay.class.getSimpleName();
+
+    public static final long RELAY_DURATION_MS = 6000; // a low power scan interval and window, 5120 + 512ms
+
+    private final BluetoothLeAdvertiser mBluetoothAdvertiser;
+    private final MeshRelay mMeshRelay;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mIsRelaying = false;
+
+    /**
+     * Create a BroadcastCommandRelay
+     *
+     * @param bluetoothAdapter the Bluetooth Adapter
+     * @param meshRelay decides what to relay and when
+     */
+    public BroadcastCommandRelay(BluetoothAdapter bluetoothAdapter, MeshRelay meshRelay) {
+        mBluetoothAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+        mMeshRelay = meshRelay;
+    }
+
+    public MeshRelay getMeshRelay() {
+        return mMeshRelay;
+    }
+
+    /**
+     * A broadcast command was heard.  Relay it later, if the MeshRelay decides to
+     *
+     * @param data the Manufacturer Specific Data, without the Company ID
+     */
+    public void onCommandHeard(final byte[] data) {
+        long relayDelay = mMeshRelay.onCommandHeard(data);
+        if (relayDelay == MeshRelay.NO_RELAY) {
+            return;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                byte[] relayedData = mMeshRelay.onRelayDue(data);
+                if (relayedData != null) {
+                    advertise(relayedData);
+                }
+            }
+        }, relayDelay);
+    }
+
+    /**
+     * Stop relaying, and cancel relays waiting for their delay
+     */
+    public synchronized void stop() {
+        mHandler.removeCallbacksAndMessages(null);
+        if (mIsRelaying && mBluetoothAdvertiser != null) {
+            mBluetoothAdvertiser.stopAdvertising(mAdvertiseCallback);
+        }
+        mIsRelaying = false;
+        Log.v(TAG, "relays: " + mMeshRelay);
+    }
+
+    private synchronized void advertise(byte[] data) {
+        if (mBluetoothAdvertiser == null) {
+            return;
+        }
+        if (mIsRelaying) {
+            mBluetoothAdvertiser.stopAdvertising(mAdvertiseCallback);
+        }
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+                .setConnectable(false)
+                .setTimeout((int) RELAY_DURATION_MS)
+                .build();
+        AdvertiseData advertiseData = new AdvertiseData.Builder()
+                .addManufacturerData(BroadcastCommand.COMPANY_ID, data)
+                .build();
+        mBluetoothAdvertiser.startAdvertising(settings, advertiseData, mAdvertiseCallback);
+        mIsRelaying = true;
+    }
+
+    private final AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartFailure(int errorCode) {
+            // most often, too many advertisements at once
+            Log.e(TAG, "Could not relay command: " + errorCode);
+            synchronized (BroadcastCommandRelay.this) {
+                mIsRelaying = false;
+            }
+        }
+    };
+}
@@ -0,0 +1,162 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tonyg.example.com.examplebleperipheral.ble.callbacks.BroadcastCommandCallback;
+
+/**
+ * Listen for broadcast commands while the GATT server keeps running.
+ *
+ * The Bluetooth controller filters advertisements down to broadcast commands, so the app
+ * is only woken for those.  The scan runs at a low duty cycle: a Central repeats each
+ * broadcast command for longer than one scan interval, so it is still heard.
+ *
+ * With a BroadcastCommandRelay set, commands heard are also passed on to Remote Leds
+ * further away.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class BroadcastCommandScanner {
+    private static final String TAG = BroadcastCommandScanner.class.getSimpleName();
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final BroadcastCommandReceiver mBroadcastCommandReceiver;
+    private final BroadcastCommandCallback mBroadcastCommandCallback;
+    private BluetoothLeScanner mBluetoothLeScanner;
+    private BroadcastCommandRelay mBroadcastCommandRelay;
+    private int mScanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+    private boolean mIsScanning = false;
+
+    /**
+     * Create a BroadcastCommandScanner
+     *
+     * @param bluetoothAdapter the Bluetooth Adapter
+     * @param broadcastCommandReceiver decides which broadcast commands to accept
+     * @param broadcastCommandCallback notified of accepted commands
+     */
+    public BroadcastCommandScanner(BluetoothAdapter bluetoothAdapter, BroadcastCommandReceiver broadcastCommandReceiver, BroadcastCommandCallback broadcastCommandCallback) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mBroadcastCommandReceiver = broadcastCommandReceiver;
+        mBroadcastCommandCallback = broadcastCommandCallback;
+    }
+
+    /**
+     * Set how much of the time to listen.  Takes effect the next time the scan starts
+     *
+     * @param scanMode a ScanSettings scan mode
+     */
+    public void setScanMode(int scanMode) {
+        mScanMode = scanMode;
+    }
+
+    /**
+     * Relay the commands heard to Remote Leds further away
+     *
+     * @param broadcastCommandRelay the relay, or null to stop relaying
+     */
+    public synchronized void setRelay(BroadcastCommandRelay broadcastCommandRelay) {
+        if (mBroadcastCommandRelay != null && mBroadcastCommandRelay != broadcastCommandRelay) {
+            mBroadcastCommandRelay.stop();
+        }
+        mBroadcastCommandRelay = broadcastCommandRelay;
+    }
+
+    public BroadcastCommandReceiver getBroadcastCommandReceiver() {
+        return mBroadcastCommandReceiver;
+    }
+
+    /**
+     * Start listening for broadcast commands
+     */
+    public synchronized void start() {
+        if (mIsScanning) {
+            return;
+        }
+        mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (mBluetoothLeScanner == null) {
+            Log.e(TAG, "Bluetooth is off");
+            return;
+        }
+
+        // only wake up for broadcast commands
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        byte[] type = new byte[] {BroadcastCommand.TYPE_COMMAND};
+        byte[] typeMask = new byte[] {(byte) 0xFF};
+        filters.add(new ScanFilter.Builder().setManufacturerData(BroadcastCommand.COMPANY_ID, type, typeMask).build());
+
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(mScanMode)
+                .build();
+
+        mBluetoothLeScanner.startScan(filters, settings, mScanCallback);
+        mIsScanning = true;
+    }
+
+    /**
+     * Stop listening for broadcast commands
+     */
+    public synchronized void stop() {
+        if (mIsScanning && mBluetoothLeScanner != null && mBluetoothAdapter.isEnabled()) {
+            mBluetoothLeScanner.stopScan(mScanCallback);
+        }
+        mIsScanning = false;
+        if (mBroadcastCommandRelay != null) {
+            mBroadcastCommandRelay.stop();
+        }
+        Log.v(TAG, "broadcast commands: " + mBroadcastCommandReceiver);
+    }
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onScanResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onScanResult(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Broadcast command scan failed: " + errorCode);
+            synchronized (BroadcastCommandScanner.this) {
+                mIsScanning = false;
+            }
+            mBroadcastCommandCallback.onScanFailed(errorCode);
+        }
+
+        private void onScanResult(ScanResult result) {
+            ScanRecord scanRecord = result.getScanRecord();
+            if (scanRecord == null) {
+                return;
+            }
+            byte[] data = scanRecord.getManufacturerSpecificData(BroadcastCommand.COMPANY_ID);
+            BroadcastCommandRelay broadcastCommandRelay;
+            synchronized (BroadcastCommandScanner.this) {
+                broadcastCommandRelay = mBroadcastCommandRelay;
+            }
+            if (broadcastCommandRelay != null) {
+                broadcastCommandRelay.onCommandHeard(data);
+            }
+            int command = mBroadcastCommandReceiver.onManufacturerData(data);
+            if (command != BroadcastCommandReceiver.NOT_ACCEPTED) {
+                Log.v(TAG, "Broadcast command accepted: " + command);
+                mBroadcastCommandCallback.onBroadcastCommand((byte) command);
+            }
+        }
+    };
+}
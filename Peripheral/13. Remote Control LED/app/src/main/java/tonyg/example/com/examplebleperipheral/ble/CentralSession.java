@@ -0,0 +1,244 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What the Peripheral knows about one connected Central, including which Characteristics
+ * it subscribed to and which protocol features it said it supports.  Both belong to the
+ * connection, so they go when the Central does, along with its unexecuted prepared writes
+ * and the values its long reads are served from
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class CentralSession {
+    /** Client Characteristic Configuration bits **/
+    public static final int SUBSCRIPTION_NONE = 0;
+    public static final int SUBSCRIPTION_NOTIFY = 1;
+    public static final int SUBSCRIPTION_INDICATE = 2;
+    public static final int INVALID_SUBSCRIPTION = -1;
+    private static final int CCCD_LENGTH = 2;
+
+    /** Client Characteristic Configuration Descriptor values, as BluetoothGattDescriptor has them **/
+    public static final byte[] ENABLE_NOTIFICATION_VALUE = {SUBSCRIPTION_NOTIFY, 0};
+    public static final byte[] ENABLE_INDICATION_VALUE = {SUBSCRIPTION_INDICATE, 0};
+    public static final byte[] DISABLE_NOTIFICATION_VALUE = {SUBSCRIPTION_NONE, 0};
+
+    /** Protocol features a Central may support **/
+    public static final int FEATURE_NONE = 0;
+    public static final int FEATURE_MULTI_ACK = 1; // takes several confirmations in one AckWindow multi-ack
+
+    private final String mAddress;
+    private final BluetoothDevice mDevice;
+    private final long mConnectedTime;
+    private final NotificationQueue mNotificationQueue;
+    private final TokenBucket mCommandBucket;
+    private final ConcurrentHashMap<UUID, Integer> mSubscriptions = new ConcurrentHashMap<UUID, Integer>();
+    private final ConcurrentHashMap<UUID, AckWindow> mAckWindows = new ConcurrentHashMap<UUID, AckWindow>();
+    private final ConcurrentHashMap<UUID, byte[]> mReadSnapshots = new ConcurrentHashMap<UUID, byte[]>();
+    private final PreparedWriteQueue mPreparedWriteQueue = new PreparedWriteQueue();
+    private final AtomicInteger mPendingCommandCount = new AtomicInteger(); // admitted, not yet carried out
+    private volatile int mFeatures = FEATURE_NONE;
+
+    /**
+     * Start a session
+     *
+     * @param address the Central's MAC address
+     * @param device the Central, or null when simulated
+     * @param connectedTime when the Central connected, in milliseconds
+     * @param notificationQueue where notifications to the Central wait
+     * @param commandBucket limits how fast the Central may send commands
+     */
+    public CentralSession(String address, BluetoothDevice device, long connectedTime, NotificationQueue notificationQueue, TokenBucket commandBucket) {
+        mAddress = address;
+        mDevice = device;
+        mConnectedTime = connectedTime;
+        mNotificationQueue = notificationQueue;
+        mCommandBucket = commandBucket;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public long getConnectedTime() {
+        return mConnectedTime;
+    }
+
+    public NotificationQueue getNotificationQueue() {
+        return mNotificationQueue;
+    }
+
+    public TokenBucket getCommandBucket() {
+        return mCommandBucket;
+    }
+
+    public PreparedWriteQueue getPreparedWriteQueue() {
+        return mPreparedWriteQueue;
+    }
+
+    /**
+     * Hold room in the Central's command lane for commands being admitted.  A command
+     * acknowledged with room held for it is never dropped for want of room
+     *
+     * @param count how many commands
+     * @param laneCapacity how many commands the lane holds
+     * @return <b>false</b> if there isn't room for all of them, and none was held
+     */
+    public boolean reserveCommands(int count, int laneCapacity) {
+        while (true) {
+            int pending = mPendingCommandCount.get();
+            if (pending + count > laneCapacity) {
+                return false;
+            }
+            if (mPendingCommandCount.compareAndSet(pending, pending + count)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back room held for commands that were carried out, or never queued
+     *
+     * @param count how many commands
+     */
+    public void releaseCommands(int count) {
+        while (true) {
+            int pending = mPendingCommandCount.get();
+            if (mPendingCommandCount.compareAndSet(pending, Math.max(0, pending - count))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get how many commands were admitted and are still waiting to be carried out
+     */
+    public int getPendingCommandCount() {
+        return mPendingCommandCount.get();
+    }
+
+    /**
+     * Take the part of a Characteristic's value a read asks for.  A read at offset 0 takes
+     * a snapshot of the value, and the reads that carry on from a higher offset are served
+     * from it, so a long read never mixes an old value with a new one
+     *
+     * @param characteristicUuid the Characteristic
+     * @param offset where the read starts
+     * @param currentValue the Characteristic's value now.  It's copied only at offset 0
+     * @return the value from the offset on, or null if the offset is past the end.  Don't change it
+     */
+    public byte[] readAt(UUID characteristicUuid, int offset, byte[] currentValue) {
+        byte[] snapshot = offset != 0 ? mReadSnapshots.get(characteristicUuid) : null;
+        if (snapshot == null) {
+            // a blob read with no read before it is served from the value as it is now
+            snapshot = currentValue != null ? currentValue.clone() : new byte[0];
+            mReadSnapshots.put(characteristicUuid, snapshot);
+        }
+        if (offset < 0 || offset > snapshot.length) {
+            return null;
+        }
+        return offset == 0 ? snapshot : Arrays.copyOfRange(snapshot, offset, snapshot.length);
+    }
+
+    /**
+     * Get the protocol features this Central said it supports
+     *
+     * @return FEATURE_MULTI_ACK, or FEATURE_NONE
+     */
+    public int getFeatures() {
+        return mFeatures;
+    }
+
+    public boolean supportsFeature(int feature) {
+        return (mFeatures & feature) == feature;
+    }
+
+    void setFeatures(int features) {
+        mFeatures = features;
+    }
+
+    /**
+     * Get the window responses on a Characteristic wait in to go as one multi-ack
+     */
+    AckWindow getAckWindow(UUID characteristicUuid) {
+        AckWindow ackWindow = mAckWindows.get(characteristicUuid);
+        if (ackWindow == null) {
+            AckWindow newAckWindow = new AckWindow();
+            ackWindow = mAckWindows.putIfAbsent(characteristicUuid, newAckWindow);
+            if (ackWindow == null) {
+                ackWindow = newAckWindow;
+            }
+        }
+        return ackWindow;
+    }
+
+    /**
+     * Get the Client Characteristic Configuration this Central wrote for a Characteristic
+     *
+     * @return SUBSCRIPTION_NOTIFY and/or SUBSCRIPTION_INDICATE, or SUBSCRIPTION_NONE
+     */
+    public int getSubscription(UUID characteristicUuid) {
+        Integer subscription = mSubscriptions.get(characteristicUuid);
+        return subscription != null ? subscription : SUBSCRIPTION_NONE;
+    }
+
+    public boolean isSubscribed(UUID characteristicUuid) {
+        return mSubscriptions.containsKey(characteristicUuid);
+    }
+
+    /**
+     * Record a Client Characteristic Configuration
+     *
+     * @return the previous configuration
+     */
+    int setSubscription(UUID characteristicUuid, int subscription) {
+        Integer previous;
+        if (subscription == SUBSCRIPTION_NONE) {
+            previous = mSubscriptions.remove(characteristicUuid);
+        } else {
+            previous = mSubscriptions.put(characteristicUuid, subscription);
+        }
+        return previous != null ? previous : SUBSCRIPTION_NONE;
+    }
+
+    /**
+     * Get the Client Characteristic Configuration Descriptor value this Central wrote,
+     * for reading it back
+     */
+    public byte[] getCccdValue(UUID characteristicUuid) {
+        int subscription = getSubscription(characteristicUuid);
+        return new byte[] {(byte) subscription, (byte) (subscription >> 8)};
+    }
+
+    /**
+     * Read a Client Characteristic Configuration Descriptor value
+     *
+     * @param value the value a Central wrote, as in ENABLE_NOTIFICATION_VALUE
+     * @return the configuration bits, or INVALID_SUBSCRIPTION if the value isn't a configuration
+     */
+    public static int parseCccdValue(byte[] value) {
+        if (value == null || value.length != CCCD_LENGTH) {
+            return INVALID_SUBSCRIPTION;
+        }
+        int subscription = (value[0] & 0xFF) | ((value[1] & 0xFF) << 8);
+        if ((subscription & ~(SUBSCRIPTION_NOTIFY | SUBSCRIPTION_INDICATE)) != 0) {
+            return INVALID_SUBSCRIPTION;
+        }
+        return subscription;
+    }
+
+    @Override
+    public String toString() {
+        return "CentralSession{" + mAddress + "}";
+    }
+}
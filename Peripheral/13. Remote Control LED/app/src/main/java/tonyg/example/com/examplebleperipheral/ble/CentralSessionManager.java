@@ -0,0 +1,711 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep track of every Central connected to the Peripheral, and send them notifications.
+ *
+ * GATT server callbacks arrive on several Binder threads at once, so sessions live in a
+ * ConcurrentHashMap keyed by MAC address.  Connecting and disconnecting take a lock so the
+ * connection limit holds; everything else, including fanning a notification out to every
+ * Central, reads the map without locking.
+ *
+ * Each notification carries its own payload, so two Centrals being notified at the same
+ * time never see each other's values.  Only Centrals that subscribed to a Characteristic,
+ * by writing its Client Characteristic Configuration Descriptor, are notified.
+ *
+ * Whether a Central gets notifications or indications is up to the Central: it's whatever
+ * it asked for in the descriptor.  If it asked for both, the Characteristic's ack policy
+ * decides.  Indications are confirmed by the Central, but only one can be outstanding, so
+ * they carry half as much or less as notifications and take a connection event longer.
+ *
+ * Notifications wait in each Central's NotificationQueue until the stack has room for
+ * them, which it reports through onNotificationSent().  So a burst never overruns the
+ * stack, and each Central is notified as fast as its link allows.
+ *
+ * Commands from each Central are admitted by its own TokenBucket, so a Central that floods
+ * the Peripheral with commands has the excess refused rather than crowding out the others.
+ *
+ * A Central that says it supports FEATURE_MULTI_ACK isn't sent a response per command on
+ * a Characteristic with ack aggregation.  Its responses wait in an AckWindow for about a
+ * connection interval and go as one multi-ack, which counts the commands it confirms.
+ * Other Centrals are sent each response as before.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class CentralSessionManager {
+    public static final int DEFAULT_MAX_CENTRALS = 4;
+    public static final double DEFAULT_COMMANDS_PER_SECOND = 20;
+    public static final int DEFAULT_COMMAND_BURST = 10;
+    public static final int COMMAND_LANE_CAPACITY = FairCommandQueue.DEFAULT_LANE_CAPACITY;
+    public static final int MAX_COMMAND_BURST = COMMAND_LANE_CAPACITY;
+    public static final long DEFAULT_ACK_WINDOW_MS = 15; // about one connection interval
+
+    /** What admitCommands() decided **/
+    public static final int COMMAND_ADMITTED = 0;
+    public static final int COMMAND_RATE_EXCEEDED = 1; // or the Central isn't connected
+    public static final int COMMAND_LANE_FULL = 2;
+
+    /** Ack policies, for Centrals that subscribe to both notifications and indications **/
+    public static final int ACK_PREFER_NOTIFY = 0;
+    public static final int ACK_PREFER_INDICATE = 1;
+
+    /**
+     * Sends a notification to one Central.  BlePeripheral sends through the GATT server;
+     * tests send through a simulated link
+     */
+    public static abstract class NotificationSender {
+        /**
+         * Send a notification or indication
+         *
+         * @param centralSession the Central to notify
+         * @param characteristicUuid the Characteristic that changed
+         * @param value the new value, for this notification only
+         * @param confirm <b>true</b> to send an indication, which the Central confirms
+         * @return <b>true</b> if the stack took the notification.  onNotificationSent() must follow
+         */
+        public abstract boolean sendNotification(CentralSession centralSession, UUID characteristicUuid, byte[] value, boolean confirm);
+
+        /**
+         * A Central's AckWindow opened.  Call flushAckWindow() when it has been open for windowMs
+         *
+         * @param centralSession the Central
+         * @param characteristicUuid the Characteristic the responses are for
+         * @param windowMs how long to hold the responses
+         */
+        public void onAckWindowOpened(CentralSession centralSession, UUID characteristicUuid, long windowMs) {
+        }
+
+        /**
+         * A Central's notifications are waiting and every credit is spent.  Call
+         * retryQueued() after retryMs, in case onNotificationSent() never comes
+         *
+         * @param centralSession the Central
+         * @param retryMs when the credits can be reclaimed
+         */
+        public void onCreditsSpent(CentralSession centralSession, long retryMs) {
+        }
+    }
+
+    private final ConcurrentHashMap<String, CentralSession> mSessions = new ConcurrentHashMap<String, CentralSession>();
+    private final ConcurrentHashMap<UUID, Integer> mAckPolicies = new ConcurrentHashMap<UUID, Integer>();
+    private final ConcurrentHashMap<UUID, Boolean> mAggregatedCharacteristics = new ConcurrentHashMap<UUID, Boolean>();
+    private final NotificationSender mNotificationSender;
+    private volatile int mMaxCentrals = DEFAULT_MAX_CENTRALS;
+    private volatile int mNotificationCredits = NotificationQueue.DEFAULT_CREDITS;
+    private volatile int mMaxQueueDepth = NotificationQueue.DEFAULT_MAX_DEPTH;
+    private volatile double mCommandsPerSecond = DEFAULT_COMMANDS_PER_SECOND;
+    private volatile int mCommandBurst = DEFAULT_COMMAND_BURST;
+    private volatile long mAckWindowMs = DEFAULT_ACK_WINDOW_MS;
+
+    /** Metrics **/
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mNotificationCount = new AtomicLong();
+    private final AtomicLong mFailedNotificationCount = new AtomicLong();
+    private final AtomicLong mUnsubscribedCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicInteger mMaxQueueDepthSeen = new AtomicInteger();
+    private final AtomicLong mAdmittedCommandCount = new AtomicLong();
+    private final AtomicLong mRejectedCommandCount = new AtomicLong();
+    private final AtomicLong mLaneFullCommandCount = new AtomicLong();
+    private final AtomicLong mAggregatedResponseCount = new AtomicLong();
+    private final AtomicLong mMultiAckCount = new AtomicLong();
+
+    public CentralSessionManager(NotificationSender notificationSender) {
+        mNotificationSender = notificationSender;
+    }
+
+    /**
+     * Set how many Centrals may be connected at once.  Centrals already connected stay connected
+     *
+     * @param maxCentrals at least 1
+     */
+    public void setMaxCentrals(int maxCentrals) {
+        if (maxCentrals < 1) {
+            throw new IllegalArgumentException("At least one Central must be able to connect");
+        }
+        mMaxCentrals = maxCentrals;
+    }
+
+    public int getMaxCentrals() {
+        return mMaxCentrals;
+    }
+
+    /**
+     * Set how many notifications each Central may have with the stack at once, and how
+     * many may wait.  Applies to Centrals that connect afterwards
+     *
+     * @param credits at least 1
+     * @param maxQueueDepth at least 1
+     */
+    public void setNotificationFlowControl(int credits, int maxQueueDepth) {
+        if (credits < 1 || maxQueueDepth < 1) {
+            throw new IllegalArgumentException("Credits and queue depth must be at least 1");
+        }
+        mNotificationCredits = credits;
+        mMaxQueueDepth = maxQueueDepth;
+    }
+
+    /**
+     * Set how fast each Central may send commands.  Applies to every Central, including
+     * those already connected
+     *
+     * @param commandsPerSecond the steady rate, more than 0
+     * @param burst how many commands may come at once, from 1 to MAX_COMMAND_BURST
+     */
+    public synchronized void setCommandRate(double commandsPerSecond, int burst) {
+        if (commandsPerSecond <= 0 || burst < 1 || burst > MAX_COMMAND_BURST) {
+            throw new IllegalArgumentException("The rate must be above 0 and the burst from 1 to " + MAX_COMMAND_BURST);
+        }
+        mCommandsPerSecond = commandsPerSecond;
+        mCommandBurst = burst;
+        for (CentralSession centralSession : mSessions.values()) {
+            centralSession.getCommandBucket().setRate(commandsPerSecond, burst);
+        }
+    }
+
+    public double getCommandsPerSecond() {
+        return mCommandsPerSecond;
+    }
+
+    public int getCommandBurst() {
+        return mCommandBurst;
+    }
+
+    /**
+     * A Central wrote a command.  Decide whether to take it
+     *
+     * @param address the Central's MAC address
+     * @param now the current time, in System.nanoTime() time
+     * @return <b>false</b> if the Central isn't connected, is over its rate, or has a full lane
+     */
+    public boolean admitCommand(String address, long now) {
+        return admitCommands(address, 1, now) == COMMAND_ADMITTED;
+    }
+
+    /**
+     * A Central wrote commands, one or the several values of an executed long write.
+     * Decide whether to take them all.  Each admitted command holds room in the Central's
+     * lane until releaseCommands() is called for it, so it can be acknowledged before it's queued
+     *
+     * @param address the Central's MAC address
+     * @param count how many commands
+     * @param now the current time, in System.nanoTime() time
+     * @return COMMAND_ADMITTED, COMMAND_RATE_EXCEEDED or COMMAND_LANE_FULL
+     */
+    public int admitCommands(String address, int count, long now) {
+        CentralSession centralSession = mSessions.get(address);
+        if (centralSession == null) {
+            mRejectedCommandCount.addAndGet(count);
+            return COMMAND_RATE_EXCEEDED;
+        }
+        // the room is held first, since it can be given back and a token can't
+        if (!centralSession.reserveCommands(count, COMMAND_LANE_CAPACITY)) {
+            mRejectedCommandCount.addAndGet(count);
+            mLaneFullCommandCount.addAndGet(count);
+            return COMMAND_LANE_FULL;
+        }
+        if (!centralSession.getCommandBucket().tryAcquire(count, now)) {
+            centralSession.releaseCommands(count);
+            mRejectedCommandCount.addAndGet(count);
+            return COMMAND_RATE_EXCEEDED;
+        }
+        mAdmittedCommandCount.addAndGet(count);
+        return COMMAND_ADMITTED;
+    }
+
+    /**
+     * Admitted commands were carried out, or will never be.  Give back their room in the lane
+     *
+     * @param address the Central's MAC address
+     * @param count how many commands
+     */
+    public void releaseCommands(String address, int count) {
+        CentralSession centralSession = mSessions.get(address);
+        if (centralSession != null) {
+            centralSession.releaseCommands(count);
+        }
+    }
+
+    /**
+     * Choose between notifications and indications for Centrals that subscribed to both
+     *
+     * @param characteristicUuid the Characteristic
+     * @param ackPolicy ACK_PREFER_NOTIFY, the default, or ACK_PREFER_INDICATE
+     */
+    public void setAckPolicy(UUID characteristicUuid, int ackPolicy) {
+        mAckPolicies.put(characteristicUuid, ackPolicy);
+    }
+
+    public int getAckPolicy(UUID characteristicUuid) {
+        Integer ackPolicy = mAckPolicies.get(characteristicUuid);
+        return ackPolicy != null ? ackPolicy : ACK_PREFER_NOTIFY;
+    }
+
+    /**
+     * Let responses on a Characteristic go as multi-acks, to Centrals that support them
+     *
+     * @param characteristicUuid the Characteristic
+     * @param isEnabled <b>true</b> to aggregate
+     */
+    public void setAckAggregation(UUID characteristicUuid, boolean isEnabled) {
+        if (isEnabled) {
+            mAggregatedCharacteristics.put(characteristicUuid, Boolean.TRUE);
+        } else {
+            mAggregatedCharacteristics.remove(characteristicUuid);
+        }
+    }
+
+    public boolean isAckAggregation(UUID characteristicUuid) {
+        return mAggregatedCharacteristics.containsKey(characteristicUuid);
+    }
+
+    /**
+     * Set how long responses wait to be folded into one multi-ack
+     *
+     * @param ackWindowMs at least 1.  About one connection interval catches a burst
+     */
+    public void setAckWindow(long ackWindowMs) {
+        if (ackWindowMs < 1) {
+            throw new IllegalArgumentException("The ack window must be at least 1ms");
+        }
+        mAckWindowMs = ackWindowMs;
+    }
+
+    public long getAckWindow() {
+        return mAckWindowMs;
+    }
+
+    /**
+     * A Central said which protocol features it supports
+     *
+     * @param address the Central's MAC address
+     * @param features CentralSession.FEATURE_MULTI_ACK, or CentralSession.FEATURE_NONE
+     * @return <b>false</b> if the Central isn't connected
+     */
+    public boolean setFeatures(String address, int features) {
+        CentralSession centralSession = mSessions.get(address);
+        if (centralSession == null) {
+            return false;
+        }
+        centralSession.setFeatures(features);
+        if (!centralSession.supportsFeature(CentralSession.FEATURE_MULTI_ACK)) {
+            // send whatever was waiting, since nothing will be folded into it now
+            for (UUID characteristicUuid : mAggregatedCharacteristics.keySet()) {
+                flushAckWindow(centralSession, characteristicUuid);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if a Central's responses on a Characteristic go as multi-acks
+     */
+    public boolean isAggregatingAcks(String address, UUID characteristicUuid) {
+        CentralSession centralSession = mSessions.get(address);
+        return centralSession != null && isAggregating(centralSession, characteristicUuid);
+    }
+
+    private boolean isAggregating(CentralSession centralSession, UUID characteristicUuid) {
+        return centralSession.supportsFeature(CentralSession.FEATURE_MULTI_ACK)
+                && mAggregatedCharacteristics.containsKey(characteristicUuid)
+                && centralSession.isSubscribed(characteristicUuid);
+    }
+
+    /**
+     * Decide whether to indicate or notify
+     *
+     * @param subscription the Client Characteristic Configuration bits the Central wrote
+     * @param ackPolicy the Characteristic's ack policy
+     * @return <b>true</b> to send an indication
+     */
+    public static boolean isIndication(int subscription, int ackPolicy) {
+        switch (subscription) {
+            case CentralSession.SUBSCRIPTION_INDICATE:
+                return true;
+
+            case CentralSession.SUBSCRIPTION_NOTIFY | CentralSession.SUBSCRIPTION_INDICATE:
+                return ackPolicy == ACK_PREFER_INDICATE;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * A Central connected
+     *
+     * @param address the Central's MAC address
+     * @param device the Central, or null when simulated
+     * @return the Central's session, or null if too many Centrals are connected
+     */
+    public synchronized CentralSession onCentralConnected(String address, BluetoothDevice device) {
+        CentralSession centralSession = mSessions.get(address);
+        if (centralSession != null) {
+            return centralSession;
+        }
+        if (mSessions.size() >= mMaxCentrals) {
+            mRejectedCount.incrementAndGet();
+            return null;
+        }
+        centralSession = new CentralSession(address, device, System.currentTimeMillis(),
+                new NotificationQueue(mNotificationCredits, mMaxQueueDepth),
+                new TokenBucket(mCommandsPerSecond, mCommandBurst, System.nanoTime()));
+        mSessions.put(address, centralSession);
+        return centralSession;
+    }
+
+    /**
+     * A Central disconnected
+     *
+     * @param address the Central's MAC address
+     * @return the Central's session, or null if it wasn't connected
+     */
+    public synchronized CentralSession onCentralDisconnected(String address) {
+        CentralSession centralSession = mSessions.remove(address);
+        if (centralSession != null) {
+            mDroppedCount.addAndGet(centralSession.getNotificationQueue().clear());
+        }
+        return centralSession;
+    }
+
+    /**
+     * Forget every Central
+     */
+    public synchronized void clear() {
+        mSessions.clear();
+    }
+
+    /**
+     * A Central wrote a Client Characteristic Configuration Descriptor
+     *
+     * @param address the Central's MAC address
+     * @param characteristicUuid the Characteristic the descriptor belongs to
+     * @param subscription the configuration bits, from CentralSession.parseCccdValue()
+     * @return the previous configuration, or CentralSession.INVALID_SUBSCRIPTION if the Central isn't connected
+     */
+    public int onSubscriptionChanged(String address, UUID characteristicUuid, int subscription) {
+        CentralSession centralSession = mSessions.get(address);
+        if (centralSession == null) {
+            return CentralSession.INVALID_SUBSCRIPTION;
+        }
+        return centralSession.setSubscription(characteristicUuid, subscription);
+    }
+
+    /**
+     * Get how many connected Centrals subscribed to a Characteristic
+     */
+    public int getSubscriberCount(UUID characteristicUuid) {
+        int subscriberCount = 0;
+        for (CentralSession centralSession : mSessions.values()) {
+            if (centralSession.isSubscribed(characteristicUuid)) {
+                subscriberCount++;
+            }
+        }
+        return subscriberCount;
+    }
+
+    public CentralSession getSession(String address) {
+        return mSessions.get(address);
+    }
+
+    /**
+     * Get every connected Central.  Safe to iterate while Centrals come and go
+     */
+    public Collection<CentralSession> getSessions() {
+        return mSessions.values();
+    }
+
+    public int getCentralCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Check if another Central would be turned away
+     */
+    public boolean isFull() {
+        return mSessions.size() >= mMaxCentrals;
+    }
+
+    /**
+     * The stack finished with a notification.  Send the next one waiting for that Central
+     *
+     * @param address the Central's MAC address
+     * @param status the GATT status the stack reported
+     */
+    public void onNotificationSent(String address, int status) {
+        CentralSession centralSession = mSessions.get(address);
+        if (centralSession == null) {
+            return;
+        }
+        if (status != 0) {
+            // BluetoothGatt.GATT_SUCCESS
+            mFailedNotificationCount.incrementAndGet();
+        }
+        centralSession.getNotificationQueue().onCreditReturned();
+        sendQueued(centralSession);
+    }
+
+    /**
+     * Try again to send a Central's waiting notifications, reclaiming its credits if the
+     * stack never reported the last ones sent
+     *
+     * @param address the Central's MAC address
+     */
+    public void retryQueued(String address) {
+        CentralSession centralSession = mSessions.get(address);
+        if (centralSession == null) {
+            return;
+        }
+        centralSession.getNotificationQueue().onRetryDue();
+        sendQueued(centralSession);
+    }
+
+    /**
+     * Notify one Central.  Replies to one request are never coalesced
+     *
+     * @param address the Central's MAC address
+     * @param characteristicUuid the Characteristic that changed
+     * @param value the new value
+     * @return <b>false</b> if the Central isn't connected or subscribed, or its queue is full
+     */
+    public boolean notifyCentral(String address, UUID characteristicUuid, byte[] value) {
+        CentralSession centralSession = mSessions.get(address);
+        if (centralSession == null) {
+            return false;
+        }
+        return send(centralSession, characteristicUuid, value, false);
+    }
+
+    /**
+     * Confirm one of a Central's commands.  A Central that takes multi-acks has the
+     * confirmation folded into its AckWindow; any other is sent the response on its own
+     *
+     * @param address the Central's MAC address
+     * @param characteristicUuid the Characteristic the response goes on
+     * @param value the response
+     * @return <b>false</b> if the Central isn't connected or subscribed, or its queue is full
+     */
+    public boolean acknowledge(String address, UUID characteristicUuid, byte[] value) {
+        CentralSession centralSession = mSessions.get(address);
+        if (centralSession == null) {
+            return false;
+        }
+        if (isAggregating(centralSession, characteristicUuid)) {
+            fold(centralSession, characteristicUuid, value, true);
+            return true;
+        }
+        return send(centralSession, characteristicUuid, value, false);
+    }
+
+    /**
+     * Send the multi-ack waiting in a Central's AckWindow, if there is one
+     *
+     * @param address the Central's MAC address
+     * @param characteristicUuid the Characteristic the responses are for
+     * @return <b>false</b> if the Central isn't connected, nothing was waiting, or its queue is full
+     */
+    public boolean flushAckWindow(String address, UUID characteristicUuid) {
+        CentralSession centralSession = mSessions.get(address);
+        return centralSession != null && flushAckWindow(centralSession, characteristicUuid);
+    }
+
+    private boolean flushAckWindow(CentralSession centralSession, UUID characteristicUuid) {
+        byte[] multiAck = centralSession.getAckWindow(characteristicUuid).close();
+        if (multiAck == null) {
+            return false;
+        }
+        mMultiAckCount.incrementAndGet();
+        return send(centralSession, characteristicUuid, multiAck, false);
+    }
+
+    /**
+     * Hold a response in a Central's AckWindow
+     *
+     * @param isConfirmation <b>true</b> if it confirms one of the Central's commands
+     */
+    private void fold(CentralSession centralSession, UUID characteristicUuid, byte[] value, boolean isConfirmation) {
+        mAggregatedResponseCount.incrementAndGet();
+        AckWindow ackWindow = centralSession.getAckWindow(characteristicUuid);
+        if (ackWindow.add(value, isConfirmation)) {
+            mNotificationSender.onAckWindowOpened(centralSession, characteristicUuid, mAckWindowMs);
+        }
+        if (ackWindow.isFull()) {
+            flushAckWindow(centralSession, characteristicUuid);
+        }
+    }
+
+    /**
+     * Notify every Central that subscribed to a Characteristic of its new state.  A state
+     * still waiting to be sent to a Central is replaced, since it would be stale on arrival.
+     * A Central that takes multi-acks is sent the state with its next one
+     *
+     * @param characteristicUuid the Characteristic that changed
+     * @param value the new value.  Every Central is sent the same array, so don't change it afterwards
+     * @return how many Centrals will be sent the notification
+     */
+    public int notifyAllCentrals(UUID characteristicUuid, byte[] value) {
+        int sentCount = 0;
+        for (CentralSession centralSession : mSessions.values()) {
+            if (isAggregating(centralSession, characteristicUuid)) {
+                fold(centralSession, characteristicUuid, value, false);
+                sentCount++;
+            } else if (send(centralSession, characteristicUuid, value, true)) {
+                sentCount++;
+            }
+        }
+        return sentCount;
+    }
+
+    private boolean send(CentralSession centralSession, UUID characteristicUuid, byte[] value, boolean isState) {
+        int subscription = centralSession.getSubscription(characteristicUuid);
+        if (subscription == CentralSession.SUBSCRIPTION_NONE) {
+            mUnsubscribedCount.incrementAndGet();
+            return false;
+        }
+        boolean confirm = isIndication(subscription, getAckPolicy(characteristicUuid));
+        NotificationQueue notificationQueue = centralSession.getNotificationQueue();
+        switch (notificationQueue.offer(characteristicUuid, value, confirm, isState)) {
+            case NotificationQueue.COALESCED:
+                mCoalescedCount.incrementAndGet();
+                break;
+
+            case NotificationQueue.DROPPED:
+                mDroppedCount.incrementAndGet();
+                return false;
+
+            default:
+                int depth = notificationQueue.getDepth();
+                int maxDepth = mMaxQueueDepthSeen.get();
+                while (depth > maxDepth && !mMaxQueueDepthSeen.compareAndSet(maxDepth, depth)) {
+                    maxDepth = mMaxQueueDepthSeen.get();
+                }
+        }
+        sendQueued(centralSession);
+        return true;
+    }
+
+    /**
+     * Hand a Central's waiting notifications to the stack while there are credits.  The
+     * queue stays locked while sending, so notifications go out in order.  If notifications
+     * are left waiting for credits, a retry is asked for
+     */
+    private void sendQueued(CentralSession centralSession) {
+        NotificationQueue notificationQueue = centralSession.getNotificationQueue();
+        long retryMs;
+        synchronized (notificationQueue) {
+            NotificationQueue.Notification notification;
+            while ((notification = notificationQueue.poll(System.currentTimeMillis())) != null) {
+                if (mNotificationSender.sendNotification(centralSession, notification.getCharacteristicUuid(), notification.getValue(), notification.isConfirm())) {
+                    mNotificationCount.incrementAndGet();
+                } else {
+                    // refused, so no onNotificationSent will return the credit
+                    mFailedNotificationCount.incrementAndGet();
+                    notificationQueue.onCreditReturned();
+                }
+            }
+            retryMs = notificationQueue.scheduleRetry(System.currentTimeMillis());
+        }
+        if (retryMs >= 0) {
+            mNotificationSender.onCreditsSpent(centralSession, retryMs);
+        }
+    }
+
+    /**
+     * Get how many Centrals were turned away because too many were connected
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    public long getAdmittedCommandCount() {
+        return mAdmittedCommandCount.get();
+    }
+
+    /**
+     * Get how many commands were refused because their Central was over its rate, not
+     * connected, or had no room left in its lane
+     */
+    public long getRejectedCommandCount() {
+        return mRejectedCommandCount.get();
+    }
+
+    /**
+     * Get how many commands were refused because their Central's lane was full
+     */
+    public long getLaneFullCommandCount() {
+        return mLaneFullCommandCount.get();
+    }
+
+    /**
+     * Get how many responses were held for a multi-ack rather than sent on their own
+     */
+    public long getAggregatedResponseCount() {
+        return mAggregatedResponseCount.get();
+    }
+
+    /**
+     * Get how many multi-acks were sent, each carrying one or more held responses
+     */
+    public long getMultiAckCount() {
+        return mMultiAckCount.get();
+    }
+
+    /**
+     * Get how many notifications the stack took
+     */
+    public long getNotificationCount() {
+        return mNotificationCount.get();
+    }
+
+    public long getFailedNotificationCount() {
+        return mFailedNotificationCount.get();
+    }
+
+    /**
+     * Get how many notifications weren't sent because the Central hadn't subscribed
+     */
+    public long getUnsubscribedCount() {
+        return mUnsubscribedCount.get();
+    }
+
+    /**
+     * Get how many state notifications replaced a stale one still waiting
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * Get how many notifications were dropped because a queue was full or its Central left
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Get how many notifications are waiting, across all Centrals
+     */
+    public int getQueueDepth() {
+        int queueDepth = 0;
+        for (CentralSession centralSession : mSessions.values()) {
+            queueDepth += centralSession.getNotificationQueue().getDepth();
+        }
+        return queueDepth;
+    }
+
+    /**
+     * Get the most notifications that waited for one Central
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepthSeen.get();
+    }
+}
@@ -0,0 +1,70 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carry out commands at a set time on the local clock.
+ *
+ * A scheduled executor wakes up shortly before the deadline, then waits out the last
+ * moment without sleeping, so the command runs within microseconds of its time rather
+ * than whenever the thread scheduler gets around to it.
+ *
+ * All times are in microseconds, on the nowMicros() clock.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class CommandScheduler {
+    private static final long SPIN_MICROS = 2000; // wait out the last 2ms without sleeping
+
+    /**
+     * A command to carry out later
+     */
+    public static abstract class ScheduledCommand {
+        /**
+         * Carry out the command
+         *
+         * @param executedTime when the command was carried out
+         */
+        public abstract void execute(long executedTime);
+    }
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Get the current time on the clock used for scheduling and time sync
+     */
+    public static long nowMicros() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Carry out a command at a set time.  A time that has passed runs right away
+     *
+     * @param executeAt when to carry out the command
+     * @param scheduledCommand the command
+     */
+    public void scheduleAt(final long executeAt, final ScheduledCommand scheduledCommand) {
+        long delay = Math.max(0, executeAt - nowMicros() - SPIN_MICROS);
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long now = nowMicros();
+                while (now < executeAt) {
+                    Thread.yield();
+                    now = nowMicros();
+                }
+                scheduledCommand.execute(now);
+            }
+        }, delay, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Cancel every scheduled command
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,199 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Commands waiting to be carried out, in one lane per Central, taken from each lane in turn.
+ *
+ * A Central that sends a flood of commands only fills its own lane, so the other Centrals'
+ * commands still go next.  Each lane is a fixed ring of reused commands; when one is full,
+ * new commands for it are dropped and counted.
+ *
+ * Only the GATT event thread uses a FairCommandQueue, so nothing is locked.  The command
+ * returned by offer() or poll() is reused once offer() is called again for its lane.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class FairCommandQueue {
+    public static final int DEFAULT_LANE_CAPACITY = 32;
+
+    private final int mLaneCapacity;
+    private final HashMap<String, Lane> mLanes = new HashMap<String, Lane>();
+    private final ArrayDeque<Lane> mTurns = new ArrayDeque<Lane>(); // lanes with commands, next turn first
+    private int mSize;
+
+    /** Metrics **/
+    private long mDroppedCount;
+
+    public FairCommandQueue() {
+        this(DEFAULT_LANE_CAPACITY);
+    }
+
+    /**
+     * @param laneCapacity how many commands may wait for each Central
+     */
+    public FairCommandQueue(int laneCapacity) {
+        if (laneCapacity < 1) {
+            throw new IllegalArgumentException("A lane must hold at least one command");
+        }
+        mLaneCapacity = laneCapacity;
+    }
+
+    /**
+     * Queue a command at the back of a Central's lane
+     *
+     * @param address the Central's MAC address
+     * @return the command, to fill in, or null if the lane is full
+     */
+    public PendingCommand offer(String address) {
+        Lane lane = mLanes.get(address);
+        if (lane == null) {
+            lane = new Lane(address, mLaneCapacity);
+            mLanes.put(address, lane);
+        }
+        if (lane.mSize == lane.mCommands.length) {
+            mDroppedCount++;
+            return null;
+        }
+        if (lane.mSize == 0) {
+            mTurns.addLast(lane);
+        }
+        PendingCommand pendingCommand = lane.mCommands[(lane.mHead + lane.mSize) % lane.mCommands.length];
+        lane.mSize++;
+        mSize++;
+        return pendingCommand;
+    }
+
+    /**
+     * Take the next command: the oldest in the lane whose turn it is
+     *
+     * @return the command, or null if none are waiting
+     */
+    public PendingCommand poll() {
+        Lane lane = mTurns.pollFirst();
+        if (lane == null) {
+            return null;
+        }
+        PendingCommand pendingCommand = lane.mCommands[lane.mHead];
+        lane.mHead = (lane.mHead + 1) % lane.mCommands.length;
+        lane.mSize--;
+        mSize--;
+        if (lane.mSize > 0) {
+            mTurns.addLast(lane);
+        }
+        return pendingCommand;
+    }
+
+    /**
+     * Forget a Central that left, and the commands it had waiting
+     *
+     * @param address the Central's MAC address
+     * @return how many commands were dropped
+     */
+    public int removeLane(String address) {
+        Lane lane = mLanes.remove(address);
+        if (lane == null) {
+            return 0;
+        }
+        int dropped = lane.mSize;
+        if (dropped > 0) {
+            mTurns.remove(lane);
+            mSize -= dropped;
+            mDroppedCount += dropped;
+        }
+        return dropped;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Get how many commands are waiting, across all Centrals
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Get how many commands are waiting for one Central
+     */
+    public int size(String address) {
+        Lane lane = mLanes.get(address);
+        return lane != null ? lane.mSize : 0;
+    }
+
+    /**
+     * Get how many commands were dropped because a lane was full or its Central left
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * A written command waiting to be carried out
+     */
+    public static class PendingCommand {
+        private BluetoothDevice mDevice;
+        private BluetoothGattCharacteristic mCharacteristic;
+        private byte[] mValue;
+        private long mReceivedTime;
+
+        /**
+         * @param device the Central that wrote the command, or null when simulated
+         * @param characteristic the Characteristic written
+         * @param value the command
+         * @param receivedTime when the command arrived, in CommandScheduler.nowMicros() time
+         */
+        public void set(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value, long receivedTime) {
+            mDevice = device;
+            mCharacteristic = characteristic;
+            mValue = value;
+            mReceivedTime = receivedTime;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        public byte[] getValue() {
+            return mValue;
+        }
+
+        public long getReceivedTime() {
+            return mReceivedTime;
+        }
+    }
+
+    /**
+     * One Central's commands, oldest at mHead
+     */
+    private static class Lane {
+        private final String mAddress;
+        private final PendingCommand[] mCommands;
+        private int mHead;
+        private int mSize;
+
+        Lane(String address, int capacity) {
+            mAddress = address;
+            mCommands = new PendingCommand[capacity];
+            for (int i = 0; i < capacity; i++) {
+                mCommands[i] = new PendingCommand();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Lane{" + mAddress + ", " + mSize + " waiting}";
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * One GATT server callback, captured so it can be applied on another thread.
+ *
+ * Events live in a GattEventRing and are reused, so capturing a callback allocates nothing.
+ * Hold on to an event only while handling it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class GattEvent {
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_CONNECTION_STATE_CHANGE = 1;
+    public static final int TYPE_CHARACTERISTIC_READ = 2;
+    public static final int TYPE_CHARACTERISTIC_WRITE = 3;
+    public static final int TYPE_DESCRIPTOR_READ = 4;
+    public static final int TYPE_DESCRIPTOR_WRITE = 5;
+    public static final int TYPE_NOTIFICATION_SENT = 6;
+    public static final int TYPE_PREPARED_WRITE = 7;
+    public static final int TYPE_EXECUTE_WRITE = 8;
+
+    private int mType = TYPE_NONE;
+    private BluetoothDevice mDevice;
+    private int mRequestId;
+    private int mStatus;
+    private int mNewState;
+    private int mOffset;
+    private boolean mResponseNeeded;
+    private boolean mExecute;
+    private BluetoothGattCharacteristic mCharacteristic;
+    private BluetoothGattDescriptor mDescriptor;
+    private byte[] mValue;
+    private long mReceivedTime;
+
+    /** Capturing **/
+
+    void setConnectionStateChange(BluetoothDevice device, int status, int newState) {
+        clear();
+        mType = TYPE_CONNECTION_STATE_CHANGE;
+        mDevice = device;
+        mStatus = status;
+        mNewState = newState;
+    }
+
+    void setCharacteristicRead(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+        clear();
+        mType = TYPE_CHARACTERISTIC_READ;
+        mDevice = device;
+        mRequestId = requestId;
+        mOffset = offset;
+        mCharacteristic = characteristic;
+    }
+
+    /**
+     * @param receivedTime when the write arrived, in CommandScheduler.nowMicros() time
+     */
+    void setCharacteristicWrite(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean responseNeeded, int offset, byte[] value, long receivedTime) {
+        clear();
+        mType = TYPE_CHARACTERISTIC_WRITE;
+        mDevice = device;
+        mRequestId = requestId;
+        mCharacteristic = characteristic;
+        mResponseNeeded = responseNeeded;
+        mOffset = offset;
+        mValue = value;
+        mReceivedTime = receivedTime;
+    }
+
+    /**
+     * A piece of a long write, which waits for the execute
+     */
+    void setPreparedWrite(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean responseNeeded, int offset, byte[] value) {
+        clear();
+        mType = TYPE_PREPARED_WRITE;
+        mDevice = device;
+        mRequestId = requestId;
+        mCharacteristic = characteristic;
+        mResponseNeeded = responseNeeded;
+        mOffset = offset;
+        mValue = value;
+    }
+
+    /**
+     * @param execute <b>true</b> to commit the prepared writes, <b>false</b> to drop them
+     * @param receivedTime when the execute arrived, in CommandScheduler.nowMicros() time
+     */
+    void setExecuteWrite(BluetoothDevice device, int requestId, boolean execute, long receivedTime) {
+        clear();
+        mType = TYPE_EXECUTE_WRITE;
+        mDevice = device;
+        mRequestId = requestId;
+        mExecute = execute;
+        mReceivedTime = receivedTime;
+    }
+
+    void setDescriptorRead(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+        clear();
+        mType = TYPE_DESCRIPTOR_READ;
+        mDevice = device;
+        mRequestId = requestId;
+        mOffset = offset;
+        mDescriptor = descriptor;
+    }
+
+    void setDescriptorWrite(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean responseNeeded, int offset, byte[] value) {
+        clear();
+        mType = TYPE_DESCRIPTOR_WRITE;
+        mDevice = device;
+        mRequestId = requestId;
+        mDescriptor = descriptor;
+        mResponseNeeded = responseNeeded;
+        mOffset = offset;
+        mValue = value;
+    }
+
+    void setNotificationSent(BluetoothDevice device, int status) {
+        clear();
+        mType = TYPE_NOTIFICATION_SENT;
+        mDevice = device;
+        mStatus = status;
+    }
+
+    /**
+     * Let go of everything the event refers to, so a handled event doesn't keep it alive
+     */
+    void clear() {
+        mType = TYPE_NONE;
+        mDevice = null;
+        mRequestId = 0;
+        mStatus = 0;
+        mNewState = 0;
+        mOffset = 0;
+        mResponseNeeded = false;
+        mExecute = false;
+        mCharacteristic = null;
+        mDescriptor = null;
+        mValue = null;
+        mReceivedTime = 0;
+    }
+
+    /** Reading **/
+
+    /**
+     * Get which callback this was, for example TYPE_CHARACTERISTIC_WRITE
+     */
+    public int getType() {
+        return mType;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public int getRequestId() {
+        return mRequestId;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public int getNewState() {
+        return mNewState;
+    }
+
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public boolean isResponseNeeded() {
+        return mResponseNeeded;
+    }
+
+    /**
+     * Check if an execute commits the prepared writes, rather than dropping them
+     */
+    public boolean isExecute() {
+        return mExecute;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    public BluetoothGattDescriptor getDescriptor() {
+        return mDescriptor;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * Get when a write or execute arrived, in CommandScheduler.nowMicros() time
+     */
+    public long getReceivedTime() {
+        return mReceivedTime;
+    }
+}
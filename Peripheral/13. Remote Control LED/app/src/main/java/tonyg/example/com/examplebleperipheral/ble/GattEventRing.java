@@ -0,0 +1,311 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hand GATT server callbacks from the Binder threads to one thread that applies them in order.
+ *
+ * The ring is a fixed array of GattEvents, made once.  A Binder thread claims the next
+ * sequence number with a compare-and-set, fills in that slot's event, and publishes it by
+ * storing the sequence number in the slot.  The consumer thread applies published events
+ * in sequence order and hands their slots back.  Nothing is locked and nothing is allocated
+ * along the way:
+ *
+ *   long sequence = ring.tryClaim(headroom);
+ *   if (sequence != GattEventRing.NO_SEQUENCE) {
+ *       ring.get(sequence).setNotificationSent(device, status);
+ *       ring.publish(sequence);
+ *   }
+ *
+ * Every claimed sequence must be published, or the consumer stops there.  The consumer
+ * thread starts with the first event and ends after a while with nothing to do.
+ *
+ * Whenever the ring is drained, the EventHandler may do a little deferred work before the
+ * consumer looks for events again, so work it defers never holds up new events for long.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class GattEventRing {
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long NO_SEQUENCE = -1;
+    private static final long DEFAULT_IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final String CONSUMER_THREAD_NAME = "GattEvents";
+
+    /** Consumer states **/
+    private static final int CONSUMER_IDLE = 0;
+    private static final int CONSUMER_RUNNING = 1;
+    private static final int CONSUMER_SHUT_DOWN = 2;
+
+    private final GattEvent[] mEvents;
+    private final AtomicLongArray mPublishedSequences; // the sequence last published in each slot
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicLong mClaimedSequence = new AtomicLong(NO_SEQUENCE);
+    private final AtomicLong mConsumedSequence = new AtomicLong(NO_SEQUENCE);
+
+    private final EventHandler mEventHandler;
+    private final long mIdleTimeoutNanos;
+    private final AtomicInteger mConsumerState = new AtomicInteger(CONSUMER_IDLE);
+    private volatile Thread mConsumerThread;
+    private volatile boolean mIsConsumerParked = false;
+
+    /** Metrics **/
+    private final AtomicLong mMaxOccupancy = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+
+    /**
+     * @param capacity how many events may wait: a power of two
+     * @param eventHandler applies each event, on the consumer thread
+     */
+    public GattEventRing(int capacity, EventHandler eventHandler) {
+        this(capacity, eventHandler, DEFAULT_IDLE_TIMEOUT_NANOS);
+    }
+
+    GattEventRing(int capacity, EventHandler eventHandler, long idleTimeoutNanos) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("The capacity must be a power of two");
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mEvents = new GattEvent[capacity];
+        mPublishedSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mEvents[i] = new GattEvent();
+            mPublishedSequences.set(i, NO_SEQUENCE);
+        }
+        mEventHandler = eventHandler;
+        mIdleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    /** Producing **/
+
+    /**
+     * Claim the next event, unless too few are free
+     *
+     * @param headroom how many events to leave free for claim()
+     * @return the event's sequence number, or NO_SEQUENCE if the ring is too full
+     */
+    public long tryClaim(int headroom) {
+        long sequence = claimSequence(headroom);
+        if (sequence == NO_SEQUENCE) {
+            mRejectedCount.incrementAndGet();
+        }
+        return sequence;
+    }
+
+    /**
+     * Claim the next event, waiting for one to be free if need be.
+     * For events that must not be lost.  Never call it from the EventHandler
+     *
+     * @return the event's sequence number
+     */
+    public long claim() {
+        long sequence;
+        while ((sequence = claimSequence(0)) == NO_SEQUENCE) {
+            Thread.yield();
+        }
+        return sequence;
+    }
+
+    private long claimSequence(int headroom) {
+        while (true) {
+            long claimed = mClaimedSequence.get();
+            long sequence = claimed + 1;
+            long occupancy = sequence - mConsumedSequence.get();
+            if (occupancy > mCapacity - headroom) {
+                return NO_SEQUENCE;
+            }
+            if (mClaimedSequence.compareAndSet(claimed, sequence)) {
+                long maxOccupancy = mMaxOccupancy.get();
+                while (occupancy > maxOccupancy && !mMaxOccupancy.compareAndSet(maxOccupancy, occupancy)) {
+                    maxOccupancy = mMaxOccupancy.get();
+                }
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     * Get a claimed event, to fill in
+     */
+    public GattEvent get(long sequence) {
+        return mEvents[(int) sequence & mMask];
+    }
+
+    /**
+     * Hand a filled in event to the consumer
+     */
+    public void publish(long sequence) {
+        mPublishedSequences.set((int) sequence & mMask, sequence);
+        wakeConsumer();
+    }
+
+    private void wakeConsumer() {
+        if (mConsumerState.get() == CONSUMER_IDLE && mConsumerState.compareAndSet(CONSUMER_IDLE, CONSUMER_RUNNING)) {
+            Thread consumerThread = new Thread(mConsumer, CONSUMER_THREAD_NAME);
+            mConsumerThread = consumerThread;
+            consumerThread.start();
+        } else if (mIsConsumerParked) {
+            LockSupport.unpark(mConsumerThread);
+        }
+    }
+
+    /** Consuming **/
+
+    /**
+     * Stop the consumer.  Events still waiting are never applied
+     */
+    public void shutdown() {
+        mConsumerState.set(CONSUMER_SHUT_DOWN);
+        Thread consumerThread = mConsumerThread;
+        if (consumerThread != null) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    private boolean isEventPublished() {
+        long sequence = mConsumedSequence.get() + 1;
+        return mPublishedSequences.get((int) sequence & mMask) == sequence;
+    }
+
+    /**
+     * Apply every published event, in order
+     *
+     * @return how many events were applied
+     */
+    private int drain() {
+        int count = 0;
+        long sequence = mConsumedSequence.get() + 1;
+        while (mConsumerState.get() != CONSUMER_SHUT_DOWN && mPublishedSequences.get((int) sequence & mMask) == sequence) {
+            GattEvent event = mEvents[(int) sequence & mMask];
+            try {
+                mEventHandler.onEvent(event);
+            } catch (RuntimeException e) {
+                // one bad event mustn't stop the ones behind it
+                mFailedCount.incrementAndGet();
+                mEventHandler.onEventFailed(event, e);
+            }
+            event.clear();
+            // hand the slot back
+            mConsumedSequence.lazySet(sequence);
+            sequence++;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Let the EventHandler do some deferred work
+     *
+     * @return <b>true</b> if it has more to do
+     */
+    private boolean onRingDrained() {
+        try {
+            return mEventHandler.onRingDrained();
+        } catch (RuntimeException e) {
+            // whatever threw was taken off its queue, so come back for the rest
+            mFailedCount.incrementAndGet();
+            return true;
+        }
+    }
+
+    private final Runnable mConsumer = new Runnable() {
+        @Override
+        public void run() {
+            while (mConsumerState.get() == CONSUMER_RUNNING) {
+                int count = drain();
+                if (onRingDrained() || count > 0) {
+                    continue;
+                }
+                // say we're parking before looking once more, so a publish can't slip between
+                mIsConsumerParked = true;
+                if (isEventPublished()) {
+                    mIsConsumerParked = false;
+                    continue;
+                }
+                long parkedAt = System.nanoTime();
+                LockSupport.parkNanos(this, mIdleTimeoutNanos);
+                mIsConsumerParked = false;
+                if (!isEventPublished() && System.nanoTime() - parkedAt >= mIdleTimeoutNanos) {
+                    // nothing to do for a while: let the thread go.  An event published
+                    // while it was still running may not have woken anyone, so look again
+                    if (!mConsumerState.compareAndSet(CONSUMER_RUNNING, CONSUMER_IDLE)
+                            || !isEventPublished()
+                            || !mConsumerState.compareAndSet(CONSUMER_IDLE, CONSUMER_RUNNING)) {
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
+    /** Metrics **/
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Get how many events are claimed but not yet applied
+     */
+    public long getOccupancy() {
+        return mClaimedSequence.get() - mConsumedSequence.get();
+    }
+
+    /**
+     * Get the most events ever claimed but not yet applied
+     */
+    public long getMaxOccupancy() {
+        return mMaxOccupancy.get();
+    }
+
+    /**
+     * Get how many events have been applied
+     */
+    public long getConsumedCount() {
+        return mConsumedSequence.get() + 1;
+    }
+
+    /**
+     * Get how many tryClaim() calls found the ring too full
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * Get how many events, or bits of deferred work, the EventHandler threw on
+     */
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * Applies events on the consumer thread.  The event is reused once onEvent() returns
+     */
+    public static abstract class EventHandler {
+        public abstract void onEvent(GattEvent event);
+
+        /**
+         * onEvent() threw.  The next event is applied regardless
+         */
+        public void onEventFailed(GattEvent event, RuntimeException e) {
+        }
+
+        /**
+         * Every published event has been applied.  Do one piece of deferred work, if there is any
+         *
+         * @return <b>true</b> if there is more deferred work, so the consumer comes straight
+         *     back instead of waiting for the next event
+         */
+        public boolean onRingDrained() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The LED state, shared by everything that can change it: each connected Central, the
+ * CommandScheduler and broadcast commands.
+ *
+ * The state, its version and the writer that set it are packed into one long and changed
+ * with a compare-and-set, so writers never lock each other out:
+ *
+ *   [version, 40 bits][writer ID, 16 bits][LED state, 8 bits]
+ *
+ * A writer's ID carries its priority in its top byte.  A write names the version its
+ * writer last saw.  If someone else has changed the LED since, the writes raced:
+ * under ARBITRATION_LAST_WRITER_WINS the later write wins anyway, and under
+ * ARBITRATION_PRIORITY it wins only if its writer's priority is at least as high.
+ *
+ * Each change that is accepted goes up by one version, and is handed to the ChangeListener
+ * exactly once, in version order.  A writer waits for the changes before its own to be
+ * handed over first, so the torch and the notifications never run backwards.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class LedStateRegister {
+    /** Arbitration **/
+    public static final int ARBITRATION_LAST_WRITER_WINS = 0;
+    public static final int ARBITRATION_PRIORITY = 1;
+
+    /** Writers **/
+    public static final int PRIORITY_BROADCAST = 1;
+    public static final int PRIORITY_CENTRAL = 2;
+    public static final int WRITER_NONE = 0;
+    public static final int WRITER_BROADCAST = writerId(PRIORITY_BROADCAST, 0);
+    public static final long ANY_VERSION = -1; // the writer doesn't care what it replaces
+
+    /** Write results **/
+    public static final int RESULT_ACCEPTED = 0;
+    public static final int RESULT_UNCHANGED = 1; // the LED was already in that state
+    public static final int RESULT_REJECTED = 2; // lost to a racing write of higher priority
+
+    /** Layout **/
+    private static final int STATE_BITS = 8;
+    private static final int WRITER_BITS = 16;
+    private static final int VERSION_SHIFT = STATE_BITS + WRITER_BITS;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+    private static final long WRITER_MASK = (1L << WRITER_BITS) - 1;
+    public static final long VERSION_MASK = (1L << (64 - VERSION_SHIFT)) - 1;
+
+    private final AtomicLong mRegister;
+    private final ChangeListener mChangeListener;
+    private volatile int mArbitration = ARBITRATION_LAST_WRITER_WINS;
+
+    // changes are handed to the listener in version order
+    private final Object mDeliveryLock = new Object();
+    private long mDeliveredVersion = 0;
+
+    /** Metrics **/
+    private final AtomicLong mAcceptedCount = new AtomicLong();
+    private final AtomicLong mUnchangedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mRetryCount = new AtomicLong();
+
+    /**
+     * @param initialState the LED state to start from, at version 0
+     * @param changeListener hears about each accepted change
+     */
+    public LedStateRegister(int initialState, ChangeListener changeListener) {
+        mRegister = new AtomicLong(pack(initialState, WRITER_NONE, 0));
+        mChangeListener = changeListener;
+    }
+
+    /**
+     * Set how racing writes are settled
+     *
+     * @param arbitration ARBITRATION_LAST_WRITER_WINS or ARBITRATION_PRIORITY
+     */
+    public void setArbitration(int arbitration) {
+        if (arbitration != ARBITRATION_LAST_WRITER_WINS && arbitration != ARBITRATION_PRIORITY) {
+            throw new IllegalArgumentException("Unknown arbitration " + arbitration);
+        }
+        mArbitration = arbitration;
+    }
+
+    public int getArbitration() {
+        return mArbitration;
+    }
+
+    /**
+     * Make a writer ID
+     *
+     * @param priority the writer's priority, for example PRIORITY_CENTRAL.  Higher wins
+     * @param index tells writers of the same priority apart
+     */
+    public static int writerId(int priority, int index) {
+        return ((priority & 0xFF) << 8) | (index & 0xFF);
+    }
+
+    public static int getPriority(int writerId) {
+        return (writerId >> 8) & 0xFF;
+    }
+
+    /** Reading **/
+
+    /**
+     * Get the packed register: read it once, then unpack it with getState(), getVersion()
+     * and getWriterId() so the parts agree
+     */
+    public long get() {
+        return mRegister.get();
+    }
+
+    public int getState() {
+        return getState(mRegister.get());
+    }
+
+    public long getVersion() {
+        return getVersion(mRegister.get());
+    }
+
+    public static int getState(long register) {
+        return (int) (register & STATE_MASK);
+    }
+
+    public static int getWriterId(long register) {
+        return (int) ((register >>> STATE_BITS) & WRITER_MASK);
+    }
+
+    public static long getVersion(long register) {
+        return register >>> VERSION_SHIFT;
+    }
+
+    private static long pack(int state, int writerId, long version) {
+        return ((version & VERSION_MASK) << VERSION_SHIFT) | ((writerId & WRITER_MASK) << STATE_BITS) | (state & STATE_MASK);
+    }
+
+    /** Writing **/
+
+    /**
+     * Change the LED state.  Never call it from the ChangeListener
+     *
+     * @param state the new LED state
+     * @param writerId who is writing, from writerId()
+     * @param observedVersion the version the writer last saw, or ANY_VERSION
+     * @param executedTime when a scheduled command was carried out, or null.  Handed to the ChangeListener
+     * @return RESULT_ACCEPTED, RESULT_UNCHANGED or RESULT_REJECTED
+     */
+    public int write(int state, int writerId, long observedVersion, Long executedTime) {
+        long current, next;
+        do {
+            current = mRegister.get();
+            if (getState(current) == state) {
+                mUnchangedCount.incrementAndGet();
+                return RESULT_UNCHANGED;
+            }
+            if (mArbitration == ARBITRATION_PRIORITY
+                    && observedVersion != ANY_VERSION
+                    && getVersion(current) != observedVersion
+                    && getPriority(writerId) < getPriority(getWriterId(current))) {
+                mRejectedCount.incrementAndGet();
+                return RESULT_REJECTED;
+            }
+            next = pack(state, writerId, getVersion(current) + 1);
+        } while (!compareAndSet(current, next));
+        mAcceptedCount.incrementAndGet();
+
+        deliver(next, executedTime);
+        return RESULT_ACCEPTED;
+    }
+
+    private boolean compareAndSet(long current, long next) {
+        if (mRegister.compareAndSet(current, next)) {
+            return true;
+        }
+        mRetryCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Hand a change to the ChangeListener once every change before it has been handed over
+     */
+    private void deliver(long register, Long executedTime) {
+        long version = getVersion(register);
+        long previousVersion = (version - 1) & VERSION_MASK;
+        synchronized (mDeliveryLock) {
+            boolean isInterrupted = false;
+            while (mDeliveredVersion != previousVersion) {
+                try {
+                    mDeliveryLock.wait();
+                } catch (InterruptedException e) {
+                    // the change is already made, so it must still be handed over
+                    isInterrupted = true;
+                }
+            }
+            try {
+                mChangeListener.onLedStateChanged(register, executedTime);
+            } finally {
+                mDeliveredVersion = version;
+                mDeliveryLock.notifyAll();
+                if (isInterrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /** Metrics **/
+
+    public long getAcceptedCount() {
+        return mAcceptedCount.get();
+    }
+
+    public long getUnchangedCount() {
+        return mUnchangedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * Get how many times a compare-and-set lost to another writer and went round again
+     */
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * Hears about each accepted change, one at a time, in version order
+     */
+    public static abstract class ChangeListener {
+        /**
+         * @param register the packed register after the change
+         * @param executedTime when a scheduled command was carried out, or null
+         */
+        public abstract void onLedStateChanged(long register, Long executedTime);
+    }
+}
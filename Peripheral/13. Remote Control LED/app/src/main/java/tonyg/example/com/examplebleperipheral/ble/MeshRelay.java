@@ -0,0 +1,139 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decide when to relay a broadcast command, so it reaches Remote Leds out of the Central's range.
+ *
+ * Every Remote Led that hears a command for the first time relays it once, with the TTL
+ * lowered by one, after a random delay so that neighbours who heard the same advertisement
+ * don't all transmit at once.  If enough neighbours are heard relaying the same command
+ * during the delay, this Remote Led's relay would add little and is dropped.
+ *
+ * Commands already seen are remembered by source and sequence number in a bounded cache
+ * that forgets the least recently heard command first.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class MeshRelay {
+    public static final long NO_RELAY = -1;
+
+    public static final int DEFAULT_CACHE_SIZE = 256;
+    public static final long DEFAULT_MAX_RELAY_DELAY_MS = 200;
+    public static final int DEFAULT_SUPPRESSION_THRESHOLD = 3; // copies heard before giving up on a relay
+
+    private final BroadcastCommand mBroadcastCommand;
+    private final Random mRandom;
+    private final Map<Long, int[]> mSeenCommands; // copies heard of each command
+    private long mMaxRelayDelay = DEFAULT_MAX_RELAY_DELAY_MS;
+    private int mSuppressionThreshold = DEFAULT_SUPPRESSION_THRESHOLD;
+
+    /** Metrics **/
+    private int mRelayedCount = 0;
+    private int mSuppressedCount = 0;
+    private int mDuplicateCount = 0;
+
+    public MeshRelay(BroadcastCommand broadcastCommand) {
+        this(broadcastCommand, DEFAULT_CACHE_SIZE, new Random());
+    }
+
+    /**
+     * Create a MeshRelay
+     *
+     * @param broadcastCommand checks signatures, so forged commands aren't spread
+     * @param cacheSize how many commands to remember
+     * @param random picks the relay delays
+     */
+    public MeshRelay(BroadcastCommand broadcastCommand, final int cacheSize, Random random) {
+        mBroadcastCommand = broadcastCommand;
+        mRandom = random;
+        // access order, so the least recently heard command is forgotten first
+        mSeenCommands = new LinkedHashMap<Long, int[]>(cacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Set the longest random delay before relaying
+     */
+    public synchronized void setMaxRelayDelay(long maxRelayDelay) {
+        mMaxRelayDelay = maxRelayDelay;
+    }
+
+    /**
+     * Set how many copies of a command heard during the relay delay cancel the relay
+     *
+     * @param suppressionThreshold the number of copies, or 0 to always relay
+     */
+    public synchronized void setSuppressionThreshold(int suppressionThreshold) {
+        mSuppressionThreshold = suppressionThreshold;
+    }
+
+    /**
+     * A broadcast command was heard
+     *
+     * @param data the Manufacturer Specific Data, without the Company ID
+     * @return how long to wait before calling onRelayDue(), in milliseconds, or NO_RELAY
+     */
+    public synchronized long onCommandHeard(byte[] data) {
+        if (data == null || data.length < BroadcastCommand.LENGTH || data[BroadcastCommand.TYPE_POSITION] != BroadcastCommand.TYPE_COMMAND) {
+            return NO_RELAY;
+        }
+        long key = getKey(data);
+        int[] copies = mSeenCommands.get(key);
+        if (copies != null) {
+            copies[0]++;
+            mDuplicateCount++;
+            return NO_RELAY;
+        }
+        if (BroadcastCommand.getTtl(data) == 0 || !mBroadcastCommand.verify(data)) {
+            return NO_RELAY;
+        }
+        mSeenCommands.put(key, new int[] {1});
+        return mMaxRelayDelay > 0 ? (long) (mRandom.nextDouble() * mMaxRelayDelay) : 0;
+    }
+
+    /**
+     * The relay delay for a command is over
+     *
+     * @param data the Manufacturer Specific Data passed to onCommandHeard()
+     * @return the command to advertise, with the TTL lowered, or null if enough neighbours already relayed it
+     */
+    public synchronized byte[] onRelayDue(byte[] data) {
+        int[] copies = mSeenCommands.get(getKey(data));
+        // the first copy is the one that triggered the relay
+        if (copies != null && mSuppressionThreshold > 0 && copies[0] - 1 >= mSuppressionThreshold) {
+            mSuppressedCount++;
+            return null;
+        }
+        mRelayedCount++;
+        return BroadcastCommand.withTtl(data, BroadcastCommand.getTtl(data) - 1);
+    }
+
+    public synchronized int getRelayedCount() {
+        return mRelayedCount;
+    }
+
+    public synchronized int getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    public synchronized int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mRelayedCount + " relayed, " + mSuppressedCount + " suppressed, " + mDuplicateCount + " duplicates";
+    }
+
+    private static long getKey(byte[] data) {
+        return ((long) BroadcastCommand.getSource(data) << 32) | BroadcastCommand.getSequence(data);
+    }
+}
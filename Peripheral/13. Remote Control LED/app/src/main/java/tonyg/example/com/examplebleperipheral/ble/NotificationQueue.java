@@ -0,0 +1,187 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Notifications waiting to go to one Central.
+ *
+ * The Bluetooth stack only takes so many notifications at a time; past that it drops them
+ * or refuses them.  So each notification spends a credit, and the credit comes back when
+ * the stack reports the notification sent, through onNotificationSent().  Notifications
+ * wait here meanwhile.  If onNotificationSent() never comes, the credits are reclaimed
+ * after CREDIT_TIMEOUT_MS; scheduleRetry() says when to try again, since nothing else may
+ * come along to send the notifications still waiting.
+ *
+ * A state notification supersedes the one still waiting for the same Characteristic, so
+ * a burst of state changes sends only the latest state.  Replies meant for one request are
+ * never coalesced.  When the queue is full, new notifications are dropped and counted.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class NotificationQueue {
+    public static final int DEFAULT_CREDITS = 1; // Android sends one notification per onNotificationSent
+    public static final int DEFAULT_MAX_DEPTH = 16;
+    public static final long CREDIT_TIMEOUT_MS = 2000; // reclaim credits if onNotificationSent never comes
+
+    /** offer() results **/
+    public static final int QUEUED = 0;
+    public static final int COALESCED = 1;
+    public static final int DROPPED = 2;
+
+    /**
+     * A notification waiting to be sent
+     */
+    public static class Notification {
+        private UUID mCharacteristicUuid;
+        private byte[] mValue;
+        private boolean mConfirm;
+        private boolean mIsState;
+
+        public UUID getCharacteristicUuid() {
+            return mCharacteristicUuid;
+        }
+
+        public byte[] getValue() {
+            return mValue;
+        }
+
+        public boolean isConfirm() {
+            return mConfirm;
+        }
+    }
+
+    private final ArrayDeque<Notification> mQueue = new ArrayDeque<Notification>();
+    private final int mMaxCredits;
+    private final int mMaxDepth;
+    private int mCredits;
+    private long mLastSendTime;
+    private int mCreditTimeoutCount;
+    private boolean mIsRetryScheduled;
+
+    public NotificationQueue() {
+        this(DEFAULT_CREDITS, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param credits how many notifications may be with the stack at once
+     * @param maxDepth how many notifications may wait
+     */
+    public NotificationQueue(int credits, int maxDepth) {
+        mMaxCredits = credits;
+        mCredits = credits;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * Queue a notification
+     *
+     * @param characteristicUuid the Characteristic that changed
+     * @param value the new value
+     * @param confirm <b>true</b> to send an indication
+     * @param isState <b>true</b> if a later value for the Characteristic makes this one stale
+     * @return QUEUED, COALESCED into a waiting notification, or DROPPED because the queue is full
+     */
+    public synchronized int offer(UUID characteristicUuid, byte[] value, boolean confirm, boolean isState) {
+        if (isState) {
+            for (Notification notification : mQueue) {
+                if (notification.mIsState && notification.mCharacteristicUuid.equals(characteristicUuid)) {
+                    notification.mValue = value;
+                    notification.mConfirm = confirm;
+                    return COALESCED;
+                }
+            }
+        }
+        if (mQueue.size() >= mMaxDepth) {
+            return DROPPED;
+        }
+        Notification notification = new Notification();
+        notification.mCharacteristicUuid = characteristicUuid;
+        notification.mValue = value;
+        notification.mConfirm = confirm;
+        notification.mIsState = isState;
+        mQueue.add(notification);
+        return QUEUED;
+    }
+
+    /**
+     * Take the next notification to send, spending a credit
+     *
+     * @param now the time in milliseconds
+     * @return the notification, or null if there's none or no credit to send it
+     */
+    public synchronized Notification poll(long now) {
+        if (mQueue.isEmpty()) {
+            return null;
+        }
+        if (mCredits == 0) {
+            if (now - mLastSendTime < CREDIT_TIMEOUT_MS) {
+                return null;
+            }
+            mCredits = mMaxCredits;
+            mCreditTimeoutCount++;
+        }
+        mCredits--;
+        mLastSendTime = now;
+        return mQueue.poll();
+    }
+
+    /**
+     * Check if notifications are stuck waiting for credits, so sending should be tried
+     * again once the credits can be reclaimed.  Only one retry is asked for at a time
+     *
+     * @param now the time in milliseconds
+     * @return how long to wait before trying again, in milliseconds, or -1 if there's no
+     *     need or a retry is already due
+     */
+    public synchronized long scheduleRetry(long now) {
+        if (mQueue.isEmpty() || mCredits > 0 || mIsRetryScheduled) {
+            return -1;
+        }
+        mIsRetryScheduled = true;
+        return Math.max(0, mLastSendTime + CREDIT_TIMEOUT_MS - now);
+    }
+
+    /**
+     * A retry asked for by scheduleRetry() is being carried out
+     */
+    public synchronized void onRetryDue() {
+        mIsRetryScheduled = false;
+    }
+
+    /**
+     * The stack sent a notification, or refused one, so its credit comes back
+     */
+    public synchronized void onCreditReturned() {
+        if (mCredits < mMaxCredits) {
+            mCredits++;
+        }
+    }
+
+    /**
+     * Forget every waiting notification
+     *
+     * @return how many were waiting
+     */
+    public synchronized int clear() {
+        int depth = mQueue.size();
+        mQueue.clear();
+        return depth;
+    }
+
+    public synchronized int getDepth() {
+        return mQueue.size();
+    }
+
+    public synchronized int getCredits() {
+        return mCredits;
+    }
+
+    /**
+     * Get how many times onNotificationSent didn't come and the credits were reclaimed
+     */
+    public synchronized int getCreditTimeoutCount() {
+        return mCreditTimeoutCount;
+    }
+}
@@ -0,0 +1,217 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.util.UUID;
+
+/**
+ * One Central's prepared writes, waiting to be executed.
+ *
+ * A Central writes a value longer than one packet as a series of prepared writes, each
+ * carrying a piece of the value and its offset, then asks for them all to be executed.
+ * Each piece is copied into a staging buffer as it arrives.  On execute, every value in
+ * the queue is checked first: its pieces must cover it from offset 0 without gaps and
+ * fit in MAX_ATTRIBUTE_LENGTH.  Only if all of them pass are they reassembled and
+ * committed, in the order they were first written, so a long write lands whole or not at all.
+ *
+ * The staging and reassembly buffers are allocated by the first long write and reused
+ * after that.  Only the committed values are new arrays, since they outlive the queue.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class PreparedWriteQueue {
+    public static final int MAX_ATTRIBUTE_LENGTH = 512; // the longest value ATT allows
+    public static final int MAX_QUEUED_BYTES = 2 * MAX_ATTRIBUTE_LENGTH;
+    public static final int MAX_QUEUED_WRITES = 64;
+
+    /** GATT status codes **/
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_INVALID_OFFSET = 0x07;
+    public static final int GATT_PREPARE_QUEUE_FULL = 0x09;
+    public static final int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+
+    /**
+     * Takes each value as it's committed
+     */
+    public static abstract class Committer {
+        /**
+         * @param characteristicUuid the Characteristic written
+         * @param value the whole value, reassembled.  It belongs to the Committer
+         */
+        public abstract void onCommit(UUID characteristicUuid, byte[] value);
+    }
+
+    private final UUID[] mCharacteristicUuids = new UUID[MAX_QUEUED_WRITES];
+    private final int[] mOffsets = new int[MAX_QUEUED_WRITES];
+    private final int[] mLengths = new int[MAX_QUEUED_WRITES];
+    private final int[] mStagedPositions = new int[MAX_QUEUED_WRITES];
+    private int mWriteCount;
+    private int mStagedLength;
+    private byte[] mStaging;
+    private byte[] mAssembly;
+    private boolean[] mIsCovered;
+
+    /** Metrics **/
+    private long mCommittedCount;
+    private long mAbortedCount;
+
+    /**
+     * Queue a piece of a long write
+     *
+     * @param characteristicUuid the Characteristic being written
+     * @param offset where the piece goes in the value
+     * @param value the piece.  It's copied, so the caller may reuse it
+     * @return GATT_SUCCESS, GATT_INVALID_OFFSET, GATT_INVALID_ATTRIBUTE_LENGTH or GATT_PREPARE_QUEUE_FULL
+     */
+    public synchronized int prepare(UUID characteristicUuid, int offset, byte[] value) {
+        int length = value != null ? value.length : 0;
+        if (offset < 0 || offset > MAX_ATTRIBUTE_LENGTH) {
+            return GATT_INVALID_OFFSET;
+        }
+        if (offset + length > MAX_ATTRIBUTE_LENGTH) {
+            return GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+        if (mWriteCount >= MAX_QUEUED_WRITES || mStagedLength + length > MAX_QUEUED_BYTES) {
+            return GATT_PREPARE_QUEUE_FULL;
+        }
+        if (mStaging == null) {
+            mStaging = new byte[MAX_QUEUED_BYTES];
+        }
+        if (length > 0) {
+            System.arraycopy(value, 0, mStaging, mStagedLength, length);
+        }
+        mCharacteristicUuids[mWriteCount] = characteristicUuid;
+        mOffsets[mWriteCount] = offset;
+        mLengths[mWriteCount] = length;
+        mStagedPositions[mWriteCount] = mStagedLength;
+        mWriteCount++;
+        mStagedLength += length;
+        return GATT_SUCCESS;
+    }
+
+    /**
+     * Commit every queued write, or none of them.  The queue is empty afterwards either way
+     *
+     * @param committer takes each reassembled value
+     * @return GATT_SUCCESS, or GATT_INVALID_OFFSET if a value has a gap and nothing was committed
+     */
+    public synchronized int execute(Committer committer) {
+        if (mWriteCount == 0) {
+            return GATT_SUCCESS;
+        }
+        for (int i = 0; i < mWriteCount; i++) {
+            if (isFirstWrite(i) && assemble(mCharacteristicUuids[i]) < 0) {
+                mAbortedCount++;
+                clear();
+                return GATT_INVALID_OFFSET;
+            }
+        }
+        for (int i = 0; i < mWriteCount; i++) {
+            if (isFirstWrite(i)) {
+                int length = assemble(mCharacteristicUuids[i]);
+                byte[] value = new byte[length];
+                System.arraycopy(mAssembly, 0, value, 0, length);
+                committer.onCommit(mCharacteristicUuids[i], value);
+                mCommittedCount++;
+            }
+        }
+        clear();
+        return GATT_SUCCESS;
+    }
+
+    /**
+     * Forget every queued write, as when the Central cancels them
+     */
+    public synchronized void cancel() {
+        if (mWriteCount > 0) {
+            mAbortedCount++;
+        }
+        clear();
+    }
+
+    public synchronized int getQueuedWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Get how many values an execute would commit: one for each Characteristic written
+     */
+    public synchronized int getQueuedValueCount() {
+        int count = 0;
+        for (int i = 0; i < mWriteCount; i++) {
+            if (isFirstWrite(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getQueuedBytes() {
+        return mStagedLength;
+    }
+
+    /**
+     * Get how many values were committed whole
+     */
+    public synchronized long getCommittedCount() {
+        return mCommittedCount;
+    }
+
+    /**
+     * Get how many long writes were cancelled or refused on execute
+     */
+    public synchronized long getAbortedCount() {
+        return mAbortedCount;
+    }
+
+    private boolean isFirstWrite(int index) {
+        for (int i = 0; i < index; i++) {
+            if (mCharacteristicUuids[i].equals(mCharacteristicUuids[index])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lay a Characteristic's pieces over each other in mAssembly, later pieces winning
+     *
+     * @return the value's length, or -1 if the pieces leave a gap
+     */
+    private int assemble(UUID characteristicUuid) {
+        if (mAssembly == null) {
+            mAssembly = new byte[MAX_ATTRIBUTE_LENGTH];
+            mIsCovered = new boolean[MAX_ATTRIBUTE_LENGTH];
+        }
+        int length = 0;
+        for (int i = 0; i < mWriteCount; i++) {
+            if (mCharacteristicUuids[i].equals(characteristicUuid)) {
+                length = Math.max(length, mOffsets[i] + mLengths[i]);
+            }
+        }
+        for (int j = 0; j < length; j++) {
+            mIsCovered[j] = false;
+        }
+        for (int i = 0; i < mWriteCount; i++) {
+            if (mCharacteristicUuids[i].equals(characteristicUuid)) {
+                System.arraycopy(mStaging, mStagedPositions[i], mAssembly, mOffsets[i], mLengths[i]);
+                for (int j = mOffsets[i]; j < mOffsets[i] + mLengths[i]; j++) {
+                    mIsCovered[j] = true;
+                }
+            }
+        }
+        for (int j = 0; j < length; j++) {
+            if (!mIsCovered[j]) {
+                return -1;
+            }
+        }
+        return length;
+    }
+
+    private void clear() {
+        for (int i = 0; i < mWriteCount; i++) {
+            mCharacteristicUuids[i] = null;
+        }
+        mWriteCount = 0;
+        mStagedLength = 0;
+    }
+}
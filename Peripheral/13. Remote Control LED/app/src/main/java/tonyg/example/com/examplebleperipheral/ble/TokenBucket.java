@@ -0,0 +1,107 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+/**
+ * Limit how fast one Central may send commands.
+ *
+ * The bucket holds up to a burst of tokens and refills at a steady rate.  Each command
+ * takes a token; a command that finds the bucket empty is refused.  So a Central may send
+ * a quick burst, but over time no faster than the rate.
+ *
+ * Binder threads for the same Central may ask at once, so tryAcquire() is synchronized.
+ * Each Central has its own bucket, so they never wait on each other.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private double mTokensPerNano;
+    private int mBurst;
+    private double mTokens;
+    private long mLastRefillTime;
+
+    /** Metrics **/
+    private long mAdmittedCount;
+    private long mRejectedCount;
+
+    /**
+     * Start with a full bucket
+     *
+     * @param tokensPerSecond how fast the bucket refills
+     * @param burst how many tokens the bucket holds
+     * @param now the current time, in System.nanoTime() time
+     */
+    public TokenBucket(double tokensPerSecond, int burst, long now) {
+        setRate(tokensPerSecond, burst);
+        mTokens = burst;
+        mLastRefillTime = now;
+    }
+
+    /**
+     * Change how fast the bucket refills and how much it holds.  Tokens already in the
+     * bucket stay, up to the new burst
+     *
+     * @param tokensPerSecond more than 0
+     * @param burst at least 1
+     */
+    public synchronized void setRate(double tokensPerSecond, int burst) {
+        if (tokensPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("The rate must be above 0 and the burst at least 1");
+        }
+        mTokensPerNano = tokensPerSecond / NANOS_PER_SECOND;
+        mBurst = burst;
+        mTokens = Math.min(mTokens, burst);
+    }
+
+    /**
+     * Take a token if there is one
+     *
+     * @param now the current time, in System.nanoTime() time
+     * @return <b>false</b> if the bucket is empty
+     */
+    public boolean tryAcquire(long now) {
+        return tryAcquire(1, now);
+    }
+
+    /**
+     * Take several tokens, for commands that arrive together, or none of them
+     *
+     * @param count how many tokens, at least 1
+     * @param now the current time, in System.nanoTime() time
+     * @return <b>false</b> if the bucket holds fewer
+     */
+    public synchronized boolean tryAcquire(int count, long now) {
+        long elapsed = now - mLastRefillTime;
+        if (elapsed > 0) {
+            mTokens = Math.min(mBurst, mTokens + elapsed * mTokensPerNano);
+            mLastRefillTime = now;
+        }
+        if (mTokens >= count) {
+            mTokens -= count;
+            mAdmittedCount += count;
+            return true;
+        }
+        mRejectedCount += count;
+        return false;
+    }
+
+    public synchronized double getTokensPerSecond() {
+        return mTokensPerNano * NANOS_PER_SECOND;
+    }
+
+    public synchronized int getBurst() {
+        return mBurst;
+    }
+
+    public synchronized long getAdmittedCount() {
+        return mAdmittedCount;
+    }
+
+    /**
+     * Get how many commands found the bucket empty
+     */
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+}
@@ -50,6 +50,19 @@ public abstract class BlePeripheralCallback {
      */
     public abstract void onCharacteristicWritten(final BluetoothDevice connectedDevice, final BluetoothGattCharacteristic characteristic, final byte[] value);
 
+    /**
+     * Characteristic written to.  Called on the GATT event thread, after the write was
+     * acknowledged, for Characteristics without a WriteHandler of their own
+     *
+     * @param connectedDevice The connected Central that wrote the value
+     * @param characteristic The Characteristic that was written to
+     * @param value the byte value that was written
+     * @param receivedTime when the write arrived, in CommandScheduler.nowMicros() time
+     */
+    public void onCharacteristicWritten(final BluetoothDevice connectedDevice, final BluetoothGattCharacteristic characteristic, final byte[] value, long receivedTime) {
+        onCharacteristicWritten(connectedDevice, characteristic, value);
+    }
+
     /**
      * Characteristic subscribed to
      *
@@ -0,0 +1,24 @@
+package tonyg.example.com.examplebleperipheral.ble.callbacks;
+
+/**
+ * Relay accepted broadcast commands from the BroadcastCommandScanner
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2016-03-06
+ */
+public abstract class BroadcastCommandCallback {
+
+    /**
+     * A broadcast command was accepted
+     *
+     * @param command the LED command
+     */
+    public abstract void onBroadcastCommand(final byte command);
+
+    /**
+     * Scanning for broadcast commands failed
+     *
+     * @param errorCode the ScanCallback error code
+     */
+    public abstract void onScanFailed(final int errorCode);
+}
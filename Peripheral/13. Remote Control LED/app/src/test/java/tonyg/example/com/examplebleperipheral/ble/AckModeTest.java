@@ -0,0 +1,136 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Choosing notifications or indications from each Central's subscription, and what each
+ * costs in latency and throughput over a simulated link
+ */
+public class AckModeTest {
+    private static final String CENTRAL = GattSimulator.address(1);
+    private static final int CONNECTION_INTERVAL_MS = 15;
+    private static final int MAX_PACKETS_PER_EVENT = 4;
+
+    @Test
+    public void isIndication_followsTheCentralThenThePolicy() throws Exception {
+        assertFalse(CentralSessionManager.isIndication(CentralSession.SUBSCRIPTION_NOTIFY, CentralSessionManager.ACK_PREFER_INDICATE));
+        assertTrue(CentralSessionManager.isIndication(CentralSession.SUBSCRIPTION_INDICATE, CentralSessionManager.ACK_PREFER_NOTIFY));
+        int both = CentralSession.SUBSCRIPTION_NOTIFY | CentralSession.SUBSCRIPTION_INDICATE;
+        assertFalse(CentralSessionManager.isIndication(both, CentralSessionManager.ACK_PREFER_NOTIFY));
+        assertTrue(CentralSessionManager.isIndication(both, CentralSessionManager.ACK_PREFER_INDICATE));
+    }
+
+    @Test
+    public void isSubscriptionSupported_matchesCharacteristicProperties() throws Exception {
+        int notifyOnly = BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+        int both = BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE;
+        int indicate = CentralSession.parseCccdValue(CentralSession.ENABLE_INDICATION_VALUE);
+
+        assertTrue(BlePeripheral.isSubscriptionSupported(notifyOnly, CentralSession.SUBSCRIPTION_NOTIFY));
+        assertFalse(BlePeripheral.isSubscriptionSupported(notifyOnly, indicate));
+        assertTrue(BlePeripheral.isSubscriptionSupported(notifyOnly, CentralSession.SUBSCRIPTION_NONE));
+        assertTrue(BlePeripheral.isSubscriptionSupported(both, indicate | CentralSession.SUBSCRIPTION_NOTIFY));
+    }
+
+    @Test
+    public void notifyCentral_usesTheModeTheCentralChose() throws Exception {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = connect(gattSimulator, CentralSession.SUBSCRIPTION_INDICATE);
+        centralSessionManager.notifyCentral(CENTRAL, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {1});
+        centralSessionManager.notifyCentral(CENTRAL, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {2});
+
+        // the second indication waits for the first to be confirmed, in the next event
+        for (int i = 0; i < 3; i++) {
+            gattSimulator.runConnectionEvent(centralSessionManager, MAX_PACKETS_PER_EVENT);
+        }
+        assertEquals(Arrays.asList(1, 3), gattSimulator.getCentral(CENTRAL).getDeliveryEvents());
+    }
+
+    @Test
+    public void linkBenchmark_notificationsVersusIndications() throws Exception {
+        LinkResult notifyLight = runLink(CentralSession.SUBSCRIPTION_NOTIFY, 4);
+        LinkResult indicateLight = runLink(CentralSession.SUBSCRIPTION_INDICATE, 4);
+        LinkResult notifySaturated = runLink(CentralSession.SUBSCRIPTION_NOTIFY, 0);
+        LinkResult indicateSaturated = runLink(CentralSession.SUBSCRIPTION_INDICATE, 0);
+        System.out.println("Notifications, one reply per 4 events: " + notifyLight);
+        System.out.println("Indications, one reply per 4 events: " + indicateLight);
+        System.out.println("Notifications, saturated: " + notifySaturated);
+        System.out.println("Indications, saturated: " + indicateSaturated);
+
+        assertTrue(notifyLight.mMeanLatencyEvents <= indicateLight.mMeanLatencyEvents);
+        assertTrue(indicateSaturated.mPacketsPerEvent <= 0.5);
+        assertTrue(notifySaturated.mPacketsPerEvent >= 2 * indicateSaturated.mPacketsPerEvent);
+    }
+
+    private static final int LINK_EVENTS = 2000;
+
+    /**
+     * Send replies over a simulated link and time their arrival
+     *
+     * @param subscription what the Central subscribed to
+     * @param eventsPerReply a reply every so many connection events, or 0 to keep the queue full
+     */
+    private static LinkResult runLink(int subscription, int eventsPerReply) {
+        GattSimulator gattSimulator = new GattSimulator();
+        gattSimulator.setStackBufferSize(MAX_PACKETS_PER_EVENT);
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        centralSessionManager.setNotificationFlowControl(NotificationQueue.DEFAULT_CREDITS, 64);
+        gattSimulator.addCentral(CENTRAL);
+        centralSessionManager.onCentralConnected(CENTRAL, null);
+        centralSessionManager.onSubscriptionChanged(CENTRAL, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, subscription);
+
+        for (int event = 0; event < LINK_EVENTS; event++) {
+            if (eventsPerReply == 0) {
+                while (centralSessionManager.getQueueDepth() < MAX_PACKETS_PER_EVENT) {
+                    centralSessionManager.notifyCentral(CENTRAL, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, ByteBuffer.allocate(4).putInt(event).array());
+                }
+            } else if (event % eventsPerReply == 0) {
+                centralSessionManager.notifyCentral(CENTRAL, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, ByteBuffer.allocate(4).putInt(event).array());
+            }
+            gattSimulator.runConnectionEvent(centralSessionManager, MAX_PACKETS_PER_EVENT);
+        }
+
+        // the n-th notification the stack took is the n-th to arrive
+        GattSimulator.SimulatedCentral simulatedCentral = gattSimulator.getCentral(CENTRAL);
+        List<Integer> deliveryEvents = simulatedCentral.getDeliveryEvents();
+        Iterator<byte[]> notifications = simulatedCentral.getNotifications().iterator();
+        long totalLatency = 0;
+        for (int deliveryEvent : deliveryEvents) {
+            int sentEvent = ByteBuffer.wrap(notifications.next()).getInt();
+            // a reply made during event n can go out in event n + 1 at the soonest
+            totalLatency += deliveryEvent - sentEvent;
+        }
+        LinkResult linkResult = new LinkResult();
+        linkResult.mPacketsPerEvent = (double) deliveryEvents.size() / LINK_EVENTS;
+        linkResult.mMeanLatencyEvents = deliveryEvents.isEmpty() ? 0 : (double) totalLatency / deliveryEvents.size();
+        return linkResult;
+    }
+
+    private static class LinkResult {
+        double mPacketsPerEvent, mMeanLatencyEvents;
+
+        @Override
+        public String toString() {
+            return String.format("%.2f per connection event (%.0f/s), mean latency %.2f events (%.1fms at %dms intervals)",
+                    mPacketsPerEvent, mPacketsPerEvent * 1000 / CONNECTION_INTERVAL_MS,
+                    mMeanLatencyEvents, mMeanLatencyEvents * CONNECTION_INTERVAL_MS, CONNECTION_INTERVAL_MS);
+        }
+    }
+
+    private static CentralSessionManager connect(GattSimulator gattSimulator, int subscription) {
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        gattSimulator.addCentral(CENTRAL);
+        centralSessionManager.onCentralConnected(CENTRAL, null);
+        centralSessionManager.onSubscriptionChanged(CENTRAL, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, subscription);
+        return centralSessionManager;
+    }
+}
@@ -0,0 +1,199 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * AckWindow multi-acks, how CentralSessionManager folds responses into them for Centrals
+ * that support them, and a benchmark of notifications sent during bursts of commands
+ */
+public class AckWindowTest {
+    private static final UUID RESPONSE_UUID = BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID;
+    private static final int MAX_PACKETS_PER_EVENT = 4;
+
+    @Test
+    public void close_countsConfirmationsAndKeepsLatestResponse() throws Exception {
+        AckWindow ackWindow = new AckWindow();
+        assertNull(ackWindow.close());
+
+        assertTrue(ackWindow.add(stateResponse(BleRemoteLed.LED_STATE_ON), true));
+        assertFalse(ackWindow.add(stateResponse(BleRemoteLed.LED_STATE_OFF), false));
+        assertFalse(ackWindow.add(stateResponse(BleRemoteLed.LED_STATE_ON), true));
+        assertTrue(ackWindow.isOpen());
+
+        byte[] multiAck = ackWindow.close();
+        assertEquals(AckWindow.MULTI_ACK_TYPE, multiAck[AckWindow.TYPE_POSITION]);
+        assertEquals(AckWindow.MULTI_ACK_FOOTER, multiAck[AckWindow.FOOTER_POSITION]);
+        assertEquals(2, multiAck[AckWindow.COUNT_POSITION]);
+        assertEquals(BleRemoteLed.LED_STATE_ON, multiAck[AckWindow.RESPONSE_POSITION]);
+        assertFalse(ackWindow.isOpen());
+        assertNull(ackWindow.close());
+    }
+
+    @Test
+    public void acknowledge_foldsOnlyForCentralsThatSupportMultiAcks() throws Exception {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = newManager(gattSimulator, 2);
+        String singleAddress = GattSimulator.address(0);
+        String multiAckAddress = GattSimulator.address(1);
+        centralSessionManager.setFeatures(multiAckAddress, CentralSession.FEATURE_MULTI_ACK);
+
+        for (int i = 0; i < 5; i++) {
+            centralSessionManager.acknowledge(singleAddress, RESPONSE_UUID, stateResponse(BleRemoteLed.LED_STATE_ON));
+            centralSessionManager.acknowledge(multiAckAddress, RESPONSE_UUID, stateResponse(BleRemoteLed.LED_STATE_ON));
+        }
+        assertEquals(5, gattSimulator.getCentral(singleAddress).getNotifications().size());
+        assertTrue(gattSimulator.getCentral(multiAckAddress).getNotifications().isEmpty());
+
+        assertEquals(1, gattSimulator.closeAckWindows(centralSessionManager));
+        byte[] multiAck = gattSimulator.getCentral(multiAckAddress).getNotifications().poll();
+        assertEquals(AckWindow.MULTI_ACK_TYPE, multiAck[AckWindow.TYPE_POSITION]);
+        assertEquals(5, multiAck[AckWindow.COUNT_POSITION]);
+        assertEquals(5, centralSessionManager.getAggregatedResponseCount());
+        assertEquals(1, centralSessionManager.getMultiAckCount());
+
+        // without aggregation on the Characteristic, everyone gets single responses
+        centralSessionManager.setAckAggregation(RESPONSE_UUID, false);
+        assertFalse(centralSessionManager.isAggregatingAcks(multiAckAddress, RESPONSE_UUID));
+    }
+
+    @Test
+    public void notifyAllCentrals_stateRidesInTheNextMultiAck() throws Exception {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = newManager(gattSimulator, 2);
+        String multiAckAddress = GattSimulator.address(1);
+        centralSessionManager.setFeatures(multiAckAddress, CentralSession.FEATURE_MULTI_ACK);
+
+        // another Central changed the LED
+        assertEquals(2, centralSessionManager.notifyAllCentrals(RESPONSE_UUID, stateResponse(BleRemoteLed.LED_STATE_ON)));
+        assertEquals(1, gattSimulator.getCentral(GattSimulator.address(0)).getNotifications().size());
+        gattSimulator.closeAckWindows(centralSessionManager);
+
+        byte[] multiAck = gattSimulator.getCentral(multiAckAddress).getNotifications().poll();
+        assertEquals(0, multiAck[AckWindow.COUNT_POSITION]);
+        assertEquals(BleRemoteLed.LED_STATE_ON, multiAck[AckWindow.RESPONSE_POSITION]);
+    }
+
+    @Test
+    public void setFeatures_droppingMultiAckSendsWhatWasWaiting() throws Exception {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = newManager(gattSimulator, 1);
+        String address = GattSimulator.address(0);
+        centralSessionManager.setFeatures(address, CentralSession.FEATURE_MULTI_ACK);
+        centralSessionManager.acknowledge(address, RESPONSE_UUID, stateResponse(BleRemoteLed.LED_STATE_OFF));
+
+        centralSessionManager.setFeatures(address, CentralSession.FEATURE_NONE);
+        assertEquals(1, gattSimulator.getCentral(address).getNotifications().size());
+        centralSessionManager.acknowledge(address, RESPONSE_UUID, stateResponse(BleRemoteLed.LED_STATE_ON));
+        assertEquals(2, gattSimulator.getCentral(address).getNotifications().size());
+        assertEquals(0, gattSimulator.closeAckWindows(centralSessionManager));
+    }
+
+    @Test
+    public void acknowledge_fullWindowClosesRightAway() throws Exception {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = newManager(gattSimulator, 1);
+        String address = GattSimulator.address(0);
+        centralSessionManager.setFeatures(address, CentralSession.FEATURE_MULTI_ACK);
+
+        for (int i = 0; i < AckWindow.MAX_COUNT + 1; i++) {
+            centralSessionManager.acknowledge(address, RESPONSE_UUID, stateResponse(BleRemoteLed.LED_STATE_ON));
+        }
+        byte[] multiAck = gattSimulator.getCentral(address).getNotifications().poll();
+        assertEquals(AckWindow.MAX_COUNT, multiAck[AckWindow.COUNT_POSITION] & 0xFF);
+        gattSimulator.closeAckWindows(centralSessionManager);
+        assertEquals(1, gattSimulator.getCentral(address).getNotifications().poll()[AckWindow.COUNT_POSITION]);
+    }
+
+    /**
+     * A Central sends bursts of commands, several per connection interval, each of which
+     * changes the LED.  Count the notifications it's sent and the commands they confirm
+     */
+    @Test
+    public void linkBenchmark_multiAcksCutNotificationsDuringBursts() throws Exception {
+        int intervals = 200;
+        int commandsPerInterval = 6;
+        int[] single = runBursts(false, intervals, commandsPerInterval);
+        int[] multiAck = runBursts(true, intervals, commandsPerInterval);
+        int commandCount = intervals * commandsPerInterval;
+
+        System.out.println("AckWindow, " + commandCount + " commands in bursts of " + commandsPerInterval + ":"
+                + " single responses " + single[0] + " notifications confirming " + single[1]
+                + ", multi-acks " + multiAck[0] + " notifications confirming " + multiAck[1]);
+        // every command is confirmed, in one notification per burst
+        assertEquals(commandCount, multiAck[1]);
+        assertEquals(intervals, multiAck[0]);
+        assertTrue(multiAck[0] * 2 < single[0]);
+    }
+
+    /**
+     * Play bursts of commands over connection events
+     *
+     * @return {notifications delivered, commands they confirm}
+     */
+    private static int[] runBursts(boolean isMultiAck, int intervals, int commandsPerInterval) {
+        GattSimulator gattSimulator = new GattSimulator();
+        gattSimulator.setStackBufferSize(MAX_PACKETS_PER_EVENT);
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        centralSessionManager.setAckAggregation(RESPONSE_UUID, true);
+        centralSessionManager.setNotificationFlowControl(MAX_PACKETS_PER_EVENT, NotificationQueue.DEFAULT_MAX_DEPTH);
+        String address = GattSimulator.address(0);
+        gattSimulator.addCentral(address);
+        centralSessionManager.onCentralConnected(address, null);
+        centralSessionManager.onSubscriptionChanged(address, RESPONSE_UUID, CentralSession.SUBSCRIPTION_NOTIFY);
+        if (isMultiAck) {
+            centralSessionManager.setFeatures(address, CentralSession.FEATURE_MULTI_ACK);
+        }
+
+        byte state = BleRemoteLed.LED_STATE_OFF;
+        for (int interval = 0; interval < intervals; interval++) {
+            for (int i = 0; i < commandsPerInterval; i++) {
+                // as BleRemoteLed does for a command that changed the LED
+                state = state == BleRemoteLed.LED_STATE_ON ? BleRemoteLed.LED_STATE_OFF : BleRemoteLed.LED_STATE_ON;
+                byte[] response = stateResponse(state);
+                centralSessionManager.notifyAllCentrals(RESPONSE_UUID, response);
+                if (centralSessionManager.isAggregatingAcks(address, RESPONSE_UUID)) {
+                    centralSessionManager.acknowledge(address, RESPONSE_UUID, response);
+                }
+            }
+            // the window is shorter than the connection interval
+            gattSimulator.closeAckWindows(centralSessionManager);
+            gattSimulator.runConnectionEvent(centralSessionManager, MAX_PACKETS_PER_EVENT);
+        }
+        for (int i = 0; i < NotificationQueue.DEFAULT_MAX_DEPTH; i++) {
+            gattSimulator.runConnectionEvent(centralSessionManager, MAX_PACKETS_PER_EVENT);
+        }
+
+        int notificationCount = 0;
+        int confirmedCount = 0;
+        for (byte[] notification : gattSimulator.getCentral(address).getNotifications()) {
+            notificationCount++;
+            if (notification[AckWindow.TYPE_POSITION] == AckWindow.MULTI_ACK_TYPE) {
+                confirmedCount += notification[AckWindow.COUNT_POSITION] & 0xFF;
+            } else {
+                confirmedCount++;
+            }
+        }
+        return new int[] {notificationCount, confirmedCount};
+    }
+
+    private static CentralSessionManager newManager(GattSimulator gattSimulator, int centralCount) {
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        centralSessionManager.setAckAggregation(RESPONSE_UUID, true);
+        // every notification goes straight to the stack, which holds them all
+        centralSessionManager.setNotificationFlowControl(NotificationQueue.DEFAULT_MAX_DEPTH, NotificationQueue.DEFAULT_MAX_DEPTH);
+        for (int i = 0; i < centralCount; i++) {
+            gattSimulator.addCentral(GattSimulator.address(i));
+            centralSessionManager.onCentralConnected(GattSimulator.address(i), null);
+            centralSessionManager.onSubscriptionChanged(GattSimulator.address(i), RESPONSE_UUID, CentralSession.SUBSCRIPTION_NOTIFY);
+        }
+        return centralSessionManager;
+    }
+
+    private static byte[] stateResponse(byte ledState) {
+        return new byte[] {ledState, BleRemoteLed.RESPONSE_TYPE_CONFIRMATION, 0, 0, 0, 0};
+    }
+}
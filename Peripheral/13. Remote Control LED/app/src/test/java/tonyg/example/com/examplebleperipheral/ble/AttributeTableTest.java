@@ -0,0 +1,154 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * AttributeTable lookups: static values served without encoding, and writes sent to the
+ * WriteHandler each Characteristic was given
+ */
+public class AttributeTableTest {
+    private static final Charset CHARSET = Charset.forName(BlePeripheral.CHARSET);
+
+    private static final int COMMAND_PROPERTIES = BluetoothGattCharacteristic.PROPERTY_WRITE;
+    private static final int RESPONSE_PROPERTIES = BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+    private static final int MODEL_NUMBER_PROPERTIES = BluetoothGattCharacteristic.PROPERTY_READ;
+
+    private final List<String> mWrites = new ArrayList<String>();
+
+    private AttributeTable.WriteHandler newWriteHandler(final String name) {
+        return new AttributeTable.WriteHandler() {
+            @Override
+            public void onCharacteristicWritten(BluetoothDevice device, UUID characteristicUuid, byte[] value, long receivedTime) {
+                mWrites.add(name + " " + characteristicUuid);
+            }
+        };
+    }
+
+    @Test
+    public void readAt_servesTheStaticValueFromAnOffset() throws Exception {
+        AttributeTable attributeTable = new AttributeTable(newWriteHandler("default"));
+        byte[] modelNumber = "1AB2".getBytes(CHARSET);
+        attributeTable.setStaticValue(BlePeripheral.MODEL_NUMBER_CHARACTERISTIC_UUID, modelNumber);
+        // the table keeps its own copy
+        modelNumber[0] = 0;
+
+        AttributeTable.Attribute attribute = attributeTable.getAttribute(BlePeripheral.MODEL_NUMBER_CHARACTERISTIC_UUID);
+        assertTrue(attribute.isStatic());
+        assertArrayEquals("1AB2".getBytes(CHARSET), attribute.readAt(0));
+        assertSame(attribute.readAt(0), attribute.readAt(0));
+        assertArrayEquals("B2".getBytes(CHARSET), attribute.readAt(2));
+        assertEquals(0, attribute.readAt(4).length);
+        assertNull(attribute.readAt(5));
+    }
+
+    @Test
+    public void addCharacteristic_keepsWhatItWasAlreadyGiven() throws Exception {
+        AttributeTable attributeTable = new AttributeTable(newWriteHandler("default"));
+        // BlePeripheral.setModelNumber() may come before the Service is added
+        attributeTable.setStaticValue(BlePeripheral.MODEL_NUMBER_CHARACTERISTIC_UUID, "1AB2".getBytes(CHARSET));
+        attributeTable.addCharacteristic(BlePeripheral.MODEL_NUMBER_CHARACTERISTIC_UUID, MODEL_NUMBER_PROPERTIES);
+        attributeTable.addCharacteristic(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, RESPONSE_PROPERTIES);
+
+        AttributeTable.Attribute modelNumber = attributeTable.getAttribute(BlePeripheral.MODEL_NUMBER_CHARACTERISTIC_UUID);
+        assertTrue(modelNumber.isStatic());
+        assertFalse(modelNumber.isWriteKept());
+        AttributeTable.Attribute response = attributeTable.getAttribute(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID);
+        assertFalse(response.isStatic());
+        assertTrue(response.isWriteEchoed());
+        assertNull(attributeTable.getAttribute(BlePeripheral.BATTERY_LEVEL_CHARACTERISTIC_UUID));
+    }
+
+    @Test
+    public void getWriteHandler_sendsEachCharacteristicToItsOwnHandler() throws Exception {
+        AttributeTable attributeTable = new AttributeTable(newWriteHandler("default"));
+        attributeTable.setWriteHandler(BleRemoteLed.COMMAND_CHARACTERISTIC_UUID, newWriteHandler("command"));
+        attributeTable.addCharacteristic(BleRemoteLed.COMMAND_CHARACTERISTIC_UUID, COMMAND_PROPERTIES);
+        attributeTable.addCharacteristic(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, RESPONSE_PROPERTIES);
+
+        write(attributeTable, BleRemoteLed.COMMAND_CHARACTERISTIC_UUID);
+        write(attributeTable, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID);
+        assertEquals("command " + BleRemoteLed.COMMAND_CHARACTERISTIC_UUID, mWrites.get(0));
+        assertEquals("default " + BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, mWrites.get(1));
+        // write only, so there's nothing to keep or echo
+        assertFalse(attributeTable.getAttribute(BleRemoteLed.COMMAND_CHARACTERISTIC_UUID).isWriteKept());
+        assertFalse(attributeTable.getAttribute(BleRemoteLed.COMMAND_CHARACTERISTIC_UUID).isWriteEchoed());
+    }
+
+    /**
+     * Serving reads of the model number from the table, against the old read path: the
+     * Characteristic's value, with its UUID and value logged as strings.  The value is
+     * held as BluetoothGattCharacteristic.getValue() holds it
+     */
+    @Test
+    public void readBenchmark_tableReadsAllocateNothing() throws Exception {
+        int reads = 20000;
+        AttributeTable attributeTable = new AttributeTable(newWriteHandler("default"));
+        attributeTable.setStaticValue(BlePeripheral.MODEL_NUMBER_CHARACTERISTIC_UUID, "1AB2".getBytes(CHARSET));
+        byte[] modelNumber = "1AB2".getBytes(CHARSET);
+        long[] old = runReads(null, modelNumber, reads);
+        long[] table = runReads(attributeTable, modelNumber, reads);
+
+        System.out.println("AttributeTable, " + reads + " reads: logged " + (old[0] / reads) + " ns and " + (old[1] / reads) + " bytes each"
+                + ", from the table " + (table[0] / reads) + " ns and " + (table[1] / reads) + " bytes each");
+        if (table[1] >= 0) {
+            assertTrue("allocated " + table[1] + " bytes", table[1] < 16 * 1024);
+            assertTrue(table[1] < old[1]);
+        }
+    }
+
+    /**
+     * @return {nanoseconds, bytes allocated, or -1 if that can't be measured}
+     */
+    private long[] runReads(AttributeTable attributeTable, byte[] modelNumber, int reads) {
+        long checksum = 0;
+        for (int i = 0; i < reads; i++) {
+            checksum += read(attributeTable, modelNumber).length;
+        }
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = getAllocatedBytes(threadMXBean);
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            checksum += read(attributeTable, modelNumber).length;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBefore >= 0 ? getAllocatedBytes(threadMXBean) - allocatedBefore : -1;
+        assertEquals(2L * reads * 4, checksum);
+        return new long[] {elapsed, allocated};
+    }
+
+    private static byte[] read(AttributeTable attributeTable, byte[] modelNumber) {
+        if (attributeTable != null) {
+            return attributeTable.getAttribute(BlePeripheral.MODEL_NUMBER_CHARACTERISTIC_UUID).readAt(0);
+        }
+        byte[] value = modelNumber;
+        String log = "Device tried to read characteristic: " + BlePeripheral.MODEL_NUMBER_CHARACTERISTIC_UUID
+                + "Value: " + Arrays.toString(value);
+        return log.length() > 0 ? value : null;
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean threadMXBean) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void write(AttributeTable attributeTable, UUID characteristicUuid) {
+        // as BlePeripheral does for each write
+        attributeTable.getAttribute(characteristicUuid).getWriteHandler()
+                .onCharacteristicWritten(null, characteristicUuid, new byte[] {1}, 0);
+    }
+}
@@ -0,0 +1,166 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * BroadcastCommandReceiver filtering, and broadcast delivery to many Remote Leds over a simulated radio
+ */
+public class BroadcastCommandReceiverTest {
+    private static final int SOURCE = 0x1234;
+
+    @Test
+    public void onManufacturerData_acceptsSignedCommandOnce() throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        BroadcastCommandReceiver receiver = new BroadcastCommandReceiver(broadcastCommand);
+        byte[] data = broadcastCommand.encode(SOURCE, 1000, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+
+        assertEquals(BleRemoteLed.COMMAND_LED_ON, receiver.onManufacturerData(data));
+        assertEquals(BroadcastCommandReceiver.NOT_ACCEPTED, receiver.onManufacturerData(data));
+        assertEquals(1, receiver.getAcceptedCount());
+        assertEquals(1, receiver.getDuplicateCount());
+    }
+
+    @Test
+    public void onManufacturerData_rejectsWrongKeyAndTampering() throws Exception {
+        BroadcastCommandReceiver receiver = new BroadcastCommandReceiver(new BroadcastCommand(BroadcastCommand.DEMO_KEY));
+        byte[] forged = new BroadcastCommand("some other key".getBytes()).encode(SOURCE, 1000, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+        assertEquals(BroadcastCommandReceiver.NOT_ACCEPTED, receiver.onManufacturerData(forged));
+
+        byte[] tampered = new BroadcastCommand(BroadcastCommand.DEMO_KEY).encode(SOURCE, 1001, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+        tampered[BroadcastCommand.COMMAND_POSITION] = BleRemoteLed.COMMAND_LED_OFF;
+        assertEquals(BroadcastCommandReceiver.NOT_ACCEPTED, receiver.onManufacturerData(tampered));
+
+        assertEquals(BroadcastCommandReceiver.NOT_ACCEPTED, receiver.onManufacturerData(new byte[] {BroadcastCommand.TYPE_COMMAND, 1, 2}));
+        assertEquals(3, receiver.getRejectedCount());
+    }
+
+    @Test
+    public void onManufacturerData_rejectsReplayOfOlderCommand() throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        BroadcastCommandReceiver receiver = new BroadcastCommandReceiver(broadcastCommand);
+        byte[] on = broadcastCommand.encode(SOURCE, 1000, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+        byte[] off = broadcastCommand.encode(SOURCE, 1001, BleRemoteLed.COMMAND_LED_OFF, BroadcastCommand.ALL_GROUPS);
+
+        receiver.onManufacturerData(on);
+        assertEquals(BleRemoteLed.COMMAND_LED_OFF, receiver.onManufacturerData(off));
+        assertEquals(BroadcastCommandReceiver.NOT_ACCEPTED, receiver.onManufacturerData(on));
+        // another Central has its own sequence
+        assertEquals(BleRemoteLed.COMMAND_LED_ON, receiver.onManufacturerData(broadcastCommand.encode(SOURCE + 1, 5, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS)));
+    }
+
+    @Test
+    public void onManufacturerData_filtersByGroup() throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        BroadcastCommandReceiver receiver = new BroadcastCommandReceiver(broadcastCommand);
+        receiver.setGroup(3);
+
+        assertEquals(BroadcastCommandReceiver.NOT_ACCEPTED, receiver.onManufacturerData(broadcastCommand.encode(SOURCE, 1, BleRemoteLed.COMMAND_LED_ON, 2)));
+        assertEquals(BleRemoteLed.COMMAND_LED_ON, receiver.onManufacturerData(broadcastCommand.encode(SOURCE, 2, BleRemoteLed.COMMAND_LED_ON, 3)));
+        assertEquals(1, receiver.getOtherGroupCount());
+    }
+
+    /**
+     * Android scan modes, as scan window and scan interval in milliseconds
+     */
+    private static final int[][] SCAN_MODES = {
+            {512, 5120},  // SCAN_MODE_LOW_POWER
+            {1024, 4096}, // SCAN_MODE_BALANCED
+            {4096, 4096}, // SCAN_MODE_LOW_LATENCY
+    };
+    private static final String[] SCAN_MODE_NAMES = {"low power", "balanced", "low latency"};
+
+    @Test
+    public void broadcast_deliveryToManyRemoteLeds() throws Exception {
+        int receiverCount = 200;
+        double packetLoss = 0.3; // collisions and fading
+        long broadcastDuration = 6000; // BroadcastCommandAdvertiser.BROADCAST_DURATION_MS in the Central
+
+        double[] deliveryRatios = new double[SCAN_MODES.length];
+        long[] p90Latencies = new long[SCAN_MODES.length];
+        for (int mode = 0; mode < SCAN_MODES.length; mode++) {
+            Result result = simulate(receiverCount, SCAN_MODES[mode][0], SCAN_MODES[mode][1], packetLoss, broadcastDuration, new Random(11));
+            deliveryRatios[mode] = result.mDeliveryRatio;
+            p90Latencies[mode] = result.mP90Latency;
+            System.out.println("Broadcast, " + SCAN_MODE_NAMES[mode] + " scan: " + result);
+        }
+
+        // the default low power scan hears nearly every broadcast, low latency hears them fast
+        assertTrue(deliveryRatios[0] >= 0.99);
+        assertTrue(deliveryRatios[1] >= 0.99);
+        assertTrue(deliveryRatios[2] >= 0.99);
+        assertTrue(p90Latencies[2] < 500);
+        assertTrue(p90Latencies[0] < broadcastDuration);
+    }
+
+    private static class Result {
+        double mDeliveryRatio;
+        long mP50Latency, mP90Latency, mMaxLatency;
+        int mDuplicatesDropped;
+
+        @Override
+        public String toString() {
+            return String.format("%.1f%% delivered, p50 %dms, p90 %dms, max %dms, %d repeats dropped",
+                    mDeliveryRatio * 100, mP50Latency, mP90Latency, mMaxLatency, mDuplicatesDropped);
+        }
+    }
+
+    /**
+     * Broadcast one command to many Remote Leds.  The Central advertises every 100ms, plus
+     * the random advertising delay, on each of the three advertising channels in turn.  Each
+     * Remote Led scans one channel per scan interval, starting at a random moment
+     */
+    private static Result simulate(int receiverCount, int scanWindow, int scanInterval, double packetLoss, long broadcastDuration, Random random) throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        byte[] data = broadcastCommand.encode(SOURCE, 1, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+
+        BroadcastCommandReceiver[] receivers = new BroadcastCommandReceiver[receiverCount];
+        int[] scanPhases = new int[receiverCount];
+        long[] actuationTimes = new long[receiverCount];
+        Arrays.fill(actuationTimes, -1);
+        for (int i = 0; i < receiverCount; i++) {
+            receivers[i] = new BroadcastCommandReceiver(new BroadcastCommand(BroadcastCommand.DEMO_KEY));
+            scanPhases[i] = random.nextInt(scanInterval);
+        }
+
+        for (long eventTime = 0; eventTime < broadcastDuration; eventTime += 100 + random.nextInt(11)) {
+            for (int channel = 0; channel < 3; channel++) {
+                for (int i = 0; i < receiverCount; i++) {
+                    long scanTime = eventTime + scanPhases[i];
+                    long scanNumber = scanTime / scanInterval;
+                    boolean isListening = scanTime % scanInterval < scanWindow && scanNumber % 3 == channel;
+                    if (isListening && random.nextDouble() >= packetLoss) {
+                        if (receivers[i].onManufacturerData(data) == BleRemoteLed.COMMAND_LED_ON) {
+                            // plus the time for the scan result to reach the app
+                            actuationTimes[i] = eventTime + 2 + random.nextInt(10);
+                        }
+                    }
+                }
+            }
+        }
+
+        Result result = new Result();
+        long[] latencies = new long[receiverCount];
+        int delivered = 0;
+        for (int i = 0; i < receiverCount; i++) {
+            if (actuationTimes[i] >= 0) {
+                latencies[delivered++] = actuationTimes[i];
+            }
+            result.mDuplicatesDropped += receivers[i].getDuplicateCount();
+            assertTrue(receivers[i].getAcceptedCount() <= 1);
+        }
+        latencies = Arrays.copyOf(latencies, delivered);
+        Arrays.sort(latencies);
+        result.mDeliveryRatio = (double) delivered / receiverCount;
+        if (delivered > 0) {
+            result.mP50Latency = latencies[(delivered - 1) / 2];
+            result.mP90Latency = latencies[(int) Math.ceil(0.9 * delivered) - 1];
+            result.mMaxLatency = latencies[delivered - 1];
+        }
+        return result;
+    }
+}
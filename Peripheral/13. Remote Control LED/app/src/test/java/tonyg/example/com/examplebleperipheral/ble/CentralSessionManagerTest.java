@@ -0,0 +1,323 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * CentralSessionManager connection limits, subscriptions, and notification fan-out, and a load test with
+ * many simulated Centrals connecting, disconnecting, and being notified at once
+ */
+public class CentralSessionManagerTest {
+
+    @Test
+    public void onCentralConnected_turnsAwayCentralsOverTheLimit() throws Exception {
+        CentralSessionManager centralSessionManager = new CentralSessionManager(new GattSimulator());
+        centralSessionManager.setMaxCentrals(2);
+        assertNotNull(centralSessionManager.onCentralConnected(GattSimulator.address(1), null));
+        assertNotNull(centralSessionManager.onCentralConnected(GattSimulator.address(2), null));
+        assertTrue(centralSessionManager.isFull());
+        assertNull(centralSessionManager.onCentralConnected(GattSimulator.address(3), null));
+        assertEquals(1, centralSessionManager.getRejectedCount());
+
+        // a Central that reconnects keeps its session
+        CentralSession centralSession = centralSessionManager.getSession(GattSimulator.address(1));
+        assertSame(centralSession, centralSessionManager.onCentralConnected(GattSimulator.address(1), null));
+
+        assertSame(centralSession, centralSessionManager.onCentralDisconnected(GattSimulator.address(1)));
+        assertNull(centralSessionManager.onCentralDisconnected(GattSimulator.address(1)));
+        assertNotNull(centralSessionManager.onCentralConnected(GattSimulator.address(3), null));
+        assertEquals(2, centralSessionManager.getCentralCount());
+    }
+
+    @Test
+    public void admitCommand_limitsEachCentralSeparately() throws Exception {
+        CentralSessionManager centralSessionManager = new CentralSessionManager(new GattSimulator());
+        centralSessionManager.onCentralConnected(GattSimulator.address(1), null);
+        centralSessionManager.onCentralConnected(GattSimulator.address(2), null);
+        centralSessionManager.setCommandRate(1, 2);
+        long now = System.nanoTime();
+
+        assertTrue(centralSessionManager.admitCommand(GattSimulator.address(1), now));
+        assertTrue(centralSessionManager.admitCommand(GattSimulator.address(1), now));
+        assertFalse(centralSessionManager.admitCommand(GattSimulator.address(1), now));
+        // one Central using up its commands leaves the other's alone
+        assertTrue(centralSessionManager.admitCommand(GattSimulator.address(2), now));
+        // nor may a Central that isn't connected send any
+        assertFalse(centralSessionManager.admitCommand(GattSimulator.address(3), now));
+
+        assertEquals(3, centralSessionManager.getAdmittedCommandCount());
+        assertEquals(2, centralSessionManager.getRejectedCommandCount());
+        assertEquals(1, centralSessionManager.getSession(GattSimulator.address(1)).getCommandBucket().getRejectedCount());
+    }
+
+    @Test
+    public void admitCommands_holdsRoomInTheLaneUntilReleased() throws Exception {
+        CentralSessionManager centralSessionManager = new CentralSessionManager(new GattSimulator());
+        // set first, so the Central's bucket starts with the whole burst
+        centralSessionManager.setCommandRate(1000, CentralSessionManager.MAX_COMMAND_BURST);
+        centralSessionManager.onCentralConnected(GattSimulator.address(1), null);
+        CentralSession centralSession = centralSessionManager.getSession(GattSimulator.address(1));
+        long now = System.nanoTime();
+
+        // the commands admitted, but not yet carried out, fill the lane
+        int lane = CentralSessionManager.COMMAND_LANE_CAPACITY;
+        assertEquals(CentralSessionManager.COMMAND_ADMITTED, centralSessionManager.admitCommands(GattSimulator.address(1), lane - 2, now));
+        assertEquals(CentralSessionManager.COMMAND_LANE_FULL, centralSessionManager.admitCommands(GattSimulator.address(1), 3, now));
+        assertEquals(lane - 2, centralSession.getPendingCommandCount());
+        // all of an execute's values are admitted, or none
+        assertEquals(CentralSessionManager.COMMAND_ADMITTED, centralSessionManager.admitCommands(GattSimulator.address(1), 2, now));
+        assertFalse(centralSessionManager.admitCommand(GattSimulator.address(1), now));
+        assertEquals(4, centralSessionManager.getLaneFullCommandCount());
+
+        // once one is carried out there's room for another, when a token has come back too
+        centralSessionManager.releaseCommands(GattSimulator.address(1), 1);
+        now += 1000000;
+        assertEquals(CentralSessionManager.COMMAND_ADMITTED, centralSessionManager.admitCommands(GattSimulator.address(1), 1, now));
+        assertEquals(lane, centralSession.getPendingCommandCount());
+        // a lane with room, but a Central over its rate, holds nothing
+        centralSessionManager.releaseCommands(GattSimulator.address(1), lane);
+        centralSessionManager.setCommandRate(1, 2);
+        assertEquals(CentralSessionManager.COMMAND_RATE_EXCEEDED, centralSessionManager.admitCommands(GattSimulator.address(1), 3, now));
+        assertEquals(0, centralSession.getPendingCommandCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setCommandRate_rejectsBurstLargerThanLane() throws Exception {
+        new CentralSessionManager(new GattSimulator()).setCommandRate(10, CentralSessionManager.MAX_COMMAND_BURST + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setMaxCentrals_rejectsZero() throws Exception {
+        new CentralSessionManager(new GattSimulator()).setMaxCentrals(0);
+    }
+
+    @Test
+    public void notifyAllCentrals_reachesEveryConnectedCentral() throws Exception {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        for (int i = 0; i < 3; i++) {
+            gattSimulator.addCentral(GattSimulator.address(i));
+            centralSessionManager.onCentralConnected(GattSimulator.address(i), null);
+            centralSessionManager.onSubscriptionChanged(GattSimulator.address(i), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_NOTIFY);
+        }
+        gattSimulator.getCentral(GattSimulator.address(2)).setLinkUp(false);
+
+        byte[] response = new byte[] {BleRemoteLed.LED_STATE_ON, BleRemoteLed.RESPONSE_TYPE_CONFIRMATION};
+        // queued for all three; the stack refuses the one whose link is down
+        assertEquals(3, centralSessionManager.notifyAllCentrals(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, response));
+        assertArrayEquals(response, gattSimulator.getCentral(GattSimulator.address(0)).getNotifications().peek());
+        assertArrayEquals(response, gattSimulator.getCentral(GattSimulator.address(1)).getNotifications().peek());
+        assertTrue(gattSimulator.getCentral(GattSimulator.address(2)).getNotifications().isEmpty());
+        assertEquals(2, centralSessionManager.getNotificationCount());
+        assertEquals(1, centralSessionManager.getFailedNotificationCount());
+
+        assertFalse(centralSessionManager.notifyCentral(GattSimulator.address(9), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, response));
+    }
+
+    @Test
+    public void retryQueued_sendsWhatWaitedWhenOnNotificationSentIsLost() throws Exception {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        String address = GattSimulator.address(1);
+        gattSimulator.addCentral(address);
+        centralSessionManager.onCentralConnected(address, null);
+        centralSessionManager.onSubscriptionChanged(address, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_NOTIFY);
+
+        assertTrue(centralSessionManager.notifyCentral(address, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {1}));
+        assertTrue(centralSessionManager.notifyCentral(address, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {2}));
+        // the first is sent, but the stack never says so, and nothing else is sent afterwards
+        assertTrue(gattSimulator.dropNotificationSent(address));
+        assertEquals(1, gattSimulator.getCentral(address).getNotifications().size());
+
+        long start = System.currentTimeMillis();
+        assertEquals(1, gattSimulator.runCreditRetries(centralSessionManager));
+        assertTrue(System.currentTimeMillis() - start <= NotificationQueue.CREDIT_TIMEOUT_MS + 500);
+        gattSimulator.getCentral(address).getNotifications().poll();
+        assertArrayEquals(new byte[] {2}, gattSimulator.getCentral(address).getNotifications().poll());
+        assertEquals(1, centralSessionManager.getSession(address).getNotificationQueue().getCreditTimeoutCount());
+        // the queue is empty, so no more retries are asked for
+        assertEquals(0, gattSimulator.runCreditRetries(centralSessionManager));
+    }
+
+    @Test
+    public void parseCccdValue_readsDescriptorValuesByContent() throws Exception {
+        // a copy, as a Central's write arrives, must read the same as the constant
+        assertEquals(CentralSession.SUBSCRIPTION_NOTIFY, CentralSession.parseCccdValue(CentralSession.ENABLE_NOTIFICATION_VALUE.clone()));
+        assertEquals(CentralSession.SUBSCRIPTION_INDICATE, CentralSession.parseCccdValue(CentralSession.ENABLE_INDICATION_VALUE.clone()));
+        assertEquals(CentralSession.SUBSCRIPTION_NONE, CentralSession.parseCccdValue(CentralSession.DISABLE_NOTIFICATION_VALUE.clone()));
+        assertEquals(CentralSession.SUBSCRIPTION_NOTIFY | CentralSession.SUBSCRIPTION_INDICATE, CentralSession.parseCccdValue(new byte[] {3, 0}));
+        assertEquals(CentralSession.INVALID_SUBSCRIPTION, CentralSession.parseCccdValue(new byte[] {1}));
+        assertEquals(CentralSession.INVALID_SUBSCRIPTION, CentralSession.parseCccdValue(new byte[] {4, 0}));
+        assertEquals(CentralSession.INVALID_SUBSCRIPTION, CentralSession.parseCccdValue(null));
+    }
+
+    @Test
+    public void onSubscriptionChanged_onlySubscribersAreNotified() throws Exception {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        for (int i = 0; i < 3; i++) {
+            gattSimulator.addCentral(GattSimulator.address(i));
+            centralSessionManager.onCentralConnected(GattSimulator.address(i), null);
+        }
+        assertEquals(CentralSession.SUBSCRIPTION_NONE, centralSessionManager.onSubscriptionChanged(GattSimulator.address(0), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_NOTIFY));
+        centralSessionManager.onSubscriptionChanged(GattSimulator.address(1), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_INDICATE);
+        centralSessionManager.onSubscriptionChanged(GattSimulator.address(2), BlePeripheral.BATTERY_LEVEL_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_NOTIFY);
+        assertEquals(CentralSession.INVALID_SUBSCRIPTION, centralSessionManager.onSubscriptionChanged(GattSimulator.address(9), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_NOTIFY));
+        assertEquals(2, centralSessionManager.getSubscriberCount(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID));
+        assertEquals(1, centralSessionManager.getSubscriberCount(BlePeripheral.BATTERY_LEVEL_CHARACTERISTIC_UUID));
+        assertArrayEquals(CentralSession.ENABLE_INDICATION_VALUE, centralSessionManager.getSession(GattSimulator.address(1)).getCccdValue(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID));
+
+        byte[] response = new byte[] {BleRemoteLed.LED_STATE_ON, BleRemoteLed.RESPONSE_TYPE_CONFIRMATION};
+        assertEquals(2, centralSessionManager.notifyAllCentrals(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, response));
+        assertTrue(gattSimulator.getCentral(GattSimulator.address(2)).getNotifications().isEmpty());
+        assertFalse(centralSessionManager.notifyCentral(GattSimulator.address(2), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, response));
+        assertEquals(2, centralSessionManager.getUnsubscribedCount());
+
+        // unsubscribing stops notifications; subscriptions end with the connection
+        assertEquals(CentralSession.SUBSCRIPTION_NOTIFY, centralSessionManager.onSubscriptionChanged(GattSimulator.address(0), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_NONE));
+        centralSessionManager.onCentralDisconnected(GattSimulator.address(1));
+        centralSessionManager.onCentralConnected(GattSimulator.address(1), null);
+        assertEquals(0, centralSessionManager.getSubscriberCount(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID));
+        assertEquals(0, centralSessionManager.notifyAllCentrals(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, response));
+    }
+
+    @Test
+    public void loadTest_manyCentralsNeverSeeEachOthersPayloads() throws Exception {
+        final int maxCentrals = 6;
+        final int centralCount = 128;
+        final int threadCount = 16;
+        final int centralsPerThread = centralCount / threadCount; // more than the limit, so some are always turned away
+        final int cyclesPerCentral = 100;
+        final int repliesPerCycle = 5;
+
+        final GattSimulator gattSimulator = new GattSimulator();
+        final CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        centralSessionManager.setMaxCentrals(maxCentrals);
+        for (int i = 0; i < centralCount; i++) {
+            gattSimulator.addCentral(GattSimulator.address(i));
+        }
+
+        final AtomicInteger connectedCount = new AtomicInteger();
+        final AtomicInteger mostConnected = new AtomicInteger();
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        // state changes fanned out to everyone, as BleRemoteLed does
+        Thread broadcaster = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int sequence = 0;
+                while (isRunning.get()) {
+                    centralSessionManager.notifyAllCentrals(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, payload(0xFFFF, sequence++));
+                }
+            }
+        });
+
+        // each thread plays a group of Centrals that connect, ask for replies meant only for them, and leave
+        List<Thread> centrals = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final int firstCentral = t * centralsPerThread;
+            centrals.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        List<Integer> held = new ArrayList<Integer>();
+                        for (int cycle = 0; cycle < cyclesPerCentral; cycle++) {
+                            for (int c = firstCentral; c < firstCentral + centralsPerThread; c++) {
+                                if (centralSessionManager.onCentralConnected(GattSimulator.address(c), null) == null) {
+                                    continue;
+                                }
+                                centralSessionManager.onSubscriptionChanged(GattSimulator.address(c), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_INDICATE);
+                                held.add(c);
+                                int connected = connectedCount.incrementAndGet();
+                                int most = mostConnected.get();
+                                while (connected > most && !mostConnected.compareAndSet(most, connected)) {
+                                    most = mostConnected.get();
+                                }
+                            }
+                            for (int r = 0; r < repliesPerCycle; r++) {
+                                for (int c : held) {
+                                    centralSessionManager.notifyCentral(GattSimulator.address(c), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, payload(c, cycle * repliesPerCycle + r));
+                                }
+                            }
+                            for (int c : held) {
+                                connectedCount.decrementAndGet();
+                                centralSessionManager.onCentralDisconnected(GattSimulator.address(c));
+                            }
+                            held.clear();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        gattSimulator.startRadio(centralSessionManager);
+        broadcaster.start();
+        for (Thread thread : centrals) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : centrals) {
+            thread.join();
+        }
+        isRunning.set(false);
+        broadcaster.join();
+        gattSimulator.stopRadio();
+        long elapsed = System.nanoTime() - startTime;
+
+        assertNull(failure.get());
+        assertTrue("at most " + maxCentrals + " connected, saw " + mostConnected.get(), mostConnected.get() <= maxCentrals);
+        assertEquals(0, centralSessionManager.getCentralCount());
+
+        long received = 0;
+        for (int c = 0; c < centralCount; c++) {
+            int lastBroadcast = -1;
+            int lastReply = -1;
+            for (byte[] notification : gattSimulator.getCentral(GattSimulator.address(c)).getNotifications()) {
+                ByteBuffer buffer = ByteBuffer.wrap(notification);
+                int sender = buffer.getInt();
+                int sequence = buffer.getInt();
+                assertEquals("payload damaged", ~sequence, buffer.getInt());
+                if (sender == 0xFFFF) {
+                    // a Central that reconnects while a state change is fanned out may be sent it again
+                    assertTrue(sequence >= lastBroadcast);
+                    lastBroadcast = sequence;
+                } else {
+                    assertEquals("reply sent to the wrong Central", c, sender);
+                    assertTrue(sequence > lastReply);
+                    lastReply = sequence;
+                }
+                received++;
+            }
+        }
+        assertEquals(received, centralSessionManager.getNotificationCount());
+        assertEquals(0, centralSessionManager.getFailedNotificationCount());
+        assertTrue(centralSessionManager.getRejectedCount() > 0);
+        System.out.println("CentralSessionManager: " + received + " notifications to " + centralCount + " Centrals in "
+                + elapsed / 1000000 + "ms (" + (received * 1000000000L / elapsed) + "/s), "
+                + centralSessionManager.getRejectedCount() + " connections turned away, "
+                + centralSessionManager.getCoalescedCount() + " coalesced, " + centralSessionManager.getDroppedCount() + " dropped");
+    }
+
+    /**
+     * [sender][sequence][~sequence], so a mixed up or damaged payload is easy to spot
+     */
+    private static byte[] payload(int sender, int sequence) {
+        return ByteBuffer.allocate(12).putInt(sender).putInt(sequence).putInt(~sequence).array();
+    }
+}
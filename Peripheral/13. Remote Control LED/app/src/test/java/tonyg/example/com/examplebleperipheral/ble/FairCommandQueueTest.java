@@ -0,0 +1,189 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * FairCommandQueue turns, and how well Centrals are served while one floods the Peripheral
+ */
+public class FairCommandQueueTest {
+    private static final String FLOODER = GattSimulator.address(0);
+    private static final String CENTRAL_1 = GattSimulator.address(1);
+    private static final String CENTRAL_2 = GattSimulator.address(2);
+
+    /** Abuse simulation, in milliseconds **/
+    private static final int SIMULATED_MS = 5000;
+    private static final int FLOOD_INTERVAL_MS = 1; // 1000 commands per second
+    private static final int WELL_BEHAVED_CENTRALS = 3;
+    private static final int WELL_BEHAVED_INTERVAL_MS = 100;
+    private static final int COMMAND_MS = 2; // about what switching the torch takes
+    private static final int UNLIMITED_QUEUE_CAPACITY = GattEventRing.DEFAULT_CAPACITY * 3 / 4; // what the ring takes before refusing writes
+
+    @Test
+    public void poll_takesLanesInTurn() throws Exception {
+        FairCommandQueue fairCommandQueue = new FairCommandQueue(8);
+        for (int i = 0; i < 4; i++) {
+            offer(fairCommandQueue, FLOODER, i);
+        }
+        offer(fairCommandQueue, CENTRAL_1, 100);
+        offer(fairCommandQueue, CENTRAL_2, 200);
+        offer(fairCommandQueue, CENTRAL_1, 101);
+
+        List<Long> order = new ArrayList<Long>();
+        FairCommandQueue.PendingCommand pendingCommand;
+        while ((pendingCommand = fairCommandQueue.poll()) != null) {
+            order.add(pendingCommand.getReceivedTime());
+        }
+        assertEquals(toList(0, 100, 200, 1, 101, 2, 3), order);
+        assertTrue(fairCommandQueue.isEmpty());
+    }
+
+    @Test
+    public void offer_dropsWhenLaneIsFull() throws Exception {
+        FairCommandQueue fairCommandQueue = new FairCommandQueue(2);
+        assertNotNull(fairCommandQueue.offer(FLOODER));
+        assertNotNull(fairCommandQueue.offer(FLOODER));
+        assertNull(fairCommandQueue.offer(FLOODER));
+        // other lanes are unaffected
+        assertNotNull(fairCommandQueue.offer(CENTRAL_1));
+        assertEquals(1, fairCommandQueue.getDroppedCount());
+        assertEquals(3, fairCommandQueue.size());
+    }
+
+    @Test
+    public void removeLane_dropsWaitingCommands() throws Exception {
+        FairCommandQueue fairCommandQueue = new FairCommandQueue(4);
+        offer(fairCommandQueue, FLOODER, 0);
+        offer(fairCommandQueue, FLOODER, 1);
+        offer(fairCommandQueue, CENTRAL_1, 100);
+
+        assertEquals(2, fairCommandQueue.removeLane(FLOODER));
+        assertEquals(100, fairCommandQueue.poll().getReceivedTime());
+        assertNull(fairCommandQueue.poll());
+        assertEquals(2, fairCommandQueue.getDroppedCount());
+        assertEquals(0, fairCommandQueue.removeLane(FLOODER));
+    }
+
+    @Test
+    public void poll_wellBehavedCentralsStayResponsiveUnderFlood() throws Exception {
+        Result unlimited = simulate(false);
+        Result limited = simulate(true);
+        System.out.println("Flood, one queue: " + unlimited);
+        System.out.println("Flood, token buckets and turns: " + limited);
+
+        // before: the flood fills the queue, so everyone else waits behind it or is refused
+        assertTrue(unlimited.mP99LatencyMs > 100 || unlimited.mRefusedCount > 0);
+        // after: the others wait for at most a command or two from each Central
+        assertEquals(0, limited.mRefusedCount);
+        assertTrue("p99 " + limited.mP99LatencyMs + "ms", limited.mP99LatencyMs <= (WELL_BEHAVED_CENTRALS + 1) * COMMAND_MS * 2);
+        // the flooder still gets its fair share
+        assertTrue(limited.mFlooderServedCount >= CentralSessionManager.DEFAULT_COMMANDS_PER_SECOND * SIMULATED_MS / 1000);
+    }
+
+    /**
+     * Play one flooding Central and a few well-behaved ones against one command thread,
+     * a millisecond at a time
+     *
+     * @param isLimited <b>true</b> for a token bucket per Central and a lane per Central,
+     *     <b>false</b> for one first-come first-served queue
+     */
+    private static Result simulate(boolean isLimited) {
+        String[] addresses = new String[WELL_BEHAVED_CENTRALS + 1];
+        TokenBucket[] tokenBuckets = new TokenBucket[addresses.length];
+        for (int c = 0; c < addresses.length; c++) {
+            addresses[c] = GattSimulator.address(c);
+            tokenBuckets[c] = new TokenBucket(CentralSessionManager.DEFAULT_COMMANDS_PER_SECOND, CentralSessionManager.DEFAULT_COMMAND_BURST, 0);
+        }
+        FairCommandQueue fairCommandQueue = new FairCommandQueue();
+        ArrayDeque<long[]> fifo = new ArrayDeque<long[]>(); // [central, arrival time]
+
+        Result result = new Result();
+        List<Long> latencies = new ArrayList<Long>();
+        int busyUntil = 0;
+        for (int now = 0; now < SIMULATED_MS; now++) {
+            for (int c = 0; c < addresses.length; c++) {
+                boolean isWriting = c == 0 ? now % FLOOD_INTERVAL_MS == 0 : now % WELL_BEHAVED_INTERVAL_MS == c * 7;
+                if (!isWriting) {
+                    continue;
+                }
+                if (isLimited) {
+                    if (!tokenBuckets[c].tryAcquire(now * 1000000L)) {
+                        if (c != 0) {
+                            result.mRefusedCount++;
+                        }
+                        continue;
+                    }
+                    FairCommandQueue.PendingCommand pendingCommand = fairCommandQueue.offer(addresses[c]);
+                    pendingCommand.set(null, null, new byte[] {(byte) c}, now);
+                } else if (fifo.size() < UNLIMITED_QUEUE_CAPACITY) {
+                    fifo.addLast(new long[] {c, now});
+                } else if (c != 0) {
+                    result.mRefusedCount++;
+                }
+            }
+
+            if (now >= busyUntil) {
+                int central;
+                long arrival;
+                if (isLimited) {
+                    FairCommandQueue.PendingCommand pendingCommand = fairCommandQueue.poll();
+                    if (pendingCommand == null) {
+                        continue;
+                    }
+                    central = pendingCommand.getValue()[0];
+                    arrival = pendingCommand.getReceivedTime();
+                } else {
+                    long[] command = fifo.pollFirst();
+                    if (command == null) {
+                        continue;
+                    }
+                    central = (int) command[0];
+                    arrival = command[1];
+                }
+                busyUntil = now + COMMAND_MS;
+                if (central == 0) {
+                    result.mFlooderServedCount++;
+                } else {
+                    latencies.add(busyUntil - arrival);
+                }
+            }
+        }
+        Collections.sort(latencies);
+        result.mServedCount = latencies.size();
+        result.mP50LatencyMs = latencies.isEmpty() ? 0 : latencies.get(latencies.size() / 2);
+        result.mP99LatencyMs = latencies.isEmpty() ? 0 : latencies.get(Math.min(latencies.size() - 1, latencies.size() * 99 / 100));
+        return result;
+    }
+
+    private static class Result {
+        private int mServedCount;
+        private int mRefusedCount;
+        private int mFlooderServedCount;
+        private long mP50LatencyMs;
+        private long mP99LatencyMs;
+
+        @Override
+        public String toString() {
+            return "well-behaved Centrals served " + mServedCount + ", refused " + mRefusedCount
+                    + ", p50 " + mP50LatencyMs + "ms, p99 " + mP99LatencyMs + "ms; flooder served " + mFlooderServedCount;
+        }
+    }
+
+    private static void offer(FairCommandQueue fairCommandQueue, String address, long receivedTime) {
+        fairCommandQueue.offer(address).set(null, null, null, receivedTime);
+    }
+
+    private static List<Long> toList(long... values) {
+        List<Long> list = new ArrayList<Long>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,342 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * GattEventRing ordering, back pressure and allocation, and write acknowledgement latency
+ * with the command carried out before or after the response
+ */
+public class GattEventRingTest {
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 20000;
+    private static final int WRITES = 200;
+    private static final long COMMAND_MS = 2; // about what switching the torch takes
+    private static final long WRITE_INTERVAL_MS = 3;
+
+    @Test
+    public void publish_appliesEachProducersEventsInOrder() throws Exception {
+        final int[] lastEvent = new int[PRODUCERS];
+        Arrays.fill(lastEvent, -1);
+        final AtomicInteger outOfOrderCount = new AtomicInteger();
+        final GattEventRing gattEventRing = new GattEventRing(64, new GattEventRing.EventHandler() {
+            @Override
+            public void onEvent(GattEvent event) {
+                // only the consumer thread touches lastEvent
+                int producer = event.getStatus();
+                if (event.getNewState() != lastEvent[producer] + 1) {
+                    outOfOrderCount.incrementAndGet();
+                }
+                lastEvent[producer] = event.getNewState();
+            }
+        });
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                        long sequence = gattEventRing.claim();
+                        gattEventRing.get(sequence).setConnectionStateChange(null, producer, i);
+                        gattEventRing.publish(sequence);
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        awaitConsumed(gattEventRing, PRODUCERS * EVENTS_PER_PRODUCER);
+
+        assertEquals(0, outOfOrderCount.get());
+        for (int p = 0; p < PRODUCERS; p++) {
+            assertEquals(EVENTS_PER_PRODUCER - 1, lastEvent[p]);
+        }
+        assertTrue(gattEventRing.getMaxOccupancy() <= gattEventRing.getCapacity());
+        assertEquals(0, gattEventRing.getOccupancy());
+        gattEventRing.shutdown();
+    }
+
+    @Test
+    public void tryClaim_leavesHeadroomForClaim() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        GattEventRing gattEventRing = new GattEventRing(8, new GattEventRing.EventHandler() {
+            @Override
+            public void onEvent(GattEvent event) {
+                started.countDown();
+                awaitQuietly(release);
+            }
+        });
+        // the consumer holds the first event, so its slot stays taken
+        long sequence = gattEventRing.tryClaim(2);
+        gattEventRing.get(sequence).setNotificationSent(null, 0);
+        gattEventRing.publish(sequence);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 1; i < 6; i++) {
+            sequence = gattEventRing.tryClaim(2);
+            assertEquals(i, sequence);
+            gattEventRing.get(sequence).setNotificationSent(null, 0);
+            gattEventRing.publish(sequence);
+        }
+        assertEquals(GattEventRing.NO_SEQUENCE, gattEventRing.tryClaim(2));
+        assertEquals(1, gattEventRing.getRejectedCount());
+
+        // the headroom is still there for events that mustn't be lost
+        for (int i = 6; i < 8; i++) {
+            sequence = gattEventRing.claim();
+            assertEquals(i, sequence);
+            gattEventRing.get(sequence).setNotificationSent(null, 0);
+            gattEventRing.publish(sequence);
+        }
+        assertEquals(8, gattEventRing.getOccupancy());
+        assertEquals(8, gattEventRing.getMaxOccupancy());
+        assertEquals(GattEventRing.NO_SEQUENCE, gattEventRing.tryClaim(0));
+        assertEquals(2, gattEventRing.getRejectedCount());
+
+        release.countDown();
+        awaitConsumed(gattEventRing, 8);
+        assertEquals(0, gattEventRing.getOccupancy());
+        gattEventRing.shutdown();
+    }
+
+    @Test
+    public void onEventFailed_laterEventsStillApplied() throws Exception {
+        final AtomicInteger appliedCount = new AtomicInteger();
+        final AtomicInteger failedCount = new AtomicInteger();
+        GattEventRing gattEventRing = new GattEventRing(8, new GattEventRing.EventHandler() {
+            @Override
+            public void onEvent(GattEvent event) {
+                if (event.getStatus() == 1) {
+                    throw new IllegalStateException("bad event");
+                }
+                appliedCount.incrementAndGet();
+            }
+
+            @Override
+            public void onEventFailed(GattEvent event, RuntimeException e) {
+                failedCount.incrementAndGet();
+            }
+        });
+        for (int status = 0; status < 3; status++) {
+            long sequence = gattEventRing.claim();
+            gattEventRing.get(sequence).setNotificationSent(null, status);
+            gattEventRing.publish(sequence);
+        }
+        awaitConsumed(gattEventRing, 3);
+        assertEquals(2, appliedCount.get());
+        assertEquals(1, failedCount.get());
+        assertEquals(1, gattEventRing.getFailedCount());
+        gattEventRing.shutdown();
+    }
+
+    @Test
+    public void onRingDrained_deferredWorkInterleavesWithEvents() throws Exception {
+        final AtomicInteger deferredWork = new AtomicInteger(3);
+        final StringBuffer order = new StringBuffer();
+        final CountDownLatch firstWorkDone = new CountDownLatch(1);
+        final CountDownLatch eventPublished = new CountDownLatch(1);
+        GattEventRing gattEventRing = new GattEventRing(8, new GattEventRing.EventHandler() {
+            @Override
+            public void onEvent(GattEvent event) {
+                order.append('e');
+            }
+
+            @Override
+            public boolean onRingDrained() {
+                if (deferredWork.get() == 0) {
+                    return false;
+                }
+                order.append('w');
+                if (deferredWork.decrementAndGet() == 2) {
+                    // an event arrives while there is still deferred work
+                    firstWorkDone.countDown();
+                    awaitQuietly(eventPublished);
+                }
+                return deferredWork.get() > 0;
+            }
+        });
+        long sequence = gattEventRing.claim();
+        gattEventRing.get(sequence).setNotificationSent(null, 0);
+        gattEventRing.publish(sequence);
+        assertTrue(firstWorkDone.await(5, TimeUnit.SECONDS));
+        sequence = gattEventRing.claim();
+        gattEventRing.get(sequence).setNotificationSent(null, 0);
+        gattEventRing.publish(sequence);
+        eventPublished.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (deferredWork.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // the second event goes ahead of the rest of the deferred work
+        assertEquals("ewew", order.toString().substring(0, 4));
+        assertEquals(0, deferredWork.get());
+        gattEventRing.shutdown();
+    }
+
+    @Test
+    public void publish_restartsConsumerAfterIdle() throws Exception {
+        final AtomicInteger appliedCount = new AtomicInteger();
+        GattEventRing gattEventRing = new GattEventRing(8, new GattEventRing.EventHandler() {
+            @Override
+            public void onEvent(GattEvent event) {
+                appliedCount.incrementAndGet();
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(5));
+        for (int i = 1; i <= 5; i++) {
+            long sequence = gattEventRing.claim();
+            gattEventRing.get(sequence).setNotificationSent(null, 0);
+            gattEventRing.publish(sequence);
+            awaitConsumed(gattEventRing, i);
+            // long enough for the consumer thread to end
+            Thread.sleep(20);
+        }
+        assertEquals(5, appliedCount.get());
+        gattEventRing.shutdown();
+    }
+
+    @Test
+    public void publish_allocatesNothing() throws Exception {
+        GattEventRing gattEventRing = new GattEventRing(GattEventRing.DEFAULT_CAPACITY, new GattEventRing.EventHandler() {
+            @Override
+            public void onEvent(GattEvent event) {
+            }
+        });
+        byte[] value = new byte[] {BleRemoteLed.COMMAND_LED_ON};
+        // warm up, and start the consumer
+        int warmUpPublished = publishWrites(gattEventRing, value, 20000);
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = getAllocatedBytes(threadMXBean);
+        long start = System.nanoTime();
+        int published = publishWrites(gattEventRing, value, 100000);
+        long elapsed = System.nanoTime() - start;
+        long allocated = getAllocatedBytes(threadMXBean) - allocatedBefore;
+        awaitConsumed(gattEventRing, warmUpPublished + published);
+
+        System.out.println("GattEventRing: " + elapsed / 100000 + " ns/event, " + published + " published, " + gattEventRing.getRejectedCount() + " refused, most waiting " + gattEventRing.getMaxOccupancy() + ", " + allocated + " bytes allocated");
+        if (allocatedBefore >= 0) {
+            // allow for the measurement itself, but nothing per event
+            assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+        }
+        gattEventRing.shutdown();
+    }
+
+    @Test
+    public void writeAck_respondFirstIsIndependentOfCommandTime() throws Exception {
+        final GattSimulator gattSimulator = new GattSimulator();
+        gattSimulator.addCentral(GattSimulator.address(1));
+        final CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        centralSessionManager.onCentralConnected(GattSimulator.address(1), null);
+        centralSessionManager.onSubscriptionChanged(GattSimulator.address(1), BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_NOTIFY);
+
+        final GattEventRing.EventHandler command = new GattEventRing.EventHandler() {
+            @Override
+            public void onEvent(GattEvent event) {
+                sleepQuietly(COMMAND_MS);
+                centralSessionManager.notifyAllCentrals(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {BleRemoteLed.LED_STATE_ON});
+                gattSimulator.acknowledge(centralSessionManager, GattSimulator.address(1));
+            }
+        };
+        byte[] value = new byte[] {BleRemoteLed.COMMAND_LED_ON};
+
+        // before: the command runs on the Binder thread, then the write is acknowledged
+        GattEvent inlineEvent = new GattEvent();
+        long[] inlineAckNanos = new long[WRITES];
+        for (int i = 0; i < WRITES; i++) {
+            long arrived = System.nanoTime();
+            inlineEvent.setCharacteristicWrite(null, i, null, true, 0, value, 0);
+            command.onEvent(inlineEvent);
+            inlineAckNanos[i] = System.nanoTime() - arrived; // sendResponse()
+        }
+
+        // after: the write is captured in the ring, then acknowledged
+        GattEventRing gattEventRing = new GattEventRing(GattEventRing.DEFAULT_CAPACITY, command);
+        long[] respondFirstAckNanos = new long[WRITES];
+        for (int i = 0; i < WRITES; i++) {
+            long arrived = System.nanoTime();
+            long sequence = gattEventRing.tryClaim(GattEventRing.DEFAULT_CAPACITY / 4);
+            assertNotEquals(GattEventRing.NO_SEQUENCE, sequence);
+            gattEventRing.get(sequence).setCharacteristicWrite(null, i, null, true, 0, value, 0);
+            gattEventRing.publish(sequence);
+            respondFirstAckNanos[i] = System.nanoTime() - arrived; // sendResponse()
+            Thread.sleep(WRITE_INTERVAL_MS);
+        }
+        awaitConsumed(gattEventRing, WRITES);
+        gattEventRing.shutdown();
+
+        Arrays.sort(inlineAckNanos);
+        Arrays.sort(respondFirstAckNanos);
+        System.out.println("Write ack latency, command first: p50 " + percentile(inlineAckNanos, 50) / 1000 + " us, p99 " + percentile(inlineAckNanos, 99) / 1000 + " us");
+        System.out.println("Write ack latency, respond first: p50 " + percentile(respondFirstAckNanos, 50) / 1000 + " us, p99 " + percentile(respondFirstAckNanos, 99) / 1000 + " us");
+        assertTrue(percentile(inlineAckNanos, 50) >= TimeUnit.MILLISECONDS.toNanos(COMMAND_MS));
+        assertTrue(percentile(respondFirstAckNanos, 50) < TimeUnit.MILLISECONDS.toNanos(COMMAND_MS) / 10);
+        assertEquals(2 * WRITES, gattSimulator.getCentral(GattSimulator.address(1)).getNotifications().size());
+    }
+
+    private static int publishWrites(GattEventRing gattEventRing, byte[] value, int count) {
+        int published = 0;
+        for (int i = 0; i < count; i++) {
+            long sequence = gattEventRing.tryClaim(GattEventRing.DEFAULT_CAPACITY / 4);
+            if (sequence == GattEventRing.NO_SEQUENCE) {
+                Thread.yield();
+                continue;
+            }
+            gattEventRing.get(sequence).setCharacteristicWrite(null, i, null, true, 0, value, i);
+            gattEventRing.publish(sequence);
+            published++;
+        }
+        return published;
+    }
+
+    private static void awaitConsumed(GattEventRing gattEventRing, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (gattEventRing.getConsumedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, gattEventRing.getConsumedCount());
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean threadMXBean) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
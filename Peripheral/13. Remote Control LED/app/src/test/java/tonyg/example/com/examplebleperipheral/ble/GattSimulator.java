@@ -0,0 +1,349 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Simulated Centrals, for exercising the Peripheral's GATT logic on the JVM.
+ *
+ * Every notification the stack takes is recorded as it arrived at its SimulatedCentral.
+ * Like Android's stack, the simulated stack holds a few notifications per Central and
+ * refuses more until they're sent; acknowledge() sends one and reports it through
+ * onNotificationSent().  Or run the radio thread to send them as fast as they come.
+ *
+ * For timing, runConnectionEvent() plays one connection event: a few packets go out,
+ * each notification is reported sent right away, and each indication is reported sent
+ * when the Central's confirmation arrives, in the next event.  Only one indication can be
+ * waiting for confirmation at a time, so the next one goes out the event after that.
+ *
+ * Ack windows aren't timed: closeAckWindows() closes every window that opened, as the
+ * Peripheral's timer would once the window is over.  Credit retries are timed:
+ * runCreditRetries() waits until each one is due, then retries.
+ *
+ * longRead() and longWrite() play the ATT procedures a Central's stack uses for values
+ * longer than one packet.
+ */
+public class GattSimulator extends CentralSessionManager.NotificationSender {
+    public static final int DEFAULT_MTU = 23;
+    private static final int READ_RESPONSE_HEADER_LENGTH = 1; // opcode
+    private static final int PREPARE_WRITE_HEADER_LENGTH = 5; // opcode, handle, offset
+
+    public static class SimulatedCentral {
+        private final String mAddress;
+        private final ConcurrentLinkedQueue<byte[]> mNotifications = new ConcurrentLinkedQueue<byte[]>();
+        private final ConcurrentLinkedQueue<Boolean> mStackQueue = new ConcurrentLinkedQueue<Boolean>(); // isIndication, per packet
+        private final List<Integer> mDeliveryEvents = new ArrayList<Integer>();
+        private boolean mIsAwaitingConfirmation;
+        private volatile boolean mIsLinkUp = true;
+
+        SimulatedCentral(String address) {
+            mAddress = address;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Get every notification received, oldest first
+         */
+        public ConcurrentLinkedQueue<byte[]> getNotifications() {
+            return mNotifications;
+        }
+
+        /**
+         * Get how many notifications the stack holds for this Central
+         */
+        public int getInFlightCount() {
+            return mStackQueue.size();
+        }
+
+        /**
+         * Get the connection event each notification arrived in, in order, when the link
+         * is played with runConnectionEvent()
+         */
+        public List<Integer> getDeliveryEvents() {
+            return mDeliveryEvents;
+        }
+
+        /**
+         * Make notifications to this Central fail, as a lost link would
+         */
+        public void setLinkUp(boolean isLinkUp) {
+            mIsLinkUp = isLinkUp;
+        }
+    }
+
+    private final ConcurrentHashMap<String, SimulatedCentral> mCentrals = new ConcurrentHashMap<String, SimulatedCentral>();
+    private volatile int mStackBufferSize = Integer.MAX_VALUE;
+    private final AtomicLong mRefusedCount = new AtomicLong();
+    private Thread mRadioThread;
+    private int mConnectionEvent;
+    private volatile boolean mIsRadioOn;
+    private final ConcurrentLinkedQueue<OpenAckWindow> mOpenAckWindows = new ConcurrentLinkedQueue<OpenAckWindow>();
+    private final ConcurrentLinkedQueue<CreditRetry> mCreditRetries = new ConcurrentLinkedQueue<CreditRetry>();
+
+    private static class OpenAckWindow {
+        private final String mAddress;
+        private final UUID mCharacteristicUuid;
+
+        OpenAckWindow(String address, UUID characteristicUuid) {
+            mAddress = address;
+            mCharacteristicUuid = characteristicUuid;
+        }
+    }
+
+    private static class CreditRetry {
+        private final String mAddress;
+        private final long mDueTime;
+
+        CreditRetry(String address, long dueTime) {
+            mAddress = address;
+            mDueTime = dueTime;
+        }
+    }
+
+    /**
+     * Build a MAC address for the n-th simulated Central
+     */
+    public static String address(int n) {
+        return String.format("02:00:00:00:%02X:%02X", (n >> 8) & 0xFF, n & 0xFF);
+    }
+
+    /**
+     * Add a Central to the simulation
+     */
+    public SimulatedCentral addCentral(String address) {
+        SimulatedCentral simulatedCentral = new SimulatedCentral(address);
+        mCentrals.put(address, simulatedCentral);
+        return simulatedCentral;
+    }
+
+    public SimulatedCentral getCentral(String address) {
+        return mCentrals.get(address);
+    }
+
+    /**
+     * Set how many notifications the stack holds per Central before refusing more
+     */
+    public void setStackBufferSize(int stackBufferSize) {
+        mStackBufferSize = stackBufferSize;
+    }
+
+    /**
+     * Get how many notifications the stack refused because it was full
+     */
+    public long getRefusedCount() {
+        return mRefusedCount.get();
+    }
+
+    @Override
+    public boolean sendNotification(CentralSession centralSession, UUID characteristicUuid, byte[] value, boolean confirm) {
+        SimulatedCentral simulatedCentral = mCentrals.get(centralSession.getAddress());
+        if (simulatedCentral == null || !simulatedCentral.mIsLinkUp) {
+            return false;
+        }
+        synchronized (simulatedCentral) {
+            if (simulatedCentral.mStackQueue.size() >= mStackBufferSize) {
+                mRefusedCount.incrementAndGet();
+                return false;
+            }
+            simulatedCentral.mStackQueue.add(confirm);
+            // the radio sends a copy, so later changes to the array can't reach the Central
+            simulatedCentral.mNotifications.add(value.clone());
+        }
+        return true;
+    }
+
+    @Override
+    public void onAckWindowOpened(CentralSession centralSession, UUID characteristicUuid, long windowMs) {
+        mOpenAckWindows.add(new OpenAckWindow(centralSession.getAddress(), characteristicUuid));
+    }
+
+    /**
+     * Close every ack window that opened, sending their multi-acks
+     *
+     * @return how many multi-acks were sent
+     */
+    public int closeAckWindows(CentralSessionManager centralSessionManager) {
+        int multiAckCount = 0;
+        OpenAckWindow ackWindow;
+        while ((ackWindow = mOpenAckWindows.poll()) != null) {
+            if (centralSessionManager.flushAckWindow(ackWindow.mAddress, ackWindow.mCharacteristicUuid)) {
+                multiAckCount++;
+            }
+        }
+        return multiAckCount;
+    }
+
+    @Override
+    public void onCreditsSpent(CentralSession centralSession, long retryMs) {
+        mCreditRetries.add(new CreditRetry(centralSession.getAddress(), System.currentTimeMillis() + retryMs));
+    }
+
+    /**
+     * Wait for every credit retry asked for, in turn, and carry it out
+     *
+     * @return how many retries were carried out
+     */
+    public int runCreditRetries(CentralSessionManager centralSessionManager) throws InterruptedException {
+        int retryCount = 0;
+        CreditRetry creditRetry;
+        while ((creditRetry = mCreditRetries.poll()) != null) {
+            long waitMs = creditRetry.mDueTime - System.currentTimeMillis();
+            if (waitMs > 0) {
+                Thread.sleep(waitMs);
+            }
+            centralSessionManager.retryQueued(creditRetry.mAddress);
+            retryCount++;
+        }
+        return retryCount;
+    }
+
+    /**
+     * Read a value longer than one packet: a read, then blob reads from where the last
+     * response ended, until a response comes back short
+     *
+     * @param centralSession the Central reading
+     * @param characteristicUuid the Characteristic
+     * @param attribute the Characteristic's value, which may change during the read
+     * @param mtu the ATT MTU
+     * @return the value read, or null if a read was refused
+     */
+    public static byte[] longRead(CentralSession centralSession, UUID characteristicUuid, AtomicReference<byte[]> attribute, int mtu) {
+        int maxResponseLength = mtu - READ_RESPONSE_HEADER_LENGTH;
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        int offset = 0;
+        while (true) {
+            byte[] response = centralSession.readAt(characteristicUuid, offset, attribute.get());
+            if (response == null) {
+                return null;
+            }
+            // the stack sends what fits in one packet
+            int length = Math.min(response.length, maxResponseLength);
+            value.write(response, 0, length);
+            offset += length;
+            if (length < maxResponseLength) {
+                return value.toByteArray();
+            }
+        }
+    }
+
+    /**
+     * Write a value longer than one packet: prepared writes of as much as fits in one
+     * packet, then an execute
+     *
+     * @param preparedWriteQueue the Central's prepared writes
+     * @param characteristicUuid the Characteristic
+     * @param value the value to write
+     * @param mtu the ATT MTU
+     * @param committer takes the value when it's committed
+     * @return the status of the first prepared write refused, or of the execute
+     */
+    public static int longWrite(PreparedWriteQueue preparedWriteQueue, UUID characteristicUuid, byte[] value, int mtu, PreparedWriteQueue.Committer committer) {
+        int maxPieceLength = mtu - PREPARE_WRITE_HEADER_LENGTH;
+        for (int offset = 0; offset < value.length; offset += maxPieceLength) {
+            byte[] piece = Arrays.copyOfRange(value, offset, Math.min(value.length, offset + maxPieceLength));
+            int status = preparedWriteQueue.prepare(characteristicUuid, offset, piece);
+            if (status != PreparedWriteQueue.GATT_SUCCESS) {
+                // the Central cancels what it queued
+                preparedWriteQueue.cancel();
+                return status;
+            }
+        }
+        return preparedWriteQueue.execute(committer);
+    }
+
+    /**
+     * Send one notification the stack holds for a Central without reporting it sent, as
+     * a stack that loses onNotificationSent() would
+     *
+     * @return <b>false</b> if the stack held none
+     */
+    public boolean dropNotificationSent(String address) {
+        return mCentrals.get(address).mStackQueue.poll() != null;
+    }
+
+    /**
+     * Send one notification the stack holds for a Central, and report it sent
+     *
+     * @return <b>false</b> if the stack held none
+     */
+    public boolean acknowledge(CentralSessionManager centralSessionManager, String address) {
+        SimulatedCentral simulatedCentral = mCentrals.get(address);
+        if (simulatedCentral.mStackQueue.poll() == null) {
+            return false;
+        }
+        centralSessionManager.onNotificationSent(address, 0);
+        return true;
+    }
+
+    /**
+     * Play one connection event on every Central's link
+     *
+     * @param maxPacketsPerEvent how many packets fit in one connection event
+     * @return the connection event's number
+     */
+    public int runConnectionEvent(CentralSessionManager centralSessionManager, int maxPacketsPerEvent) {
+        mConnectionEvent++;
+        for (SimulatedCentral simulatedCentral : mCentrals.values()) {
+            if (simulatedCentral.mIsAwaitingConfirmation) {
+                // the confirmation arrives in this event, and the stack handles it after the event
+                simulatedCentral.mIsAwaitingConfirmation = false;
+                centralSessionManager.onNotificationSent(simulatedCentral.mAddress, 0);
+                continue;
+            }
+            int packetCount = 0;
+            while (packetCount < maxPacketsPerEvent && !simulatedCentral.mIsAwaitingConfirmation) {
+                Boolean isIndication = simulatedCentral.mStackQueue.poll();
+                if (isIndication == null) {
+                    break;
+                }
+                packetCount++;
+                simulatedCentral.mDeliveryEvents.add(mConnectionEvent);
+                if (isIndication) {
+                    simulatedCentral.mIsAwaitingConfirmation = true;
+                } else {
+                    centralSessionManager.onNotificationSent(simulatedCentral.mAddress, 0);
+                }
+            }
+        }
+        return mConnectionEvent;
+    }
+
+    /**
+     * Send every notification as soon as the stack takes it, on a thread of its own
+     */
+    public void startRadio(final CentralSessionManager centralSessionManager) {
+        mIsRadioOn = true;
+        mRadioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mIsRadioOn) {
+                    boolean isIdle = true;
+                    for (String address : mCentrals.keySet()) {
+                        while (acknowledge(centralSessionManager, address)) {
+                            isIdle = false;
+                        }
+                    }
+                    if (isIdle) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        mRadioThread.start();
+    }
+
+    public void stopRadio() throws InterruptedException {
+        mIsRadioOn = false;
+        mRadioThread.join();
+    }
+}
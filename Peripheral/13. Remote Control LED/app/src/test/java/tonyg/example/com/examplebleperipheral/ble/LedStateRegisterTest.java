@@ -0,0 +1,167 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * LedStateRegister arbitration, and its versions and notifications under many writer threads
+ */
+public class LedStateRegisterTest {
+    private static final int CENTRAL_1 = LedStateRegister.writerId(LedStateRegister.PRIORITY_CENTRAL, 1);
+    private static final int CENTRAL_2 = LedStateRegister.writerId(LedStateRegister.PRIORITY_CENTRAL, 2);
+    private static final int WRITERS = 16;
+    private static final int WRITES_PER_WRITER = 20000;
+
+    private final RecordingListener mListener = new RecordingListener(16);
+
+    @Test
+    public void write_changeGoesUpOneVersionAndNotifiesOnce() throws Exception {
+        LedStateRegister ledStateRegister = new LedStateRegister(BleRemoteLed.LED_STATE_OFF, mListener);
+        assertEquals(LedStateRegister.RESULT_ACCEPTED, ledStateRegister.write(BleRemoteLed.LED_STATE_ON, CENTRAL_1, 0, null));
+        assertEquals(LedStateRegister.RESULT_UNCHANGED, ledStateRegister.write(BleRemoteLed.LED_STATE_ON, CENTRAL_2, 1, null));
+
+        long register = ledStateRegister.get();
+        assertEquals(BleRemoteLed.LED_STATE_ON, LedStateRegister.getState(register));
+        assertEquals(1, LedStateRegister.getVersion(register));
+        assertEquals(CENTRAL_1, LedStateRegister.getWriterId(register));
+        assertEquals(1, mListener.mCount.get());
+        assertEquals(register, mListener.mRegisters[0]);
+    }
+
+    @Test
+    public void write_executedTimeReachesListener() throws Exception {
+        LedStateRegister ledStateRegister = new LedStateRegister(BleRemoteLed.LED_STATE_OFF, mListener);
+        ledStateRegister.write(BleRemoteLed.LED_STATE_ON, CENTRAL_1, LedStateRegister.ANY_VERSION, 1234L);
+        assertEquals(Long.valueOf(1234), mListener.mLastExecutedTime);
+    }
+
+    @Test
+    public void write_lastWriterWinsAcceptsRacingWrite() throws Exception {
+        LedStateRegister ledStateRegister = new LedStateRegister(BleRemoteLed.LED_STATE_OFF, mListener);
+        ledStateRegister.write(BleRemoteLed.LED_STATE_ON, CENTRAL_1, 0, null);
+        // the broadcast was sent when the LED was still at version 0
+        assertEquals(LedStateRegister.RESULT_ACCEPTED, ledStateRegister.write(BleRemoteLed.LED_STATE_OFF, LedStateRegister.WRITER_BROADCAST, 0, null));
+        assertEquals(BleRemoteLed.LED_STATE_OFF, ledStateRegister.getState());
+    }
+
+    @Test
+    public void write_priorityRejectsRacingWriteOfLowerPriority() throws Exception {
+        LedStateRegister ledStateRegister = new LedStateRegister(BleRemoteLed.LED_STATE_OFF, mListener);
+        ledStateRegister.setArbitration(LedStateRegister.ARBITRATION_PRIORITY);
+        ledStateRegister.write(BleRemoteLed.LED_STATE_ON, CENTRAL_1, 0, null);
+
+        assertEquals(LedStateRegister.RESULT_REJECTED, ledStateRegister.write(BleRemoteLed.LED_STATE_OFF, LedStateRegister.WRITER_BROADCAST, 0, null));
+        assertEquals(BleRemoteLed.LED_STATE_ON, ledStateRegister.getState());
+        assertEquals(1, ledStateRegister.getRejectedCount());
+
+        // a writer that saw the change, or one of the same priority, still gets through
+        assertEquals(LedStateRegister.RESULT_ACCEPTED, ledStateRegister.write(BleRemoteLed.LED_STATE_OFF, LedStateRegister.WRITER_BROADCAST, 1, null));
+        assertEquals(LedStateRegister.RESULT_ACCEPTED, ledStateRegister.write(BleRemoteLed.LED_STATE_ON, CENTRAL_2, 0, null));
+        assertEquals(3, mListener.mCount.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setArbitration_rejectsUnknownArbitration() throws Exception {
+        new LedStateRegister(BleRemoteLed.LED_STATE_OFF, mListener).setArbitration(7);
+    }
+
+    @Test
+    public void write_manyWritersEachChangeNotifiedOnceInOrder() throws Exception {
+        for (int arbitration = LedStateRegister.ARBITRATION_LAST_WRITER_WINS; arbitration <= LedStateRegister.ARBITRATION_PRIORITY; arbitration++) {
+            RecordingListener listener = new RecordingListener(WRITERS * WRITES_PER_WRITER);
+            final LedStateRegister ledStateRegister = new LedStateRegister(BleRemoteLed.LED_STATE_OFF, listener);
+            ledStateRegister.setArbitration(arbitration);
+
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] writers = new Thread[WRITERS];
+            for (int w = 0; w < WRITERS; w++) {
+                // half the writers are Centrals and half are broadcasts
+                final int writerId = LedStateRegister.writerId(w % 2 == 0 ? LedStateRegister.PRIORITY_CENTRAL : LedStateRegister.PRIORITY_BROADCAST, w);
+                final Random random = new Random(w);
+                writers[w] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        awaitQuietly(start);
+                        for (int i = 0; i < WRITES_PER_WRITER; i++) {
+                            long observedVersion = ledStateRegister.getVersion();
+                            if (random.nextInt(8) == 0) {
+                                // let other writers race ahead of this one
+                                Thread.yield();
+                            }
+                            byte state = random.nextBoolean() ? BleRemoteLed.LED_STATE_ON : BleRemoteLed.LED_STATE_OFF;
+                            ledStateRegister.write(state, writerId, observedVersion, null);
+                        }
+                    }
+                });
+                writers[w].start();
+            }
+            long startTime = System.nanoTime();
+            start.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            long elapsed = System.nanoTime() - startTime;
+
+            long accepted = ledStateRegister.getAcceptedCount();
+            assertEquals(WRITERS * WRITES_PER_WRITER, accepted + ledStateRegister.getUnchangedCount() + ledStateRegister.getRejectedCount());
+            assertEquals(accepted, listener.mCount.get());
+            assertEquals(0, listener.mOverlapCount.get());
+            int previousState = BleRemoteLed.LED_STATE_OFF;
+            for (int i = 0; i < accepted; i++) {
+                // versions have no gaps and no repeats, and every change is a change
+                assertEquals(i + 1, LedStateRegister.getVersion(listener.mRegisters[i]));
+                assertNotEquals(previousState, LedStateRegister.getState(listener.mRegisters[i]));
+                previousState = LedStateRegister.getState(listener.mRegisters[i]);
+            }
+            assertEquals(ledStateRegister.get(), listener.mRegisters[(int) accepted - 1]);
+            if (arbitration == LedStateRegister.ARBITRATION_LAST_WRITER_WINS) {
+                assertEquals(0, ledStateRegister.getRejectedCount());
+            }
+
+            System.out.println("LedStateRegister, " + (arbitration == LedStateRegister.ARBITRATION_PRIORITY ? "priority" : "last writer wins") + ": "
+                    + WRITERS + " writers, " + (WRITERS * WRITES_PER_WRITER * 1000000000L / elapsed) + " writes/s, "
+                    + accepted + " accepted, " + ledStateRegister.getUnchangedCount() + " unchanged, "
+                    + ledStateRegister.getRejectedCount() + " rejected, " + ledStateRegister.getRetryCount() + " retries");
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records each change it hears about, and whether two ever arrived at once
+     */
+    private static class RecordingListener extends LedStateRegister.ChangeListener {
+        private final long[] mRegisters;
+        private final AtomicInteger mCount = new AtomicInteger();
+        private final AtomicInteger mInFlight = new AtomicInteger();
+        private final AtomicLong mOverlapCount = new AtomicLong();
+        private volatile Long mLastExecutedTime;
+
+        RecordingListener(int capacity) {
+            mRegisters = new long[capacity];
+        }
+
+        @Override
+        public void onLedStateChanged(long register, Long executedTime) {
+            if (mInFlight.incrementAndGet() != 1) {
+                mOverlapCount.incrementAndGet();
+            }
+            mRegisters[mCount.get()] = register;
+            mLastExecutedTime = executedTime;
+            mCount.incrementAndGet();
+            mInFlight.decrementAndGet();
+        }
+    }
+}
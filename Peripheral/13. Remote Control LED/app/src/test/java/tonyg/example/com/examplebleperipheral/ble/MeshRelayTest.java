@@ -0,0 +1,312 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * MeshRelay decisions, and flooding a command across hundreds of Remote Leds over a simulated radio
+ */
+public class MeshRelayTest {
+    private static final int SOURCE = 0x1234;
+
+    @Test
+    public void onCommandHeard_relaysFirstCopyOnly() throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        MeshRelay meshRelay = new MeshRelay(broadcastCommand, 16, new Random(1));
+        byte[] data = broadcastCommand.encode(SOURCE, 1000, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+
+        long relayDelay = meshRelay.onCommandHeard(data);
+        assertTrue(relayDelay >= 0 && relayDelay < MeshRelay.DEFAULT_MAX_RELAY_DELAY_MS);
+        assertEquals(MeshRelay.NO_RELAY, meshRelay.onCommandHeard(data));
+        // a relayed copy is the same command
+        assertEquals(MeshRelay.NO_RELAY, meshRelay.onCommandHeard(BroadcastCommand.withTtl(data, 1)));
+        assertEquals(2, meshRelay.getDuplicateCount());
+    }
+
+    @Test
+    public void onCommandHeard_doesNotRelayExpiredOrForgedCommands() throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        MeshRelay meshRelay = new MeshRelay(broadcastCommand, 16, new Random(1));
+
+        assertEquals(MeshRelay.NO_RELAY, meshRelay.onCommandHeard(broadcastCommand.encode(SOURCE, 1, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS, 0)));
+        byte[] forged = new BroadcastCommand("some other key".getBytes()).encode(SOURCE, 2, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+        assertEquals(MeshRelay.NO_RELAY, meshRelay.onCommandHeard(forged));
+        assertEquals(MeshRelay.NO_RELAY, meshRelay.onCommandHeard(new byte[] {BroadcastCommand.TYPE_COMMAND, 1, 2}));
+    }
+
+    @Test
+    public void onRelayDue_lowersTtlAndKeepsSignature() throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        MeshRelay meshRelay = new MeshRelay(broadcastCommand, 16, new Random(1));
+        byte[] data = broadcastCommand.encode(SOURCE, 1000, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS, 3);
+
+        meshRelay.onCommandHeard(data);
+        byte[] relayed = meshRelay.onRelayDue(data);
+        assertEquals(2, BroadcastCommand.getTtl(relayed));
+        assertEquals(3, BroadcastCommand.getTtl(data));
+        assertTrue(broadcastCommand.verify(relayed));
+        assertEquals(BleRemoteLed.COMMAND_LED_ON, new BroadcastCommandReceiver(broadcastCommand).onManufacturerData(relayed));
+        assertEquals(1, meshRelay.getRelayedCount());
+    }
+
+    @Test
+    public void onRelayDue_suppressedWhenNeighboursAlreadyRelayed() throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        MeshRelay meshRelay = new MeshRelay(broadcastCommand, 16, new Random(1));
+        meshRelay.setSuppressionThreshold(2);
+        byte[] data = broadcastCommand.encode(SOURCE, 1000, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+
+        meshRelay.onCommandHeard(data);
+        meshRelay.onCommandHeard(BroadcastCommand.withTtl(data, 2));
+        meshRelay.onCommandHeard(BroadcastCommand.withTtl(data, 2));
+        assertNull(meshRelay.onRelayDue(data));
+        assertEquals(1, meshRelay.getSuppressedCount());
+    }
+
+    @Test
+    public void onCommandHeard_forgetsLeastRecentlyHeardCommand() throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        MeshRelay meshRelay = new MeshRelay(broadcastCommand, 2, new Random(1));
+        byte[] first = broadcastCommand.encode(SOURCE, 1, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+        byte[] second = broadcastCommand.encode(SOURCE, 2, BleRemoteLed.COMMAND_LED_OFF, BroadcastCommand.ALL_GROUPS);
+        byte[] third = broadcastCommand.encode(SOURCE + 1, 2, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS);
+
+        meshRelay.onCommandHeard(first);
+        meshRelay.onCommandHeard(second);
+        meshRelay.onCommandHeard(first); // heard again, so second is now the oldest
+        meshRelay.onCommandHeard(third);
+
+        assertEquals(MeshRelay.NO_RELAY, meshRelay.onCommandHeard(first));
+        assertNotEquals(MeshRelay.NO_RELAY, meshRelay.onCommandHeard(second));
+    }
+
+    /** Simulated radio **/
+    private static final int NODE_COUNT = 300;
+    private static final double AREA_SIZE = 150; // metres on each side, with the Central in the middle
+    private static final double RADIO_RANGE = 25; // metres
+    private static final double PACKET_LOSS = 0.2; // fading, before collisions
+    private static final int SCAN_WINDOW = 512; // SCAN_MODE_LOW_POWER, as used by BroadcastCommandScanner
+    private static final int SCAN_INTERVAL = 5120;
+    private static final long SIMULATION_DURATION = 60000;
+
+    @Test
+    public void flood_coverageAndCostAcrossSettings() throws Exception {
+        Result direct = simulate(0, MeshRelay.DEFAULT_SUPPRESSION_THRESHOLD, new Random(21));
+        Result ttl3 = simulate(BroadcastCommand.DEFAULT_TTL, MeshRelay.DEFAULT_SUPPRESSION_THRESHOLD, new Random(21));
+        Result ttl7 = simulate(BroadcastCommand.MAX_TTL, MeshRelay.DEFAULT_SUPPRESSION_THRESHOLD, new Random(21));
+        Result ttl7Unsuppressed = simulate(BroadcastCommand.MAX_TTL, 0, new Random(21));
+        System.out.println("Mesh, no relaying: " + direct);
+        System.out.println("Mesh, TTL 3: " + ttl3);
+        System.out.println("Mesh, TTL 7: " + ttl7);
+        System.out.println("Mesh, TTL 7 without suppression: " + ttl7Unsuppressed);
+
+        // at low power scanning, TTL 7 covers 98.0% at a p90 of 5844ms with 106 relays,
+        // against 100.0% at 5429ms with 294 relays without suppression
+        // most Remote Leds are out of the Central's range
+        assertTrue(direct.mCoverage < 0.2);
+        assertTrue(ttl3.mCoverage > direct.mCoverage);
+        assertTrue(ttl7.mCoverage >= 0.95);
+        // suppression costs little coverage and saves many transmissions
+        assertTrue(ttl7.mCoverage >= ttl7Unsuppressed.mCoverage - 0.02);
+        assertTrue(ttl7.mRelayCount < ttl7Unsuppressed.mRelayCount * 3 / 4);
+        assertTrue(ttl7.mP90Latency < SIMULATION_DURATION / 2);
+    }
+
+    private static class Result {
+        double mCoverage; // of the Remote Leds connected to the Central through the mesh
+        long mP50Latency, mP90Latency;
+        int mRelayCount;
+        int mCollisionCount;
+
+        @Override
+        public String toString() {
+            return String.format("%.1f%% covered, p50 %dms, p90 %dms, %d relays, %d collisions",
+                    mCoverage * 100, mP50Latency, mP90Latency, mRelayCount, mCollisionCount);
+        }
+    }
+
+    /**
+     * A node starts or continues advertising, or a relay delay runs out
+     */
+    private static class Event implements Comparable<Event> {
+        static final int ADVERTISE = 0;
+        static final int RELAY_DUE = 1;
+
+        final long mTime;
+        final int mType;
+        final int mNode; // NODE_COUNT is the Central
+        final byte[] mData;
+        final long mEndTime;
+
+        Event(long time, int type, int node, byte[] data, long endTime) {
+            mTime = time;
+            mType = type;
+            mNode = node;
+            mData = data;
+            mEndTime = endTime;
+        }
+
+        @Override
+        public int compareTo(Event another) {
+            return mTime < another.mTime ? -1 : (mTime == another.mTime ? 0 : 1);
+        }
+    }
+
+    /**
+     * Flood one command from a Central in the middle of a field of Remote Leds.
+     *
+     * Every transmitter advertises every 100ms plus the random advertising delay.  A receiver
+     * hears an advertisement if it is in range, inside its scan window, the packet isn't lost,
+     * and no other transmitter in range advertised in the same millisecond.  Relays advertise
+     * for BroadcastCommandRelay.RELAY_DURATION_MS, and a new relay replaces an older one.
+     */
+    private static Result simulate(int ttl, int suppressionThreshold, Random random) throws Exception {
+        BroadcastCommand broadcastCommand = new BroadcastCommand(BroadcastCommand.DEMO_KEY);
+        byte[] data = broadcastCommand.encode(SOURCE, 1, BleRemoteLed.COMMAND_LED_ON, BroadcastCommand.ALL_GROUPS, ttl);
+
+        // the Central is the last node
+        double[] x = new double[NODE_COUNT + 1];
+        double[] y = new double[NODE_COUNT + 1];
+        for (int i = 0; i < NODE_COUNT; i++) {
+            x[i] = random.nextDouble() * AREA_SIZE;
+            y[i] = random.nextDouble() * AREA_SIZE;
+        }
+        x[NODE_COUNT] = AREA_SIZE / 2;
+        y[NODE_COUNT] = AREA_SIZE / 2;
+        int[][] neighbours = findNeighbours(x, y);
+
+        BroadcastCommandReceiver[] receivers = new BroadcastCommandReceiver[NODE_COUNT];
+        MeshRelay[] meshRelays = new MeshRelay[NODE_COUNT];
+        int[] scanPhases = new int[NODE_COUNT];
+        long[] advertisingEndTimes = new long[NODE_COUNT + 1];
+        long[] actuationTimes = new long[NODE_COUNT];
+        Arrays.fill(actuationTimes, -1);
+        for (int i = 0; i < NODE_COUNT; i++) {
+            receivers[i] = new BroadcastCommandReceiver(new BroadcastCommand(BroadcastCommand.DEMO_KEY));
+            meshRelays[i] = new MeshRelay(new BroadcastCommand(BroadcastCommand.DEMO_KEY), MeshRelay.DEFAULT_CACHE_SIZE, new Random(random.nextLong()));
+            meshRelays[i].setSuppressionThreshold(suppressionThreshold);
+            scanPhases[i] = random.nextInt(SCAN_INTERVAL);
+        }
+
+        PriorityQueue<Event> events = new PriorityQueue<Event>();
+        advertisingEndTimes[NODE_COUNT] = BroadcastCommandRelay.RELAY_DURATION_MS;
+        events.add(new Event(0, Event.ADVERTISE, NODE_COUNT, data, advertisingEndTimes[NODE_COUNT]));
+
+        Result result = new Result();
+        int[] arrivals = new int[NODE_COUNT];
+        List<Event> advertisements = new ArrayList<Event>();
+        while (!events.isEmpty() && events.peek().mTime < SIMULATION_DURATION) {
+            long now = events.peek().mTime;
+            advertisements.clear();
+            Arrays.fill(arrivals, 0);
+            while (!events.isEmpty() && events.peek().mTime == now) {
+                Event event = events.poll();
+                if (event.mType == Event.RELAY_DUE) {
+                    byte[] relayed = meshRelays[event.mNode].onRelayDue(event.mData);
+                    if (relayed != null) {
+                        result.mRelayCount++;
+                        advertisingEndTimes[event.mNode] = now + BroadcastCommandRelay.RELAY_DURATION_MS;
+                        events.add(new Event(now + random.nextInt(11), Event.ADVERTISE, event.mNode, relayed, advertisingEndTimes[event.mNode]));
+                    }
+                } else if (event.mEndTime == advertisingEndTimes[event.mNode] && now < event.mEndTime) {
+                    advertisements.add(event);
+                    for (int neighbour : neighbours[event.mNode]) {
+                        arrivals[neighbour]++;
+                    }
+                    events.add(new Event(now + 100 + random.nextInt(11), Event.ADVERTISE, event.mNode, event.mData, event.mEndTime));
+                }
+            }
+
+            for (Event advertisement : advertisements) {
+                for (int neighbour : neighbours[advertisement.mNode]) {
+                    boolean isListening = (now + scanPhases[neighbour]) % SCAN_INTERVAL < SCAN_WINDOW;
+                    if (!isListening || random.nextDouble() < PACKET_LOSS) {
+                        continue;
+                    }
+                    if (arrivals[neighbour] > 1) {
+                        result.mCollisionCount++;
+                        continue;
+                    }
+                    // plus the time for the scan result to reach the app
+                    long heardTime = now + 2 + random.nextInt(10);
+                    if (receivers[neighbour].onManufacturerData(advertisement.mData) == BleRemoteLed.COMMAND_LED_ON) {
+                        actuationTimes[neighbour] = heardTime;
+                    }
+                    long relayDelay = meshRelays[neighbour].onCommandHeard(advertisement.mData);
+                    if (relayDelay != MeshRelay.NO_RELAY) {
+                        events.add(new Event(heardTime + relayDelay, Event.RELAY_DUE, neighbour, advertisement.mData, 0));
+                    }
+                }
+            }
+        }
+
+        boolean[] isReachable = findReachable(neighbours);
+        int reachableCount = 0;
+        long[] latencies = new long[NODE_COUNT];
+        int delivered = 0;
+        for (int i = 0; i < NODE_COUNT; i++) {
+            if (isReachable[i]) {
+                reachableCount++;
+            }
+            if (actuationTimes[i] >= 0) {
+                latencies[delivered++] = actuationTimes[i];
+            }
+            assertTrue(receivers[i].getAcceptedCount() <= 1);
+        }
+        latencies = Arrays.copyOf(latencies, delivered);
+        Arrays.sort(latencies);
+        result.mCoverage = (double) delivered / reachableCount;
+        if (delivered > 0) {
+            result.mP50Latency = latencies[(delivered - 1) / 2];
+            result.mP90Latency = latencies[(int) Math.ceil(0.9 * delivered) - 1];
+        }
+        return result;
+    }
+
+    /**
+     * Find the Remote Leds in radio range of each node
+     */
+    private static int[][] findNeighbours(double[] x, double[] y) {
+        int[][] neighbours = new int[x.length][];
+        for (int i = 0; i < x.length; i++) {
+            int[] found = new int[NODE_COUNT];
+            int count = 0;
+            for (int j = 0; j < NODE_COUNT; j++) {
+                if (j != i && Math.hypot(x[i] - x[j], y[i] - y[j]) <= RADIO_RANGE) {
+                    found[count++] = j;
+                }
+            }
+            neighbours[i] = Arrays.copyOf(found, count);
+        }
+        return neighbours;
+    }
+
+    /**
+     * Find the Remote Leds connected to the Central through any number of hops
+     */
+    private static boolean[] findReachable(int[][] neighbours) {
+        boolean[] isReachable = new boolean[NODE_COUNT];
+        int[] queue = new int[NODE_COUNT];
+        int head = 0, tail = 0;
+        for (int neighbour : neighbours[NODE_COUNT]) {
+            isReachable[neighbour] = true;
+            queue[tail++] = neighbour;
+        }
+        while (head < tail) {
+            for (int neighbour : neighbours[queue[head++]]) {
+                if (!isReachable[neighbour]) {
+                    isReachable[neighbour] = true;
+                    queue[tail++] = neighbour;
+                }
+            }
+        }
+        return isReachable;
+    }
+}
@@ -0,0 +1,168 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * NotificationQueue credits and coalescing, and notification flow control over a simulated link
+ */
+public class NotificationQueueTest {
+    private static final String CENTRAL = GattSimulator.address(1);
+
+    @Test
+    public void poll_waitsForCredit() throws Exception {
+        NotificationQueue notificationQueue = new NotificationQueue(1, 4);
+        notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {1}, true, false);
+        notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {2}, true, false);
+
+        assertArrayEquals(new byte[] {1}, notificationQueue.poll(0).getValue());
+        assertNull(notificationQueue.poll(1));
+        notificationQueue.onCreditReturned();
+        assertArrayEquals(new byte[] {2}, notificationQueue.poll(2).getValue());
+        assertNull(notificationQueue.poll(3));
+        notificationQueue.onCreditReturned();
+        notificationQueue.onCreditReturned();
+        assertEquals(1, notificationQueue.getCredits());
+    }
+
+    @Test
+    public void poll_reclaimsCreditWhenStackNeverAnswers() throws Exception {
+        NotificationQueue notificationQueue = new NotificationQueue(1, 4);
+        notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {1}, true, false);
+        notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {2}, true, false);
+        assertNotNull(notificationQueue.poll(0));
+        assertNull(notificationQueue.poll(NotificationQueue.CREDIT_TIMEOUT_MS - 1));
+        assertNotNull(notificationQueue.poll(NotificationQueue.CREDIT_TIMEOUT_MS));
+        assertEquals(1, notificationQueue.getCreditTimeoutCount());
+    }
+
+    @Test
+    public void scheduleRetry_asksOnceWhileNotificationsWaitForCredit() throws Exception {
+        NotificationQueue notificationQueue = new NotificationQueue(1, 4);
+        notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {1}, true, false);
+        notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {2}, true, false);
+        assertNotNull(notificationQueue.poll(100));
+        assertNull(notificationQueue.poll(600));
+
+        assertEquals(NotificationQueue.CREDIT_TIMEOUT_MS - 500, notificationQueue.scheduleRetry(600));
+        assertEquals(-1, notificationQueue.scheduleRetry(700));
+        notificationQueue.onRetryDue();
+        assertNotNull(notificationQueue.poll(100 + NotificationQueue.CREDIT_TIMEOUT_MS));
+        // nothing left waiting
+        assertEquals(-1, notificationQueue.scheduleRetry(200 + NotificationQueue.CREDIT_TIMEOUT_MS));
+    }
+
+    @Test
+    public void offer_coalescesStateButNotReplies() throws Exception {
+        NotificationQueue notificationQueue = new NotificationQueue(1, 2);
+        assertEquals(NotificationQueue.QUEUED, notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {BleRemoteLed.LED_STATE_ON}, true, true));
+        assertEquals(NotificationQueue.COALESCED, notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {BleRemoteLed.LED_STATE_OFF}, true, true));
+        assertEquals(NotificationQueue.QUEUED, notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {BleRemoteLed.RESPONSE_TIME_SYNC}, true, false));
+        assertEquals(NotificationQueue.DROPPED, notificationQueue.offer(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {BleRemoteLed.RESPONSE_TIME_SYNC}, true, false));
+        // another Characteristic's state is its own
+        assertEquals(NotificationQueue.DROPPED, notificationQueue.offer(BlePeripheral.BATTERY_LEVEL_CHARACTERISTIC_UUID, new byte[] {50}, true, true));
+
+        assertArrayEquals(new byte[] {BleRemoteLed.LED_STATE_OFF}, notificationQueue.poll(0).getValue());
+        notificationQueue.onCreditReturned();
+        assertArrayEquals(new byte[] {BleRemoteLed.RESPONSE_TIME_SYNC}, notificationQueue.poll(0).getValue());
+    }
+
+    @Test
+    public void onNotificationSent_burstOfStateChangesSendsLatest() throws Exception {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = connect(gattSimulator);
+        for (int i = 0; i < 100; i++) {
+            centralSessionManager.notifyAllCentrals(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new byte[] {(byte) i});
+        }
+        assertEquals(1, gattSimulator.getCentral(CENTRAL).getInFlightCount());
+        assertEquals(1, centralSessionManager.getQueueDepth());
+        assertEquals(98, centralSessionManager.getCoalescedCount());
+
+        while (gattSimulator.acknowledge(centralSessionManager, CENTRAL)) {
+        }
+        byte[][] received = gattSimulator.getCentral(CENTRAL).getNotifications().toArray(new byte[0][]);
+        assertEquals(2, received.length);
+        assertArrayEquals(new byte[] {0}, received[0]);
+        assertArrayEquals(new byte[] {99}, received[1]);
+        assertEquals(0, centralSessionManager.getDroppedCount());
+    }
+
+    @Test
+    public void linkBenchmark_creditsKeepUpWithoutLosses() throws Exception {
+        LinkResult backToBack = runLink(Integer.MAX_VALUE);
+        LinkResult creditBased = runLink(NotificationQueue.DEFAULT_CREDITS);
+        System.out.println("Notifications back to back: " + backToBack);
+        System.out.println("Notifications with credits: " + creditBased);
+
+        assertTrue(backToBack.mLost > 0);
+        assertEquals(0, creditBased.mLost);
+        assertTrue(creditBased.mOutOfOrder == 0);
+        // as many delivered as the link can carry
+        assertTrue(creditBased.mDelivered >= LINK_EVENTS - BURST_SIZE);
+    }
+
+    private static final int LINK_EVENTS = 2000;
+    private static final int BURST_SIZE = 10;
+    private static final int STACK_BUFFER_SIZE = 2;
+
+    /**
+     * One notification leaves per connection event.  Every BURST_SIZE events, a burst of
+     * BURST_SIZE replies arrives, so on average the link is exactly full
+     */
+    private static LinkResult runLink(int credits) {
+        GattSimulator gattSimulator = new GattSimulator();
+        gattSimulator.setStackBufferSize(STACK_BUFFER_SIZE);
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        centralSessionManager.setNotificationFlowControl(credits, NotificationQueue.DEFAULT_MAX_DEPTH);
+        gattSimulator.addCentral(CENTRAL);
+        centralSessionManager.onCentralConnected(CENTRAL, null);
+        centralSessionManager.onSubscriptionChanged(CENTRAL, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_NOTIFY);
+
+        int sequence = 0;
+        for (int event = 0; event < LINK_EVENTS; event++) {
+            if (event % BURST_SIZE == 0) {
+                for (int i = 0; i < BURST_SIZE; i++) {
+                    centralSessionManager.notifyCentral(CENTRAL, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, ByteBuffer.allocate(4).putInt(sequence++).array());
+                }
+            }
+            gattSimulator.acknowledge(centralSessionManager, CENTRAL);
+        }
+
+        LinkResult linkResult = new LinkResult();
+        int last = -1;
+        for (byte[] notification : gattSimulator.getCentral(CENTRAL).getNotifications()) {
+            int received = ByteBuffer.wrap(notification).getInt();
+            if (received <= last) {
+                linkResult.mOutOfOrder++;
+            }
+            last = received;
+            linkResult.mDelivered++;
+        }
+        linkResult.mLost = gattSimulator.getRefusedCount() + centralSessionManager.getDroppedCount();
+        linkResult.mSent = sequence;
+        linkResult.mMaxQueueDepth = centralSessionManager.getMaxQueueDepth();
+        return linkResult;
+    }
+
+    private static class LinkResult {
+        int mSent, mDelivered, mOutOfOrder, mMaxQueueDepth;
+        long mLost;
+
+        @Override
+        public String toString() {
+            return mDelivered + " of " + mSent + " delivered in " + LINK_EVENTS + " connection events, "
+                    + mLost + " lost, most waiting " + mMaxQueueDepth;
+        }
+    }
+
+    private static CentralSessionManager connect(GattSimulator gattSimulator) {
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        gattSimulator.addCentral(CENTRAL);
+        centralSessionManager.onCentralConnected(CENTRAL, null);
+        centralSessionManager.onSubscriptionChanged(CENTRAL, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, CentralSession.SUBSCRIPTION_NOTIFY);
+        return centralSessionManager;
+    }
+}
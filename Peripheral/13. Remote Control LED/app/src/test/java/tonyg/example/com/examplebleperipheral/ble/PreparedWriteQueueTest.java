@@ -0,0 +1,241 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Long writes through PreparedWriteQueue and long reads through CentralSession.readAt(),
+ * with attributes several packets long, played over the simulated ATT procedures
+ */
+public class PreparedWriteQueueTest {
+    private static final int LONG_VALUE_LENGTH = 300;
+
+    private static final UUID COMMAND_UUID = BleRemoteLed.COMMAND_CHARACTERISTIC_UUID;
+    private static final UUID RESPONSE_UUID = BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID;
+
+    private final List<UUID> mCommittedUuids = new ArrayList<UUID>();
+    private final List<byte[]> mCommittedValues = new ArrayList<byte[]>();
+
+    private final PreparedWriteQueue.Committer mCommitter = new PreparedWriteQueue.Committer() {
+        @Override
+        public void onCommit(UUID characteristicUuid, byte[] value) {
+            mCommittedUuids.add(characteristicUuid);
+            mCommittedValues.add(value);
+        }
+    };
+
+    @Test
+    public void longWrite_reassemblesTheWholeValue() throws Exception {
+        PreparedWriteQueue preparedWriteQueue = new PreparedWriteQueue();
+        byte[] value = randomValue(new Random(1), LONG_VALUE_LENGTH);
+
+        assertEquals(PreparedWriteQueue.GATT_SUCCESS, GattSimulator.longWrite(preparedWriteQueue, COMMAND_UUID, value, GattSimulator.DEFAULT_MTU, mCommitter));
+        assertEquals(1, mCommittedValues.size());
+        assertArrayEquals(value, mCommittedValues.get(0));
+        assertEquals(0, preparedWriteQueue.getQueuedWriteCount());
+        assertEquals(1, preparedWriteQueue.getCommittedCount());
+    }
+
+    @Test
+    public void execute_commitsEachCharacteristicOnceInOrder() throws Exception {
+        PreparedWriteQueue preparedWriteQueue = new PreparedWriteQueue();
+        preparedWriteQueue.prepare(RESPONSE_UUID, 0, new byte[] {1, 2, 3});
+        preparedWriteQueue.prepare(COMMAND_UUID, 0, new byte[] {9});
+        // a later piece overwrites an earlier one where they overlap
+        preparedWriteQueue.prepare(RESPONSE_UUID, 2, new byte[] {7, 8});
+
+        assertEquals(PreparedWriteQueue.GATT_SUCCESS, preparedWriteQueue.execute(mCommitter));
+        assertEquals(2, mCommittedValues.size());
+        assertEquals(RESPONSE_UUID, mCommittedUuids.get(0));
+        assertArrayEquals(new byte[] {1, 2, 7, 8}, mCommittedValues.get(0));
+        assertEquals(COMMAND_UUID, mCommittedUuids.get(1));
+        assertArrayEquals(new byte[] {9}, mCommittedValues.get(1));
+    }
+
+    @Test
+    public void execute_gapCommitsNothing() throws Exception {
+        PreparedWriteQueue preparedWriteQueue = new PreparedWriteQueue();
+        preparedWriteQueue.prepare(COMMAND_UUID, 0, new byte[] {1, 2});
+        preparedWriteQueue.prepare(RESPONSE_UUID, 0, new byte[] {1, 2});
+        preparedWriteQueue.prepare(RESPONSE_UUID, 3, new byte[] {4});
+
+        assertEquals(PreparedWriteQueue.GATT_INVALID_OFFSET, preparedWriteQueue.execute(mCommitter));
+        // the write that was whole isn't committed either
+        assertTrue(mCommittedValues.isEmpty());
+        assertEquals(0, preparedWriteQueue.getQueuedWriteCount());
+        assertEquals(1, preparedWriteQueue.getAbortedCount());
+    }
+
+    @Test
+    public void cancel_dropsQueuedWrites() throws Exception {
+        PreparedWriteQueue preparedWriteQueue = new PreparedWriteQueue();
+        preparedWriteQueue.prepare(COMMAND_UUID, 0, new byte[] {1, 2});
+        preparedWriteQueue.cancel();
+
+        assertEquals(PreparedWriteQueue.GATT_SUCCESS, preparedWriteQueue.execute(mCommitter));
+        assertTrue(mCommittedValues.isEmpty());
+    }
+
+    @Test
+    public void prepare_refusesValuesPastTheLimits() throws Exception {
+        PreparedWriteQueue preparedWriteQueue = new PreparedWriteQueue();
+        assertEquals(PreparedWriteQueue.GATT_INVALID_OFFSET, preparedWriteQueue.prepare(COMMAND_UUID, PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH + 1, new byte[1]));
+        assertEquals(PreparedWriteQueue.GATT_INVALID_ATTRIBUTE_LENGTH, preparedWriteQueue.prepare(COMMAND_UUID, PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH - 1, new byte[2]));
+
+        byte[] tooLong = new byte[PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH + 1];
+        assertEquals(PreparedWriteQueue.GATT_INVALID_ATTRIBUTE_LENGTH, GattSimulator.longWrite(preparedWriteQueue, COMMAND_UUID, tooLong, GattSimulator.DEFAULT_MTU, mCommitter));
+        assertTrue(mCommittedValues.isEmpty());
+
+        for (int i = 0; i < PreparedWriteQueue.MAX_QUEUED_WRITES; i++) {
+            assertEquals(PreparedWriteQueue.GATT_SUCCESS, preparedWriteQueue.prepare(COMMAND_UUID, i, new byte[1]));
+        }
+        assertEquals(PreparedWriteQueue.GATT_PREPARE_QUEUE_FULL, preparedWriteQueue.prepare(COMMAND_UUID, 0, new byte[1]));
+    }
+
+    @Test
+    public void longRead_servesTheValueAsItWasWhenTheReadStarted() throws Exception {
+        CentralSession centralSession = connect();
+        byte[] before = randomValue(new Random(2), LONG_VALUE_LENGTH);
+        byte[] after = randomValue(new Random(3), LONG_VALUE_LENGTH);
+
+        byte[] first = centralSession.readAt(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, 0, before);
+        assertArrayEquals(before, first);
+        // the value changes before the blob reads
+        byte[] rest = centralSession.readAt(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, GattSimulator.DEFAULT_MTU - 1, after);
+        assertArrayEquals(Arrays.copyOfRange(before, GattSimulator.DEFAULT_MTU - 1, before.length), rest);
+
+        // reading to the end gives nothing, and past it is refused
+        assertEquals(0, centralSession.readAt(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, before.length, after).length);
+        assertNull(centralSession.readAt(BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, before.length + 1, after));
+
+        // a new read sees the new value
+        assertArrayEquals(after, GattSimulator.longRead(centralSession, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, new AtomicReference<byte[]>(after), GattSimulator.DEFAULT_MTU));
+    }
+
+    /**
+     * Long reads race a thread that keeps replacing the value.  Every read must come back
+     * as one of the values whole, never a mix
+     */
+    @Test
+    public void longRead_neverTearsWhileTheValueChanges() throws Exception {
+        final CentralSession centralSession = connect();
+        final byte[][] values = new byte[4][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = randomValue(new Random(10 + i), PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH - i * 37);
+        }
+        final AtomicReference<byte[]> attribute = new AtomicReference<byte[]>(values[0]);
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (isRunning.get()) {
+                    attribute.set(values[++i % values.length]);
+                    Thread.yield();
+                }
+            }
+        });
+        writer.start();
+
+        int readCount = 2000;
+        int[] seen = new int[values.length];
+        try {
+            for (int r = 0; r < readCount; r++) {
+                byte[] value = GattSimulator.longRead(centralSession, BleRemoteLed.RESPONSE_CHARACTERISTIC_UUID, attribute, GattSimulator.DEFAULT_MTU);
+                int match = -1;
+                for (int i = 0; i < values.length; i++) {
+                    if (Arrays.equals(values[i], value)) {
+                        match = i;
+                    }
+                }
+                assertTrue("read " + r + " mixed two values", match >= 0);
+                seen[match]++;
+                Thread.yield();
+            }
+        } finally {
+            isRunning.set(false);
+            writer.join();
+        }
+        System.out.println("Long reads of up to " + PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH + " bytes: " + readCount + " reads, none torn, values seen " + Arrays.toString(seen));
+    }
+
+    @Test
+    public void longWrite_reusesItsBuffers() throws Exception {
+        PreparedWriteQueue preparedWriteQueue = new PreparedWriteQueue();
+        byte[] value = randomValue(new Random(4), PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH);
+        byte[][] pieces = new byte[PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH / (GattSimulator.DEFAULT_MTU - 5) + 1][];
+        int pieceLength = GattSimulator.DEFAULT_MTU - 5;
+        for (int i = 0; i < pieces.length; i++) {
+            pieces[i] = Arrays.copyOfRange(value, i * pieceLength, Math.min(value.length, (i + 1) * pieceLength));
+        }
+        final long[] committedBytes = new long[1];
+        PreparedWriteQueue.Committer committer = new PreparedWriteQueue.Committer() {
+            @Override
+            public void onCommit(UUID characteristicUuid, byte[] committedValue) {
+                committedBytes[0] += committedValue.length;
+            }
+        };
+
+        // warm up, which also allocates the buffers
+        for (int i = 0; i < 1000; i++) {
+            writePieces(preparedWriteQueue, pieces, pieceLength, committer);
+        }
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = getAllocatedBytes(threadMXBean);
+        int writeCount = 2000;
+        committedBytes[0] = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < writeCount; i++) {
+            writePieces(preparedWriteQueue, pieces, pieceLength, committer);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = getAllocatedBytes(threadMXBean) - allocatedBefore;
+
+        System.out.println("PreparedWriteQueue: " + (elapsed / writeCount) + " ns per " + value.length + " byte long write, "
+                + allocated + " bytes allocated for " + committedBytes[0] + " bytes committed");
+        assertEquals((long) writeCount * value.length, committedBytes[0]);
+        if (allocatedBefore >= 0) {
+            // the committed values, and nothing per piece
+            assertTrue("allocated " + allocated + " bytes", allocated < committedBytes[0] + writeCount * 32 + 64 * 1024);
+        }
+    }
+
+    private void writePieces(PreparedWriteQueue preparedWriteQueue, byte[][] pieces, int pieceLength, PreparedWriteQueue.Committer committer) {
+        for (int i = 0; i < pieces.length; i++) {
+            preparedWriteQueue.prepare(COMMAND_UUID, i * pieceLength, pieces[i]);
+        }
+        preparedWriteQueue.execute(committer);
+    }
+
+    private static CentralSession connect() {
+        GattSimulator gattSimulator = new GattSimulator();
+        CentralSessionManager centralSessionManager = new CentralSessionManager(gattSimulator);
+        gattSimulator.addCentral(GattSimulator.address(1));
+        return centralSessionManager.onCentralConnected(GattSimulator.address(1), null);
+    }
+
+    private static byte[] randomValue(Random random, int length) {
+        byte[] value = new byte[length];
+        random.nextBytes(value);
+        return value;
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean threadMXBean) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,63 @@
+package tonyg.example.com.examplebleperipheral.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * TokenBucket bursts, refills and rate changes
+ */
+public class TokenBucketTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void tryAcquire_allowsBurstThenRefuses() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(10, 3, 0);
+        assertTrue(tokenBucket.tryAcquire(0));
+        assertTrue(tokenBucket.tryAcquire(0));
+        assertTrue(tokenBucket.tryAcquire(0));
+        assertFalse(tokenBucket.tryAcquire(0));
+        assertEquals(3, tokenBucket.getAdmittedCount());
+        assertEquals(1, tokenBucket.getRejectedCount());
+    }
+
+    @Test
+    public void tryAcquire_refillsAtRate() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(10, 1, 0);
+        assertTrue(tokenBucket.tryAcquire(0));
+        assertFalse(tokenBucket.tryAcquire(99 * MS));
+        assertTrue(tokenBucket.tryAcquire(100 * MS));
+
+        // a long quiet spell refills no more than the burst
+        assertTrue(tokenBucket.tryAcquire(10000 * MS));
+        assertFalse(tokenBucket.tryAcquire(10000 * MS));
+    }
+
+    @Test
+    public void tryAcquire_takesSeveralTokensOrNone() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(10, 5, 0);
+        assertTrue(tokenBucket.tryAcquire(3, 0));
+        assertFalse(tokenBucket.tryAcquire(3, 0));
+        // the refused ones took nothing
+        assertTrue(tokenBucket.tryAcquire(2, 0));
+        assertFalse(tokenBucket.tryAcquire(0));
+        assertEquals(5, tokenBucket.getAdmittedCount());
+        assertEquals(4, tokenBucket.getRejectedCount());
+    }
+
+    @Test
+    public void setRate_keepsTokensUpToNewBurst() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(10, 5, 0);
+        tokenBucket.setRate(1, 2);
+        assertTrue(tokenBucket.tryAcquire(0));
+        assertTrue(tokenBucket.tryAcquire(0));
+        assertFalse(tokenBucket.tryAcquire(0));
+        assertFalse(tokenBucket.tryAcquire(999 * MS));
+        assertTrue(tokenBucket.tryAcquire(1000 * MS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setRate_rejectsZeroRate() throws Exception {
+        new TokenBucket(0, 1, 0);
+    }
+}